@@ -0,0 +1,112 @@
+/**
+ * Copyright (c) 2012 Sappenin Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.sappenin.objectify.translate.util;
+
+import java.math.BigDecimal;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * JMH benchmarks of {@link BigDecimalCodec}, which runs on every save and load
+ * of a {@code @BigDecimal} or {@code @Money} field.<br/>
+ * <br/>
+ * Each benchmark is run against a small, a large, a negative, and a
+ * high-scale value. Run all of them, with the allocation rate of each
+ * reported by JMH's GC profiler, via:
+ * 
+ * <pre>
+ * mvn -Pbenchmarks test-compile exec:exec
+ * </pre>
+ * 
+ * or by running {@link #main(String[])}.
+ * 
+ * @author David Fuelling <sappenin@gmail.com>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Measurement(iterations = 5, time = 1, timeUnit = TimeUnit.SECONDS)
+@Fork(2)
+public class BigDecimalCodecBenchmark
+{
+	@Param({ "1.5", "123456789012345678901234567890.12", "-98765.4321", "0.000000000000123456789012345678" })
+	private String value;
+
+	private BigDecimal decimal;
+	private String encoded;
+
+	@Setup
+	public void setUp()
+	{
+		this.decimal = new BigDecimal(value);
+		this.encoded = BigDecimalCodec.encode(value);
+	}
+
+	@Benchmark
+	public String encodeBigDecimal()
+	{
+		return BigDecimalCodec.encode(decimal);
+	}
+
+	@Benchmark
+	public String encodeString()
+	{
+		return BigDecimalCodec.encode(value);
+	}
+
+	@Benchmark
+	public String decode()
+	{
+		return BigDecimalCodec.decode(encoded);
+	}
+
+	@Benchmark
+	public BigDecimal decodeAsBigDecimal()
+	{
+		return BigDecimalCodec.decodeAsBigDecimal(encoded);
+	}
+
+	/**
+	 * Runs every benchmark in this class with the GC (allocation) profiler.
+	 * 
+	 * @param args Unused.
+	 * @throws RunnerException
+	 */
+	public static void main(String[] args) throws RunnerException
+	{
+		Options options = new OptionsBuilder().include(BigDecimalCodecBenchmark.class.getSimpleName())
+			.addProfiler(GCProfiler.class).build();
+		new Runner(options).run();
+	}
+
+}
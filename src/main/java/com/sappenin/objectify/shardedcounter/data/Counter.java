@@ -44,8 +44,12 @@ import com.sappenin.objectify.shardedcounter.data.base.AbstractEntity;
 @Unindex
 public class Counter extends AbstractEntity
 {
-    @Parent
-    protected Key<?> parent;
+	// Counters are root entities (each Counter is its own entity group). This
+	// is only ever populated for Counters that were stored by earlier versions
+	// of this library underneath a single shared parent (see
+	// #legacyParentKey), and which have not yet been migrated.
+	@Parent
+	protected Key<?> parent;
 
 	// Used by the Get methods to indicate the state of a Counter while it is
 	// deleting.
@@ -67,6 +71,44 @@ public class Counter extends AbstractEntity
 	// amongst all shards for a given counterName
 	private int numShards;
 
+	// When non-zero, a compaction of this counter is in progress, and the
+	// shards numbered from numShards up to (but not including)
+	// previousNumShards may still hold counts that have not yet been folded
+	// into the remaining shards.
+	private int previousNumShards;
+
+	// The sum of this counter's shards as of materializedDateTime, as rolled up
+	// by ShardedCounterService#onTaskQueueCounterRollup. Changes made since then
+	// are tracked in the counter cache, rather than here.
+	private long materializedCount;
+
+	// When materializedCount was rolled up, or null if it never has been.
+	private DateTime materializedDateTime;
+
+	// Incremented by each rollup, in the same transaction that saves
+	// materializedCount. The changes made since a rollup are tracked in the
+	// counter cache under this generation, so that a later rollup needn't
+	// reset them (see ShardedCounterService#onTaskQueueCounterRollup).
+	private long materializedGeneration;
+
+	// The previous generation's delta as of just before materializedCount was
+	// summed, or null if that delta wasn't cached. Whatever that delta has
+	// gained since (i.e., increments that reached a shard after it was summed,
+	// or were made by instances whose metadata still held the previous
+	// generation) is missing from materializedCount, so it's added on read.
+	private Long previousMaterializedDelta;
+
+	// True from when this counter is created from a legacy Counter (see
+	// #legacyParentKey) until all of that Counter's shards have been folded
+	// into this one, so that an interrupted migration is resumed on the next
+	// access.
+	private boolean migratingFromLegacyParent;
+
+	// While this counter is DELETING, the shards numbered below this have
+	// already been deleted. This is the checkpoint from which a shard-deletion
+	// task resumes, so that a large counter needn't be deleted in one task.
+	private int numDeletedShards;
+
 	// This is AVAILABLE by default, which means it can be incremented and
 	// decremented
 	private CounterStatus counterStatus = CounterStatus.AVAILABLE;
@@ -92,7 +134,19 @@ public class Counter extends AbstractEntity
 	{
 		super(counterName);
 		this.numShards = numShards;
-        this.parent = Key.create(Counter.class, 1);
+	}
+
+	/**
+	 * Earlier versions of this library stored every {@link Counter} and
+	 * {@link CounterShard} underneath this single parent key, which placed all
+	 * counters into one entity group. It is only used to locate (and migrate)
+	 * entities that were stored that way.
+	 * 
+	 * @return
+	 */
+	public static Key<Counter> legacyParentKey()
+	{
+		return Key.create(Counter.class, 1);
 	}
 
 	// //////////////////////////////
@@ -113,4 +167,14 @@ public class Counter extends AbstractEntity
 		this.setUpdatedDateTime(new DateTime(DateTimeZone.UTC));
 	}
 
+	/**
+	 * @return The number of CounterShards that may hold a portion of this
+	 *         counter's count. This is greater than {@link #getNumShards()}
+	 *         while a compaction of this counter is in progress.
+	 */
+	public int getNumReadableShards()
+	{
+		return Math.max(this.numShards, this.previousNumShards);
+	}
+
 }
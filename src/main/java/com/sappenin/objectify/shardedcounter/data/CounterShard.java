@@ -46,8 +46,12 @@ import org.joda.time.DateTimeZone;
 @Unindex
 public class CounterShard extends AbstractEntity
 {
-    @Parent
-    protected Key<?> parent;
+	// CounterShards are root entities so that every shard is its own entity
+	// group. This is only ever populated for CounterShards that were stored by
+	// earlier versions of this library (see Counter#legacyParentKey).
+	@Parent
+	protected Key<?> parent;
+
 	static final String COUNTER_SHARD_KEY_SEPARATOR = "-";
 
 	// The id of a CounterShard is the name of the counter (for easy lookup via
@@ -78,7 +82,6 @@ public class CounterShard extends AbstractEntity
 	{
 		Preconditions.checkNotNull(counterName);
 		setId(counterName + COUNTER_SHARD_KEY_SEPARATOR + shardNumber);
-        this.parent = Key.create(Counter.class, 1);
 	}
 
 	// /////////////////////////
@@ -0,0 +1,75 @@
+/**
+ * Copyright (c) 2012 Sappenin Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.sappenin.objectify.shardedcounter.service;
+
+import java.util.concurrent.Future;
+
+import com.google.common.base.Optional;
+import com.sappenin.objectify.shardedcounter.data.Counter;
+
+/**
+ * An asynchronous variant of {@link CounterService} whose operations return
+ * immediately with a {@link Future}, so that several independent counter
+ * operations can be in flight at the same time.<br/>
+ * <br/>
+ * Arguments are validated before a method returns. Any other failure (e.g., a
+ * counter that is being deleted) is reported by the returned {@link Future},
+ * wrapped in an {@link java.util.concurrent.ExecutionException}.
+ * 
+ * @author David Fuelling <sappenin@gmail.com>
+ */
+public interface AsyncCounterService
+{
+	/**
+	 * Retrieve the value of the counter with the specified {@code counterName}
+	 * .
+	 * 
+	 * @param counterName
+	 * @return A Future for an Optional Counter with the summed-total of its
+	 *         shards' counts, if available
+	 * @see CounterService#getCounter(String)
+	 */
+	public Future<Optional<Counter>> getCounter(final String counterName);
+
+	/**
+	 * Increment the value of the sharded counter specified by
+	 * {@code counterName}.
+	 * 
+	 * @param counterName
+	 * @param amount The amount to increment by (must be positive)
+	 * @return A Future for a Counter with the new count
+	 * @throws NullPointerException if the {@code counterName} is null.
+	 * @throws IllegalArgumentException if the {@code counterName} is "blank"
+	 *             (i.e., null, empty, or empty spaces).
+	 * @throws IllegalArgumentException if the {@code amount} is negative.
+	 * @see CounterService#increment(String, long)
+	 */
+	public Future<Counter> increment(final String counterName, final long amount);
+
+	/**
+	 * Decrement the value of the sharded counter with name {@code counterName}
+	 * by 1.
+	 * 
+	 * @param counterName
+	 * @return A Future for a Counter with the new count
+	 * @throws NullPointerException if the {@code counterName} is null.
+	 * @throws IllegalArgumentException if the {@code counterName} is "blank"
+	 *             (i.e., null, empty, or empty spaces).
+	 * @see CounterService#decrement(String)
+	 */
+	public Future<Counter> decrement(final String counterName);
+
+}
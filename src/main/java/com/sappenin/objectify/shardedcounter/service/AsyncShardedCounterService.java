@@ -0,0 +1,169 @@
+/**
+ * Copyright (c) 2012 Sappenin Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.sappenin.objectify.shardedcounter.service;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import org.apache.commons.lang3.StringUtils;
+
+import com.google.common.base.Function;
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import com.googlecode.objectify.Key;
+import com.googlecode.objectify.LoadResult;
+import com.googlecode.objectify.ObjectifyService;
+import com.sappenin.objectify.shardedcounter.data.Counter;
+
+/**
+ * An implementation of {@link AsyncCounterService} that is backed by a
+ * {@link ShardedCounterService}.<br/>
+ * <br/>
+ * <b>Reads</b><br/>
+ * {@link #getCounter(String)} issues the Datastore load of the {@link Counter}
+ * and the cache lookup of its count asynchronously (via Objectify's async
+ * loads and {@link CounterCache#getAsync(String)}),
+ * and does not block until {@link Future#get()} is called. If the count isn't
+ * cached, the shards are aggregated when the Future is resolved.<br/>
+ * <br/>
+ * <b>Writes</b><br/>
+ * Increments and decrements read and update a shard inside a Datastore
+ * transaction, which Objectify only supports synchronously. These operations
+ * are therefore run on the {@link ExecutorService} supplied to this service.
+ * On App Engine, use an executor whose threads are created by
+ * {@code ThreadManager.currentRequestThreadFactory()} (and shut it down before
+ * the request completes), or by {@code ThreadManager.backgroundThreadFactory()}
+ * on a backend.
+ * 
+ * @author David Fuelling <sappenin@gmail.com>
+ */
+public class AsyncShardedCounterService implements AsyncCounterService
+{
+	private final ShardedCounterService shardedCounterService;
+	private final ExecutorService executorService;
+
+	/**
+	 * Required-args Constructor.
+	 * 
+	 * @param shardedCounterService The service that performs each counter
+	 *            operation.
+	 * @param executorService The executor that runs transactional counter
+	 *            operations.
+	 */
+	public AsyncShardedCounterService(final ShardedCounterService shardedCounterService,
+			final ExecutorService executorService)
+	{
+		Preconditions.checkNotNull(shardedCounterService);
+		Preconditions.checkNotNull(executorService);
+
+		this.shardedCounterService = shardedCounterService;
+		this.executorService = executorService;
+	}
+
+	@Override
+	public Future<Optional<Counter>> getCounter(final String counterName)
+	{
+		Preconditions.checkNotNull(counterName);
+		Preconditions.checkArgument(!StringUtils.isBlank(counterName));
+
+		// Both of these begin immediately and run concurrently.
+		Key<Counter> counterKey = new Counter(counterName, 1).getTypedKey();
+		final LoadResult<Counter> counterResult = ObjectifyService.ofy().transactionless().load().key(counterKey);
+		final Future<Long> cachedCount = shardedCounterService.getCounterCache().getAsync(counterName);
+
+		// The fallback may aggregate the counter's shards, so it must only be
+		// run once, however many times the Future is read.
+		return new MemoizingTransformedFuture<Long, Optional<Counter>>(cachedCount,
+			new Function<Long, Optional<Counter>>()
+			{
+				@Override
+				public Optional<Counter> apply(Long cachedValue)
+				{
+					Counter counter = counterResult.now();
+					if (counter == null || counter.isMigratingFromLegacyParent() || cachedValue == null)
+					{
+						// Either the counter is a legacy counter (or
+						// doesn't exist), its migration from the legacy
+						// parent was interrupted and must be resumed, or its
+						// count must be aggregated from its shards.
+						return shardedCounterService.getCounter(counterName);
+					}
+
+					counter.setApproximateCount(cachedValue);
+					return Optional.of(counter);
+				}
+			});
+	}
+
+	@Override
+	public Future<Counter> increment(final String counterName, final long amount)
+	{
+		Preconditions.checkNotNull(counterName);
+		Preconditions.checkArgument(!StringUtils.isBlank(counterName));
+		Preconditions.checkArgument(amount > 0, "Counter increments must be positive numbers!");
+
+		return executorService.submit(new CounterOperation()
+		{
+			@Override
+			Counter doCall()
+			{
+				return shardedCounterService.increment(counterName, amount);
+			}
+		});
+	}
+
+	@Override
+	public Future<Counter> decrement(final String counterName)
+	{
+		Preconditions.checkNotNull(counterName);
+		Preconditions.checkArgument(!StringUtils.isBlank(counterName));
+
+		return executorService.submit(new CounterOperation()
+		{
+			@Override
+			Counter doCall()
+			{
+				return shardedCounterService.decrement(counterName);
+			}
+		});
+	}
+
+	/**
+	 * A counter operation that runs on a thread of the executor. Objectify
+	 * keeps its session per-thread, so the session cache is cleared after each
+	 * operation to keep pooled threads from serving stale entities to later
+	 * operations.
+	 */
+	private static abstract class CounterOperation implements Callable<Counter>
+	{
+		@Override
+		public final Counter call()
+		{
+			try
+			{
+				return this.doCall();
+			}
+			finally
+			{
+				ObjectifyService.ofy().clear();
+			}
+		}
+
+		abstract Counter doCall();
+	}
+
+}
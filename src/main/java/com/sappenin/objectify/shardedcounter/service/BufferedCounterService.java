@@ -0,0 +1,481 @@
+/**
+ * Copyright (c) 2012 Sappenin Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.sappenin.objectify.shardedcounter.service;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import org.apache.commons.lang3.StringUtils;
+
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.AtomicLongMap;
+import com.googlecode.objectify.ObjectifyService;
+import com.sappenin.objectify.shardedcounter.data.Counter;
+
+/**
+ * A {@link CounterService} that buffers increments in memory and writes them
+ * to another {@link CounterService} in batches, for high-rate counters that
+ * can tolerate losing a few seconds' worth of increments (e.g., impressions or
+ * clicks).<br/>
+ * <br/>
+ * <b>Increments</b><br/>
+ * {@link #increment(String, long)}, {@link #incrementFast(String, long)}, and
+ * {@link #incrementAll(Map)} only add to an in-memory, per-counter total. Every
+ * {@code flushIntervalMillis}, all buffered totals are written to the
+ * underlying service with a single {@link CounterService#incrementAll(Map)},
+ * so thousands of increments per second collapse into one shard transaction
+ * per counter per flush. A counter whose buffered total reaches
+ * {@code flushThreshold} triggers an early flush.<br/>
+ * <br/>
+ * <b>Reads</b><br/>
+ * Counts returned by this service include the increments buffered by this
+ * instance (but not those buffered by other instances, e.g., on other App
+ * Engine instances).<br/>
+ * <br/>
+ * <b>Other operations</b><br/>
+ * Decrements first flush the counter's buffered total, so that they never see
+ * a count that is too low. Deleting a counter discards its buffered total.
+ * All other operations are passed straight through.<br/>
+ * <br/>
+ * <b>Shutdown</b><br/>
+ * Increments that are still buffered when the JVM stops are lost. Call
+ * {@link #shutdown()} before the instance goes away (e.g., from a
+ * {@code LifecycleManager} shutdown hook on a backend) to write them out. A
+ * flush handles each counter on its own: a total that was not committed is
+ * put back into the buffer and retried by the next flush, while a total that
+ * was rejected (e.g., because its counter is being deleted) is dropped, so
+ * that it can't hold up the totals of other counters.
+ * 
+ * @author David Fuelling <sappenin@gmail.com>
+ */
+public class BufferedCounterService implements CounterService
+{
+	private static final Logger logger = Logger.getLogger(BufferedCounterService.class.getName());
+
+	private final CounterService counterService;
+	private final ScheduledExecutorService executorService;
+	private final long flushThreshold;
+
+	// The amount of every increment that hasn't been flushed, keyed by
+	// counter name.
+	private final AtomicLongMap<String> unflushedAmounts = AtomicLongMap.create();
+	// Whether an early flush has been submitted but has not yet started, so
+	// that a burst of increments only submits one.
+	private final AtomicBoolean earlyFlushPending = new AtomicBoolean();
+	private final ScheduledFuture<?> scheduledFlush;
+
+	/**
+	 * Required-args Constructor. Schedules the periodic flush on
+	 * {@code executorService}, which is not shut down by {@link #shutdown()}.
+	 * 
+	 * @param counterService The service that buffered increments are flushed
+	 *            to, and that all other operations are passed to.
+	 * @param executorService The executor that runs flushes. On App Engine,
+	 *            its threads must be created by
+	 *            {@code ThreadManager.backgroundThreadFactory()}.
+	 * @param flushIntervalMillis The number of milliseconds between flushes.
+	 * @param flushThreshold The buffered amount of a single counter that
+	 *            triggers a flush before the next scheduled one.
+	 */
+	public BufferedCounterService(final CounterService counterService,
+			final ScheduledExecutorService executorService, final long flushIntervalMillis, final long flushThreshold)
+	{
+		Preconditions.checkNotNull(counterService);
+		Preconditions.checkNotNull(executorService);
+		Preconditions.checkArgument(flushIntervalMillis > 0, "Flush interval must be greater than 0!");
+		Preconditions.checkArgument(flushThreshold > 0, "Flush threshold must be greater than 0!");
+
+		this.counterService = counterService;
+		this.executorService = executorService;
+		this.flushThreshold = flushThreshold;
+		this.scheduledFlush = executorService.scheduleWithFixedDelay(new FlushTask(), flushIntervalMillis,
+			flushIntervalMillis, TimeUnit.MILLISECONDS);
+	}
+
+	@Override
+	public Counter create(final String counterName)
+	{
+		return counterService.create(counterName);
+	}
+
+	@Override
+	public void delete(final String counterName)
+	{
+		unflushedAmounts.remove(counterName);
+		counterService.delete(counterName);
+	}
+
+	@Override
+	public Optional<Counter> getCounter(final String counterName)
+	{
+		Optional<Counter> optCounter = counterService.getCounter(counterName);
+		if (optCounter.isPresent())
+		{
+			this.addUnflushedAmount(optCounter.get());
+		}
+		return optCounter;
+	}
+
+	@Override
+	public Map<String, Counter> getCounters(final Collection<String> counterNames)
+	{
+		Map<String, Counter> counters = counterService.getCounters(counterNames);
+		for (Counter counter : counters.values())
+		{
+			this.addUnflushedAmount(counter);
+		}
+		return counters;
+	}
+
+	/**
+	 * Buffers an increment of the counter named {@code counterName}, creating
+	 * the counter if it doesn't exist. The returned count includes the
+	 * increments buffered by this instance.
+	 */
+	@Override
+	public Counter increment(final String counterName, final long amount)
+	{
+		this.incrementFast(counterName, amount);
+
+		Optional<Counter> optCounter = this.getCounter(counterName);
+		if (optCounter.isPresent())
+		{
+			return optCounter.get();
+		}
+
+		// The counter will be created by the flush, but create it now so that
+		// it can be returned.
+		Counter counter = counterService.create(counterName);
+		this.addUnflushedAmount(counter);
+		return counter;
+	}
+
+	/**
+	 * Buffers an increment of the counter named {@code counterName}. No
+	 * Datastore or memcache calls are made.
+	 */
+	@Override
+	public void incrementFast(final String counterName, final long amount)
+	{
+		Preconditions.checkNotNull(counterName);
+		Preconditions.checkArgument(!StringUtils.isBlank(counterName));
+		Preconditions.checkArgument(amount > 0, "Counter increments must be positive numbers!");
+
+		if (unflushedAmounts.addAndGet(counterName, amount) >= flushThreshold)
+		{
+			this.requestEarlyFlush();
+		}
+	}
+
+	/**
+	 * Buffers an increment of each counter in {@code amounts}. The returned
+	 * counts include the increments buffered by this instance.
+	 */
+	@Override
+	public Map<String, IncrementResult> incrementAll(final Map<String, Long> amounts)
+	{
+		Preconditions.checkNotNull(amounts);
+		for (Map.Entry<String, Long> entry : amounts.entrySet())
+		{
+			Preconditions.checkNotNull(entry.getKey());
+			Preconditions.checkArgument(!StringUtils.isBlank(entry.getKey()));
+			Preconditions.checkNotNull(entry.getValue());
+			Preconditions.checkArgument(entry.getValue() > 0, "Counter increments must be positive numbers!");
+		}
+
+		for (Map.Entry<String, Long> entry : amounts.entrySet())
+		{
+			this.incrementFast(entry.getKey(), entry.getValue());
+		}
+
+		final Map<String, Counter> existingCounters = this.getCounters(amounts.keySet());
+		final Map<String, IncrementResult> results = Maps.newLinkedHashMap();
+		for (String counterName : amounts.keySet())
+		{
+			Counter counter = existingCounters.get(counterName);
+			if (counter == null)
+			{
+				// The counter will be created by the flush, but create it now
+				// so that it can be returned.
+				counter = this.addUnflushedAmount(counterService.create(counterName));
+			}
+			results.put(counterName, IncrementResult.buffered(counter));
+		}
+		return results;
+	}
+
+	@Override
+	public Counter decrement(final String counterName)
+	{
+		this.flush(counterName);
+		return this.addUnflushedAmount(counterService.decrement(counterName));
+	}
+
+	@Override
+	public Counter decrement(final String counterName, final long amount)
+	{
+		this.flush(counterName);
+		return this.addUnflushedAmount(counterService.decrement(counterName, amount));
+	}
+
+	@Override
+	public void compact(final String counterName, final int numShards)
+	{
+		counterService.compact(counterName, numShards);
+	}
+
+	@Override
+	public void onTaskQueueCounterCompaction(final String counterName)
+	{
+		counterService.onTaskQueueCounterCompaction(counterName);
+	}
+
+	@Override
+	public void onTaskQueueCounterRefresh(final String counterName, final String leaseOwner)
+	{
+		counterService.onTaskQueueCounterRefresh(counterName, leaseOwner);
+	}
+
+	@Override
+	public void onTaskQueueCounterRollup(final String counterName, final String leaseOwner)
+	{
+		counterService.onTaskQueueCounterRollup(counterName, leaseOwner);
+	}
+
+	@Override
+	public void onTaskQueueCounterDeletion(final String counterName)
+	{
+		counterService.onTaskQueueCounterDeletion(counterName);
+	}
+
+	/**
+	 * Writes every buffered increment to the underlying {@link CounterService}
+	 * with a single {@link CounterService#incrementAll(Map)}. The increments
+	 * that were not committed are put back into the buffer (see
+	 * {@link #flush(Map)}).
+	 */
+	public void flush()
+	{
+		final Map<String, Long> amounts = Maps.newLinkedHashMap();
+		for (String counterName : unflushedAmounts.asMap().keySet())
+		{
+			long amount = unflushedAmounts.remove(counterName);
+			if (amount > 0)
+			{
+				amounts.put(counterName, amount);
+			}
+		}
+		this.flush(amounts);
+	}
+
+	/**
+	 * Stops the periodic flush and writes every buffered increment to the
+	 * underlying {@link CounterService}. Increments made after this method is
+	 * called are only written by a subsequent call to {@link #flush()}.
+	 */
+	public void shutdown()
+	{
+		scheduledFlush.cancel(false);
+		this.flush();
+	}
+
+	/**
+	 * @return The total amount of all increments that have been buffered but
+	 *         not yet flushed.
+	 */
+	public long getUnflushedAmount()
+	{
+		return unflushedAmounts.sum();
+	}
+
+	/**
+	 * @param counterName
+	 * @return The amount of the increments of the counter named
+	 *         {@code counterName} that have been buffered but not yet flushed.
+	 */
+	public long getUnflushedAmount(final String counterName)
+	{
+		return unflushedAmounts.get(counterName);
+	}
+
+	/**
+	 * Writes the buffered increments of the counter named {@code counterName}.
+	 * 
+	 * @param counterName
+	 */
+	private void flush(final String counterName)
+	{
+		long amount = unflushedAmounts.remove(counterName);
+		if (amount > 0)
+		{
+			this.flush(Collections.singletonMap(counterName, amount));
+		}
+	}
+
+	/**
+	 * Writes {@code amounts} to the underlying {@link CounterService}, putting
+	 * the amount of each counter whose increment is known not to have been
+	 * committed back into the buffer. The amount of a counter whose increment
+	 * was rejected (see {@link IncrementResult.Status#REJECTED}) or may or may
+	 * not have been committed (see {@link IncrementResult.Status#UNKNOWN}) is
+	 * dropped instead, since flushing it again would either fail again or
+	 * could count it twice.<br/>
+	 * <br/>
+	 * If {@link CounterService#incrementAll(Map)} throws for the whole batch,
+	 * nothing was incremented, so each counter is flushed on its own to keep a
+	 * single bad counter from holding up the others.
+	 * 
+	 * @param amounts The amounts removed from the buffer, keyed by counter
+	 *            name.
+	 */
+	private void flush(final Map<String, Long> amounts)
+	{
+		if (amounts.isEmpty())
+		{
+			return;
+		}
+
+		final Map<String, IncrementResult> results;
+		try
+		{
+			results = counterService.incrementAll(amounts);
+		}
+		catch (RuntimeException e)
+		{
+			if (amounts.size() > 1)
+			{
+				for (Map.Entry<String, Long> entry : amounts.entrySet())
+				{
+					this.flush(Collections.singletonMap(entry.getKey(), entry.getValue()));
+				}
+			}
+			else
+			{
+				// incrementAll only throws before anything is incremented. An
+				// invalid argument will never succeed, but anything else (e.g.,
+				// a Datastore failure) might on the next flush.
+				final String counterName = amounts.keySet().iterator().next();
+				this.onFlushed(counterName, amounts.get(counterName),
+					e instanceof IllegalArgumentException ? IncrementResult.rejected(e) : IncrementResult
+						.notCommitted(e));
+			}
+			return;
+		}
+
+		for (Map.Entry<String, IncrementResult> entry : results.entrySet())
+		{
+			this.onFlushed(entry.getKey(), amounts.get(entry.getKey()), entry.getValue());
+		}
+	}
+
+	/**
+	 * Puts {@code amount} back into the buffer of the counter named
+	 * {@code counterName} if {@code result} shows that it was not committed,
+	 * and otherwise logs why it was dropped (if it was).
+	 * 
+	 * @param counterName
+	 * @param amount The amount that was flushed.
+	 * @param result The outcome of the flush.
+	 */
+	private void onFlushed(final String counterName, final long amount, final IncrementResult result)
+	{
+		switch (result.getStatus())
+		{
+			case NOT_COMMITTED:
+				unflushedAmounts.addAndGet(counterName, amount);
+				logger.log(Level.WARNING, "Unable to flush " + amount + " buffered increments of Counter \""
+					+ counterName + "\", so they will be retried by the next flush", result.getFailure().orNull());
+				break;
+			case REJECTED:
+				logger.log(Level.WARNING, "Dropping " + amount + " buffered increments of Counter \"" + counterName
+					+ "\" since the Counter rejected them", result.getFailure().orNull());
+				break;
+			case UNKNOWN:
+				logger.log(Level.WARNING, "Dropping " + amount + " buffered increments of Counter \"" + counterName
+					+ "\" since they may or may not have been flushed", result.getFailure().orNull());
+				break;
+			default:
+				break;
+		}
+	}
+
+	/**
+	 * Adds the amount buffered for {@code counter} to its count.
+	 * 
+	 * @param counter
+	 * @return {@code counter}
+	 */
+	private Counter addUnflushedAmount(final Counter counter)
+	{
+		counter.setApproximateCount(counter.getApproximateCount() + unflushedAmounts.get(counter.getCounterName()));
+		return counter;
+	}
+
+	/**
+	 * Submits a flush to the executor, unless one is already waiting to run.
+	 */
+	private void requestEarlyFlush()
+	{
+		if (earlyFlushPending.compareAndSet(false, true))
+		{
+			executorService.execute(new FlushTask()
+			{
+				@Override
+				public void run()
+				{
+					earlyFlushPending.set(false);
+					super.run();
+				}
+			});
+		}
+	}
+
+	/**
+	 * Runs a flush on a thread of the executor. Objectify keeps its session
+	 * per-thread, so the session cache is cleared after each flush. Failures
+	 * are logged (the increments remain buffered) so that the periodic flush
+	 * isn't cancelled.
+	 */
+	private class FlushTask implements Runnable
+	{
+		@Override
+		public void run()
+		{
+			try
+			{
+				flush();
+			}
+			catch (RuntimeException e)
+			{
+				logger.log(Level.SEVERE, "Unable to flush " + getUnflushedAmount() + " buffered increments", e);
+			}
+			finally
+			{
+				ObjectifyService.ofy().clear();
+			}
+		}
+	}
+
+}
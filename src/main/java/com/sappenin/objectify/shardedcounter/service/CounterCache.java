@@ -0,0 +1,183 @@
+/**
+ * Copyright (c) 2012 Sappenin Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.sappenin.objectify.shardedcounter.service;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.Future;
+
+/**
+ * A cache of the counts of counters, keyed by counter name, that lets a
+ * {@link ShardedCounterService} avoid aggregating a counter's shards on every
+ * read. See {@link MemcacheCounterCache} (the default) and
+ * {@link InMemoryCounterCache}.<br/>
+ * <br/>
+ * Implementations must be thread-safe. A cached count must never drop below
+ * zero (i.e., an increment by a negative amount stops at zero), which matches
+ * the behavior of memcache. Any method may throw a {@link RuntimeException}
+ * if the underlying cache is unavailable, in which case the caller evicts the
+ * affected counts.
+ * 
+ * @author David Fuelling <sappenin@gmail.com>
+ */
+public interface CounterCache
+{
+	/**
+	 * An expiration that indicates that a cached count never expires (though
+	 * it may still be evicted).
+	 */
+	public static final long NO_EXPIRATION = 0L;
+
+	/**
+	 * @param counterName
+	 * @return The cached count of the counter named {@code counterName}, or
+	 *         {@code null} if it isn't cached.
+	 */
+	public Long get(String counterName);
+
+	/**
+	 * Like {@link #get(String)}, but doesn't block until {@link Future#get()}
+	 * is called.
+	 * 
+	 * @param counterName
+	 * @return
+	 */
+	public Future<Long> getAsync(String counterName);
+
+	/**
+	 * @param counterNames
+	 * @return The cached counts of those of {@code counterNames} that are
+	 *         cached, keyed by counter name.
+	 */
+	public Map<String, Long> getAll(Collection<String> counterNames);
+
+	/**
+	 * Caches {@code count} as the count of the counter named
+	 * {@code counterName}, replacing any cached count.
+	 * 
+	 * @param counterName
+	 * @param count
+	 * @param expirationMillis The number of milliseconds after which the count
+	 *            expires, or {@link #NO_EXPIRATION}.
+	 */
+	public void put(String counterName, long count, long expirationMillis);
+
+	/**
+	 * Like {@link #put(String, long, long)}, for several counters at once.
+	 * 
+	 * @param counts The counts to cache, keyed by counter name.
+	 * @param expirationMillis
+	 */
+	public void putAll(Map<String, Long> counts, long expirationMillis);
+
+	/**
+	 * Atomically adjusts the cached count of the counter named
+	 * {@code counterName} by {@code delta}. If the count isn't cached, then it
+	 * is first cached as {@code initialValue}.
+	 * 
+	 * @param counterName
+	 * @param delta The (possibly negative) amount to adjust the count by.
+	 * @param initialValue
+	 * @return The new count, or {@code null} if it could not be adjusted.
+	 */
+	public Long increment(String counterName, long delta, long initialValue);
+
+	/**
+	 * Adjusts the cached count of the counter named {@code counterName} by
+	 * {@code delta} without waiting for the result. Nothing is cached if the
+	 * count isn't cached already.
+	 * 
+	 * @param counterName
+	 * @param delta
+	 */
+	public void incrementAsync(String counterName, long delta);
+
+	/**
+	 * Atomically adjusts each of several cached counts. Counts that aren't
+	 * cached are left uncached.
+	 * 
+	 * @param deltas The amounts to adjust each count by, keyed by counter name.
+	 * @return The new counts of those counters that were cached, keyed by
+	 *         counter name.
+	 */
+	public Map<String, Long> incrementAll(Map<String, Long> deltas);
+
+	/**
+	 * Evicts the cached count and the last known count (see
+	 * {@link #getLastKnownCount(String)}) of the counter named
+	 * {@code counterName}, if any.
+	 * 
+	 * @param counterName
+	 */
+	public void delete(String counterName);
+
+	/**
+	 * Evicts the cached counts and the last known counts of each of
+	 * {@code counterNames}.
+	 * 
+	 * @param counterNames
+	 */
+	public void deleteAll(Collection<String> counterNames);
+
+	/**
+	 * @param counterName
+	 * @return The last known count of the counter named {@code counterName},
+	 *         which outlives its cached count, or {@code null} if there is
+	 *         none.
+	 */
+	public LastKnownCount getLastKnownCount(String counterName);
+
+	/**
+	 * Caches the last known count of the counter named {@code counterName}.
+	 * Unlike a cached count, this doesn't expire (though it may still be
+	 * evicted).
+	 * 
+	 * @param counterName
+	 * @param lastKnownCount
+	 */
+	public void putLastKnownCount(String counterName, LastKnownCount lastKnownCount);
+
+	/**
+	 * Attempts to acquire the lease to recompute the count of the counter named
+	 * {@code counterName} after a cache miss, so that only one caller (across
+	 * every instance that shares this cache) aggregates the counter's shards.
+	 * The lease expires after {@code leaseMillis}, or once released by its
+	 * owner.
+	 * 
+	 * @param counterName
+	 * @param owner A token that is unique to this attempt (e.g., a random
+	 *            UUID), which must be presented to release the lease.
+	 * @param leaseMillis
+	 * @return {@code false} if another caller holds the lease, in which case
+	 *         it will soon cache the count. Otherwise {@code true}, either
+	 *         because the lease was acquired or because the cache can't grant
+	 *         leases right now; either way, the caller should recompute the
+	 *         count.
+	 */
+	public boolean tryAcquireRecomputeLease(String counterName, String owner, long leaseMillis);
+
+	/**
+	 * Releases a lease acquired via
+	 * {@link #tryAcquireRecomputeLease(String, String, long)}, unless it has
+	 * since expired and been acquired by another owner (whose lease is left
+	 * intact).
+	 * 
+	 * @param counterName
+	 * @param owner The token with which the lease was acquired.
+	 */
+	public void releaseRecomputeLease(String counterName, String owner);
+
+}
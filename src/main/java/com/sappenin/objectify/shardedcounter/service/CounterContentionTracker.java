@@ -0,0 +1,171 @@
+/**
+ * Copyright (c) 2012 Sappenin Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.sappenin.objectify.shardedcounter.service;
+
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * Tracks, per counter, how often shard transactions are retried due to
+ * contention (i.e., a {@link java.util.ConcurrentModificationException} on
+ * commit), and decides when a counter is running hot enough that its number of
+ * shards should be increased.<br/>
+ * <br/>
+ * Transactions are observed in samples of {@code sampleSize}. At the end of
+ * each sample, a counter is considered hot if its average number of retries
+ * per transaction is at or above {@code retryRatioThreshold}. To avoid
+ * repeatedly resharding a counter before the effect of a previous reshard is
+ * observed, a counter is never reported as hot twice within
+ * {@code cooldownMillis}.<br/>
+ * <br/>
+ * The samples of up to {@code maxTrackedCounters} counters are kept, and a
+ * counter's sample is forgotten once it hasn't been used for the longer of
+ * {@code cooldownMillis} and {@link #MIN_IDLE_EXPIRATION_MILLIS} (by which time
+ * it is no longer cooling down, and a partial sample is stale anyway).<br/>
+ * <br/>
+ * This class is thread-safe. Contention is only tracked within a single JVM.
+ * 
+ * @author David Fuelling <sappenin@gmail.com>
+ */
+class CounterContentionTracker
+{
+	// By default, the samples of up to 10,000 counters are tracked.
+	static final int DEFAULT_MAX_TRACKED_COUNTERS = 10000;
+
+	// A sample is kept for at least this long after it was last used, even if
+	// the cooldown is shorter.
+	static final long MIN_IDLE_EXPIRATION_MILLIS = 60000L;
+
+	private final int sampleSize;
+	private final double retryRatioThreshold;
+	private final long cooldownMillis;
+
+	// The current sample of each recently updated counter, keyed by counter
+	// name.
+	private final Cache<String, Sample> samples;
+
+	/**
+	 * Constructor that tracks the samples of up to 10,000 counters.
+	 * 
+	 * @param sampleSize
+	 * @param retryRatioThreshold
+	 * @param cooldownMillis
+	 */
+	CounterContentionTracker(final int sampleSize, final double retryRatioThreshold, final long cooldownMillis)
+	{
+		this(sampleSize, retryRatioThreshold, cooldownMillis, DEFAULT_MAX_TRACKED_COUNTERS);
+	}
+
+	/**
+	 * Required-args Constructor.
+	 * 
+	 * @param sampleSize
+	 * @param retryRatioThreshold
+	 * @param cooldownMillis
+	 * @param maxTrackedCounters The maximum number of counters whose samples
+	 *            are tracked. The samples of the least recently used counters
+	 *            are forgotten first.
+	 */
+	CounterContentionTracker(final int sampleSize, final double retryRatioThreshold, final long cooldownMillis,
+			final int maxTrackedCounters)
+	{
+		Preconditions.checkArgument(sampleSize > 0);
+		Preconditions.checkArgument(retryRatioThreshold > 0);
+		Preconditions.checkArgument(cooldownMillis >= 0);
+		Preconditions.checkArgument(maxTrackedCounters > 0);
+
+		this.sampleSize = sampleSize;
+		this.retryRatioThreshold = retryRatioThreshold;
+		this.cooldownMillis = cooldownMillis;
+		this.samples = CacheBuilder.newBuilder().maximumSize(maxTrackedCounters)
+			.expireAfterAccess(Math.max(cooldownMillis, MIN_IDLE_EXPIRATION_MILLIS), TimeUnit.MILLISECONDS).build();
+	}
+
+	/**
+	 * Record the outcome of a single shard transaction for the counter named
+	 * {@code counterName}.
+	 * 
+	 * @param counterName
+	 * @param numRetries The number of times the transaction was retried before
+	 *            it committed (or gave up).
+	 * @return {@code true} if this transaction completed a sample in which the
+	 *         counter was running hot and the counter is not cooling down from
+	 *         a previous reshard; {@code false} otherwise.
+	 */
+	boolean recordTransaction(final String counterName, final int numRetries)
+	{
+		Preconditions.checkNotNull(counterName);
+		Preconditions.checkArgument(numRetries >= 0);
+
+		Sample sample = samples.getIfPresent(counterName);
+		if (sample == null)
+		{
+			Sample newSample = new Sample();
+			sample = samples.asMap().putIfAbsent(counterName, newSample);
+			if (sample == null)
+			{
+				sample = newSample;
+			}
+		}
+
+		synchronized (sample)
+		{
+			sample.numTransactions++;
+			sample.numRetries += numRetries;
+			if (sample.numTransactions < sampleSize)
+			{
+				return false;
+			}
+
+			final double retryRatio = (double) sample.numRetries / sample.numTransactions;
+			sample.numTransactions = 0;
+			sample.numRetries = 0;
+
+			final long now = System.currentTimeMillis();
+			if (retryRatio >= retryRatioThreshold && now - sample.lastHotMillis >= cooldownMillis)
+			{
+				sample.lastHotMillis = now;
+				return true;
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * Forget everything that has been observed for {@code counterName} (e.g.,
+	 * when the counter is deleted).
+	 * 
+	 * @param counterName
+	 */
+	void reset(final String counterName)
+	{
+		samples.invalidate(counterName);
+	}
+
+	/**
+	 * The transactions observed for a single counter in the current sample.
+	 */
+	private static final class Sample
+	{
+		private int numTransactions;
+		private long numRetries;
+		private long lastHotMillis = Long.MIN_VALUE / 2;
+	}
+
+}
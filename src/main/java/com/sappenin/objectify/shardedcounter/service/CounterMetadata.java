@@ -0,0 +1,78 @@
+/**
+ * Copyright (c) 2012 Sappenin Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.sappenin.objectify.shardedcounter.service;
+
+import lombok.Getter;
+import lombok.ToString;
+
+import com.google.common.base.Preconditions;
+import com.sappenin.objectify.shardedcounter.data.Counter;
+import com.sappenin.objectify.shardedcounter.data.Counter.CounterStatus;
+
+/**
+ * An immutable snapshot of the metadata of a {@link Counter} that is needed to
+ * choose its shards (i.e., its number of shards and status) and to track the
+ * changes made since its last rollup (i.e., its materialized generation), as
+ * kept by the counter metadata cache of a {@link ShardedCounterService} (see
+ * {@link ShardedCounterServiceConfiguration#getCounterMetadataCacheMaxSize()}).
+ * 
+ * @author David Fuelling <sappenin@gmail.com>
+ */
+@Getter
+@ToString
+class CounterMetadata
+{
+	private final String counterName;
+
+	private final int numShards;
+
+	private final int previousNumShards;
+
+	private final CounterStatus counterStatus;
+
+	private final long materializedGeneration;
+
+	/**
+	 * Required-args Constructor.
+	 * 
+	 * @param counter The Counter to take a snapshot of.
+	 */
+	CounterMetadata(final Counter counter)
+	{
+		Preconditions.checkNotNull(counter);
+
+		this.counterName = counter.getCounterName();
+		this.numShards = counter.getNumShards();
+		this.previousNumShards = counter.getPreviousNumShards();
+		this.counterStatus = counter.getCounterStatus();
+		this.materializedGeneration = counter.getMaterializedGeneration();
+	}
+
+	/**
+	 * @return A new Counter holding this metadata. Its other properties (e.g.,
+	 *         its materialized count) are not populated, so it must not be
+	 *         saved to the Datastore.
+	 */
+	Counter toCounter()
+	{
+		final Counter counter = new Counter(counterName, numShards);
+		counter.setPreviousNumShards(previousNumShards);
+		counter.setCounterStatus(counterStatus);
+		counter.setMaterializedGeneration(materializedGeneration);
+		return counter;
+	}
+
+}
@@ -0,0 +1,85 @@
+/**
+ * Copyright (c) 2012 Sappenin Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.sappenin.objectify.shardedcounter.service;
+
+/**
+ * A sink for the metrics emitted by {@link ShardedCounterService}, e.g., to
+ * forward them to a monitoring system.<br/>
+ * <br/>
+ * The service reports the latency of each {@link CounterService} operation
+ * and counts the events (see {@link Event}) that explain where that latency
+ * went. Methods are called on the hot path of every counter operation, so
+ * implementations must be thread-safe, must not block, and must not throw.
+ * 
+ * @author David Fuelling <sappenin@gmail.com>
+ */
+public interface CounterMetrics
+{
+	/**
+	 * The {@link CounterService} operations whose latency is reported.
+	 */
+	public enum Operation
+	{
+		CREATE, DELETE, GET_COUNTER, GET_COUNTERS, INCREMENT, INCREMENT_FAST, INCREMENT_ALL, DECREMENT, COMPACT
+	}
+
+	/**
+	 * The events that are counted.
+	 */
+	public enum Event
+	{
+		// A Datastore get, put, or transaction commit issued while reading,
+		// incrementing, or decrementing a counter.
+		DATASTORE_RPC,
+		// A shard transaction that failed due to contention and was retried.
+		TRANSACTION_RETRY,
+		// A decrement that found its chosen shard empty (a
+		// NonViableDecrementException), and had to try another shard.
+		NON_VIABLE_DECREMENT,
+		// A count that was served from memcache.
+		MEMCACHE_HIT,
+		// A count that wasn't in memcache, and had to be aggregated from the
+		// counter's shards.
+		MEMCACHE_MISS,
+		// A count that had expired, whose last known value was served while
+		// the count was refreshed in the background.
+		MEMCACHE_STALE_HIT,
+		// A count that wasn't cached, and was computed from the counter's
+		// materialized count plus the cached delta since, rather than from its
+		// shards.
+		MATERIALIZED_COUNT_HIT,
+		// An atomic increment of a cached count that failed.
+		MEMCACHE_INCREMENT_FAILURE
+	}
+
+	/**
+	 * Record the latency of a single {@link CounterService} operation.
+	 * 
+	 * @param operation
+	 * @param latencyNanos The wall-clock duration of the operation, in
+	 *            nanoseconds.
+	 */
+	public void recordLatency(final Operation operation, final long latencyNanos);
+
+	/**
+	 * Record that {@code event} occurred {@code count} times.
+	 * 
+	 * @param event
+	 * @param count
+	 */
+	public void recordEvent(final Event event, final long count);
+
+}
@@ -15,6 +15,9 @@
  */
 package com.sappenin.objectify.shardedcounter.service;
 
+import java.util.Collection;
+import java.util.Map;
+
 import com.google.common.base.Optional;
 import com.sappenin.objectify.shardedcounter.data.Counter;
 
@@ -27,6 +30,34 @@ public interface CounterService
 {
 	public static final String COUNTER_NAME = "counterName";
 
+	// Every task enqueued by a CounterService carries this parameter, whose
+	// value is the name of a TaskType. Tasks of different types may be routed
+	// to the same handler (e.g., when their queue names and URLs are left
+	// unset), so a handler must check it to pick the callback to call.
+	public static final String TASK_TYPE = "taskType";
+
+	// Refresh and rollup tasks carry this parameter, whose value identifies the
+	// lease that keeps another such task from being enqueued while this one is
+	// pending. A handler must pass it to the task's callback, which releases
+	// that lease (and no other) once the task is done.
+	public static final String LEASE_OWNER = "leaseOwner";
+
+	/**
+	 * The kinds of Task Queue tasks that a {@link CounterService} enqueues,
+	 * each of which must be handed to its own callback.
+	 */
+	public static enum TaskType
+	{
+		// Handled by #onTaskQueueCounterDeletion
+		DELETE,
+		// Handled by #onTaskQueueCounterCompaction
+		COMPACT,
+		// Handled by #onTaskQueueCounterRefresh
+		REFRESH,
+		// Handled by #onTaskQueueCounterRollup
+		ROLLUP
+	}
+
 	/**
 	 * Create a new Counter with a default number of shards. If the counter
 	 * already exists, then this function return the pre-existing counter unless
@@ -54,6 +85,24 @@ public interface CounterService
 	 */
 	public Optional<Counter> getCounter(final String counterName);
 
+	/**
+	 * Retrieve the values of many counters at once. The cached counts of all
+	 * counters are read with one memcache call, the Counters are loaded in one
+	 * batch-get, and the shards of only the counters whose counts weren't
+	 * cached are loaded together, so the cost of this call does not grow with
+	 * the number of counters requested.
+	 * 
+	 * @param counterNames
+	 * @return A Counter with the summed-total of its shards' counts for each
+	 *         counter in {@code counterNames} that exists, keyed by counter
+	 *         name, in the iteration order of {@code counterNames}.
+	 * @throws NullPointerException if {@code counterNames} or any of its
+	 *             counter names is null.
+	 * @throws IllegalArgumentException if any counter name is "blank" (i.e.,
+	 *             null, empty, or empty spaces).
+	 */
+	public Map<String, Counter> getCounters(final Collection<String> counterNames);
+
 	/**
 	 * Increment the value of the sharded counter specified by
 	 * {@code counterName}. Perform a gerCount to get the count.
@@ -72,6 +121,51 @@ public interface CounterService
 	 */
 	public Counter increment(final String counterName, final long amount);
 
+	/**
+	 * Increment the value of the sharded counter specified by
+	 * {@code counterName} without computing its new count. Only the Counter's
+	 * metadata and a single shard are read, and the cached count of the
+	 * counter (if any) is adjusted asynchronously. Use this variant when the
+	 * caller does not need the post-increment count.
+	 * 
+	 * @param counterName
+	 * @param amount The amount to increment by (must be positive)
+	 * @throws NullPointerException if the {@code counterName} is null.
+	 * @throws IllegalArgumentException if the {@code counterName} is "blank"
+	 *             (i.e., null, empty, or empty spaces).
+	 * @throws IllegalArgumentException if the {@code amount} is negative.
+	 * @throws RuntimeException if the counter does exist in the Datastore but
+	 *             has a {@link CounterStatus} of {@code CounterStatus#DELETING}
+	 *             .
+	 */
+	public void incrementFast(final String counterName, final long amount);
+
+	/**
+	 * Increment the values of many sharded counters in a single call. The
+	 * metadata of every counter is loaded in one batch-get (creating any
+	 * counter that doesn't exist yet), the shards of several counters are
+	 * written by each transaction, and the cached counts are adjusted with one
+	 * memcache call. Every counter and amount is validated before any counter
+	 * is created or incremented, and a counter that can't be incremented (e.g.,
+	 * one that is being deleted) is reported as
+	 * {@link IncrementResult.Status#REJECTED} without affecting the others.
+	 * After that, the counters are incremented independently: a failure is
+	 * reported in the result of each counter it affected, rather than thrown,
+	 * since other counters may already have been incremented.
+	 * 
+	 * @param amounts The amount to increment each counter by, keyed by counter
+	 *            name (each amount must be positive).
+	 * @return The result of each counter's increment (including, if it
+	 *         succeeded, a Counter with the new count), for each counter name
+	 *         in {@code amounts}, in the iteration order of {@code amounts}.
+	 * @throws NullPointerException if {@code amounts}, any of its counter
+	 *             names, or any of its amounts is null.
+	 * @throws IllegalArgumentException if any counter name is "blank" (i.e.,
+	 *             null, empty, or empty spaces).
+	 * @throws IllegalArgumentException if any amount is negative.
+	 */
+	public Map<String, IncrementResult> incrementAll(final Map<String, Long> amounts);
+
 	/**
 	 * Decrement the value of the sharded counter with name {@code counterName}
 	 * by 1.
@@ -88,6 +182,88 @@ public interface CounterService
 	 */
 	public Counter decrement(final String counterName);
 
+	/**
+	 * Decrement the value of the sharded counter with name {@code counterName}
+	 * by {@code amount} in a single operation. The amount is drained from the
+	 * counter's fullest shards first, so that as few shard transactions as
+	 * possible are needed, and each transaction updates several shards at
+	 * once. A counter is never decremented below zero: if {@code amount}
+	 * exceeds the counter's count, the counter is decremented to zero.
+	 * 
+	 * @param counterName
+	 * @param amount The amount to decrement by (must be positive)
+	 * @return A Counter with the new count
+	 * @throws NullPointerException if the {@code counterName} is null.
+	 * @throws IllegalArgumentException if the {@code counterName} is "blank"
+	 *             (i.e., null, empty, or empty spaces).
+	 * @throws IllegalArgumentException if the {@code amount} is negative.
+	 * @throws RuntimeException if the counter does not exist in the Datastore.
+	 * @throws RuntimeException if the counter does exist in the Datastore but
+	 *             has a {@link CounterStatus} of {@code CounterStatus#DELETING}
+	 *             .
+	 */
+	public Counter decrement(final String counterName, final long amount);
+
+	/**
+	 * Reduce the number of shards of the counter named {@code counterName} to
+	 * {@code numShards}. The counter's number of shards is lowered immediately
+	 * so that subsequent increments only write to the remaining shards, and a
+	 * Task Queue task is enqueued to fold the counts of the removed shards
+	 * into the remaining shards (see {@link #onTaskQueueCounterCompaction}).
+	 * The counter's count remains accurate throughout, and the counter may be
+	 * incremented and decremented while it is being compacted. If the counter
+	 * already has {@code numShards} or fewer shards, this method does nothing.
+	 * 
+	 * @param counterName
+	 * @param numShards The number of shards the counter should have.
+	 * @throws NullPointerException if the {@code counterName} is null.
+	 * @throws IllegalArgumentException if the {@code counterName} is "blank"
+	 *             (i.e., null, empty, or empty spaces).
+	 * @throws IllegalArgumentException if {@code numShards} is less than 1.
+	 * @throws RuntimeException if the counter does not exist in the Datastore.
+	 * @throws RuntimeException if the counter does exist in the Datastore but
+	 *             has a {@link CounterStatus} of {@code CounterStatus#DELETING}
+	 *             .
+	 */
+	public void compact(final String counterName, final int numShards);
+
+	/**
+	 * Provided here for convenience as a callback method that a task queue
+	 * should call in order to fold the counts of the shards removed by
+	 * {@link #compact(String, int)} into the remaining shards of a particular
+	 * counter.
+	 * 
+	 * @param counterName
+	 */
+	public void onTaskQueueCounterCompaction(String counterName);
+
+	/**
+	 * Provided here for convenience as a callback method that a task queue
+	 * should call in order to refresh the cached count of a particular counter
+	 * (see
+	 * {@link ShardedCounterServiceConfiguration#getCachedCountFreshnessMillis()}
+	 * ).
+	 * 
+	 * @param counterName
+	 * @param leaseOwner The task's {@link #LEASE_OWNER} parameter, or
+	 *            {@code null} if it has none (in which case the lease is left
+	 *            to expire).
+	 */
+	public void onTaskQueueCounterRefresh(String counterName, String leaseOwner);
+
+	/**
+	 * Provided here for convenience as a callback method that a task queue
+	 * should call in order to roll up the shards of a particular counter into
+	 * its materialized count (see
+	 * {@link ShardedCounterServiceConfiguration#getRollupIntervalMillis()}).
+	 * 
+	 * @param counterName
+	 * @param leaseOwner The task's {@link #LEASE_OWNER} parameter, or
+	 *            {@code null} if it has none (in which case the lease is left
+	 *            to expire).
+	 */
+	public void onTaskQueueCounterRollup(String counterName, String leaseOwner);
+
 	/**
 	 * Provided here for convenience as a callback method that a task queue
 	 * should call in order to remove counter shards for a particular counter.
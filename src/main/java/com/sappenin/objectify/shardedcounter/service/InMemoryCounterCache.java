@@ -0,0 +1,360 @@
+/**
+ * Copyright (c) 2012 Sappenin Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.sappenin.objectify.shardedcounter.service;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Ticker;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.Futures;
+
+/**
+ * A {@link CounterCache} that caches counts in the memory of this JVM, so that
+ * no cache lookup requires an RPC. Once {@code maximumSize} counts are cached,
+ * the least recently used counts are evicted, and each count is also evicted
+ * once its expiration (if any) has passed.<br/>
+ * <br/>
+ * Because counts cached by one instance aren't updated by increments made on
+ * other instances, this cache is only suitable for a single-instance
+ * deployment, for tests, or as a short-lived first tier in front of a shared
+ * cache.
+ * 
+ * @author David Fuelling <sappenin@gmail.com>
+ */
+public class InMemoryCounterCache implements CounterCache
+{
+	// The expiry of a count that never expires.
+	private static final long NEVER = Long.MAX_VALUE;
+
+	private final ConcurrentMap<String, CachedCount> cachedCounts;
+	private final ConcurrentMap<String, LastKnownCount> lastKnownCounts;
+	// Each recompute lease, keyed by counter name. Expired leases are pruned
+	// whenever a lease is acquired.
+	private final ConcurrentMap<String, RecomputeLease> recomputeLeases = Maps.newConcurrentMap();
+	private final Ticker ticker;
+
+	/**
+	 * Required-args Constructor.
+	 * 
+	 * @param maximumSize The maximum number of counts to cache.
+	 */
+	public InMemoryCounterCache(final long maximumSize)
+	{
+		this(maximumSize, Ticker.systemTicker());
+	}
+
+	/**
+	 * Constructor for tests, which may control the passage of time.
+	 * 
+	 * @param maximumSize
+	 * @param ticker
+	 */
+	InMemoryCounterCache(final long maximumSize, final Ticker ticker)
+	{
+		Preconditions.checkArgument(maximumSize > 0, "Maximum size must be greater than 0!");
+		Preconditions.checkNotNull(ticker);
+
+		this.ticker = ticker;
+		this.cachedCounts = CacheBuilder.newBuilder().maximumSize(maximumSize).ticker(ticker)
+			.<String, CachedCount> build().asMap();
+		this.lastKnownCounts = CacheBuilder.newBuilder().maximumSize(maximumSize)
+			.<String, LastKnownCount> build().asMap();
+	}
+
+	@Override
+	public Long get(final String counterName)
+	{
+		final CachedCount cachedCount = this.getUnexpired(counterName);
+		return cachedCount == null ? null : cachedCount.count.get();
+	}
+
+	@Override
+	public Future<Long> getAsync(final String counterName)
+	{
+		return Futures.immediateFuture(this.get(counterName));
+	}
+
+	@Override
+	public Map<String, Long> getAll(final Collection<String> counterNames)
+	{
+		final Map<String, Long> counts = Maps.newHashMap();
+		for (String counterName : counterNames)
+		{
+			final Long count = this.get(counterName);
+			if (count != null)
+			{
+				counts.put(counterName, count);
+			}
+		}
+		return counts;
+	}
+
+	@Override
+	public void put(final String counterName, final long count, final long expirationMillis)
+	{
+		Preconditions.checkNotNull(counterName);
+		cachedCounts.put(counterName, new CachedCount(count, this.toExpiresAtNanos(expirationMillis)));
+	}
+
+	@Override
+	public void putAll(final Map<String, Long> counts, final long expirationMillis)
+	{
+		for (Map.Entry<String, Long> entry : counts.entrySet())
+		{
+			this.put(entry.getKey(), entry.getValue(), expirationMillis);
+		}
+	}
+
+	@Override
+	public Long increment(final String counterName, final long delta, final long initialValue)
+	{
+		Preconditions.checkNotNull(counterName);
+		while (true)
+		{
+			final CachedCount cachedCount = this.getUnexpired(counterName);
+			if (cachedCount != null)
+			{
+				return cachedCount.add(delta);
+			}
+
+			final CachedCount newCachedCount = new CachedCount(Math.max(0L, initialValue), NEVER);
+			if (cachedCounts.putIfAbsent(counterName, newCachedCount) == null)
+			{
+				return newCachedCount.add(delta);
+			}
+			// Another thread cached a count first, so adjust that one.
+		}
+	}
+
+	@Override
+	public void incrementAsync(final String counterName, final long delta)
+	{
+		final CachedCount cachedCount = this.getUnexpired(counterName);
+		if (cachedCount != null)
+		{
+			cachedCount.add(delta);
+		}
+	}
+
+	@Override
+	public Map<String, Long> incrementAll(final Map<String, Long> deltas)
+	{
+		final Map<String, Long> counts = Maps.newHashMap();
+		for (Map.Entry<String, Long> entry : deltas.entrySet())
+		{
+			final CachedCount cachedCount = this.getUnexpired(entry.getKey());
+			if (cachedCount != null)
+			{
+				counts.put(entry.getKey(), cachedCount.add(entry.getValue()));
+			}
+		}
+		return counts;
+	}
+
+	@Override
+	public void delete(final String counterName)
+	{
+		cachedCounts.remove(counterName);
+		lastKnownCounts.remove(counterName);
+	}
+
+	@Override
+	public void deleteAll(final Collection<String> counterNames)
+	{
+		for (String counterName : counterNames)
+		{
+			this.delete(counterName);
+		}
+	}
+
+	@Override
+	public LastKnownCount getLastKnownCount(final String counterName)
+	{
+		return lastKnownCounts.get(counterName);
+	}
+
+	@Override
+	public void putLastKnownCount(final String counterName, final LastKnownCount lastKnownCount)
+	{
+		Preconditions.checkNotNull(counterName);
+		Preconditions.checkNotNull(lastKnownCount);
+		lastKnownCounts.put(counterName, lastKnownCount);
+	}
+
+	@Override
+	public boolean tryAcquireRecomputeLease(final String counterName, final String owner, final long leaseMillis)
+	{
+		Preconditions.checkNotNull(counterName);
+		Preconditions.checkNotNull(owner);
+		this.pruneExpiredRecomputeLeases();
+
+		final RecomputeLease lease = new RecomputeLease(owner, this.toExpiresAtNanos(leaseMillis));
+		while (true)
+		{
+			final RecomputeLease existingLease = recomputeLeases.putIfAbsent(counterName, lease);
+			if (existingLease == null)
+			{
+				return true;
+			}
+			if (!this.isExpired(existingLease))
+			{
+				// Another caller holds the lease.
+				return false;
+			}
+			if (recomputeLeases.replace(counterName, existingLease, lease))
+			{
+				// The other caller's lease had expired.
+				return true;
+			}
+		}
+	}
+
+	@Override
+	public void releaseRecomputeLease(final String counterName, final String owner)
+	{
+		Preconditions.checkNotNull(counterName);
+		Preconditions.checkNotNull(owner);
+		final RecomputeLease lease = recomputeLeases.get(counterName);
+		if (lease != null && lease.owner.equals(owner))
+		{
+			recomputeLeases.remove(counterName, lease);
+		}
+	}
+
+	/**
+	 * @param counterName
+	 * @return The owner of the unexpired recompute lease of the counter named
+	 *         {@code counterName}, or {@code null} if no one holds it.
+	 */
+	String getRecomputeLeaseOwner(final String counterName)
+	{
+		final RecomputeLease lease = recomputeLeases.get(counterName);
+		return lease == null || this.isExpired(lease) ? null : lease.owner;
+	}
+
+	/**
+	 * @return The number of recompute leases held (including any that have
+	 *         expired, but not yet been pruned).
+	 */
+	int getNumRecomputeLeases()
+	{
+		return recomputeLeases.size();
+	}
+
+	/**
+	 * Removes every expired recompute lease, so that leases that are never
+	 * released (e.g., because their owner failed) don't accumulate.
+	 */
+	private void pruneExpiredRecomputeLeases()
+	{
+		for (Map.Entry<String, RecomputeLease> entry : recomputeLeases.entrySet())
+		{
+			if (this.isExpired(entry.getValue()))
+			{
+				recomputeLeases.remove(entry.getKey(), entry.getValue());
+			}
+		}
+	}
+
+	private boolean isExpired(final RecomputeLease lease)
+	{
+		return lease.expiresAtNanos != NEVER && ticker.read() - lease.expiresAtNanos >= 0;
+	}
+
+	/**
+	 * @param counterName
+	 * @return The cached count of the counter named {@code counterName}, or
+	 *         {@code null} if it isn't cached or has expired (in which case it
+	 *         is evicted).
+	 */
+	private CachedCount getUnexpired(final String counterName)
+	{
+		final CachedCount cachedCount = cachedCounts.get(counterName);
+		if (cachedCount != null && cachedCount.expiresAtNanos != NEVER
+			&& ticker.read() - cachedCount.expiresAtNanos >= 0)
+		{
+			cachedCounts.remove(counterName, cachedCount);
+			return null;
+		}
+		return cachedCount;
+	}
+
+	private long toExpiresAtNanos(final long expirationMillis)
+	{
+		Preconditions.checkArgument(expirationMillis >= 0, "Expiration must not be negative!");
+		return expirationMillis == NO_EXPIRATION ? NEVER : ticker.read()
+			+ TimeUnit.MILLISECONDS.toNanos(expirationMillis);
+	}
+
+	/**
+	 * A cached count, which is adjusted in place.
+	 */
+	private final class CachedCount
+	{
+		private final AtomicLong count;
+		// NEVER if this count never expires.
+		private final long expiresAtNanos;
+
+		private CachedCount(final long count, final long expiresAtNanos)
+		{
+			this.count = new AtomicLong(Math.max(0L, count));
+			this.expiresAtNanos = expiresAtNanos;
+		}
+
+		/**
+		 * Adjusts this count by {@code delta}, stopping at zero.
+		 * 
+		 * @param delta
+		 * @return The new count.
+		 */
+		private long add(final long delta)
+		{
+			while (true)
+			{
+				final long current = count.get();
+				final long next = Math.max(0L, current + delta);
+				if (count.compareAndSet(current, next))
+				{
+					return next;
+				}
+			}
+		}
+	}
+
+	/**
+	 * A recompute lease, which only its owner may release.
+	 */
+	private static final class RecomputeLease
+	{
+		private final String owner;
+		// NEVER if this lease never expires.
+		private final long expiresAtNanos;
+
+		private RecomputeLease(final String owner, final long expiresAtNanos)
+		{
+			this.owner = owner;
+			this.expiresAtNanos = expiresAtNanos;
+		}
+	}
+
+}
@@ -0,0 +1,161 @@
+/**
+ * Copyright (c) 2012 Sappenin Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.sappenin.objectify.shardedcounter.service;
+
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.AtomicLongMap;
+
+/**
+ * A {@link CounterMetrics} that keeps every metric in memory, for inspection
+ * (e.g., from an admin page, or by a job that periodically exports them).<br/>
+ * <br/>
+ * Latencies are kept in a histogram per operation whose buckets double in
+ * width (i.e., bucket {@code i} holds latencies of less than {@code 2^i}
+ * nanoseconds), so percentiles are accurate to within a factor of two while
+ * recording a latency costs only a few atomic increments. Metrics accumulate
+ * from the time this object is created.<br/>
+ * <br/>
+ * This class is thread-safe.
+ * 
+ * @author David Fuelling <sappenin@gmail.com>
+ */
+public class InMemoryCounterMetrics implements CounterMetrics
+{
+	private final AtomicLongMap<Event> eventCounts = AtomicLongMap.create();
+	private final Map<Operation, LatencyHistogram> latencyHistograms = new EnumMap<Operation, LatencyHistogram>(
+		Operation.class);
+
+	/**
+	 * Default Constructor.
+	 */
+	public InMemoryCounterMetrics()
+	{
+		for (Operation operation : Operation.values())
+		{
+			latencyHistograms.put(operation, new LatencyHistogram());
+		}
+	}
+
+	@Override
+	public void recordLatency(final Operation operation, final long latencyNanos)
+	{
+		latencyHistograms.get(operation).record(Math.max(0L, latencyNanos));
+	}
+
+	@Override
+	public void recordEvent(final Event event, final long count)
+	{
+		eventCounts.addAndGet(event, count);
+	}
+
+	/**
+	 * @param event
+	 * @return The number of times {@code event} has occurred.
+	 */
+	public long getEventCount(final Event event)
+	{
+		return eventCounts.get(event);
+	}
+
+	/**
+	 * @param operation
+	 * @return The number of times {@code operation} has been performed.
+	 */
+	public long getOperationCount(final Operation operation)
+	{
+		return latencyHistograms.get(operation).count.get();
+	}
+
+	/**
+	 * @param operation
+	 * @return The mean latency of {@code operation} in nanoseconds, or 0 if it
+	 *         has never been performed.
+	 */
+	public long getMeanLatencyNanos(final Operation operation)
+	{
+		LatencyHistogram histogram = latencyHistograms.get(operation);
+		long count = histogram.count.get();
+		return count == 0 ? 0 : histogram.totalNanos.get() / count;
+	}
+
+	/**
+	 * @param operation
+	 * @param percentile A percentile between 0 (exclusive) and 100
+	 *            (inclusive), e.g., 99 for the 99th percentile.
+	 * @return An upper bound (within a factor of two) of the given percentile
+	 *         of the latency of {@code operation} in nanoseconds, or 0 if it
+	 *         has never been performed.
+	 */
+	public long getLatencyPercentileNanos(final Operation operation, final double percentile)
+	{
+		Preconditions.checkArgument(percentile > 0 && percentile <= 100, "Percentile must be in (0, 100]!");
+		return latencyHistograms.get(operation).getPercentile(percentile);
+	}
+
+	/**
+	 * The latencies of a single operation.
+	 */
+	private static final class LatencyHistogram
+	{
+		private final AtomicLongArray buckets = new AtomicLongArray(Long.SIZE);
+		private final AtomicLong count = new AtomicLong();
+		private final AtomicLong totalNanos = new AtomicLong();
+
+		void record(final long latencyNanos)
+		{
+			// A latency of n nanoseconds is less than 2^i, where i is the
+			// number of significant bits of n. Positive longs have at most 63.
+			buckets.incrementAndGet(Long.SIZE - Long.numberOfLeadingZeros(latencyNanos));
+			count.incrementAndGet();
+			totalNanos.addAndGet(latencyNanos);
+		}
+
+		long getPercentile(final double percentile)
+		{
+			// The buckets may be updated concurrently, so the percentile is
+			// computed against the buckets' own total.
+			final long[] snapshot = new long[buckets.length()];
+			long total = 0;
+			for (int i = 0; i < snapshot.length; i++)
+			{
+				snapshot[i] = buckets.get(i);
+				total += snapshot[i];
+			}
+			if (total == 0)
+			{
+				return 0;
+			}
+
+			final long rank = (long) Math.ceil(total * percentile / 100);
+			long seen = 0;
+			for (int i = 0; i < snapshot.length; i++)
+			{
+				seen += snapshot[i];
+				if (seen >= rank)
+				{
+					return i == 0 ? 0 : (1L << i) - 1;
+				}
+			}
+			return Long.MAX_VALUE;
+		}
+	}
+
+}
@@ -0,0 +1,192 @@
+/**
+ * Copyright (c) 2012 Sappenin Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.sappenin.objectify.shardedcounter.service;
+
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.google.common.base.Function;
+import com.google.common.base.Preconditions;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.Lists;
+
+/**
+ * Merges the increments that concurrent threads make to the same counter into
+ * a single shard transaction (i.e., "flat combining").<br/>
+ * <br/>
+ * Each caller enqueues its increment on the counter's queue and then tries to
+ * become the counter's combiner. The combiner drains every increment in the
+ * queue, performs one shard transaction for their total, and then acknowledges
+ * each of them. Callers that can't become the combiner wait for their
+ * increment to be acknowledged, retrying to become the combiner periodically
+ * in case their increment was enqueued after the previous combiner drained the
+ * queue. A caller only returns once its increment has been committed (or has
+ * failed, in which case it receives the same exception as the combiner).<br/>
+ * <br/>
+ * This class is thread-safe.
+ * 
+ * @author David Fuelling <sappenin@gmail.com>
+ */
+class IncrementCombiner
+{
+	// How long a waiting caller waits for its increment to be acknowledged
+	// before trying to become the combiner again.
+	private static final long COMBINER_POLL_MILLIS = 5L;
+
+	// The combining state of every counter that is being incremented. The
+	// values are weakly held, so the state of counters that are no longer
+	// being incremented is garbage collected.
+	private final LoadingCache<String, CombiningSlot> slots = CacheBuilder.newBuilder().weakValues()
+		.build(new CacheLoader<String, CombiningSlot>()
+		{
+			@Override
+			public CombiningSlot load(String counterName)
+			{
+				return new CombiningSlot();
+			}
+		});
+
+	/**
+	 * Increment the counter named {@code counterName} by {@code amount},
+	 * combining this increment with any concurrent increments of the same
+	 * counter.
+	 * 
+	 * @param counterName
+	 * @param amount
+	 * @param shardIncrementer Performs a single shard transaction for the
+	 *            total of the combined increments. This is only called on the
+	 *            combiner's thread.
+	 * @return {@code amount}, once the shard transaction that includes it has
+	 *         committed.
+	 */
+	long increment(final String counterName, final long amount, final Function<Long, Long> shardIncrementer)
+	{
+		Preconditions.checkNotNull(counterName);
+		Preconditions.checkNotNull(shardIncrementer);
+
+		final CombiningSlot slot = slots.getUnchecked(counterName);
+		final PendingIncrement pendingIncrement = new PendingIncrement(amount);
+		slot.queue.add(pendingIncrement);
+
+		try
+		{
+			while (!pendingIncrement.acknowledged.await(0, TimeUnit.MILLISECONDS))
+			{
+				if (slot.lock.tryLock())
+				{
+					try
+					{
+						this.combine(slot, shardIncrementer);
+					}
+					finally
+					{
+						slot.lock.unlock();
+					}
+				}
+				else
+				{
+					pendingIncrement.acknowledged.await(COMBINER_POLL_MILLIS, TimeUnit.MILLISECONDS);
+				}
+			}
+		}
+		catch (InterruptedException e)
+		{
+			// The increment may still be committed by the combiner.
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		}
+
+		if (pendingIncrement.failure != null)
+		{
+			throw pendingIncrement.failure;
+		}
+		return amount;
+	}
+
+	/**
+	 * Drains the queue of {@code slot}, increments a shard by the total of the
+	 * drained increments, and acknowledges each of them. Must be called while
+	 * holding the lock of {@code slot}.
+	 * 
+	 * @param slot
+	 * @param shardIncrementer
+	 */
+	private void combine(final CombiningSlot slot, final Function<Long, Long> shardIncrementer)
+	{
+		final List<PendingIncrement> pendingIncrements = Lists.newArrayList();
+		long total = 0;
+		PendingIncrement pendingIncrement;
+		while ((pendingIncrement = slot.queue.poll()) != null)
+		{
+			pendingIncrements.add(pendingIncrement);
+			total += pendingIncrement.amount;
+		}
+		if (pendingIncrements.isEmpty())
+		{
+			return;
+		}
+
+		RuntimeException failure = null;
+		try
+		{
+			shardIncrementer.apply(total);
+		}
+		catch (RuntimeException e)
+		{
+			failure = e;
+		}
+
+		for (PendingIncrement combinedIncrement : pendingIncrements)
+		{
+			combinedIncrement.failure = failure;
+			combinedIncrement.acknowledged.countDown();
+		}
+	}
+
+	/**
+	 * The increments of a single counter that are waiting to be combined, and
+	 * the lock held by the counter's current combiner.
+	 */
+	private static final class CombiningSlot
+	{
+		private final Queue<PendingIncrement> queue = new ConcurrentLinkedQueue<PendingIncrement>();
+		private final ReentrantLock lock = new ReentrantLock();
+	}
+
+	/**
+	 * An increment waiting to be combined.
+	 */
+	private static final class PendingIncrement
+	{
+		private final long amount;
+		private final CountDownLatch acknowledged = new CountDownLatch(1);
+		// Written before the latch is counted down, so it is visible to the
+		// waiting caller once the latch opens.
+		private RuntimeException failure;
+
+		private PendingIncrement(final long amount)
+		{
+			this.amount = amount;
+		}
+	}
+
+}
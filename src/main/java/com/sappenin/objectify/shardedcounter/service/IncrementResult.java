@@ -0,0 +1,118 @@
+/**
+ * Copyright (c) 2012 Sappenin Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.sappenin.objectify.shardedcounter.service;
+
+import lombok.Getter;
+import lombok.ToString;
+
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import com.sappenin.objectify.shardedcounter.data.Counter;
+
+/**
+ * The outcome of incrementing a single counter via
+ * {@link CounterService#incrementAll(java.util.Map)}, which increments each
+ * counter independently, so that some may succeed while others fail.
+ * 
+ * @author David Fuelling <sappenin@gmail.com>
+ */
+@Getter
+@ToString
+public class IncrementResult
+{
+	public static enum Status
+	{
+		// The increment was committed.
+		COMMITTED,
+		// The increment was accepted, and will be committed later (see
+		// BufferedCounterService).
+		BUFFERED,
+		// The increment was not committed, so it may safely be retried.
+		NOT_COMMITTED,
+		// The increment may or may not have been committed (e.g., the commit
+		// of its transaction failed), so retrying it may count it twice.
+		UNKNOWN,
+		// The counter can't be incremented (e.g., it is being deleted), so the
+		// increment was not committed, and retrying it won't help.
+		REJECTED
+	};
+
+	private final Status status;
+
+	// The counter, with its count after the increment. Only present if the
+	// increment was COMMITTED or BUFFERED.
+	private final Optional<Counter> counter;
+
+	// Why the increment failed. Only present if the increment was
+	// NOT_COMMITTED, UNKNOWN or REJECTED.
+	private final Optional<RuntimeException> failure;
+
+	private IncrementResult(final Status status, final Optional<Counter> counter,
+			final Optional<RuntimeException> failure)
+	{
+		this.status = Preconditions.checkNotNull(status);
+		this.counter = Preconditions.checkNotNull(counter);
+		this.failure = Preconditions.checkNotNull(failure);
+	}
+
+	/**
+	 * @param counter The counter, with its count after the increment.
+	 * @return The result of an increment that was committed.
+	 */
+	public static IncrementResult committed(final Counter counter)
+	{
+		return new IncrementResult(Status.COMMITTED, Optional.of(counter), Optional.<RuntimeException> absent());
+	}
+
+	/**
+	 * @param counter The counter, with its count after the increment.
+	 * @return The result of an increment that was buffered.
+	 */
+	public static IncrementResult buffered(final Counter counter)
+	{
+		return new IncrementResult(Status.BUFFERED, Optional.of(counter), Optional.<RuntimeException> absent());
+	}
+
+	/**
+	 * @param failure
+	 * @return The result of an increment that was not committed.
+	 */
+	public static IncrementResult notCommitted(final RuntimeException failure)
+	{
+		return new IncrementResult(Status.NOT_COMMITTED, Optional.<Counter> absent(), Optional.of(failure));
+	}
+
+	/**
+	 * @param failure
+	 * @return The result of an increment that may or may not have been
+	 *         committed.
+	 */
+	public static IncrementResult unknown(final RuntimeException failure)
+	{
+		return new IncrementResult(Status.UNKNOWN, Optional.<Counter> absent(), Optional.of(failure));
+	}
+
+	/**
+	 * @param failure
+	 * @return The result of an increment of a counter that can't be
+	 *         incremented.
+	 */
+	public static IncrementResult rejected(final RuntimeException failure)
+	{
+		return new IncrementResult(Status.REJECTED, Optional.<Counter> absent(), Optional.of(failure));
+	}
+
+}
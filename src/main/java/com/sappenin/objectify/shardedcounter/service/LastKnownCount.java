@@ -0,0 +1,62 @@
+/**
+ * Copyright (c) 2012 Sappenin Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.sappenin.objectify.shardedcounter.service;
+
+import java.io.Serializable;
+
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.ToString;
+
+import org.joda.time.DateTime;
+
+import com.google.common.base.Preconditions;
+
+/**
+ * The last count that was aggregated from a counter's shards, and when it was
+ * aggregated. A {@link CounterCache} keeps this after the counter's cached
+ * count expires, so that it may be served while the count is refreshed (see
+ * {@link ShardedCounterServiceConfiguration#getCachedCountFreshnessMillis()}).
+ * 
+ * @author David Fuelling <sappenin@gmail.com>
+ */
+@Getter
+@ToString
+@EqualsAndHashCode
+public class LastKnownCount implements Serializable
+{
+	private static final long serialVersionUID = 6407612583921734512L;
+
+	private final long count;
+
+	private final DateTime aggregatedDateTime;
+
+	/**
+	 * Required-args Constructor.
+	 * 
+	 * @param count
+	 * @param aggregatedDateTime When {@code count} was aggregated from the
+	 *            counter's shards.
+	 */
+	public LastKnownCount(final long count, final DateTime aggregatedDateTime)
+	{
+		Preconditions.checkNotNull(aggregatedDateTime);
+
+		this.count = count;
+		this.aggregatedDateTime = aggregatedDateTime;
+	}
+
+}
@@ -0,0 +1,309 @@
+/**
+ * Copyright (c) 2012 Sappenin Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.sappenin.objectify.shardedcounter.service;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+
+import org.apache.commons.lang3.StringUtils;
+
+import com.google.appengine.api.memcache.AsyncMemcacheService;
+import com.google.appengine.api.memcache.Expiration;
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheService.IdentifiableValue;
+import com.google.appengine.api.memcache.MemcacheService.SetPolicy;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.common.base.Function;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+/**
+ * A {@link CounterCache} that caches counts in App Engine's memcache, and so is
+ * shared by every instance of an application. This is the {@link CounterCache}
+ * that {@link ShardedCounterService} uses by default.
+ * 
+ * @author David Fuelling <sappenin@gmail.com>
+ */
+public class MemcacheCounterCache implements CounterCache
+{
+	// Appended to the counts' namespace to form the namespace of the cache's
+	// own entries (leases and last known counts), so that their keys can't
+	// collide with those of counts, whatever a counter is named.
+	private static final String INTERNAL_NAMESPACE_SUFFIX = "shardedCounterCache";
+
+	// Prepended to a counter's name to form the key of its recompute lease.
+	private static final String RECOMPUTE_LEASE_KEY_PREFIX = "__recomputeLease__";
+
+	// The value of a recompute lease's key once its owner has released it. A
+	// released lease is overwritten (rather than deleted) so that its release
+	// can be conditioned on its owner via compare-and-set.
+	private static final String RELEASED_LEASE_OWNER = "";
+
+	// Prepended to a counter's name to form the key of its last known count.
+	private static final String LAST_KNOWN_COUNT_KEY_PREFIX = "__lastKnownCount__";
+
+	private final MemcacheService memcacheService;
+	private final AsyncMemcacheService asyncMemcacheService;
+	private final MemcacheService internalMemcacheService;
+
+	/**
+	 * Default Constructor, which uses {@link MemcacheServiceFactory} to
+	 * populate the memcache service dependency.
+	 */
+	public MemcacheCounterCache()
+	{
+		this(MemcacheServiceFactory.getMemcacheService());
+	}
+
+	/**
+	 * Constructor that uses an {@link AsyncMemcacheService} for the same
+	 * namespace as {@code memcacheService}.
+	 * 
+	 * @param memcacheService
+	 */
+	public MemcacheCounterCache(final MemcacheService memcacheService)
+	{
+		this(memcacheService, MemcacheServiceFactory.getAsyncMemcacheService(Preconditions.checkNotNull(
+			memcacheService, "Invalid memcacheService!").getNamespace()));
+	}
+
+	/**
+	 * Required-args Constructor. Leases and last known counts are kept in a
+	 * namespace of their own, named after that of {@code memcacheService}
+	 * (e.g., {@code myNamespace.shardedCounterCache}).
+	 * 
+	 * @param memcacheService
+	 * @param asyncMemcacheService Used for the non-blocking operations (e.g.,
+	 *            {@link #getAsync(String)} and
+	 *            {@link #incrementAsync(String, long)}).
+	 */
+	public MemcacheCounterCache(final MemcacheService memcacheService, final AsyncMemcacheService asyncMemcacheService)
+	{
+		Preconditions.checkNotNull(memcacheService, "Invalid memcacheService!");
+		Preconditions.checkNotNull(asyncMemcacheService, "Invalid asyncMemcacheService!");
+
+		this.memcacheService = memcacheService;
+		this.asyncMemcacheService = asyncMemcacheService;
+		this.internalMemcacheService = MemcacheServiceFactory.getMemcacheService(toInternalNamespace(memcacheService
+			.getNamespace()));
+	}
+
+	@Override
+	public Long get(final String counterName)
+	{
+		return (Long) memcacheService.get(this.assembleCounterKeyforMemcache(counterName));
+	}
+
+	@Override
+	public Future<Long> getAsync(final String counterName)
+	{
+		return new MemoizingTransformedFuture<Object, Long>(asyncMemcacheService.get(this
+			.assembleCounterKeyforMemcache(counterName)), new Function<Object, Long>()
+			{
+				@Override
+				public Long apply(Object cachedValue)
+				{
+					return (Long) cachedValue;
+				}
+			});
+	}
+
+	@Override
+	public Map<String, Long> getAll(final Collection<String> counterNames)
+	{
+		final Map<String, String> memCacheKeys = this.assembleCounterKeysforMemcache(counterNames);
+		final Map<String, Object> cachedCounts = memcacheService.getAll(memCacheKeys.keySet());
+
+		final Map<String, Long> counts = Maps.newHashMap();
+		for (Map.Entry<String, Object> entry : cachedCounts.entrySet())
+		{
+			counts.put(memCacheKeys.get(entry.getKey()), (Long) entry.getValue());
+		}
+		return counts;
+	}
+
+	@Override
+	public void put(final String counterName, final long count, final long expirationMillis)
+	{
+		memcacheService.put(this.assembleCounterKeyforMemcache(counterName), Long.valueOf(count),
+			toExpiration(expirationMillis), SetPolicy.SET_ALWAYS);
+	}
+
+	@Override
+	public void putAll(final Map<String, Long> counts, final long expirationMillis)
+	{
+		final Map<String, Long> values = Maps.newHashMap();
+		for (Map.Entry<String, Long> entry : counts.entrySet())
+		{
+			values.put(this.assembleCounterKeyforMemcache(entry.getKey()), entry.getValue());
+		}
+		memcacheService.putAll(values, toExpiration(expirationMillis), SetPolicy.SET_ALWAYS);
+	}
+
+	@Override
+	public Long increment(final String counterName, final long delta, final long initialValue)
+	{
+		return memcacheService.increment(this.assembleCounterKeyforMemcache(counterName), delta,
+			Math.max(0L, initialValue));
+	}
+
+	@Override
+	public void incrementAsync(final String counterName, final long delta)
+	{
+		asyncMemcacheService.increment(this.assembleCounterKeyforMemcache(counterName), delta);
+	}
+
+	@Override
+	public Map<String, Long> incrementAll(final Map<String, Long> deltas)
+	{
+		final Map<String, String> memCacheKeys = this.assembleCounterKeysforMemcache(deltas.keySet());
+		final Map<String, Long> offsets = Maps.newHashMap();
+		for (Map.Entry<String, String> entry : memCacheKeys.entrySet())
+		{
+			offsets.put(entry.getKey(), deltas.get(entry.getValue()));
+		}
+
+		final Map<String, Long> counts = Maps.newHashMap();
+		for (Map.Entry<String, Long> entry : memcacheService.incrementAll(offsets).entrySet())
+		{
+			if (entry.getValue() != null)
+			{
+				counts.put(memCacheKeys.get(entry.getKey()), entry.getValue());
+			}
+		}
+		return counts;
+	}
+
+	@Override
+	public void delete(final String counterName)
+	{
+		this.deleteAll(Collections.singleton(counterName));
+	}
+
+	@Override
+	public void deleteAll(final Collection<String> counterNames)
+	{
+		final List<String> lastKnownCountKeys = Lists.newArrayList();
+		final Collection<String> counterKeys = this.assembleCounterKeysforMemcache(counterNames).keySet();
+		for (String counterKey : counterKeys)
+		{
+			lastKnownCountKeys.add(LAST_KNOWN_COUNT_KEY_PREFIX + counterKey);
+		}
+		memcacheService.deleteAll(counterKeys);
+		internalMemcacheService.deleteAll(lastKnownCountKeys);
+	}
+
+	@Override
+	public LastKnownCount getLastKnownCount(final String counterName)
+	{
+		return (LastKnownCount) internalMemcacheService.get(LAST_KNOWN_COUNT_KEY_PREFIX
+			+ this.assembleCounterKeyforMemcache(counterName));
+	}
+
+	@Override
+	public void putLastKnownCount(final String counterName, final LastKnownCount lastKnownCount)
+	{
+		internalMemcacheService.put(LAST_KNOWN_COUNT_KEY_PREFIX + this.assembleCounterKeyforMemcache(counterName),
+			lastKnownCount);
+	}
+
+	@Override
+	public boolean tryAcquireRecomputeLease(final String counterName, final String owner, final long leaseMillis)
+	{
+		Preconditions.checkArgument(!StringUtils.isBlank(owner), "Lease owner must not be blank!");
+		final String leaseKey = RECOMPUTE_LEASE_KEY_PREFIX + this.assembleCounterKeyforMemcache(counterName);
+		if (internalMemcacheService.put(leaseKey, owner, toExpiration(leaseMillis), SetPolicy.ADD_ONLY_IF_NOT_PRESENT))
+		{
+			return true;
+		}
+
+		final IdentifiableValue lease = internalMemcacheService.getIdentifiable(leaseKey);
+		if (lease == null)
+		{
+			// The lease couldn't be added, but doesn't exist either, so
+			// memcache is unavailable (in which case the leaseholder wouldn't
+			// be able to cache the count anyway), or the lease just expired.
+			return true;
+		}
+		else if (RELEASED_LEASE_OWNER.equals(lease.getValue()))
+		{
+			// Only one caller can take over a released lease.
+			return internalMemcacheService.putIfUntouched(leaseKey, lease, owner, toExpiration(leaseMillis));
+		}
+		// Another caller holds the lease.
+		return false;
+	}
+
+	@Override
+	public void releaseRecomputeLease(final String counterName, final String owner)
+	{
+		Preconditions.checkArgument(!StringUtils.isBlank(owner), "Lease owner must not be blank!");
+		final String leaseKey = RECOMPUTE_LEASE_KEY_PREFIX + this.assembleCounterKeyforMemcache(counterName);
+		final IdentifiableValue lease = internalMemcacheService.getIdentifiable(leaseKey);
+		// If the lease has expired and been acquired by another owner, or was
+		// just acquired by another owner, then this leaves it intact.
+		if (lease != null && owner.equals(lease.getValue()))
+		{
+			internalMemcacheService.putIfUntouched(leaseKey, lease, RELEASED_LEASE_OWNER);
+		}
+	}
+
+	/**
+	 * Assembles a CounterKey for Memcache
+	 * 
+	 * @param counterName
+	 * @return
+	 */
+	String assembleCounterKeyforMemcache(final String counterName)
+	{
+		return counterName;
+	}
+
+	/**
+	 * @param counterNames
+	 * @return The counter names, keyed by their memcache keys.
+	 */
+	private Map<String, String> assembleCounterKeysforMemcache(final Collection<String> counterNames)
+	{
+		final Map<String, String> memCacheKeys = Maps.newHashMap();
+		for (String counterName : counterNames)
+		{
+			memCacheKeys.put(this.assembleCounterKeyforMemcache(counterName), counterName);
+		}
+		return memCacheKeys;
+	}
+
+	/**
+	 * @param namespace The namespace of the counts, or {@code null} for the
+	 *            default namespace.
+	 * @return The namespace of the cache's own entries.
+	 */
+	private static String toInternalNamespace(final String namespace)
+	{
+		return StringUtils.isEmpty(namespace) ? INTERNAL_NAMESPACE_SUFFIX : namespace + "."
+			+ INTERNAL_NAMESPACE_SUFFIX;
+	}
+
+	private static Expiration toExpiration(final long expirationMillis)
+	{
+		return expirationMillis == NO_EXPIRATION ? null : Expiration.byDeltaMillis((int) expirationMillis);
+	}
+
+}
@@ -0,0 +1,114 @@
+/**
+ * Copyright (c) 2012 Sappenin Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.sappenin.objectify.shardedcounter.service;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import com.google.common.base.Function;
+import com.google.common.base.Preconditions;
+
+/**
+ * A {@link Future} whose value is computed by applying a {@link Function} to
+ * the value of another {@link Future}. Unlike
+ * {@link com.google.common.util.concurrent.Futures#lazyTransform}, the function
+ * is applied at most once (by the first call to {@code get}), and its result
+ * (or the {@link RuntimeException} it threw) is returned by every later call,
+ * so that an expensive function (e.g., a fallback to the Datastore) isn't
+ * repeated.<br/>
+ * <br/>
+ * This class is thread-safe.
+ * 
+ * @author David Fuelling <sappenin@gmail.com>
+ */
+class MemoizingTransformedFuture<I, O> implements Future<O>
+{
+	private final Future<I> input;
+	private final Function<? super I, ? extends O> function;
+
+	// Guarded by this.
+	private boolean transformed;
+	private O output;
+	private RuntimeException failure;
+
+	/**
+	 * Required-args Constructor.
+	 * 
+	 * @param input
+	 * @param function
+	 */
+	MemoizingTransformedFuture(final Future<I> input, final Function<? super I, ? extends O> function)
+	{
+		this.input = Preconditions.checkNotNull(input);
+		this.function = Preconditions.checkNotNull(function);
+	}
+
+	@Override
+	public boolean cancel(final boolean mayInterruptIfRunning)
+	{
+		return input.cancel(mayInterruptIfRunning);
+	}
+
+	@Override
+	public boolean isCancelled()
+	{
+		return input.isCancelled();
+	}
+
+	@Override
+	public boolean isDone()
+	{
+		return input.isDone();
+	}
+
+	@Override
+	public O get() throws InterruptedException, ExecutionException
+	{
+		return this.transform(input.get());
+	}
+
+	@Override
+	public O get(final long timeout, final TimeUnit unit) throws InterruptedException, ExecutionException,
+			TimeoutException
+	{
+		return this.transform(input.get(timeout, unit));
+	}
+
+	private synchronized O transform(final I value)
+	{
+		if (!transformed)
+		{
+			try
+			{
+				output = function.apply(value);
+			}
+			catch (RuntimeException e)
+			{
+				failure = e;
+			}
+			transformed = true;
+		}
+
+		if (failure != null)
+		{
+			throw failure;
+		}
+		return output;
+	}
+
+}
@@ -0,0 +1,37 @@
+/**
+ * Copyright (c) 2012 Sappenin Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.sappenin.objectify.shardedcounter.service;
+
+/**
+ * A {@link CounterMetrics} that discards every metric. This is the default.
+ * 
+ * @author David Fuelling <sappenin@gmail.com>
+ */
+public class NoOpCounterMetrics implements CounterMetrics
+{
+	@Override
+	public void recordLatency(final Operation operation, final long latencyNanos)
+	{
+		// Do nothing.
+	}
+
+	@Override
+	public void recordEvent(final Event event, final long count)
+	{
+		// Do nothing.
+	}
+
+}
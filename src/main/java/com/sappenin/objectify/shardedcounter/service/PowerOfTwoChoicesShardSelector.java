@@ -0,0 +1,181 @@
+/**
+ * Copyright (c) 2012 Sappenin Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.sappenin.objectify.shardedcounter.service;
+
+import java.util.Arrays;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+/**
+ * A {@link ShardSelector} that steers writes away from shards that have
+ * recently been contended.<br/>
+ * <br/>
+ * Each shard of a counter has a "heat" that is increased by one every time an
+ * attempt to update it is contended, and that decays exponentially (halving
+ * every {@code heatHalfLifeMillis}). To select a shard, two distinct shards
+ * are chosen at random and the cooler of the two is used. Sampling two
+ * shards (instead of always picking the coolest) keeps concurrent writers
+ * from all piling onto the same cool shard.<br/>
+ * <br/>
+ * This class is thread-safe. Heat is only tracked within a single JVM, and
+ * only for counters that have experienced contention. The heat of at most
+ * {@code maxTrackedCounters} counters is kept, and a counter's heat is
+ * forgotten once it hasn't been used for {@link #HEAT_HALF_LIVES_TRACKED}
+ * half-lives (by which time it has decayed to a negligible amount).
+ * 
+ * @author David Fuelling <sappenin@gmail.com>
+ */
+public class PowerOfTwoChoicesShardSelector implements ShardSelector
+{
+	// By default, the heat of a shard halves every 10 seconds.
+	static final long DEFAULT_HEAT_HALF_LIFE_MILLIS = 10000L;
+
+	// By default, the heat of up to 10,000 counters is tracked.
+	static final int DEFAULT_MAX_TRACKED_COUNTERS = 10000;
+
+	// After this many half-lives, a shard's heat is less than a thousandth of
+	// what it was.
+	static final int HEAT_HALF_LIVES_TRACKED = 10;
+
+	private final long heatHalfLifeMillis;
+
+	// The heat of each recently contended counter, keyed by counter name.
+	private final Cache<String, ShardHeat> heats;
+
+	/**
+	 * Default Constructor, using a heat half-life of 10 seconds.
+	 */
+	public PowerOfTwoChoicesShardSelector()
+	{
+		this(DEFAULT_HEAT_HALF_LIFE_MILLIS);
+	}
+
+	/**
+	 * Constructor that tracks the heat of up to 10,000 counters.
+	 * 
+	 * @param heatHalfLifeMillis The number of milliseconds after which the heat
+	 *            of a shard has decayed by half.
+	 */
+	public PowerOfTwoChoicesShardSelector(final long heatHalfLifeMillis)
+	{
+		this(heatHalfLifeMillis, DEFAULT_MAX_TRACKED_COUNTERS);
+	}
+
+	/**
+	 * Required-args Constructor.
+	 * 
+	 * @param heatHalfLifeMillis The number of milliseconds after which the heat
+	 *            of a shard has decayed by half.
+	 * @param maxTrackedCounters The maximum number of counters whose heat is
+	 *            tracked. The heat of the least recently used counters is
+	 *            forgotten first.
+	 */
+	public PowerOfTwoChoicesShardSelector(final long heatHalfLifeMillis, final int maxTrackedCounters)
+	{
+		Preconditions.checkArgument(heatHalfLifeMillis > 0, "Heat half-life must be greater than 0!");
+		Preconditions.checkArgument(maxTrackedCounters > 0,
+			"Maximum number of tracked counters must be greater than 0!");
+		this.heatHalfLifeMillis = heatHalfLifeMillis;
+		this.heats = CacheBuilder.newBuilder().maximumSize(maxTrackedCounters)
+			.expireAfterAccess(heatHalfLifeMillis * HEAT_HALF_LIVES_TRACKED, TimeUnit.MILLISECONDS).build();
+	}
+
+	@Override
+	public int selectShard(final String counterName, final int numShards)
+	{
+		if (numShards == 1)
+		{
+			return 0;
+		}
+
+		final ThreadLocalRandom random = ThreadLocalRandom.current();
+		final int firstChoice = random.nextInt(numShards);
+		int secondChoice = random.nextInt(numShards - 1);
+		if (secondChoice >= firstChoice)
+		{
+			secondChoice++;
+		}
+
+		final ShardHeat shardHeat = heats.getIfPresent(counterName);
+		if (shardHeat == null)
+		{
+			// The counter hasn't been contended recently.
+			return firstChoice;
+		}
+
+		final long now = System.currentTimeMillis();
+		return shardHeat.getHeat(secondChoice, now) < shardHeat.getHeat(firstChoice, now) ? secondChoice
+			: firstChoice;
+	}
+
+	@Override
+	public void recordOutcome(final String counterName, final int shardNumber, final boolean contended)
+	{
+		Preconditions.checkNotNull(counterName);
+		Preconditions.checkArgument(shardNumber >= 0);
+
+		if (!contended)
+		{
+			return;
+		}
+
+		ShardHeat shardHeat = heats.getIfPresent(counterName);
+		if (shardHeat == null)
+		{
+			ShardHeat newShardHeat = new ShardHeat();
+			shardHeat = heats.asMap().putIfAbsent(counterName, newShardHeat);
+			if (shardHeat == null)
+			{
+				shardHeat = newShardHeat;
+			}
+		}
+		shardHeat.addHeat(shardNumber, System.currentTimeMillis());
+	}
+
+	/**
+	 * The heat of every shard of a single counter.
+	 */
+	private final class ShardHeat
+	{
+		private double[] heats = new double[0];
+		private long[] updatedMillis = new long[0];
+
+		synchronized double getHeat(final int shardNumber, final long now)
+		{
+			if (shardNumber >= heats.length)
+			{
+				return 0;
+			}
+			return heats[shardNumber] * Math.pow(0.5, (double) (now - updatedMillis[shardNumber]) / heatHalfLifeMillis);
+		}
+
+		synchronized void addHeat(final int shardNumber, final long now)
+		{
+			if (shardNumber >= heats.length)
+			{
+				heats = Arrays.copyOf(heats, shardNumber + 1);
+				updatedMillis = Arrays.copyOf(updatedMillis, shardNumber + 1);
+			}
+			heats[shardNumber] = this.getHeat(shardNumber, now) + 1;
+			updatedMillis[shardNumber] = now;
+		}
+	}
+
+}
@@ -0,0 +1,40 @@
+/**
+ * Copyright (c) 2012 Sappenin Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.sappenin.objectify.shardedcounter.service;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * A {@link ShardSelector} that chooses a shard uniformly at random, ignoring
+ * the outcome of previous attempts. This is the default strategy.
+ * 
+ * @author David Fuelling <sappenin@gmail.com>
+ */
+public class RandomShardSelector implements ShardSelector
+{
+	@Override
+	public int selectShard(final String counterName, final int numShards)
+	{
+		return ThreadLocalRandom.current().nextInt(numShards);
+	}
+
+	@Override
+	public void recordOutcome(final String counterName, final int shardNumber, final boolean contended)
+	{
+		// Outcomes don't influence a random choice.
+	}
+
+}
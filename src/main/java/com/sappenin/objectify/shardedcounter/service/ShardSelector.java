@@ -0,0 +1,53 @@
+/**
+ * Copyright (c) 2012 Sappenin Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.sappenin.objectify.shardedcounter.service;
+
+/**
+ * A strategy for choosing which shard of a counter an increment (or
+ * decrement) should be applied to.<br/>
+ * <br/>
+ * After each attempt to update a chosen shard, {@link ShardedCounterService}
+ * reports whether the attempt's transaction was contended (i.e., failed with a
+ * {@link java.util.ConcurrentModificationException} and had to be retried), so
+ * that implementations may steer later writes away from hot shards.
+ * Implementations must be thread-safe.
+ * 
+ * @author David Fuelling <sappenin@gmail.com>
+ */
+public interface ShardSelector
+{
+	/**
+	 * Choose the shard of the counter named {@code counterName} to update.
+	 * 
+	 * @param counterName
+	 * @param numShards The number of shards of the counter (always at least 1).
+	 * @return A shard number between 0 (inclusive) and {@code numShards}
+	 *         (exclusive).
+	 */
+	public int selectShard(final String counterName, final int numShards);
+
+	/**
+	 * Record the outcome of an attempt to update shard {@code shardNumber} of
+	 * the counter named {@code counterName}.
+	 * 
+	 * @param counterName
+	 * @param shardNumber
+	 * @param contended {@code true} if the attempt's transaction failed due to
+	 *            contention; {@code false} if it committed.
+	 */
+	public void recordOutcome(final String counterName, final int shardNumber, final boolean contended);
+
+}
@@ -21,24 +21,43 @@
  */
 package com.sappenin.objectify.shardedcounter.service;
 
+import com.google.appengine.api.memcache.AsyncMemcacheService;
 import com.google.appengine.api.memcache.MemcacheService;
-import com.google.appengine.api.memcache.MemcacheService.IdentifiableValue;
-import com.google.appengine.api.memcache.MemcacheService.SetPolicy;
-import com.google.appengine.api.memcache.MemcacheServiceException;
 import com.google.appengine.api.memcache.MemcacheServiceFactory;
 import com.google.appengine.api.taskqueue.Queue;
 import com.google.appengine.api.taskqueue.QueueFactory;
 import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.common.base.Function;
 import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.Uninterruptibles;
 import com.googlecode.objectify.*;
 import com.sappenin.objectify.shardedcounter.data.Counter;
 import com.sappenin.objectify.shardedcounter.data.Counter.CounterStatus;
 import com.sappenin.objectify.shardedcounter.data.CounterShard;
+import com.sappenin.objectify.shardedcounter.service.CounterMetrics.Event;
+import com.sappenin.objectify.shardedcounter.service.CounterMetrics.Operation;
 import org.apache.commons.lang3.StringUtils;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
 
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.ConcurrentModificationException;
-import java.util.Random;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -49,26 +68,37 @@ import java.util.logging.Logger;
  * All datastore operations are performed using Objectify.<br/>
  * <br/>
  * This implementation is capable of incrementing/decrementing various counters
- * but does not reduce the number of shards (in order to maintain high
- * throughput guarantees for when the number of shards has grown). When
- * incrementing, a random shard is selected to prevent a single shard from being
- * written to too frequently. If increments are being made too quickly, this
- * service increases the number of shards in order to handle the per-second load
- * required of it. This implementation assumes an average throughput of 3
- * writes-per-second for a given entity group, and scales shards based on that
- * assumption. For example, if 9 writes per second are noticed, then 3 shards
- * are created and used.<br/>
+ * and only reduces the number of shards when asked to (see
+ * {@link #compact(String, int)}), in order to maintain high throughput
+ * guarantees for when the number of shards has grown. When
+ * incrementing, a shard is selected by the configured {@link ShardSelector}
+ * (randomly, by default) to prevent a single shard from being written to too
+ * frequently. If increments are being made too quickly, this
+ * service can increase the number of shards in order to handle the per-second
+ * load required of it (see
+ * {@link ShardedCounterServiceConfiguration#isAutoReshardingEnabled()}). When
+ * enabled, the shard transactions of each counter are observed and, if they
+ * are retried (due to contention) too often, the counter's number of shards is
+ * doubled, up to {@link ShardedCounterServiceConfiguration#getMaxNumShards()}
+ * .<br/>
  * <br/>
- * Lookups are attempted using Memcache. If the counter value is not in the
- * cache, the shards are read from the datastore and accumulated to reconstruct
+ * Every {@link Counter} and every {@link CounterShard} is a root entity, and
+ * thus its own entity group, so transactions against different shards never
+ * contend with one another. Counters stored by earlier versions of this library
+ * underneath a single shared parent (see {@link Counter#legacyParentKey()}) are
+ * migrated lazily the first time they are accessed, or explicitly via
+ * {@link #migrateLegacyCounter(String)}.<br/>
+ * <br/>
+ * Lookups are attempted using a {@link CounterCache} (memcache, by default).
+ * If the counter value is not in the cache, the shards are read from the datastore and accumulated to reconstruct
  * the current count. This operation has a cost of O(numShards), which is
  * dependent on the number of writes/second required.<br/>
  * <br/>
- * In the future, a mechanism to reduce the number of shards may be employed,
- * but this would probably not be necessary since a counter with 100 shards
- * could support approximately 100 increments per-second, which could support at
- * least 360,000 (100c * 60s * 60m) increments per hour, or 8,640,000 increments
- * per day. 100 counters is not very many shards in the grand scheme of things.<br/>
+ * A counter with 100 shards could support approximately 100 increments
+ * per-second, which could support at least 360,000 (100c * 60s * 60m)
+ * increments per hour, or 8,640,000 increments per day. However, reading such a
+ * counter from the Datastore costs 100 shard reads, so counters whose traffic
+ * has gone down may be compacted to fewer shards.<br/>
  * <br/>
  * As an upper-bound calculation, the Psy video currently has 750m views in 60
  * days. To get this, we would need approximately 144 shards in order to support
@@ -80,13 +110,55 @@ public class ShardedCounterService implements CounterService
 {
 	private static final Logger logger = Logger.getLogger(ShardedCounterService.class.getName());
 
-	/**
-	 * A random number generating, for distributing writes across shards.
-	 */
-	private final Random generator = new Random();
+	// The maximum number of entity groups (i.e., CounterShards) that a single
+	// Datastore transaction may touch.
+	static final int MAX_ENTITY_GROUPS_PER_TRANSACTION = 5;
+
+	// The number of times each transaction of #incrementAll is tried before
+	// its counters are reported as not incremented.
+	static final int INCREMENT_ALL_MAX_TRIES = 10;
+
+	// The number of shard batches that #onTaskQueueCounterDeletion deletes
+	// concurrently between checkpoints.
+	static final int DELETE_SHARD_BATCHES_IN_FLIGHT = 4;
+
+	// How long a caller waiting for another caller to recompute a count first
+	// waits before checking whether the count has been cached. The wait
+	// doubles after every check, up to COUNT_RECOMPUTE_MAX_POLL_MILLIS.
+	private static final long COUNT_RECOMPUTE_POLL_MILLIS = 20L;
+
+	private static final long COUNT_RECOMPUTE_MAX_POLL_MILLIS = 250L;
+
+	// Prepended to a counter's name to form the name of the lease that is held
+	// while a refresh of its count is enqueued. This is distinct from the
+	// counter's recompute lease, which readers that miss the cache wait on.
+	private static final String COUNT_REFRESH_LEASE_PREFIX = "__countRefresh__";
 
-	private final MemcacheService memcacheService;
+	// Prepended to a counter's name (and followed by the generation of its last
+	// rollup) to form the name under which its delta since that rollup is
+	// cached.
+	private static final String MATERIALIZED_DELTA_PREFIX = "__materializedDelta__";
+
+	// Prepended to a counter's name to form the name of the lease that is held
+	// while a rollup of its shards is enqueued or running.
+	private static final String ROLLUP_LEASE_PREFIX = "__rollup__";
+
+	// Cached counts never drop below zero, so a counter's (possibly negative)
+	// delta since its last rollup is cached relative to this baseline.
+	static final long MATERIALIZED_DELTA_BASELINE = Long.MAX_VALUE / 2;
+
+	private final CounterCache counterCache;
 	private final ShardedCounterServiceConfiguration config;
+	private final CounterContentionTracker contentionTracker;
+	private final IncrementCombiner incrementCombiner;
+	private final SingleFlight<Long> countRecomputations;
+
+	/**
+	 * An in-memory cache of the metadata of recently loaded Counters, keyed by
+	 * counter name. Immutable snapshots are cached (instead of Counters) so
+	 * that every caller receives its own Counter instance.
+	 */
+	private final Cache<String, CounterMetadata> counterMetadataCache;
 
 	// /////////////////////////////
 	// Constructors
@@ -124,16 +196,92 @@ public class ShardedCounterService implements CounterService
 	 */
 	public ShardedCounterService(final MemcacheService memcacheService, final ShardedCounterServiceConfiguration config)
 	{
-		Preconditions.checkNotNull(memcacheService, "Invalid memcacheService!");
+		this(new MemcacheCounterCache(memcacheService), config);
+	}
+
+	/**
+	 * Default Constructor for Dependency-Injection that also injects the
+	 * {@link AsyncMemcacheService} used by the non-blocking paths (e.g.,
+	 * {@link #incrementFast(String, long)}), rather than deriving one from
+	 * {@code memcacheService}'s namespace.
+	 * 
+	 * @param memcacheService
+	 * @param asyncMemcacheService
+	 * @param config The configuration for this service
+	 */
+	public ShardedCounterService(final MemcacheService memcacheService,
+			final AsyncMemcacheService asyncMemcacheService, final ShardedCounterServiceConfiguration config)
+	{
+		this(new MemcacheCounterCache(memcacheService, asyncMemcacheService), config);
+	}
+
+	/**
+	 * Default Constructor for Dependency-Injection that caches counts in
+	 * {@code counterCache} instead of memcache.
+	 * 
+	 * @param counterCache
+	 * @param config The configuration for this service
+	 */
+	public ShardedCounterService(final CounterCache counterCache, final ShardedCounterServiceConfiguration config)
+	{
+		Preconditions.checkNotNull(counterCache, "Invalid counterCache!");
 		Preconditions.checkNotNull(config);
 
-		this.memcacheService = memcacheService;
+		if (config.getL1CountCacheMaxSize() > 0)
+		{
+			// Serve hot counts from an in-memory tier in front of the cache.
+			this.counterCache = new TieredCounterCache(new InMemoryCounterCache(config.getL1CountCacheMaxSize()),
+				counterCache, config.getL1CountCacheExpirationMillis());
+		}
+		else
+		{
+			this.counterCache = counterCache;
+		}
 		this.config = config;
+		this.contentionTracker = new CounterContentionTracker(config.getReshardSampleSize(),
+			config.getReshardRetryRatioThreshold(), config.getReshardCooldownMillis());
+		this.incrementCombiner = new IncrementCombiner();
+		this.countRecomputations = new SingleFlight<Long>();
+		// A maximum size of zero caches nothing.
+		this.counterMetadataCache = CacheBuilder.newBuilder()
+			.maximumSize(config.getCounterMetadataCacheMaxSize())
+			.expireAfterWrite(config.getCounterMetadataCacheExpirationMillis(), TimeUnit.MILLISECONDS).build();
 
 		if (this.config != null)
 		{
 			Preconditions.checkArgument(config.getNumInitialShards() > 0,
 				"Number of Shards for a new Counter must be greater than 0!");
+			Preconditions.checkArgument(config.getShardLoadBatchSize() > 0,
+				"Shard load batch size must be greater than 0!");
+			if (config.isAutoReshardingEnabled())
+			{
+				Preconditions.checkArgument(config.getMaxNumShards() >= config.getNumInitialShards(),
+					"Maximum number of Shards must not be less than the number of initial Shards!");
+			}
+			if (config.getCounterMetadataCacheMaxSize() > 0)
+			{
+				// Entries are only invalidated in this instance, so other
+				// instances observe a deletion, reshard or compaction only
+				// once their entries expire. Until then, they may still
+				// increment a counter that is being deleted, or a shard that is
+				// being removed, so a compaction must wait out this window
+				// before its removed shards are folded.
+				Preconditions.checkArgument(
+					config.getCounterMetadataCacheExpirationMillis() <= config.getCompactionDelayMillis(),
+					"Counter metadata cache expiration must not exceed the compaction delay!");
+				// Likewise, other instances keep tracking changes under the
+				// generation they last loaded. Only the previous generation's
+				// delta is still read after a rollup, so those entries must
+				// expire before the next rollup drops it.
+				Preconditions.checkArgument(config.getRollupIntervalMillis() == 0
+					|| config.getCounterMetadataCacheExpirationMillis() <= config.getRollupIntervalMillis(),
+					"Counter metadata cache expiration must not exceed the rollup interval!");
+			}
+			if (config.getRelativeUrlPathForCompactTaskQueue() != null)
+			{
+				Preconditions.checkArgument(!StringUtils.isBlank(config.getRelativeUrlPathForCompactTaskQueue()),
+					"Must be null (for the Default Queue) or a non-blank String!");
+			}
 			if (config.getRelativeUrlPathForDeleteTaskQueue() != null)
 			{
 				// The relativeUrlPathForDeleteTaskQueue may be null, but if
@@ -150,6 +298,19 @@ public class ShardedCounterService implements CounterService
 
 	@Override
 	public Counter create(final String counterName)
+	{
+		final long startNanos = System.nanoTime();
+		try
+		{
+			return this.doCreate(counterName);
+		}
+		finally
+		{
+			this.recordLatency(Operation.CREATE, startNanos);
+		}
+	}
+
+	private Counter doCreate(final String counterName)
 	{
 		Preconditions.checkNotNull(counterName);
 		Preconditions.checkArgument(!StringUtils.isBlank(counterName));
@@ -157,9 +318,14 @@ public class ShardedCounterService implements CounterService
 		// Create a counter with a default num shards, which should be 1 shard
 		// to start, offering up to 5 increments per second.
 
+		// A Counter stored underneath the legacy root parent must be moved
+		// before a new one is created in its place, or its shards would be
+		// orphaned.
+		this.migrateLegacyCounter(counterName);
+
 		final Key<Counter> counterKey = new Counter(counterName, 1).getTypedKey();
 		final Counter counter = new Counter(counterName, config.getNumInitialShards());
-		return ObjectifyService.ofy().transact(new Work<Counter>()
+		final Counter dsCounter = ObjectifyService.ofy().transact(new Work<Counter>()
 		{
 			public Counter run()
 			{
@@ -175,11 +341,19 @@ public class ShardedCounterService implements CounterService
 					// creations to happen when this is occuring.
 					throw new RuntimeException("The counter with name \"" + counterName + "\" already exists!");
 				}
+				else if (dsCounter != null)
+				{
+					// Don't overwrite the existing Counter (e.g., a migrated
+					// Counter may have more than the initial number of shards).
+					return dsCounter;
+				}
 
 				ObjectifyService.ofy().save().entity(counter).now();
 				return counter;
 			}
 		});
+		this.cacheCounterMetadata(dsCounter);
+		return dsCounter;
 	}
 
 	// The cache has varying expiration depending on the counter size, so the
@@ -188,12 +362,44 @@ public class ShardedCounterService implements CounterService
 	@Override
 	public Optional<Counter> getCounter(String counterName)
 	{
-		long count = this.getCountFromCacheOrDatastore(counterName);
-		Key<Counter> counterKey = new Counter(counterName, 1).getTypedKey();
+		final long startNanos = System.nanoTime();
+		try
+		{
+			return this.doGetCounter(counterName);
+		}
+		finally
+		{
+			this.recordLatency(Operation.GET_COUNTER, startNanos);
+		}
+	}
+
+	private Optional<Counter> doGetCounter(String counterName)
+	{
+		// The whole Counter is returned, so it isn't served from the counter
+		// metadata cache.
+		final Key<Counter> counterKey = new Counter(counterName, 1).getTypedKey();
 		// No TX needed - get is Strongly consistent by default
-		Counter counter = ObjectifyService.ofy().load().key(counterKey).now();
+		Counter counter = ObjectifyService.ofy().transactionless().load().key(counterKey).now();
+		this.recordEvent(Event.DATASTORE_RPC, 1);
+		if (counter != null)
+		{
+			this.cacheCounterMetadata(counter);
+		}
+
+		if (counter == null)
+		{
+			// The Counter may still live underneath the legacy root parent.
+			counter = this.migrateLegacyCounter(counterName).orNull();
+		}
+		else if (counter.isMigratingFromLegacyParent())
+		{
+			// A previous migration of this Counter was interrupted.
+			counter = this.resumeLegacyMigration(counter);
+		}
+
 		if (counter != null)
 		{
+			long count = this.getCountFromCacheOrDatastore(counterName);
 			counter.setApproximateCount(count);
 		}
 		// Otherwise, return this value...
@@ -201,54 +407,161 @@ public class ShardedCounterService implements CounterService
 	}
 
 	@Override
-	public Counter increment(final String counterName, final long amount)
+	public Map<String, Counter> getCounters(final Collection<String> counterNames)
 	{
-		Preconditions.checkNotNull(counterName);
-		Preconditions.checkArgument(!StringUtils.isBlank(counterName));
-		Preconditions.checkArgument(amount > 0, "Counter increments must be positive numbers!");
+		final long startNanos = System.nanoTime();
+		try
+		{
+			return this.doGetCounters(counterNames);
+		}
+		finally
+		{
+			this.recordLatency(Operation.GET_COUNTERS, startNanos);
+		}
+	}
 
-		Optional<Counter> optCounter = this.getCounter(counterName);
-        if(!optCounter.isPresent()) {
-            Counter counter = this.create(counterName);
-            optCounter = Optional.fromNullable(counter);
-        }
-		counterPreconditionChecks(counterName, optCounter, "increment");
+	private Map<String, Counter> doGetCounters(final Collection<String> counterNames)
+	{
+		Preconditions.checkNotNull(counterNames);
+		final Map<String, Key<Counter>> counterKeys = Maps.newLinkedHashMap();
+		for (String counterName : counterNames)
+		{
+			Preconditions.checkNotNull(counterName);
+			Preconditions.checkArgument(!StringUtils.isBlank(counterName));
+			Key<Counter> counterKey = new Counter(counterName, 1).getTypedKey();
+			counterKeys.put(counterName, counterKey);
+		}
 
-		// ///////////
-		// Increment
-		final Long amountIncremented = ObjectifyService.ofy().transact(new Work<Long>()
+		// The Counters are loaded asynchronously while the cache is consulted.
+		// No TX needed - get is Strongly consistent by default
+		final Map<Key<Counter>, Counter> dsCounters = ObjectifyService.ofy().load().keys(counterKeys.values());
+		this.recordEvent(Event.DATASTORE_RPC, 1);
+		final Map<String, Long> cachedCounts = counterCache.getAll(counterKeys.keySet());
+
+		// A missing Counter may still live underneath the legacy root parent,
+		// and a flagged Counter's previous migration was interrupted. The
+		// legacy Counters of both are looked up with a single batch-get.
+		final Map<String, Key<Counter>> legacyCounterKeys = Maps.newLinkedHashMap();
+		for (String counterName : counterKeys.keySet())
 		{
-			@Override
-			public Long run()
+			Counter counter = dsCounters.get(counterKeys.get(counterName));
+			if (counter == null || counter.isMigratingFromLegacyParent())
 			{
-				CounterShard counterShard = null;
-
-				// Find how many shards are in this counter.
-				final int currentNumShards = getShardCount(counterName);
-
-				// Choose the shard randomly from the available shards.
-				final int shardNum = generator.nextInt(currentNumShards);
+				legacyCounterKeys.put(counterName, legacyCounterKey(counterName));
+			}
+		}
+		final Map<Key<Counter>, Counter> legacyCounters;
+		if (legacyCounterKeys.isEmpty())
+		{
+			legacyCounters = Collections.emptyMap();
+		}
+		else
+		{
+			// No TX needed - get is Strongly consistent by default
+			legacyCounters = ObjectifyService.ofy().transactionless().load().keys(legacyCounterKeys.values());
+			this.recordEvent(Event.DATASTORE_RPC, 1);
+		}
 
-				Optional<CounterShard> optDSCounterShard = getCounterShardFromDS(counterName, shardNum);
-				if (optDSCounterShard.isPresent())
+		final Map<String, Counter> counters = Maps.newLinkedHashMap();
+		final Map<String, Integer> uncachedNumShards = Maps.newLinkedHashMap();
+		for (String counterName : counterKeys.keySet())
+		{
+			Counter counter = dsCounters.get(counterKeys.get(counterName));
+			if (legacyCounterKeys.containsKey(counterName))
+			{
+				final Counter legacyCounter = legacyCounters.get(legacyCounterKeys.get(counterName));
+				if (legacyCounter != null)
 				{
-					counterShard = optDSCounterShard.get();
+					counter = this.migrateLegacyCounter(counterName, legacyCounter);
 				}
-				else
+				else if (counter != null)
 				{
-					// Lazily create a new CounterShard if one doesn't exist in
-					// the Datastore
-					counterShard = new CounterShard(counterName, shardNum);
-					logger.fine("Creating CounterShard " + shardNum + " for \"" + counterName + "\"");
+					// Only the migration flag of the Counter remains.
+					counter = this.finishLegacyMigration(counterName).orNull();
+				}
+				if (counter == null)
+				{
+					continue;
 				}
+			}
+			counters.put(counterName, counter);
 
-				counterShard.setCount(counterShard.getCount() + amount);
-				logger.fine("Saving CounterShard" + shardNum + " for Counter \"" + counterName + "\" with count "
-					+ counterShard.getCount());
-				ObjectifyService.ofy().save().entity(counterShard).now();
-				return new Long(amount);
+			// A migrated Counter's cached count may pre-date its migration.
+			Long cachedCount = legacyCounterKeys.containsKey(counterName) ? null : cachedCounts.get(counterName);
+			if (cachedCount == null)
+			{
+				logger.fine("Cache Miss for Counter Named \"" + counterName + "\".  Checking Datastore instead!");
+				this.recordEvent(Event.MEMCACHE_MISS, 1);
+				uncachedNumShards.put(counterName, counter.getNumReadableShards());
 			}
-		});
+			else
+			{
+				this.recordEvent(Event.MEMCACHE_HIT, 1);
+				counter.setApproximateCount(cachedCount);
+			}
+		}
+
+		if (!uncachedNumShards.isEmpty())
+		{
+			// Counters with a usable materialized count need no shard scan.
+			final List<Counter> uncachedCounters = Lists.newArrayList();
+			for (String counterName : uncachedNumShards.keySet())
+			{
+				uncachedCounters.add(counters.get(counterName));
+			}
+			final Map<String, Long> sums = this.getMaterializedCounts(uncachedCounters);
+			uncachedNumShards.keySet().removeAll(sums.keySet());
+
+			// Aggregate the shards of every other cache miss at once.
+			if (!uncachedNumShards.isEmpty())
+			{
+				sums.putAll(this.sumCounterShards(uncachedNumShards));
+			}
+			for (Map.Entry<String, Long> entry : sums.entrySet())
+			{
+				counters.get(entry.getKey()).setApproximateCount(entry.getValue());
+			}
+			for (Map.Entry<String, Long> entry : sums.entrySet())
+			{
+				this.cacheCount(entry.getKey(), entry.getValue());
+			}
+		}
+
+		return counters;
+	}
+
+	@Override
+	public Counter increment(final String counterName, final long amount)
+	{
+		final long startNanos = System.nanoTime();
+		try
+		{
+			return this.doIncrement(counterName, amount);
+		}
+		finally
+		{
+			this.recordLatency(Operation.INCREMENT, startNanos);
+		}
+	}
+
+	private Counter doIncrement(final String counterName, final long amount)
+	{
+		Preconditions.checkNotNull(counterName);
+		Preconditions.checkArgument(!StringUtils.isBlank(counterName));
+		Preconditions.checkArgument(amount > 0, "Counter increments must be positive numbers!");
+
+		Optional<Counter> optCounter = this.loadCounterForWrite(counterName);
+		if (!optCounter.isPresent())
+		{
+			Counter counter = this.create(counterName);
+			counter.setApproximateCount(this.getCountFromCacheOrDatastore(counterName));
+			optCounter = Optional.of(counter);
+		}
+		counterPreconditionChecks(counterName, optCounter, "increment");
+
+		// ///////////
+		// Increment
+		final Long amountIncremented = this.incrementShard(counterName, optCounter.get().getNumShards(), amount);
 
 		// We use the "amountIncremented" to pause this thread until the TX
 		// Future returns. This is because we don't want to increment
@@ -262,443 +575,2313 @@ public class ShardedCounterService implements CounterService
 		// /////////////////
 		// Increment this counter in memcache atomically
 		// /////////////////
-		long newAmount = incrementMemcacheAtomic(counterName, amountIncremented.longValue());
+		long newAmount = incrementCachedCountAtomic(optCounter.get(), amountIncremented.longValue(), optCounter.get()
+			.getApproximateCount());
 
 		optCounter.get().setApproximateCount(newAmount);
 		return optCounter.get();
 	}
 
-	/**
-	 * Decrement functionality is restricted to 1 in order to provide for
-	 * consistency guarantees. For example, if an operation could decrement 10
-	 * in a single call, and a particular counter had 10 shards each with 1 as
-	 * the count, this would exceed the threshold of Google Appengine
-	 * Transaction limits, which are limited to operating on up to 5 entity
-	 * groups in a single Transaction.
-	 * 
-	 * @param counterName
-	 * @return
-	 */
 	@Override
-	public Counter decrement(final String counterName)
+	public void incrementFast(final String counterName, final long amount)
+	{
+		final long startNanos = System.nanoTime();
+		try
+		{
+			this.doIncrementFast(counterName, amount);
+		}
+		finally
+		{
+			this.recordLatency(Operation.INCREMENT_FAST, startNanos);
+		}
+	}
+
+	private void doIncrementFast(final String counterName, final long amount)
 	{
 		Preconditions.checkNotNull(counterName);
 		Preconditions.checkArgument(!StringUtils.isBlank(counterName));
+		Preconditions.checkArgument(amount > 0, "Counter increments must be positive numbers!");
 
-		Optional<Counter> optCounter = this.getCounter(counterName);
-		counterPreconditionChecks(counterName, optCounter, "decrement");
-		if (optCounter.get().getApproximateCount() <= 0)
+		// Only the Counter's metadata is needed here, so skip the count
+		// aggregation that #getCounter would perform.
+		Counter counter = this.loadCounterMetadata(counterName);
+		if (counter == null)
 		{
-			logger
-				.warning("Attempted to decrement Counter \"" + counterName + "\" but its count was already zero (0)!");
-			return optCounter.get();
+			counter = this.create(counterName);
 		}
+		counterPreconditionChecks(counterName, Optional.of(counter), "increment");
 
-		// Try a random shard at first -- this will generally work, but if it
-		// fails the code below will kick-in, which is slighlty less efficient
-		// since it scans through all of the shards and will generally bias the
-		// lower-numbered shards.
+		final Long amountIncremented = this.incrementShard(counterName, counter.getNumShards(), amount);
 
-		long returnablePostDecrementCounterAmount = 0L;
-
-		// Find how many shards are in this counter.
-		final int currentNumShards = getShardCount(counterName);
-		// Choose the shard randomly from the available shards.
-		final int randomShardNum = generator.nextInt(currentNumShards);
+		// Don't wait for the cache. If the count isn't cached, then there's
+		// nothing to adjust since the next read will aggregate the shards.
+		counterCache.incrementAsync(counterName, amountIncremented);
+		this.adjustMaterializedDelta(counter, amountIncremented);
+	}
 
+	@Override
+	public Map<String, IncrementResult> incrementAll(final Map<String, Long> amounts)
+	{
+		final long startNanos = System.nanoTime();
 		try
 		{
-			// Try to decrement a random shard. If no exception is thrown, then
-			// this function is complete. Return the amount decremented.
-			returnablePostDecrementCounterAmount = this.doDecrementInTx(counterName, randomShardNum);
+			return this.doIncrementAll(amounts);
 		}
-		catch (NonViableDecrementException nvde)
+		finally
 		{
-			logger.warning("CounterShard " + randomShardNum + " for CounterName " + counterName
-				+ " is a candidate for deletion because it was not able to be decremented!");
+			this.recordLatency(Operation.INCREMENT_ALL, startNanos);
+		}
+	}
 
-			// The random shard above did not have enough in "count" in it to
-			// decrement fully, so cycle through all shards to find one to
-			// decrement.
-			boolean successfulDecrement = false;
-			for (int i = 0; i < currentNumShards; i++)
+	private Map<String, IncrementResult> doIncrementAll(final Map<String, Long> amounts)
+	{
+		Preconditions.checkNotNull(amounts);
+		for (Map.Entry<String, Long> entry : amounts.entrySet())
+		{
+			Preconditions.checkNotNull(entry.getKey());
+			Preconditions.checkArgument(!StringUtils.isBlank(entry.getKey()));
+			Preconditions.checkNotNull(entry.getValue());
+			Preconditions.checkArgument(entry.getValue() > 0, "Counter increments must be positive numbers!");
+		}
+
+		// Load the metadata of every Counter in one batch-get, and reject any
+		// Counter that can't be incremented before anything is created.
+		final Map<String, Counter> dsCounters = this.loadCountersMetadata(amounts.keySet());
+		final Map<String, IncrementResult> failures = Maps.newHashMap();
+		for (Counter counter : dsCounters.values())
+		{
+			try
+			{
+				counterPreconditionChecks(counter.getCounterName(), Optional.of(counter), "increment");
+			}
+			catch (RuntimeException e)
+			{
+				failures.put(counter.getCounterName(), IncrementResult.rejected(e));
+			}
+		}
+
+		final Map<String, Counter> counters = Maps.newLinkedHashMap();
+		for (String counterName : amounts.keySet())
+		{
+			Counter counter = dsCounters.get(counterName);
+			if (failures.containsKey(counterName))
+			{
+				continue;
+			}
+			else if (counter == null)
 			{
 				try
 				{
-					// Shard numbers start at 0
-					returnablePostDecrementCounterAmount = this.doDecrementInTx(counterName, i);
-					successfulDecrement = true;
-					break;
+					counter = this.create(counterName);
 				}
-				catch (NonViableDecrementException nvde2)
+				catch (RuntimeException e)
 				{
-					logger.warning("CounterShard " + i + " for CounterName " + counterName
-						+ " is a candidate for deletion because it was not able to be decremented!");
-					successfulDecrement = false;
+					// Nothing was incremented, so the increment may be retried
+					// (which rejects it if the counter is being deleted).
+					logger.log(Level.WARNING, "Unable to create Counter \"" + counterName + "\"", e);
+					failures.put(counterName, IncrementResult.notCommitted(e));
 					continue;
 				}
 			}
+			counters.put(counterName, counter);
+		}
 
-			if (!successfulDecrement)
+		// ///////////
+		// Increment
+		final Map<String, IncrementResult> incrementResults = this.doIncrementAllInTx(counters, amounts);
+		final Map<String, IncrementResult> results = Maps.newLinkedHashMap();
+		for (String counterName : amounts.keySet())
+		{
+			results.put(counterName, failures.containsKey(counterName) ? failures.get(counterName)
+				: incrementResults.get(counterName));
+		}
+
+		// /////////////////
+		// Adjust the cached counts of the committed increments with a single
+		// cache call
+		// /////////////////
+		final Map<String, Long> committedAmounts = Maps.newHashMap();
+		for (Map.Entry<String, IncrementResult> entry : incrementResults.entrySet())
+		{
+			if (entry.getValue().getStatus() == IncrementResult.Status.COMMITTED)
 			{
-				throw new RuntimeException("No suitable shards were found while decrementing counter \"" + counterName
-					+ "\" with approximate shard-count of " + currentNumShards);
+				committedAmounts.put(entry.getKey(), amounts.get(entry.getKey()));
+			}
+			else
+			{
+				// The count may or may not include the increment.
+				counterCache.delete(entry.getKey());
 			}
 		}
+		if (committedAmounts.isEmpty())
+		{
+			return results;
+		}
 
-		// Rely on memcache to return this counter, especially if this counter
-		// might be under contention.
-		optCounter.get().setApproximateCount(returnablePostDecrementCounterAmount);
-		return optCounter.get();
-	}
+		final Map<String, Long> offsets = Maps.newHashMap(committedAmounts);
+		if (config.getRollupIntervalMillis() > 0)
+		{
+			for (Map.Entry<String, Long> entry : committedAmounts.entrySet())
+			{
+				offsets.put(materializedDeltaName(counters.get(entry.getKey())), entry.getValue());
+			}
+		}
+		Map<String, Long> cachedCounts;
+		try
+		{
+			cachedCounts = counterCache.incrementAll(offsets);
+		}
+		catch (RuntimeException e)
+		{
+			logger.log(Level.SEVERE, "Unable to update cached counters atomically.  Evicting counters named "
+				+ committedAmounts.keySet() + " from the cache!", e);
+			this.recordEvent(Event.MEMCACHE_INCREMENT_FAILURE, committedAmounts.size());
+			counterCache.deleteAll(offsets.keySet());
+			cachedCounts = Collections.emptyMap();
+		}
+
+		for (String counterName : committedAmounts.keySet())
+		{
+			final Counter counter = counters.get(counterName);
+			Long cachedCount = cachedCounts.get(counterName);
+			if (cachedCount == null)
+			{
+				// The count wasn't cached, so aggregate it from the shards
+				// (which also caches it). The increment has already been
+				// committed, so a failure here mustn't be reported as one.
+				try
+				{
+					counter.setApproximateCount(this.getCountFromCacheOrDatastore(counterName));
+				}
+				catch (RuntimeException e)
+				{
+					logger.log(Level.WARNING, "Unable to read the count of Counter \"" + counterName
+						+ "\" after incrementing it", e);
+				}
+			}
+			else
+			{
+				counter.setApproximateCount(cachedCount);
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * Decrement functionality is restricted to 1 in order to provide for
+	 * consistency guarantees. For example, if an operation could decrement 10
+	 * in a single call, and a particular counter had 10 shards each with 1 as
+	 * the count, this would exceed the threshold of Google Appengine
+	 * Transaction limits, which are limited to operating on up to 5 entity
+	 * groups in a single Transaction. Use {@link #decrement(String, long)} to
+	 * decrement by larger amounts, which drains several shards per transaction.<br/>
+	 * <br/>
+	 * If signed shards are enabled (see
+	 * {@link ShardedCounterServiceConfiguration#isSignedShardsEnabled()}), a
+	 * single shard is decremented in one transaction, even if its count becomes
+	 * negative. Otherwise, only a shard with a positive count is decremented,
+	 * which may require trying every shard of the counter.
+	 * 
+	 * @param counterName
+	 * @return
+	 */
+	@Override
+	public Counter decrement(final String counterName)
+	{
+		final long startNanos = System.nanoTime();
+		try
+		{
+			return this.doDecrement(counterName);
+		}
+		finally
+		{
+			this.recordLatency(Operation.DECREMENT, startNanos);
+		}
+	}
+
+	private Counter doDecrement(final String counterName)
+	{
+		Preconditions.checkNotNull(counterName);
+		Preconditions.checkArgument(!StringUtils.isBlank(counterName));
+
+		Optional<Counter> optCounter = this.loadCounterForWrite(counterName);
+		counterPreconditionChecks(counterName, optCounter, "decrement");
+		if (optCounter.get().getApproximateCount() <= 0)
+		{
+			logger
+				.warning("Attempted to decrement Counter \"" + counterName + "\" but its count was already zero (0)!");
+			return optCounter.get();
+		}
+
+		if (config.isSignedShardsEnabled())
+		{
+			// Any shard can absorb the decrement, so this costs exactly one
+			// shard transaction, like an increment.
+			final Long amountIncremented = this.doIncrementInTx(counterName, optCounter.get().getNumShards(), -1L);
+			optCounter.get().setApproximateCount(
+				incrementCachedCountAtomic(optCounter.get(), amountIncremented.longValue(), optCounter.get()
+					.getApproximateCount()));
+			return optCounter.get();
+		}
+
+		// Try a random shard at first -- this will generally work, but if it
+		// fails the code below will kick-in, which is slighlty less efficient
+		// since it scans through all of the shards and will generally bias the
+		// lower-numbered shards.
+
+		long returnablePostDecrementCounterAmount = 0L;
+
+		// Find how many shards are in this counter.
+		final int currentNumShards = optCounter.get().getNumShards();
+		// Choose the shard from the available shards.
+		final int randomShardNum = config.getShardSelector().selectShard(counterName, currentNumShards);
+
+		try
+		{
+			// Try to decrement a random shard. If no exception is thrown, then
+			// this function is complete. Return the amount decremented.
+			returnablePostDecrementCounterAmount = this.doDecrementInTx(optCounter.get(), randomShardNum,
+				optCounter.get().getApproximateCount());
+		}
+		catch (NonViableDecrementException nvde)
+		{
+			this.recordEvent(Event.NON_VIABLE_DECREMENT, 1);
+			logger.warning("CounterShard " + randomShardNum + " for CounterName " + counterName
+				+ " is a candidate for deletion because it was not able to be decremented!");
+
+			// The random shard above did not have enough in "count" in it to
+			// decrement fully, so cycle through all shards to find one to
+			// decrement (including any shards that are being compacted). The
+			// Counter may have come from the metadata cache, so reload it to
+			// be sure that every shard is considered.
+			counterMetadataCache.invalidate(counterName);
+			final Counter dsCounter = Optional.fromNullable(this.loadCounterMetadata(counterName)).or(
+				optCounter.get());
+			boolean successfulDecrement = false;
+			for (int i = 0; i < dsCounter.getNumReadableShards(); i++)
+			{
+				try
+				{
+					// Shard numbers start at 0
+					returnablePostDecrementCounterAmount = this.doDecrementInTx(optCounter.get(), i, optCounter.get()
+						.getApproximateCount());
+					successfulDecrement = true;
+					break;
+				}
+				catch (NonViableDecrementException nvde2)
+				{
+					recordEvent(Event.NON_VIABLE_DECREMENT, 1);
+					logger.warning("CounterShard " + i + " for CounterName " + counterName
+						+ " is a candidate for deletion because it was not able to be decremented!");
+					successfulDecrement = false;
+					continue;
+				}
+			}
+
+			if (!successfulDecrement)
+			{
+				throw new RuntimeException("No suitable shards were found while decrementing counter \"" + counterName
+					+ "\" with approximate shard-count of " + currentNumShards);
+			}
+		}
+
+		// Rely on memcache to return this counter, especially if this counter
+		// might be under contention.
+		optCounter.get().setApproximateCount(returnablePostDecrementCounterAmount);
+		return optCounter.get();
+	}
+
+	@Override
+	public Counter decrement(final String counterName, final long amount)
+	{
+		final long startNanos = System.nanoTime();
+		try
+		{
+			return this.doDecrement(counterName, amount);
+		}
+		finally
+		{
+			this.recordLatency(Operation.DECREMENT, startNanos);
+		}
+	}
+
+	private Counter doDecrement(final String counterName, final long amount)
+	{
+		Preconditions.checkNotNull(counterName);
+		Preconditions.checkArgument(!StringUtils.isBlank(counterName));
+		Preconditions.checkArgument(amount > 0, "Counter decrements must be positive numbers!");
+
+		Optional<Counter> optCounter = this.loadCounterForWrite(counterName);
+		counterPreconditionChecks(counterName, optCounter, "decrement");
+		final long countBeforeWrite = optCounter.get().getApproximateCount();
+		if (countBeforeWrite <= 0)
+		{
+			logger
+				.warning("Attempted to decrement Counter \"" + counterName + "\" but its count was already zero (0)!");
+			return optCounter.get();
+		}
+		if (amount > countBeforeWrite)
+		{
+			logger.warning("Attempted to decrement Counter \"" + counterName + "\" by " + amount
+				+ " but its count was only " + countBeforeWrite + ".  Decrementing by " + countBeforeWrite
+				+ " instead!");
+		}
+		final long amountToDecrement = Math.min(amount, countBeforeWrite);
+
+		long amountDecremented;
+		if (config.isSignedShardsEnabled())
+		{
+			// Any shard can absorb the whole amount in a single transaction.
+			amountDecremented = -this.doIncrementInTx(counterName, optCounter.get().getNumShards(),
+				-amountToDecrement);
+		}
+		else
+		{
+			// The Counter may have come from the metadata cache, so reload it
+			// to be sure that every shard (including any shards that are being
+			// compacted) is considered.
+			counterMetadataCache.invalidate(counterName);
+			final Counter dsCounter = Optional.fromNullable(this.loadCounterMetadata(counterName)).or(
+				optCounter.get());
+			amountDecremented = this.doDrainShards(counterName, dsCounter.getNumReadableShards(), amountToDecrement);
+		}
+
+		if (amountDecremented < amountToDecrement)
+		{
+			logger.warning("Only " + amountDecremented + " of " + amountToDecrement
+				+ " could be decremented from Counter \"" + counterName + "\" because its shards were exhausted!");
+		}
+
+		optCounter.get().setApproximateCount(
+			incrementCachedCountAtomic(optCounter.get(), -amountDecremented, countBeforeWrite));
+		return optCounter.get();
+	}
+
+	/**
+	 * Subtracts up to {@code amount} from the shards of the counter named
+	 * {@code counterName}, never taking a shard's count below zero. The counts
+	 * of all shards are read up front in batch-gets (outside of any
+	 * transaction), and the shards with the largest counts are drained first,
+	 * so that as few shards (and therefore transactions) as possible are
+	 * touched. Each transaction drains at most
+	 * {@link #MAX_ENTITY_GROUPS_PER_TRANSACTION} shards, re-reading their counts
+	 * inside the transaction. If the shards' counts changed concurrently, they
+	 * are read again and draining continues until either {@code amount} has
+	 * been subtracted or every shard is empty.
+	 * 
+	 * @param counterName
+	 * @param numShards The number of shards to drain from.
+	 * @param amount The (positive) amount to subtract.
+	 * @return The amount actually subtracted, which is less than
+	 *         {@code amount} only if the shards were exhausted.
+	 */
+	private long doDrainShards(final String counterName, final int numShards, final long amount)
+	{
+		long amountDrained = 0;
+		while (amountDrained < amount)
+		{
+			// Order the non-empty shards from fullest to emptiest.
+			final List<CounterShard> candidates = Lists.newArrayList();
+			for (CounterShard counterShard : this.loadCounterShards(counterName, numShards).values())
+			{
+				if (counterShard.getCount() > 0)
+				{
+					candidates.add(counterShard);
+				}
+			}
+			if (candidates.isEmpty())
+			{
+				break;
+			}
+			Collections.sort(candidates, new Comparator<CounterShard>()
+			{
+				@Override
+				public int compare(CounterShard shard1, CounterShard shard2)
+				{
+					return Long.valueOf(shard2.getCount()).compareTo(shard1.getCount());
+				}
+			});
+
+			// Choose just enough shards (per the counts read above) to cover
+			// the remaining amount.
+			final List<CounterShard> plannedShards = Lists.newArrayList();
+			long plannedAmount = 0;
+			for (CounterShard counterShard : candidates)
+			{
+				if (plannedAmount >= amount - amountDrained)
+				{
+					break;
+				}
+				plannedShards.add(counterShard);
+				plannedAmount += counterShard.getCount();
+			}
+
+			boolean contended = false;
+			for (List<CounterShard> transactionShards : Lists.partition(plannedShards,
+				MAX_ENTITY_GROUPS_PER_TRANSACTION))
+			{
+				final long amountRemaining = amount - amountDrained;
+				final List<Key<CounterShard>> transactionShardKeys = Lists.newArrayList();
+				long transactionPlannedAmount = 0;
+				for (CounterShard counterShard : transactionShards)
+				{
+					transactionShardKeys.add(counterShard.<CounterShard> getTypedKey());
+					transactionPlannedAmount += counterShard.getCount();
+				}
+
+				final long transactionAmount = this.doDrainShardsInTx(counterName, transactionShardKeys,
+					amountRemaining);
+				amountDrained += transactionAmount;
+				if (transactionAmount < Math.min(amountRemaining, transactionPlannedAmount))
+				{
+					// The shards held less than was read above (i.e., they
+					// were decremented concurrently), so re-read all shards
+					// before planning any further transactions.
+					contended = true;
+					break;
+				}
+			}
+
+			if (!contended)
+			{
+				// Either the amount was covered, or every shard that was
+				// non-empty has been drained.
+				break;
+			}
+		}
+		return amountDrained;
+	}
+
+	/**
+	 * Subtracts up to {@code amount} from the CounterShards identified by
+	 * {@code counterShardKeys} in a single (cross-group) transaction, in the
+	 * order given, never taking a shard's count below zero.
+	 * 
+	 * @param counterName
+	 * @param counterShardKeys At most {@link #MAX_ENTITY_GROUPS_PER_TRANSACTION}
+	 *            keys of CounterShards of the counter.
+	 * @param amount The (positive) amount to subtract.
+	 * @return The amount subtracted, once the TX has committed.
+	 */
+	private long doDrainShardsInTx(final String counterName, final List<Key<CounterShard>> counterShardKeys,
+			final long amount)
+	{
+		final AtomicInteger numAttempts = new AtomicInteger();
+		final Long amountDrained = ObjectifyService.ofy().transact(new Work<Long>()
+		{
+			@Override
+			public Long run()
+			{
+				numAttempts.incrementAndGet();
+				final Map<Key<CounterShard>, CounterShard> counterShards = ObjectifyService.ofy().load()
+					.keys(counterShardKeys);
+				recordEvent(Event.DATASTORE_RPC, 1);
+
+				long drained = 0;
+				final List<CounterShard> drainedCounterShards = Lists.newArrayList();
+				for (Key<CounterShard> counterShardKey : counterShardKeys)
+				{
+					final CounterShard counterShard = counterShards.get(counterShardKey);
+					if (drained >= amount || counterShard == null || counterShard.getCount() <= 0)
+					{
+						continue;
+					}
+					final long shardAmount = Math.min(counterShard.getCount(), amount - drained);
+					counterShard.setCount(counterShard.getCount() - shardAmount);
+					drainedCounterShards.add(counterShard);
+					drained += shardAmount;
+				}
+
+				logger.fine("Draining " + drained + " from " + drainedCounterShards.size()
+					+ " CounterShards of Counter \"" + counterName + "\"");
+				ObjectifyService.ofy().save().entities(drainedCounterShards).now();
+				recordEvent(Event.DATASTORE_RPC, 1);
+				return new Long(drained);
+			}
+		});
+
+		this.onShardTransactionCompleted(counterName, numAttempts.get() - 1);
+		return amountDrained;
+	}
+
+	/**
+	 * Helper method for checking the
+	 * 
+	 * @param counterName
+	 * @param optCounter
+	 */
+	private void counterPreconditionChecks(final String counterName, Optional<Counter> optCounter, String verb)
+	{
+		if (!optCounter.isPresent())
+		{
+			throw new RuntimeException("Can't " + verb + " a counter \"" + counterName
+				+ "\" that doesn't exist.  Please #create this counter first!");
+
+		}
+
+		if (optCounter.get().getCounterStatus() == CounterStatus.DELETING)
+		{
+			throw new RuntimeException("Can't " + verb + " counter \"" + counterName
+				+ "\" because it is currently being deleted!");
+		}
+	}
+
+	/**
+	 * Increment a {@link CounterShard} of the counter named
+	 * {@code counterName}, combining the increment with any concurrent
+	 * increments of the same counter if increment combining is enabled (see
+	 * {@link ShardedCounterServiceConfiguration#isIncrementCombiningEnabled()}).
+	 * 
+	 * @param counterName
+	 * @param numShards The number of shards the counter currently has.
+	 * @param amount
+	 * @return The amount incremented, once the TX has committed.
+	 */
+	private Long incrementShard(final String counterName, final int numShards, final long amount)
+	{
+		if (!config.isIncrementCombiningEnabled())
+		{
+			return this.doIncrementInTx(counterName, numShards, amount);
+		}
+
+		return incrementCombiner.increment(counterName, amount, new Function<Long, Long>()
+		{
+			@Override
+			public Long apply(Long combinedAmount)
+			{
+				return doIncrementInTx(counterName, numShards, combinedAmount);
+			}
+		});
+	}
+
+	/**
+	 * Increment a {@link CounterShard} of the counter named
+	 * {@code counterName}, chosen by the configured {@link ShardSelector}, in a
+	 * single transaction, lazily creating the shard if it doesn't yet exist.
+	 * Before a shard is created, the Counter is re-read as part of the
+	 * transaction, since {@code numShards} may be stale: re-creating a shard
+	 * that a compaction has already folded away would orphan its count.
+	 * Likewise, no shard is created once the Counter has been deleted (or is
+	 * being deleted), since nothing would ever delete that shard.
+	 * 
+	 * @param counterName
+	 * @param numShards The number of shards the counter currently has.
+	 * @param amount The amount to increment by. This is only negative when
+	 *            decrementing a counter with signed shards.
+	 * @return The amount incremented, once the TX has committed.
+	 * @throws CounterUnavailableException If the shard doesn't exist, and the
+	 *             Counter no longer exists or is being deleted.
+	 */
+	private Long doIncrementInTx(final String counterName, final int numShards, final long amount)
+	{
+		final Key<Counter> counterKey = new Counter(counterName, 1).getTypedKey();
+		final List<Integer> attemptedShardNumbers = Lists.newArrayList();
+		final Long amountIncremented = ObjectifyService.ofy().transact(new Work<Long>()
+		{
+			@Override
+			public Long run()
+			{
+				CounterShard counterShard = null;
+
+				// Choose the shard from the available shards. This is done
+				// per-attempt so that a retry (due to contention) is likely to
+				// land on a different shard.
+				int shardNum = config.getShardSelector().selectShard(counterName, numShards);
+				attemptedShardNumbers.add(shardNum);
+
+				Optional<CounterShard> optDSCounterShard = getCounterShardFromDS(counterName, shardNum);
+				if (!optDSCounterShard.isPresent())
+				{
+					// This is a cross-group TX (the Counter plus the shard), so
+					// a concurrent compaction forces a retry.
+					final Counter counter = ObjectifyService.ofy().load().key(counterKey).now();
+					checkCounterAvailableInTx(counterName, counter);
+					if (shardNum >= counter.getNumShards())
+					{
+						shardNum = config.getShardSelector().selectShard(counterName, counter.getNumShards());
+						attemptedShardNumbers.add(shardNum);
+						optDSCounterShard = getCounterShardFromDS(counterName, shardNum);
+					}
+				}
+				if (optDSCounterShard.isPresent())
+				{
+					counterShard = optDSCounterShard.get();
+				}
+				else
+				{
+					// Lazily create a new CounterShard if one doesn't exist in
+					// the Datastore
+					counterShard = new CounterShard(counterName, shardNum);
+					logger.fine("Creating CounterShard " + shardNum + " for \"" + counterName + "\"");
+				}
+
+				counterShard.setCount(counterShard.getCount() + amount);
+				logger.fine("Saving CounterShard" + shardNum + " for Counter \"" + counterName + "\" with count "
+					+ counterShard.getCount());
+				ObjectifyService.ofy().save().entity(counterShard).now();
+				recordEvent(Event.DATASTORE_RPC, 1);
+				return new Long(amount);
+			}
+		});
+
+		this.onShardTransactionCompleted(counterName, attemptedShardNumbers);
+		return amountIncremented;
+	}
+
+	/**
+	 * Increments a shard of each counter in {@code counters} by its amount in
+	 * {@code amounts}. The counters are incremented in groups of up to
+	 * {@link #MAX_ENTITY_GROUPS_PER_TRANSACTION}, each in a single cross-group
+	 * transaction that loads (and then saves) all of the group's shards in one
+	 * batch, and is tried at most {@link #INCREMENT_ALL_MAX_TRIES} times. A
+	 * counter whose chosen shard doesn't exist yet is then incremented in a
+	 * transaction of its own, which may create the shard.<br/>
+	 * <br/>
+	 * A failure only affects the counters of the failed transaction, and is
+	 * reported in their results rather than thrown.
+	 * 
+	 * @param counters The Counters to increment, keyed by counter name.
+	 * @param amounts The amount to increment each counter by, keyed by counter
+	 *            name.
+	 * @return The result of each increment, keyed by counter name, in the
+	 *         iteration order of {@code counters}. A committed result holds
+	 *         the counter from {@code counters}.
+	 */
+	private Map<String, IncrementResult> doIncrementAllInTx(final Map<String, Counter> counters,
+			final Map<String, Long> amounts)
+	{
+		final Map<String, IncrementResult> results = Maps.newLinkedHashMap();
+		final List<String> shardlessCounterNames = Lists.newArrayList();
+		for (List<String> counterNames : Iterables.partition(counters.keySet(), MAX_ENTITY_GROUPS_PER_TRANSACTION))
+		{
+			results.putAll(this.incrementShardsInTx(counterNames, counters, amounts, false, shardlessCounterNames));
+		}
+		for (String counterName : shardlessCounterNames)
+		{
+			results.putAll(this.incrementShardsInTx(Collections.singletonList(counterName), counters, amounts, true,
+				Lists.<String> newArrayList()));
+		}
+
+		// Restore the iteration order of counters.
+		final Map<String, IncrementResult> orderedResults = Maps.newLinkedHashMap();
+		for (String counterName : counters.keySet())
+		{
+			orderedResults.put(counterName, results.get(counterName));
+		}
+		return orderedResults;
+	}
+
+	/**
+	 * Increments a shard of each of the counters named {@code counterNames}
+	 * in a single (cross-group) transaction.
+	 * 
+	 * @param counterNames The names of at most
+	 *            {@link #MAX_ENTITY_GROUPS_PER_TRANSACTION} counters.
+	 * @param counters
+	 * @param amounts
+	 * @param createShards If {@code true}, then a chosen shard that doesn't
+	 *            exist yet is created (as by
+	 *            {@link #doIncrementInTx(String, int, long)}), which reads the
+	 *            counter in the same transaction. This should only be
+	 *            {@code true} for a single counter.
+	 * @param shardlessCounterNames If {@code createShards} is {@code false},
+	 *            then the names of the counters whose chosen shard doesn't
+	 *            exist yet are added to this (and those counters are neither
+	 *            incremented, nor included in the returned results).
+	 * @return The result of each counter's increment, keyed by counter name.
+	 */
+	private Map<String, IncrementResult> incrementShardsInTx(final List<String> counterNames,
+			final Map<String, Counter> counters, final Map<String, Long> amounts, final boolean createShards,
+			final List<String> shardlessCounterNames)
+	{
+		final Map<String, List<Integer>> attemptedShardNumbers = Maps.newHashMap();
+		for (String counterName : counterNames)
+		{
+			attemptedShardNumbers.put(counterName, Lists.<Integer> newArrayList());
+		}
+		final List<String> attemptShardlessCounterNames = Lists.newArrayList();
+		// Set once the last attempt's changes have been made, so that a
+		// failure after that point is known to have happened while committing.
+		final AtomicBoolean committing = new AtomicBoolean();
+
+		final Map<String, IncrementResult> results = Maps.newHashMap();
+		try
+		{
+			ObjectifyService.ofy().transactNew(INCREMENT_ALL_MAX_TRIES, new VoidWork()
+			{
+				@Override
+				public void vrun()
+				{
+					committing.set(false);
+					attemptShardlessCounterNames.clear();
+
+					// Choose the shards. This is done per-attempt so that a
+					// retry (due to contention) is likely to land on different
+					// shards.
+					final Map<String, Key<CounterShard>> counterShardKeys = Maps.newLinkedHashMap();
+					for (String counterName : counterNames)
+					{
+						int shardNum = config.getShardSelector().selectShard(counterName,
+							counters.get(counterName).getNumShards());
+						attemptedShardNumbers.get(counterName).add(shardNum);
+						counterShardKeys.put(counterName,
+							new CounterShard(counterName, shardNum).<CounterShard> getTypedKey());
+					}
+					final Map<Key<CounterShard>, CounterShard> dsCounterShards = ObjectifyService.ofy().load()
+						.keys(counterShardKeys.values());
+
+					final List<CounterShard> counterShards = Lists.newArrayList();
+					for (String counterName : counterNames)
+					{
+						CounterShard counterShard = dsCounterShards.get(counterShardKeys.get(counterName));
+						if (counterShard == null && !createShards)
+						{
+							attemptShardlessCounterNames.add(counterName);
+							continue;
+						}
+						else if (counterShard == null)
+						{
+							counterShard = loadOrCreateCounterShardInTx(counterName, counterShardKeys.get(counterName),
+								attemptedShardNumbers.get(counterName));
+						}
+						counterShard.setCount(counterShard.getCount() + amounts.get(counterName));
+						counterShards.add(counterShard);
+					}
+
+					if (!counterShards.isEmpty())
+					{
+						ObjectifyService.ofy().save().entities(counterShards).now();
+					}
+					recordEvent(Event.DATASTORE_RPC, 2);
+					committing.set(true);
+				}
+			});
+		}
+		catch (RuntimeException e)
+		{
+			// Objectify retries a transaction whose commit fails due to
+			// contention, so the commit of the last try can't have succeeded.
+			// Any other failure of a commit leaves its outcome unknown.
+			final boolean maybeCommitted = committing.get() && !(e instanceof ConcurrentModificationException);
+			logger.log(Level.WARNING, "Unable to increment Counters " + counterNames, e);
+			for (String counterName : counterNames)
+			{
+				if (e instanceof CounterUnavailableException)
+				{
+					results.put(counterName, IncrementResult.rejected(e));
+				}
+				else
+				{
+					results.put(counterName, maybeCommitted ? IncrementResult.unknown(e) : IncrementResult
+						.notCommitted(e));
+				}
+			}
+			return results;
+		}
+
+		shardlessCounterNames.addAll(attemptShardlessCounterNames);
+		for (String counterName : counterNames)
+		{
+			if (!attemptShardlessCounterNames.contains(counterName))
+			{
+				this.onShardTransactionCompleted(counterName, attemptedShardNumbers.get(counterName));
+				results.put(counterName, IncrementResult.committed(counters.get(counterName)));
+			}
+		}
+		return results;
+	}
+
+	/**
+	 * Loads the shard identified by {@code counterShardKey}, which didn't
+	 * exist when it was chosen, in the current transaction, or creates it if
+	 * it still doesn't exist. Like
+	 * {@link #doIncrementInTx(String, int, long)}, the Counter is re-read
+	 * first, and another shard is chosen if the Counter has since been
+	 * compacted to fewer shards.
+	 * 
+	 * @param counterName
+	 * @param counterShardKey
+	 * @param attemptedShardNumbers The shard numbers chosen by this
+	 *            transaction, to which any newly chosen shard number is added.
+	 * @return
+	 * @throws CounterUnavailableException If the Counter no longer exists or
+	 *             is being deleted.
+	 */
+	private CounterShard loadOrCreateCounterShardInTx(final String counterName,
+			final Key<CounterShard> counterShardKey, final List<Integer> attemptedShardNumbers)
+	{
+		int shardNum = attemptedShardNumbers.get(attemptedShardNumbers.size() - 1);
+		final Counter counter = ObjectifyService.ofy().load().key(new Counter(counterName, 1).<Counter> getTypedKey())
+			.now();
+		checkCounterAvailableInTx(counterName, counter);
+		if (shardNum >= counter.getNumShards())
+		{
+			shardNum = config.getShardSelector().selectShard(counterName, counter.getNumShards());
+			attemptedShardNumbers.add(shardNum);
+			final Optional<CounterShard> optCounterShard = getCounterShardFromDS(counterName, shardNum);
+			if (optCounterShard.isPresent())
+			{
+				return optCounterShard.get();
+			}
+		}
+		logger.fine("Creating CounterShard " + shardNum + " for \"" + counterName + "\"");
+		return new CounterShard(counterName, shardNum);
+	}
+
+	/**
+	 * Aborts the current transaction unless {@code counter}, as re-read by
+	 * the transaction before creating one of its shards, is still available.
+	 * A stale copy of the Counter (e.g., from the counter metadata cache) may
+	 * still show it as available after it was deleted, so that copy is evicted
+	 * too.
+	 * 
+	 * @param counterName
+	 * @param counter The Counter, or {@code null} if it doesn't exist.
+	 * @throws CounterUnavailableException If the Counter doesn't exist, or
+	 *             isn't {@link CounterStatus#AVAILABLE}.
+	 */
+	private void checkCounterAvailableInTx(final String counterName, final Counter counter)
+	{
+		if (counter == null || counter.getCounterStatus() != CounterStatus.AVAILABLE)
+		{
+			counterMetadataCache.invalidate(counterName);
+			throw new CounterUnavailableException("Can't create a CounterShard of counter \"" + counterName
+				+ "\" because it " + (counter == null ? "no longer exists" : "is currently being deleted") + "!");
+		}
+	}
+
+	/**
+	 * Reports each attempt of a committed shard transaction for the counter
+	 * named {@code counterName} to the configured {@link ShardSelector}. Every
+	 * attempt but the last was aborted due to contention.
+	 * 
+	 * @param counterName
+	 * @param attemptedShardNumbers The shard number of each attempt of the
+	 *            transaction, in order. The last attempt committed.
+	 */
+	private void onShardTransactionCompleted(final String counterName, final List<Integer> attemptedShardNumbers)
+	{
+		final ShardSelector shardSelector = config.getShardSelector();
+		final int numRetries = attemptedShardNumbers.size() - 1;
+		for (int i = 0; i < attemptedShardNumbers.size(); i++)
+		{
+			shardSelector.recordOutcome(counterName, attemptedShardNumbers.get(i), i < numRetries);
+		}
+
+		this.onShardTransactionCompleted(counterName, numRetries);
+	}
+
+	/**
+	 * Records the outcome of a committed shard transaction for the counter
+	 * named {@code counterName} and, if auto-resharding is enabled and the
+	 * counter has been running hot, grows the counter's number of shards.
+	 * 
+	 * @param counterName
+	 * @param numRetries The number of times the transaction was retried due to
+	 *            contention before it committed.
+	 */
+	void onShardTransactionCompleted(final String counterName, final int numRetries)
+	{
+		// Every attempt issued a commit.
+		this.recordEvent(Event.DATASTORE_RPC, numRetries + 1);
+		if (numRetries > 0)
+		{
+			this.recordEvent(Event.TRANSACTION_RETRY, numRetries);
+			logger.fine("Shard transaction for Counter \"" + counterName + "\" was retried " + numRetries + " times");
+		}
+
+		if (config.isAutoReshardingEnabled() && contentionTracker.recordTransaction(counterName, numRetries))
+		{
+			this.increaseNumShards(counterName);
+		}
+	}
+
+	/**
+	 * Doubles the number of shards of the counter named {@code counterName},
+	 * bounded by {@link ShardedCounterServiceConfiguration#getMaxNumShards()}.
+	 * Increasing the number of shards is always safe, because the new shards
+	 * are lazily created by the first increment that selects them.
+	 * 
+	 * @param counterName
+	 */
+	private void increaseNumShards(final String counterName)
+	{
+		final Key<Counter> counterKey = new Counter(counterName, 1).getTypedKey();
+		ObjectifyService.ofy().transact(new VoidWork()
+		{
+			@Override
+			public void vrun()
+			{
+				Counter counter = ObjectifyService.ofy().load().key(counterKey).now();
+				if (counter == null || counter.getCounterStatus() != CounterStatus.AVAILABLE
+					|| counter.getNumShards() >= config.getMaxNumShards())
+				{
+					return;
+				}
+
+				final int newNumShards = Math.min(counter.getNumShards() * 2, config.getMaxNumShards());
+				logger.info("Counter \"" + counterName + "\" is under contention.  Increasing its shards from "
+					+ counter.getNumShards() + " to " + newNumShards);
+				counter.setNumShards(newNumShards);
+				ObjectifyService.ofy().save().entity(counter).now();
+			}
+		});
+		counterMetadataCache.invalidate(counterName);
+	}
+
+	/**
+	 * Attempt to load and decrement a Datastore {@link CounterShard} in a
+	 * single transaction.
+	 * 
+	 * @param counter
+	 * @param counterShardNumber
+	 * @param countBeforeWrite The count of the counter as observed before this
+	 *            decrement, used to seed memcache if the count isn't cached.
+	 * @return The new counter total from memcache after decrementing
+	 * @throws NonViableDecrementException If the post-decrement counter update
+	 *             was unable to be completed because there was either a
+	 *             non-existent shard or the shard didn't have enough count.
+	 *             Note that this exception is not thrown if a
+	 *             {@link ConcurrentModificationException} is encountered by
+	 *             Objectify. In that case, the operation will simply be retried
+	 *             until successful.
+	 */
+	private long doDecrementInTx(final Counter counter, final int counterShardNumber, final long countBeforeWrite)
+			throws NonViableDecrementException
+	{
+		final String counterName = counter.getCounterName();
+		final Key<CounterShard> counterShardKey = new CounterShard(counterName, counterShardNumber).getTypedKey();
+		final List<Integer> attemptedShardNumbers = Lists.newArrayList();
+		final Long amountDecremented = ObjectifyService.ofy().transact(new Work<Long>()
+		{
+			@Override
+			public Long run()
+			{
+				attemptedShardNumbers.add(counterShardNumber);
+				Optional<CounterShard> optDSCounterShard = getCounterShardFromDS(counterShardKey);
+				if (optDSCounterShard.isPresent())
+				{
+					if (optDSCounterShard.get().getCount() <= 0)
+					{
+						throw new NonViableDecrementException(
+							"Random Shard \""
+								+ counterShardKey.getId()
+								+ " \" existed in the Datastore  but its count was already zero.  Aborting decrement for this shard, possibly trying another!");
+					}
+				}
+				else
+				{
+					throw new NonViableDecrementException(
+						"Random Shard \""
+							+ counterShardKey.getId()
+							+ "\" did not exist in the Datastore.  Aborting decrement for this shard, possibly trying another!");
+				}
+
+				CounterShard counterShard = optDSCounterShard.get();
+				counterShard.setCount(counterShard.getCount() - 1);
+				// Use of now() is required to make the memcache
+				// sync code below function properly.
+				logger.fine("Saving CounterShard for Decrement with count " + counterShard.getCount());
+				ObjectifyService.ofy().save().entity(counterShard).now();
+				recordEvent(Event.DATASTORE_RPC, 1);
+
+				return new Long(1L);
+			}
+		});
+		this.onShardTransactionCompleted(counterName, attemptedShardNumbers);
+
+		// We use the "amountDecremented" to pause this thread until the TX
+		// Future returns. This is because we don't want to decrement
+		// memcache (below) until the TX has completed. However, the
+		// concurrency exception (if any) in the Runnable above won't get
+		// thrown until the TX commit is tried, and by that point there's no
+		// mechanism to rollback the memcache counter. Using this mechanism,
+		// we can guarantee that the thread won't make it here until the TX
+		// above commits properly without throwing an Exception
+
+		// Decrement this counter in memcache atomically
+		long newAmount = incrementCachedCountAtomic(counter, (amountDecremented * -1), countBeforeWrite);
+
+		// Return the memcache amount because the caller already knows how much
+		// the decrement amount was supposed to be
+		return newAmount;
+	}
+
+	/**
+	 * Removes a {@link Counter} from the Datastore and attempts to remove it's
+	 * corresponding {@link CounterShard} entities via a Task Queue. This
+	 * operation may take some time to complete since it is task queue based, so
+	 * constructing or incrementing a Counter while it is being deleted is not
+	 * allowed.
+	 */
+	@Override
+	public void delete(final String counterName)
+	{
+		final long startNanos = System.nanoTime();
+		try
+		{
+			this.doDelete(counterName);
+		}
+		finally
+		{
+			this.recordLatency(Operation.DELETE, startNanos);
+		}
+	}
+
+	private void doDelete(final String counterName)
+	{
+		Preconditions.checkNotNull(counterName);
+		Preconditions.checkArgument(!StringUtils.isBlank(counterName));
+
+		// Can't query inside of a TX, so get the counter first
+		final Optional<Counter> optCounter = getCounter(counterName);
+
+		if (optCounter.isPresent())
+		{
+			final Key<Counter> counterKey = optCounter.get().getTypedKey();
+			contentionTracker.reset(counterName);
+
+			// Delete the main counter...
+			final Integer numShardsToDeleteInline = ObjectifyService.ofy().transact(new Work<Integer>()
+			{
+				@Override
+				public Integer run()
+				{
+					// The counter returned by #getCounter may have come from
+					// the metadata cache, so don't save it over the stored one.
+					Counter counter = ObjectifyService.ofy().load().key(counterKey).now();
+					if (counter == null)
+					{
+						return null;
+					}
+
+					// The counter is deleted either below or by the TaskQueue
+					// once all shards are deleted.
+					counter.setCounterStatus(CounterStatus.DELETING);
+					ObjectifyService.ofy().save().entity(counter).now();
+
+					if (counter.getNumReadableShards() <= config.getInlineDeletionMaxShards())
+					{
+						return counter.getNumReadableShards();
+					}
+
+					// Kick off a Task to delete the Shards for this Counter and
+					// the Counter itself, but only if the TX succeeds
+					enqueueCounterDeletionTask(counterName);
+					return null;
+				}
+			});
+			this.evictCachedCounter(optCounter.get());
+
+			if (numShardsToDeleteInline != null)
+			{
+				this.deleteInline(optCounter.get(), numShardsToDeleteInline);
+			}
+		}
+	}
+
+	/**
+	 * Deletes a small {@link Counter}, which has already been marked as
+	 * {@link CounterStatus#DELETING}, and all of its shards in a single batch.
+	 * If this fails, then the deletion is handed off to the Task Queue instead.
+	 * 
+	 * @param counter
+	 * @param numShards The number of shards that may hold a portion of the
+	 *            counter's count.
+	 */
+	private void deleteInline(final Counter counter, final int numShards)
+	{
+		final String counterName = counter.getCounterName();
+		final List<Key<?>> keys = Lists.newArrayList();
+		for (int i = 0; i < numShards; i++)
+		{
+			keys.add(new CounterShard(counterName, i).getTypedKey());
+		}
+		keys.add(counter.getTypedKey());
+
+		try
+		{
+			// No TX needed, since the counter can no longer be incremented.
+			ObjectifyService.ofy().transactionless().delete().keys(keys).now();
+			this.recordEvent(Event.DATASTORE_RPC, 1);
+			// The counter may be re-created right away, so nothing cached for
+			// the deleted counter may outlive it.
+			this.evictCachedCounter(counter);
+		}
+		catch (RuntimeException e)
+		{
+			logger.log(Level.WARNING, "Unable to delete Counter \"" + counterName
+				+ "\" inline; deleting it via the Task Queue instead", e);
+			enqueueCounterDeletionTask(counterName);
+		}
+	}
+
+	/**
+	 * Deletes the shards of a {@link Counter} in batches, up to
+	 * {@link #DELETE_SHARD_BATCHES_IN_FLIGHT} of which are deleted
+	 * concurrently, and checkpoints its progress on the {@link Counter} once
+	 * all of those have completed. If the shards can't all be deleted within
+	 * the configured time budget, then a continuation task is enqueued to
+	 * resume from the checkpoint. Once every shard is deleted, the
+	 * {@link Counter} itself is deleted.
+	 */
+	@Override
+	public void onTaskQueueCounterDeletion(final String counterName)
+	{
+		final long deadlineNanos = System.nanoTime()
+			+ TimeUnit.MILLISECONDS.toNanos(config.getDeleteTaskTimeBudgetMillis());
+
+		final Key<Counter> counterKey = new Counter(counterName, 1).getTypedKey();
+		// No TX needed - get is Strongly consistent by default
+		Counter counter = ObjectifyService.ofy().transactionless().load().key(counterKey).now();
+		if (counter == null)
+		{
+			logger.severe("While attempting to delete Counter named \"" + counterName
+				+ "\", no Counter was found in the Datastore!");
+			return;
+		}
+		else if (counter.getCounterStatus() != CounterStatus.DELETING)
+		{
+			// E.g., another type of task was handed to this callback.
+			logger.severe("Refusing to delete Counter named \"" + counterName + "\", which is "
+				+ counter.getCounterStatus() + " rather than " + CounterStatus.DELETING);
+			return;
+		}
+
+		final int numShards = counter.getNumReadableShards();
+		while (counter.getNumDeletedShards() < numShards)
+		{
+			// Start several batches, and only then wait for them all.
+			int toShardNumber = counter.getNumDeletedShards();
+			final List<Result<Void>> results = Lists.newArrayList();
+			while (toShardNumber < numShards && results.size() < DELETE_SHARD_BATCHES_IN_FLIGHT)
+			{
+				final int fromShardNumber = toShardNumber;
+				toShardNumber = Math.min(numShards, fromShardNumber + config.getDeleteShardBatchSize());
+				final List<Key<CounterShard>> counterShardKeys = Lists.newArrayList();
+				for (int i = fromShardNumber; i < toShardNumber; i++)
+				{
+					counterShardKeys.add(new CounterShard(counterName, i).<CounterShard> getTypedKey());
+				}
+
+				// No TX needed. Deleting a shard that is already gone (e.g.,
+				// if a previous task failed after this batch but before its
+				// checkpoint) is harmless.
+				results.add(ObjectifyService.ofy().transactionless().delete().keys(counterShardKeys));
+			}
+			this.recordEvent(Event.DATASTORE_RPC, results.size());
+			for (Result<Void> result : results)
+			{
+				result.now();
+			}
+
+			// Checkpoint, so that a retried or continuing task resumes here.
+			counter.setNumDeletedShards(toShardNumber);
+			ObjectifyService.ofy().transactionless().save().entity(counter).now();
+
+			// Every task deletes at least one round of batches, so that
+			// deletion always makes progress, even if the time budget is very
+			// small.
+			if (toShardNumber < numShards && System.nanoTime() - deadlineNanos > 0)
+			{
+				// Out of time, so resume from the checkpoint in a new task.
+				logger.info("Deleted " + toShardNumber + " of " + numShards + " shards for Counter \""
+					+ counterName + "\"; continuing in a new task");
+				enqueueCounterDeletionTask(counterName);
+				return;
+			}
+		}
+
+		// Delete the Counter itself...No TX needed.
+		ObjectifyService.ofy().transactionless().delete().key(counter.getTypedKey()).now();
+		this.evictCachedCounter(counter);
+	}
+
+	/**
+	 * Evicts everything cached about {@code counter}: its metadata, its count
+	 * (from every tier of the {@link CounterCache}), and the deltas of its
+	 * materialized count since its last two rollups. Only this instance's in-memory
+	 * entries are evicted, so other instances may serve their own (i.e., the
+	 * counter's metadata, and the L1 of a {@link TieredCounterCache}) until
+	 * those expire.
+	 * 
+	 * @param counter
+	 */
+	private void evictCachedCounter(final Counter counter)
+	{
+		counterMetadataCache.invalidate(counter.getCounterName());
+		counterCache.deleteAll(Lists.newArrayList(counter.getCounterName(), materializedDeltaName(counter),
+			previousMaterializedDeltaName(counter)));
+	}
+
+	/**
+	 * Enqueues a task that deletes the shards of a {@link Counter}, and then
+	 * the {@link Counter} itself. If a transaction is active, then the task is
+	 * only enqueued if the transaction commits.
+	 * 
+	 * @param counterName
+	 */
+	private void enqueueCounterDeletionTask(final String counterName)
+	{
+		// Enqueue this task to the path specified in the configuration (if
+		// this is null, then the default path will be used).
+		TaskOptions taskOptions = TaskOptions.Builder.withParam(COUNTER_NAME, counterName).param(TASK_TYPE,
+			TaskType.DELETE.name());
+		if (config.getRelativeUrlPathForDeleteTaskQueue() != null)
+		{
+			taskOptions = taskOptions.url(config.getRelativeUrlPathForDeleteTaskQueue());
+		}
+		getQueue(config.getDeleteCounterShardQueueName()).add(taskOptions);
+	}
+
+	/**
+	 * Lowers the number of shards of a {@link Counter} right away, and then
+	 * folds the counts of the removed shards into the remaining shards via a
+	 * Task Queue. Until that task completes, the removed shards continue to be
+	 * included whenever the counter's count is aggregated.
+	 */
+	@Override
+	public void compact(final String counterName, final int numShards)
+	{
+		final long startNanos = System.nanoTime();
+		try
+		{
+			this.doCompact(counterName, numShards);
+		}
+		finally
+		{
+			this.recordLatency(Operation.COMPACT, startNanos);
+		}
+	}
+
+	private void doCompact(final String counterName, final int numShards)
+	{
+		Preconditions.checkNotNull(counterName);
+		Preconditions.checkArgument(!StringUtils.isBlank(counterName));
+		Preconditions.checkArgument(numShards > 0, "Number of Shards for a Counter must be greater than 0!");
+
+		final Key<Counter> counterKey = new Counter(counterName, 1).getTypedKey();
+		ObjectifyService.ofy().transact(new VoidWork()
+		{
+			@Override
+			public void vrun()
+			{
+				Counter counter = ObjectifyService.ofy().load().key(counterKey).now();
+				counterPreconditionChecks(counterName, Optional.fromNullable(counter), "compact");
+				if (counter.getNumShards() <= numShards)
+				{
+					return;
+				}
+
+				logger.info("Compacting Counter \"" + counterName + "\" from " + counter.getNumShards() + " to "
+					+ numShards + " shards");
+
+				// Remember the highest shard that may still hold a count (a
+				// previous compaction may not have completed yet).
+				counter.setPreviousNumShards(counter.getNumReadableShards());
+				counter.setNumShards(numShards);
+				ObjectifyService.ofy().save().entity(counter).now();
+
+				// Transactionally enqueue the task that folds the removed
+				// shards, but only if the TX succeeds.
+				TaskOptions taskOptions = TaskOptions.Builder.withParam(COUNTER_NAME, counterName)
+					.param(TASK_TYPE, TaskType.COMPACT.name()).countdownMillis(config.getCompactionDelayMillis());
+				if (config.getRelativeUrlPathForCompactTaskQueue() != null)
+				{
+					taskOptions = taskOptions.url(config.getRelativeUrlPathForCompactTaskQueue());
+				}
+				getQueue(config.getCompactCounterShardQueueName()).add(taskOptions);
+			}
+		});
+		counterMetadataCache.invalidate(counterName);
+	}
+
+	/**
+	 * Re-aggregates the count of a {@link Counter} from its shards, and caches
+	 * it, and then releases the refresh lease that was acquired when this task
+	 * was enqueued.
+	 */
+	@Override
+	public void onTaskQueueCounterRefresh(final String counterName, final String leaseOwner)
+	{
+		try
+		{
+			this.sumAndCacheCount(counterName);
+		}
+		finally
+		{
+			if (leaseOwner != null)
+			{
+				counterCache.releaseRecomputeLease(countRefreshLeaseName(counterName), leaseOwner);
+			}
+		}
+	}
+
+	/**
+	 * Sums the shards of a {@link Counter} into its materialized count, and then
+	 * releases the lease that was acquired when this task was enqueued. The
+	 * changes made since a rollup are tracked under that rollup's generation,
+	 * so rather than resetting them, this seeds the next generation's delta,
+	 * and then saves the sum along with that generation in one transaction.
+	 * Increments made before that transaction commits are tracked in the
+	 * previous generation's delta, so they are never counted twice. Since some
+	 * of them may reach a shard after it was summed, the previous generation's
+	 * delta is read before summing, and whatever it gains after that is added
+	 * to the materialized count on read (see
+	 * {@link Counter#getPreviousMaterializedDelta()}). The delta of the
+	 * generation before that is no longer read, so it is dropped.
+	 */
+	@Override
+	public void onTaskQueueCounterRollup(final String counterName, final String leaseOwner)
+	{
+		try
+		{
+			final Key<Counter> counterKey = new Counter(counterName, 1).getTypedKey();
+			// No TX needed - get is Strongly consistent by default
+			final Counter counter = ObjectifyService.ofy().transactionless().load().key(counterKey).now();
+			if (counter == null || counter.getCounterStatus() == CounterStatus.DELETING)
+			{
+				logger.warning("While attempting to roll up Counter named \"" + counterName
+					+ "\", no available Counter was found in the Datastore!");
+				return;
+			}
+
+			// Nothing tracks the next generation until it's saved below, so
+			// seeding it can't discard any increments.
+			final long generation = counter.getMaterializedGeneration();
+			counterCache.put(materializedDeltaName(counterName, generation + 1), MATERIALIZED_DELTA_BASELINE,
+				CounterCache.NO_EXPIRATION);
+			// Read before summing, so that an increment that reaches a shard
+			// after it was summed shows up in what this delta gains after.
+			final Long previousDelta = counterCache.get(materializedDeltaName(counterName, generation));
+			final long sum = this.sumCounterShards(counterName, counter.getNumReadableShards());
+
+			final boolean rolledUp = ObjectifyService.ofy().transact(new Work<Boolean>()
+			{
+				@Override
+				public Boolean run()
+				{
+					Counter counter = ObjectifyService.ofy().load().key(counterKey).now();
+					if (counter == null || counter.getMaterializedGeneration() != generation)
+					{
+						// Deleted, or rolled up by another task in the meantime.
+						return false;
+					}
+					counter.setMaterializedCount(sum);
+					counter.setMaterializedDateTime(new DateTime(DateTimeZone.UTC));
+					counter.setMaterializedGeneration(generation + 1);
+					counter.setPreviousMaterializedDelta(previousDelta);
+					ObjectifyService.ofy().save().entity(counter).now();
+					return true;
+				}
+			});
+			counterMetadataCache.invalidate(counterName);
+			if (rolledUp && generation > 0)
+			{
+				counterCache.delete(materializedDeltaName(counterName, generation - 1));
+			}
+		}
+		finally
+		{
+			if (leaseOwner != null)
+			{
+				counterCache.releaseRecomputeLease(rollupLeaseName(counterName), leaseOwner);
+			}
+		}
+	}
+
+	@Override
+	public void onTaskQueueCounterCompaction(final String counterName)
+	{
+		final Key<Counter> counterKey = new Counter(counterName, 1).getTypedKey();
+		// No TX needed - get is Strongly consistent by default
+		final Counter counter = ObjectifyService.ofy().transactionless().load().key(counterKey).now();
+		if (counter == null || counter.getCounterStatus() == CounterStatus.DELETING)
+		{
+			logger.warning("While attempting to compact Counter named \"" + counterName
+				+ "\", no available Counter was found in the Datastore!");
+			return;
+		}
+
+		final int numShards = counter.getNumShards();
+		for (int i = numShards; i < counter.getPreviousNumShards(); i++)
+		{
+			final int removedShardNumber = i;
+			final int remainingShardNumber = i % numShards;
+
+			// This is a cross-group TX (the removed shard plus the remaining
+			// shard), so the counter's total is preserved at every step, even
+			// if this task is run more than once.
+			ObjectifyService.ofy().transact(new VoidWork()
+			{
+				@Override
+				public void vrun()
+				{
+					Optional<CounterShard> optRemovedCounterShard = getCounterShardFromDS(counterName,
+						removedShardNumber);
+					if (!optRemovedCounterShard.isPresent())
+					{
+						return;
+					}
+
+					if (optRemovedCounterShard.get().getCount() != 0)
+					{
+						CounterShard remainingCounterShard = getCounterShardFromDS(counterName, remainingShardNumber)
+							.orNull();
+						if (remainingCounterShard == null)
+						{
+							remainingCounterShard = new CounterShard(counterName, remainingShardNumber);
+						}
+						remainingCounterShard.setCount(remainingCounterShard.getCount()
+							+ optRemovedCounterShard.get().getCount());
+						ObjectifyService.ofy().save().entity(remainingCounterShard).now();
+					}
+
+					ObjectifyService.ofy().delete().entity(optRemovedCounterShard.get()).now();
+				}
+			});
+		}
+
+		// All removed shards have been folded, so they no longer need to be
+		// read.
+		ObjectifyService.ofy().transact(new VoidWork()
+		{
+			@Override
+			public void vrun()
+			{
+				Counter dsCounter = ObjectifyService.ofy().load().key(counterKey).now();
+				if (dsCounter != null && dsCounter.getPreviousNumShards() == counter.getPreviousNumShards())
+				{
+					dsCounter.setPreviousNumShards(0);
+					ObjectifyService.ofy().save().entity(dsCounter).now();
+				}
+			}
+		});
+		counterMetadataCache.invalidate(counterName);
+		logger.info("Finished compacting Counter \"" + counterName + "\" to " + numShards + " shards");
+	}
+
+	/**
+	 * Moves a {@link Counter} (and all of its {@link CounterShard}s) that was
+	 * stored by an earlier version of this library underneath
+	 * {@link Counter#legacyParentKey()} into its own entity group(s). This
+	 * operation may be performed while the counter is being incremented: the
+	 * new Counter is created first (so that increments land in the new
+	 * shards), and then each legacy shard's count is folded into its new
+	 * shard in a cross-group transaction that also deletes the legacy shard.
+	 * The legacy Counter is removed last. Until then, the new Counter is
+	 * flagged (see {@link Counter#isMigratingFromLegacyParent()}), so that a
+	 * migration that is interrupted part-way through is resumed the next time
+	 * the counter is accessed.<br/>
+	 * <br/>
+	 * Note that the approximate count of a counter may under-report while its
+	 * migration is in progress, so the cached count is evicted once the
+	 * migration completes.
+	 * 
+	 * @param counterName
+	 * @return The migrated Counter, or {@link Optional#absent()} if no legacy
+	 *         Counter with the specified name exists.
+	 */
+	public Optional<Counter> migrateLegacyCounter(final String counterName)
+	{
+		Preconditions.checkNotNull(counterName);
+		Preconditions.checkArgument(!StringUtils.isBlank(counterName));
+
+		// No TX needed - get is Strongly consistent by default
+		final Counter legacyCounter = ObjectifyService.ofy().transactionless().load()
+			.key(legacyCounterKey(counterName)).now();
+		if (legacyCounter == null)
+		{
+			return Optional.absent();
+		}
+		return Optional.of(this.migrateLegacyCounter(counterName, legacyCounter));
+	}
+
+	/**
+	 * Moves the {@code legacyCounter} named {@code counterName} (and all of
+	 * its {@link CounterShard}s) into its own entity group(s), as described
+	 * by {@link #migrateLegacyCounter(String)}.
+	 * 
+	 * @param counterName
+	 * @param legacyCounter The Counter stored underneath
+	 *            {@link Counter#legacyParentKey()}.
+	 * @return The migrated Counter.
+	 */
+	private Counter migrateLegacyCounter(final String counterName, final Counter legacyCounter)
+	{
+		logger.info("Migrating legacy Counter \"" + counterName + "\" with " + legacyCounter.getNumShards()
+			+ " shards into its own entity group");
+
+		final Key<Counter> counterKey = new Counter(counterName, 1).getTypedKey();
+		final Counter counter = ObjectifyService.ofy().transact(new Work<Counter>()
+		{
+			@Override
+			public Counter run()
+			{
+				Counter dsCounter = ObjectifyService.ofy().load().key(counterKey).now();
+				if (dsCounter == null)
+				{
+					dsCounter = new Counter(counterName, legacyCounter.getNumShards());
+					dsCounter.setCounterStatus(legacyCounter.getCounterStatus());
+					dsCounter.setCreationDateTime(legacyCounter.getCreationDateTime());
+				}
+				// Make sure every migrated shard is visible to readers.
+				dsCounter.setNumShards(Math.max(dsCounter.getNumShards(), legacyCounter.getNumShards()));
+				dsCounter.setMigratingFromLegacyParent(true);
+				ObjectifyService.ofy().save().entity(dsCounter).now();
+				return dsCounter;
+			}
+		});
+
+		for (int i = 0; i < legacyCounter.getNumShards(); i++)
+		{
+			final int shardNumber = i;
+			final CounterShard tempLegacyCounterShard = new CounterShard(counterName, shardNumber);
+			tempLegacyCounterShard.setParent(Counter.legacyParentKey());
+			final Key<CounterShard> legacyCounterShardKey = tempLegacyCounterShard.getTypedKey();
+
+			// This is a cross-group TX (the legacy entity group plus the new
+			// shard's entity group), so the counter total is preserved even if
+			// two threads migrate the same counter at once.
+			ObjectifyService.ofy().transact(new VoidWork()
+			{
+				@Override
+				public void vrun()
+				{
+					Optional<CounterShard> optLegacyCounterShard = getCounterShardFromDS(legacyCounterShardKey);
+					if (!optLegacyCounterShard.isPresent())
+					{
+						return;
+					}
+
+					CounterShard counterShard = getCounterShardFromDS(counterName, shardNumber).orNull();
+					if (counterShard == null)
+					{
+						counterShard = new CounterShard(counterName, shardNumber);
+					}
+					counterShard.setCount(counterShard.getCount() + optLegacyCounterShard.get().getCount());
+
+					ObjectifyService.ofy().save().entity(counterShard).now();
+					ObjectifyService.ofy().delete().key(legacyCounterShardKey).now();
+				}
+			});
+		}
+
+		// Delete the legacy Counter itself...No TX needed.
+		ObjectifyService.ofy().transactionless().delete().key(legacyCounterKey(counterName)).now();
+
+		return this.finishLegacyMigration(counterName).or(counter);
+	}
+
+	/**
+	 * @param counterName
+	 * @return The key of the Counter named {@code counterName} as stored by an
+	 *         earlier version of this library, underneath
+	 *         {@link Counter#legacyParentKey()}.
+	 */
+	private static Key<Counter> legacyCounterKey(final String counterName)
+	{
+		final Counter tempLegacyCounter = new Counter(counterName, 1);
+		tempLegacyCounter.setParent(Counter.legacyParentKey());
+		return tempLegacyCounter.getTypedKey();
+	}
+
+	/**
+	 * Resumes the interrupted migration of {@code counter} from underneath
+	 * {@link Counter#legacyParentKey()}, or just clears its migration flag if
+	 * the legacy Counter was already removed.
+	 * 
+	 * @param counter
+	 * @return The migrated Counter.
+	 */
+	private Counter resumeLegacyMigration(final Counter counter)
+	{
+		final Optional<Counter> optCounter = this.migrateLegacyCounter(counter.getCounterName());
+		if (optCounter.isPresent())
+		{
+			return optCounter.get();
+		}
+		return this.finishLegacyMigration(counter.getCounterName()).or(counter);
+	}
+
+	/**
+	 * Clears the migration flag of the {@link Counter} named
+	 * {@code counterName}, once no legacy entities remain for it, and evicts
+	 * its cached count (which may have been computed mid-migration).
+	 * 
+	 * @param counterName
+	 * @return The migrated Counter, or {@link Optional#absent()} if it no
+	 *         longer exists.
+	 */
+	private Optional<Counter> finishLegacyMigration(final String counterName)
+	{
+		final Key<Counter> counterKey = new Counter(counterName, 1).getTypedKey();
+		final Counter counter = ObjectifyService.ofy().transact(new Work<Counter>()
+		{
+			@Override
+			public Counter run()
+			{
+				Counter dsCounter = ObjectifyService.ofy().load().key(counterKey).now();
+				if (dsCounter != null && dsCounter.isMigratingFromLegacyParent())
+				{
+					dsCounter.setMigratingFromLegacyParent(false);
+					ObjectifyService.ofy().save().entity(dsCounter).now();
+				}
+				return dsCounter;
+			}
+		});
+
+		counterCache.delete(counterName);
+		counterMetadataCache.invalidate(counterName);
+
+		return Optional.fromNullable(counter);
+	}
+
+	// //////////////////////////////////
+	// Private Helpers
+	// //////////////////////////////////
+
+	/**
+	 * Adjusts the cached count of the counter named {@code counterName} by
+	 * {@code amount} using the {@link CounterCache}'s atomic increment (e.g.,
+	 * memcache's native increment), so every call costs exactly one cache
+	 * operation regardless of contention.<br/>
+	 * <br/>
+	 * If the count isn't cached, the cache is seeded with
+	 * {@code countBeforeWrite + amount}, where {@code countBeforeWrite} is the
+	 * count the caller observed before performing its shard write. The cache
+	 * floors decrements at zero, which matches the fact that a counter's count
+	 * is never negative.
+	 * 
+	 * @param counterName
+	 * @param amount The (possibly negative) amount to adjust the cached count by.
+	 * @param countBeforeWrite The count of the counter as observed by the caller
+	 *            before its shard write was committed.
+	 * @return The new count of this counter
+	 */
+	private long incrementCachedCountAtomic(final Counter counter, final long amount, final long countBeforeWrite)
+	{
+		final String counterName = counter.getCounterName();
+		this.adjustMaterializedDelta(counter, amount);
+		try
+		{
+			Long newAmount = counterCache.increment(counterName, amount, Math.max(0L, countBeforeWrite));
+			if (newAmount == null)
+			{
+				// The cache swallowed an error (e.g., see memcache's
+				// ErrorHandler).
+				logger.warning("Unable to update cached counter atomically for CounterName \"" + counterName
+					+ "\".  Returning the last observed count instead.");
+				this.recordEvent(Event.MEMCACHE_INCREMENT_FAILURE, 1);
+				return Math.max(0L, countBeforeWrite + amount);
+			}
+			logger.fine("counterCache.increment SUCCESS! with value " + newAmount);
+			return newAmount.longValue();
+		}
+		catch (RuntimeException e)
+		{
+			logger.log(Level.SEVERE, "Unable to update cached counter atomically.  Evicting counter named "
+				+ counterName + " from the cache!", e);
+			this.recordEvent(Event.MEMCACHE_INCREMENT_FAILURE, 1);
+			counterCache.delete(counterName);
+			return Math.max(0L, countBeforeWrite + amount);
+		}
+	}
+
+	/**
+	 * Loads the Counter named {@code counterName}, serving it from the counter
+	 * metadata cache when possible (see
+	 * {@link ShardedCounterServiceConfiguration#getCounterMetadataCacheMaxSize()}
+	 * ). A cached Counter only holds the metadata in {@link CounterMetadata},
+	 * and may not reflect changes made by other instances until it expires, so
+	 * it must not be used to decide which shards to aggregate, nor be saved to
+	 * the Datastore.
+	 * 
+	 * @param counterName
+	 * @return The Counter, or {@code null} if it doesn't exist.
+	 */
+	private Counter loadCounterMetadata(final String counterName)
+	{
+		return this.loadCountersMetadata(Collections.singleton(counterName)).get(counterName);
+	}
+
+	/**
+	 * Loads the Counter named {@code counterName} for an increment or
+	 * decrement. Unlike {@link #getCounter(String)}, its metadata is served
+	 * from the counter metadata cache when possible (see
+	 * {@link #loadCounterMetadata(String)}), so a write whose count is cached
+	 * costs no Counter get. An interrupted legacy migration is resumed, and the
+	 * approximate count is read from the cache (or aggregated from the shards).
+	 * 
+	 * @param counterName
+	 * @return The Counter, or {@link Optional#absent()} if it doesn't exist
+	 *         (in which case any legacy Counter is left to {@link #create}).
+	 */
+	private Optional<Counter> loadCounterForWrite(final String counterName)
+	{
+		Counter counter = this.loadCounterMetadata(counterName);
+		if (counter == null)
+		{
+			return Optional.absent();
+		}
+		else if (counter.isMigratingFromLegacyParent())
+		{
+			// A previous migration of this Counter was interrupted.
+			counter = this.resumeLegacyMigration(counter);
+		}
+		counter.setApproximateCount(this.getCountFromCacheOrDatastore(counterName));
+		return Optional.of(counter);
+	}
+
+	/**
+	 * Loads the Counters named {@code counterNames}, serving each from the
+	 * counter metadata cache when possible and loading the rest in one
+	 * batch-get.
+	 * 
+	 * @param counterNames
+	 * @return The Counters that exist, keyed by counter name.
+	 * @see #loadCounterMetadata(String)
+	 */
+	private Map<String, Counter> loadCountersMetadata(final Collection<String> counterNames)
+	{
+		final Map<String, Counter> counters = Maps.newHashMap();
+		final Map<String, Key<Counter>> uncachedCounterKeys = Maps.newHashMap();
+		for (String counterName : counterNames)
+		{
+			CounterMetadata cachedMetadata = counterMetadataCache.getIfPresent(counterName);
+			if (cachedMetadata == null)
+			{
+				Key<Counter> counterKey = new Counter(counterName, 1).getTypedKey();
+				uncachedCounterKeys.put(counterName, counterKey);
+			}
+			else
+			{
+				counters.put(counterName, cachedMetadata.toCounter());
+			}
+		}
+
+		if (!uncachedCounterKeys.isEmpty())
+		{
+			// No TX needed - get is Strongly consistent by default
+			final Map<Key<Counter>, Counter> dsCounters = ObjectifyService.ofy().transactionless().load()
+				.keys(uncachedCounterKeys.values());
+			this.recordEvent(Event.DATASTORE_RPC, 1);
+			for (Map.Entry<String, Key<Counter>> entry : uncachedCounterKeys.entrySet())
+			{
+				Counter dsCounter = dsCounters.get(entry.getValue());
+				if (dsCounter != null)
+				{
+					this.cacheCounterMetadata(dsCounter);
+					counters.put(entry.getKey(), dsCounter);
+				}
+			}
+		}
+		return counters;
+	}
+
+	/**
+	 * Puts {@code counter} into the counter metadata cache (if enabled).
+	 * 
+	 * @param counter
+	 */
+	private void cacheCounterMetadata(final Counter counter)
+	{
+		// A Counter whose migration was interrupted must be reloaded on its
+		// next access, so that the migration is resumed.
+		if (config.getCounterMetadataCacheMaxSize() > 0 && !counter.isMigratingFromLegacyParent())
+		{
+			counterMetadataCache.put(counter.getCounterName(), new CounterMetadata(counter));
+		}
+	}
+
+	/**
+	 * The cache will expire after 60 seconds, so the counter will be accurate
+	 * after a minute because it performs a load from the datastore.
+	 * 
+	 * @param counterName
+	 * @return
+	 */
+	private long getCountFromCacheOrDatastore(final String counterName)
+	{
+		Long value = counterCache.get(counterName);
+		if (value != null)
+		{
+			// The count was found in memcache, so return it.
+			logger.fine("Cache Hit for Counter Named \"" + counterName + "\" returns value: " + value);
+			this.recordEvent(Event.MEMCACHE_HIT, 1);
+			return value;
+		}
+		else
+		{
+			// The count was not found in memcache.
+			logger.fine("Cache Miss for Counter Named \"" + counterName + "\".  Checking Datastore instead!");
+			this.recordEvent(Event.MEMCACHE_MISS, 1);
+		}
+
+		if (config.getCachedCountFreshnessMillis() > 0)
+		{
+			// Serve the last known count while it is refreshed in the
+			// background.
+			final LastKnownCount lastKnownCount = counterCache.getLastKnownCount(counterName);
+			if (lastKnownCount != null)
+			{
+				logger.fine("Serving the last known count of Counter \"" + counterName + "\" (as of "
+					+ lastKnownCount.getAggregatedDateTime() + ") while it is refreshed");
+				this.recordEvent(Event.MEMCACHE_STALE_HIT, 1);
+				this.scheduleCountRefresh(counterName);
+				return lastKnownCount.getCount();
+			}
+		}
+
+		// Concurrent misses for the same counter share one recomputation.
+		return countRecomputations.execute(counterName, new Callable<Long>()
+		{
+			@Override
+			public Long call()
+			{
+				return recomputeCount(counterName);
+			}
+		});
+	}
+
+	/**
+	 * Aggregates the count of the counter named {@code counterName} from its
+	 * shards, and caches it. If another caller (on any instance) holds the
+	 * lease to recompute this count, then this waits for that caller to cache
+	 * the count instead, for up to
+	 * {@link ShardedCounterServiceConfiguration#getCountRecomputeLeaseMillis()}
+	 * , unless that caller releases the lease without caching a count.
+	 * 
+	 * @param counterName
+	 * @return
+	 */
+	private long recomputeCount(final String counterName)
+	{
+		final long leaseMillis = config.getCountRecomputeLeaseMillis();
+		final String leaseOwner = UUID.randomUUID().toString();
+		boolean leased = leaseMillis > 0
+			&& counterCache.tryAcquireRecomputeLease(counterName, leaseOwner, leaseMillis);
+		if (leaseMillis > 0 && !leased)
+		{
+			final long deadlineNanos = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(leaseMillis);
+			long pollMillis = COUNT_RECOMPUTE_POLL_MILLIS;
+			long remainingMillis = leaseMillis;
+			while (!leased && remainingMillis > 0)
+			{
+				Uninterruptibles.sleepUninterruptibly(Math.min(pollMillis, remainingMillis), TimeUnit.MILLISECONDS);
+				pollMillis = Math.min(pollMillis * 2, COUNT_RECOMPUTE_MAX_POLL_MILLIS);
+
+				final Long value = counterCache.get(counterName);
+				if (value != null)
+				{
+					return value;
+				}
+				// A leaseholder that releases its lease without caching a count
+				// (e.g., because the counter no longer exists) hands the
+				// recomputation over to the next caller to acquire it.
+				leased = counterCache.tryAcquireRecomputeLease(counterName, leaseOwner, leaseMillis);
+				remainingMillis = TimeUnit.NANOSECONDS.toMillis(deadlineNanos - System.nanoTime());
+			}
+
+			if (!leased)
+			{
+				// The leaseholder didn't cache the count in time (e.g., it
+				// failed), so recompute it here.
+				logger.warning("Timed out waiting for the count of Counter \"" + counterName
+					+ "\" to be recomputed by another caller.  Recomputing it instead.");
+			}
+		}
+
+		try
+		{
+			return this.sumAndCacheCount(counterName);
+		}
+		finally
+		{
+			if (leased)
+			{
+				counterCache.releaseRecomputeLease(counterName, leaseOwner);
+			}
+		}
+	}
+
+	/**
+	 * Aggregates the count of the counter named {@code counterName} from its
+	 * shards, and caches it.
+	 * 
+	 * @param counterName
+	 * @return
+	 */
+	private long sumAndCacheCount(final String counterName)
+	{
+		Key<Counter> counterKey = new Counter(counterName, 1).getTypedKey();
+		// No TX needed - get is Strongly consistent by default
+		Counter counter = ObjectifyService.ofy().transactionless().load().key(counterKey).now();
+		this.recordEvent(Event.DATASTORE_RPC, 1);
+		if (counter == null)
+		{
+			logger.severe("The counter named \"" + counterName
+				+ "\" does not exist!  Please create it before trying to get its count!");
+			return 0;
+		}
+
+		final Long materializedCount = this.getMaterializedCounts(Collections.singletonList(counter)).get(counterName);
+		final long sum = materializedCount == null ? this.sumCounterShards(counterName,
+			counter.getNumReadableShards()) : materializedCount.longValue();
+
+		logger.fine("The Datastore is reporting a count of " + sum + " for Counter \"" + counterName
+			+ "\" count.  Resetting memcache count to " + sum + " for this counter name");
+		this.cacheCount(counterName, sum);
+		return sum;
+
+	}
+
+	/**
+	 * Computes the counts of those {@code counters} whose materialized count
+	 * is usable (i.e., whose delta since their last rollup, and the previous
+	 * generation's delta if it was read by that rollup, are still cached) as
+	 * their materialized count plus those deltas, and schedules a rollup of each
+	 * counter whose materialized count is unusable or older than
+	 * {@link ShardedCounterServiceConfiguration#getRollupIntervalMillis()}.
+	 * 
+	 * @param counters
+	 * @return The counts that could be computed, keyed by counter name.
+	 */
+	private Map<String, Long> getMaterializedCounts(final Collection<Counter> counters)
+	{
+		final Map<String, Long> counts = Maps.newHashMap();
+		if (config.getRollupIntervalMillis() == 0)
+		{
+			return counts;
+		}
+
+		final List<String> deltaNames = Lists.newArrayList();
+		for (Counter counter : counters)
+		{
+			if (counter.getMaterializedDateTime() != null)
+			{
+				deltaNames.add(materializedDeltaName(counter));
+				if (counter.getPreviousMaterializedDelta() != null)
+				{
+					deltaNames.add(previousMaterializedDeltaName(counter));
+				}
+			}
+		}
+		final Map<String, Long> deltas = deltaNames.isEmpty() ? Collections.<String, Long> emptyMap()
+			: counterCache.getAll(deltaNames);
+
+		final DateTime staleDateTime = new DateTime(DateTimeZone.UTC).minus(config.getRollupIntervalMillis());
+		for (Counter counter : counters)
+		{
+			Long delta = counter.getMaterializedDateTime() == null ? null : deltas.get(materializedDeltaName(counter));
+			if (delta != null && counter.getPreviousMaterializedDelta() != null)
+			{
+				// Add what the previous generation's delta gained after the
+				// rollup read it, which the materialized count is missing.
+				final Long previousDelta = deltas.get(previousMaterializedDeltaName(counter));
+				delta = previousDelta == null ? null : delta + previousDelta
+					- counter.getPreviousMaterializedDelta();
+			}
+			if (delta != null)
+			{
+				this.recordEvent(Event.MATERIALIZED_COUNT_HIT, 1);
+				counts.put(counter.getCounterName(),
+					Math.max(0L, counter.getMaterializedCount() + delta.longValue() - MATERIALIZED_DELTA_BASELINE));
+			}
+			if (delta == null || counter.getMaterializedDateTime().isBefore(staleDateTime))
+			{
+				this.scheduleRollup(counter.getCounterName());
+			}
+		}
+		return counts;
+	}
+
+	/**
+	 * Adjusts the delta of {@code counter} since its last rollup, if
+	 * materialized counts are enabled. The delta is only adjusted if it's
+	 * cached, since a delta that has been evicted can't be trusted until the
+	 * next rollup seeds a new one.
+	 * 
+	 * @param counter The counter, as loaded before its shard write, so that
+	 *            the write is tracked under the generation that it may be
+	 *            missing from.
+	 * @param amount The (possibly negative) amount to adjust the delta by.
+	 */
+	private void adjustMaterializedDelta(final Counter counter, final long amount)
+	{
+		if (config.getRollupIntervalMillis() > 0)
+		{
+			counterCache.incrementAsync(materializedDeltaName(counter), amount);
+		}
+	}
 
 	/**
-	 * Helper method for checking the
+	 * Enqueues a task that rolls up the shards of the counter named
+	 * {@code counterName} into its materialized count, unless one is already
+	 * pending (i.e., another caller holds the counter's rollup lease).
 	 * 
 	 * @param counterName
-	 * @param optCounter
 	 */
-	private void counterPreconditionChecks(final String counterName, Optional<Counter> optCounter, String verb)
+	private void scheduleRollup(final String counterName)
 	{
-		if (!optCounter.isPresent())
+		// The lease is released by the rollup task, or expires in case the
+		// task never runs, which limits rollups to one per interval.
+		final String leaseName = rollupLeaseName(counterName);
+		final String leaseOwner = UUID.randomUUID().toString();
+		if (!counterCache.tryAcquireRecomputeLease(leaseName, leaseOwner, config.getRollupIntervalMillis()))
 		{
-			throw new RuntimeException("Can't " + verb + " a counter \"" + counterName
-				+ "\" that doesn't exist.  Please #create this counter first!");
-
+			return;
 		}
 
-		if (optCounter.get().getCounterStatus() == CounterStatus.DELETING)
+		try
 		{
-			throw new RuntimeException("Can't " + verb + " counter \"" + counterName
-				+ "\" because it is currently being deleted!");
+			TaskOptions taskOptions = TaskOptions.Builder.withParam(COUNTER_NAME, counterName)
+				.param(TASK_TYPE, TaskType.ROLLUP.name()).param(LEASE_OWNER, leaseOwner);
+			if (config.getRelativeUrlPathForRollupTaskQueue() != null)
+			{
+				taskOptions = taskOptions.url(config.getRelativeUrlPathForRollupTaskQueue());
+			}
+			// Never enqueue as part of a caller's transaction.
+			getQueue(config.getRollupCounterQueueName()).add(null, taskOptions);
+		}
+		catch (RuntimeException e)
+		{
+			logger.log(Level.WARNING, "Unable to enqueue a rollup of Counter \"" + counterName + "\"", e);
+			counterCache.releaseRecomputeLease(leaseName, leaseOwner);
 		}
 	}
 
 	/**
-	 * Attempt to load and decrement a Datastore {@link CounterShard} in a
-	 * single transaction.
-	 * 
-	 * @param counterShardKey
-	 * @return The new counter total from memcache after decrementing
-	 * @throws NonViableDecrementException If the post-decrement counter update
-	 *             was unable to be completed because there was either a
-	 *             non-existent shard or the shard didn't have enough count.
-	 *             Note that this exception is not thrown if a
-	 *             {@link ConcurrentModificationException} is encountered by
-	 *             Objectify. In that case, the operation will simply be retried
-	 *             until successful.
+	 * @param counter
+	 * @return The name under which the delta of {@code counter} since its last
+	 *         rollup is cached.
 	 */
-	private long doDecrementInTx(final String counterName, final int counterShardNumber)
-			throws NonViableDecrementException
+	private static String materializedDeltaName(final Counter counter)
 	{
-		final Key<CounterShard> counterShardKey = new CounterShard(counterName, counterShardNumber).getTypedKey();
-		final Long amountDecremented = ObjectifyService.ofy().transact(new Work<Long>()
-		{
-			@Override
-			public Long run()
-			{
-				Optional<CounterShard> optDSCounterShard = getCounterShardFromDS(counterShardKey);
-				if (optDSCounterShard.isPresent())
-				{
-					if (optDSCounterShard.get().getCount() <= 0)
-					{
-						throw new NonViableDecrementException(
-							"Random Shard \""
-								+ counterShardKey.getId()
-								+ " \" existed in the Datastore  but its count was already zero.  Aborting decrement for this shard, possibly trying another!");
-					}
-				}
-				else
-				{
-					throw new NonViableDecrementException(
-						"Random Shard \""
-							+ counterShardKey.getId()
-							+ "\" did not exist in the Datastore.  Aborting decrement for this shard, possibly trying another!");
-				}
-
-				CounterShard counterShard = optDSCounterShard.get();
-				counterShard.setCount(counterShard.getCount() - 1);
-				// Use of now() is required to make the memcache
-				// sync code below function properly.
-				logger.fine("Saving CounterShard for Decrement with count " + counterShard.getCount());
-				ObjectifyService.ofy().save().entity(counterShard).now();
-
-				return new Long(1L);
-			}
-		});
-
-		// We use the "amountDecremented" to pause this thread until the TX
-		// Future returns. This is because we don't want to decrement
-		// memcache (below) until the TX has completed. However, the
-		// concurrency exception (if any) in the Runnable above won't get
-		// thrown until the TX commit is tried, and by that point there's no
-		// mechanism to rollback the memcache counter. Using this mechanism,
-		// we can guarantee that the thread won't make it here until the TX
-		// above commits properly without throwing an Exception
-
-		// Decrement this counter in memcache, but only if un-touched
-		long newAmount = incrementMemcacheAtomic(counterName, (amountDecremented * -1));
+		return materializedDeltaName(counter.getCounterName(), counter.getMaterializedGeneration());
+	}
 
-		// Return the memcache amount because the caller already knows how much
-		// the decrement amount was supposed to be
-		return newAmount;
+	/**
+	 * @param counter
+	 * @return The name under which the delta of {@code counter} since its
+	 *         rollup before last is cached.
+	 */
+	private static String previousMaterializedDeltaName(final Counter counter)
+	{
+		return materializedDeltaName(counter.getCounterName(), counter.getMaterializedGeneration() - 1);
 	}
 
 	/**
-	 * Removes a {@link Counter} from the Datastore and attempts to remove it's
-	 * corresponding {@link CounterShard} entities via a Task Queue. This
-	 * operation may take some time to complete since it is task queue based, so
-	 * constructing or incrementing a Counter while it is being deleted is not
-	 * allowed.
+	 * @param counterName
+	 * @param generation
+	 * @return The name under which the delta of the counter named
+	 *         {@code counterName} since its rollup of generation
+	 *         {@code generation} is cached.
 	 */
-	@Override
-	public void delete(final String counterName)
+	static String materializedDeltaName(final String counterName, final long generation)
 	{
-		Preconditions.checkNotNull(counterName);
-		Preconditions.checkArgument(!StringUtils.isBlank(counterName));
+		return MATERIALIZED_DELTA_PREFIX + generation + "__" + counterName;
+	}
 
-		// Can't query inside of a TX, so get the counter first
-		final Optional<Counter> optCounter = getCounter(counterName);
+	/**
+	 * @param counterName
+	 * @return The name of the lease that is held while a rollup of the counter
+	 *         named {@code counterName} is enqueued or running.
+	 */
+	private static String rollupLeaseName(final String counterName)
+	{
+		return ROLLUP_LEASE_PREFIX + counterName;
+	}
 
-		if (optCounter.isPresent())
+	/**
+	 * Caches {@code count}, which was just aggregated from the shards of the
+	 * counter named {@code counterName}. If stale-while-revalidate reads are
+	 * enabled, then the cached count expires, and {@code count} is also kept
+	 * as the counter's last known count.
+	 * 
+	 * @param counterName
+	 * @param count
+	 */
+	private void cacheCount(final String counterName, final long count)
+	{
+		final long freshnessMillis = config.getCachedCountFreshnessMillis();
+		if (freshnessMillis > 0)
 		{
-			final Counter counter = optCounter.get();
-
-			// Delete the main counter...
-			ObjectifyService.ofy().transact(new VoidWork()
-			{
-				@Override
-				public void vrun()
-				{
-					Queue queue;
-					if (config.getDeleteCounterShardQueueName() == null)
-					{
-						queue = QueueFactory.getDefaultQueue();
-					}
-					else
-					{
-						queue = QueueFactory.getQueue(config.getDeleteCounterShardQueueName());
-					}
-
-					// The TaskQueue will delete the counter once all shards are
-					// deleted.
-					counter.setCounterStatus(CounterStatus.DELETING);
-					ObjectifyService.ofy().save().entity(counter).now();
-
-					// Transactionally enqueue this task to the path specified
-					// in the constructor (if this is null, then the default
-					// queue will be used).
-					TaskOptions taskOptions = TaskOptions.Builder.withParam(COUNTER_NAME, counterName);
-					if (config.getRelativeUrlPathForDeleteTaskQueue() != null)
-					{
-						taskOptions = taskOptions.url(config.getRelativeUrlPathForDeleteTaskQueue());
-					}
-
-					// Kick off a Task to delete the Shards for this Counter and
-					// the Counter itself, but only if the TX succeeds
-					queue.add(taskOptions);
-				}
-			});
+			counterCache.put(counterName, count, freshnessMillis);
+			counterCache.putLastKnownCount(counterName, new LastKnownCount(count, new DateTime(DateTimeZone.UTC)));
+		}
+		else
+		{
+			counterCache.put(counterName, count, CounterCache.NO_EXPIRATION);
 		}
 	}
 
-	@Override
-	public void onTaskQueueCounterDeletion(final String counterName)
+	/**
+	 * Enqueues a task that refreshes the cached count of the counter named
+	 * {@code counterName}, unless one is already pending (i.e., another caller
+	 * holds the counter's recompute lease).
+	 * 
+	 * @param counterName
+	 */
+	private void scheduleCountRefresh(final String counterName)
 	{
-		// Instead of the commented code below, get the number of counter shards
-		// for the counter and cycle through the shards based upon the counter,
-		// and remove them manually. Do this async since we're in a queue and
-		// don't need immediate results.
-
-		Optional<Counter> optCounter = this.getCounter(counterName);
-		if (!optCounter.isPresent())
+		// The lease is released by the refresh task, or expires in case the
+		// task never runs.
+		final String leaseName = countRefreshLeaseName(counterName);
+		final String leaseOwner = UUID.randomUUID().toString();
+		if (!counterCache.tryAcquireRecomputeLease(leaseName, leaseOwner, config.getCountRefreshLeaseMillis()))
 		{
-			logger.severe("While attempting to delete Counter named \"" + counterName
-				+ "\", no Counter was found in the Datastore!");
 			return;
 		}
 
-		Counter counter = optCounter.get();
-		for (int i = 0; i < counter.getNumShards(); i++)
+		try
 		{
-			// Get the Shard and delete it...
-
-			CounterShard tempCounterShard = new CounterShard(counterName, i);
-			Key<?> counterShardKey = tempCounterShard.getTypedKey();
-			// No TX needed
-			ObjectifyService.ofy().transactionless().delete().key(counterShardKey).now();
+			TaskOptions taskOptions = TaskOptions.Builder.withParam(COUNTER_NAME, counterName)
+				.param(TASK_TYPE, TaskType.REFRESH.name()).param(LEASE_OWNER, leaseOwner);
+			if (config.getRelativeUrlPathForRefreshTaskQueue() != null)
+			{
+				taskOptions = taskOptions.url(config.getRelativeUrlPathForRefreshTaskQueue());
+			}
+			// Never enqueue as part of a caller's transaction.
+			getQueue(config.getRefreshCounterQueueName()).add(null, taskOptions);
+		}
+		catch (RuntimeException e)
+		{
+			logger.log(Level.WARNING, "Unable to enqueue a refresh of the count of Counter \"" + counterName + "\"",
+				e);
+			counterCache.releaseRecomputeLease(leaseName, leaseOwner);
 		}
-
-		// Delete the Counter itself...No TX needed.
-		ObjectifyService.ofy().transactionless().delete().key(counter.getTypedKey()).now();
 	}
 
-	// //////////////////////////////////
-	// Private Helpers
-	// //////////////////////////////////
+	/**
+	 * @param counterName
+	 * @return The name of the lease that is held while a refresh of the count
+	 *         of the counter named {@code counterName} is enqueued.
+	 */
+	private static String countRefreshLeaseName(final String counterName)
+	{
+		return COUNT_REFRESH_LEASE_PREFIX + counterName;
+	}
 
 	/**
-	 * Increment the memcache version of this counter by one in an atomic
-	 * fashion. If another thread increments before this thread, then retry up
-	 * to 20 times.
+	 * Sums the counts of the first {@code numShards} CounterShards of the
+	 * counter named {@code counterName}.
 	 * 
 	 * @param counterName
-	 * @param amount
-	 * @return The new count of this counter
+	 * @param numShards
+	 * @return
+	 * @see #sumCounterShards(Map)
 	 */
-	private long incrementMemcacheAtomic(final String counterName, final long amount)
+	long sumCounterShards(final String counterName, final int numShards)
 	{
-		// Get the cache counter at a current point in time.
-		String memCacheKey = this.assembleCounterKeyforMemcache(counterName);
+		return this.sumCounterShards(Collections.singletonMap(counterName, numShards)).get(counterName);
+	}
 
-		int numRetries = 20;
-		while (numRetries > 0)
+	/**
+	 * Sums the counts of the CounterShards of many counters at once. The
+	 * shards of all counters are loaded together (see
+	 * {@link #loadCounterShards(Collection)}).
+	 * 
+	 * @param numShardsByCounterName The number of shards to sum (i.e., the
+	 *            first {@code numShards} CounterShards), keyed by counter name.
+	 * @return The sum of each counter's shards, keyed by counter name. When
+	 *         signed shards are in use a sum could be negative, in which case
+	 *         zero is reported instead.
+	 */
+	private Map<String, Long> sumCounterShards(final Map<String, Integer> numShardsByCounterName)
+	{
+		final Map<String, Long> sums = Maps.newLinkedHashMap();
+		final Map<Key<CounterShard>, String> counterNamesByShardKey = Maps.newLinkedHashMap();
+		for (Map.Entry<String, Integer> entry : numShardsByCounterName.entrySet())
 		{
-			try
+			sums.put(entry.getKey(), 0L);
+			for (int i = 0; i < entry.getValue(); i++)
 			{
-				IdentifiableValue identifiableCounter = memcacheService.getIdentifiable(memCacheKey);
-				if (identifiableCounter == null || identifiableCounter.getValue() == null)
-				{
-					logger
-						.severe("No identifiableCounter was found in Memcache.  Unable to Atomically increment for CounterName \""
-							+ counterName + "\"");
-					break;
-				}
-
-				Long cachedCounterAmount = (Long) identifiableCounter.getValue();
-				long newAmount = cachedCounterAmount.longValue() + amount;
-				if (newAmount < 0)
-				{
-					newAmount = 0;
-				}
+				Key<CounterShard> counterShardKey = new CounterShard(entry.getKey(), i).getTypedKey();
+				counterNamesByShardKey.put(counterShardKey, entry.getKey());
+			}
+		}
 
-				logger.fine("Just before Atomic Incrment of " + amount + ", Memcache has value "
-					+ identifiableCounter.getValue());
+		for (Map.Entry<Key<CounterShard>, CounterShard> entry : this.loadCounterShards(
+			counterNamesByShardKey.keySet()).entrySet())
+		{
+			String counterName = counterNamesByShardKey.get(entry.getKey());
+			sums.put(counterName, sums.get(counterName) + entry.getValue().getCount());
+		}
 
-				if (memcacheService.putIfUntouched(counterName, identifiableCounter, new Long(newAmount)))
-				{
-					logger.fine("memcacheService.putIfUntouched SUCCESS! with value " + newAmount);
-					// If we get here, the put succeeded...
-					return newAmount;
-				}
-				else
-				{
-					logger.warning("memcacheService.putIfUntouched FAILURE! Retrying...");
-				}
-			}
-			catch (MemcacheServiceException mse)
+		for (Map.Entry<String, Long> entry : sums.entrySet())
+		{
+			if (entry.getValue() < 0)
 			{
-				// Check and post-decrement the numRetries counter in one step
-				if (numRetries-- > 0)
-				{
-					logger.log(Level.WARNING, "Unable to update memcache counter atomically.  Retrying " + numRetries
-						+ " more times!", mse);
-				}
-				else
-				{
-					logger.log(Level.SEVERE,
-						"Unable to update memcache counter atomically, with no more allowed retries.  Evicting counter named "
-							+ counterName + " from the cache!", mse);
-					memcacheService.delete(memCacheKey);
-					return 0;
-				}
+				entry.setValue(0L);
 			}
 		}
-
-		// The increment did not work...
-		return 0;
+		return sums;
 	}
 
 	/**
-	 * The cache will expire after 60 seconds, so the counter will be accurate
-	 * after a minute because it performs a load from the datastore.
+	 * Loads the first {@code numShards} CounterShards of the counter named
+	 * {@code counterName}.
 	 * 
 	 * @param counterName
-	 * @return
+	 * @param numShards
+	 * @return The CounterShards that exist, keyed by their keys.
+	 * @see #loadCounterShards(Collection)
 	 */
-	private long getCountFromCacheOrDatastore(String counterName)
+	private Map<Key<CounterShard>, CounterShard> loadCounterShards(final String counterName, final int numShards)
 	{
-		String memCacheKey = this.assembleCounterKeyforMemcache(counterName);
-		Long value = (Long) memcacheService.get(memCacheKey);
-		if (value != null)
-		{
-			// The count was found in memcache, so return it.
-			logger.fine("Cache Hit for Counter Named \"" + counterName + "\" returns value: " + value);
-			return value;
-		}
-		else
+		final List<Key<CounterShard>> counterShardKeys = Lists.newArrayList();
+		for (int i = 0; i < numShards; i++)
 		{
-			// The count was found in memcache, so return it.
-			logger.fine("Cache Miss for Counter Named \"" + counterName + "\".  Checking Datastore instead!");
+			counterShardKeys.add(new CounterShard(counterName, i).<CounterShard> getTypedKey());
 		}
+		return this.loadCounterShards(counterShardKeys);
+	}
 
-		Key<Counter> counterKey = new Counter(counterName, 1).getTypedKey();
-		// No TX needed - get is Strongly consistent by default
-		Counter counter = ObjectifyService.ofy().transactionless().load().key(counterKey).now();
-		if (counter == null)
+	/**
+	 * Loads the CounterShards identified by {@code counterShardKeys} using
+	 * batch-gets of at most
+	 * {@link ShardedCounterServiceConfiguration#getShardLoadBatchSize()} keys
+	 * each. Objectify issues each batch-get asynchronously, so all batches are
+	 * in flight before any of their results are read.
+	 * 
+	 * @param counterShardKeys
+	 * @return The CounterShards that exist, keyed by their keys.
+	 */
+	private Map<Key<CounterShard>, CounterShard> loadCounterShards(final Collection<Key<CounterShard>> counterShardKeys)
+	{
+		final List<Map<Key<CounterShard>, CounterShard>> batches = Lists.newArrayList();
+		for (List<Key<CounterShard>> batchKeys : Lists.partition(Lists.newArrayList(counterShardKeys),
+			config.getShardLoadBatchSize()))
 		{
-			logger.severe("The counter named \"" + counterName
-				+ "\" does not exist!  Please create it before trying to get its count!");
-			return 0;
+			// No TX needed - get is Strongly consistent by default
+			batches.add(ObjectifyService.ofy().transactionless().load().keys(batchKeys));
 		}
+		this.recordEvent(Event.DATASTORE_RPC, batches.size());
 
-		long sum = 0;
-		for (int i = 0; i < counter.getNumShards(); i++)
+		final Map<Key<CounterShard>, CounterShard> counterShards = Maps.newLinkedHashMap();
+		for (Map<Key<CounterShard>, CounterShard> batch : batches)
 		{
-			Key<CounterShard> counterShardKey = new CounterShard(counterName, i).getTypedKey();
-			// No TX needed - get is Strongly consistent by default
-			CounterShard counterShard = ObjectifyService.ofy().transactionless().load().key(counterShardKey).now();
-			if (counterShard != null)
-			{
-				sum += counterShard.getCount();
-			}
+			counterShards.putAll(batch);
 		}
-
-		logger.fine("The Datastore is reporting a count of " + sum + " for Counter \"" + counterName
-			+ "\" count.  Resetting memcache count to " + sum + " for this counter name");
-		memcacheService.put(memCacheKey, new Long(sum), null, SetPolicy.SET_ALWAYS);
-		return sum;
-
+		return counterShards;
 	}
 
 	/**
-	 * Get the number of shards in the counter specified by {@code counterName}.
+	 * Get the {@link Queue} named {@code queueName}.
 	 * 
-	 * @param counterName
-	 * @return shard count
+	 * @param queueName The name of the queue, or null for the default queue.
+	 * @return
 	 */
-	private int getShardCount(String counterName)
+	private Queue getQueue(final String queueName)
 	{
-		try
+		if (queueName == null)
 		{
-			Key<Counter> counterKey = Key.create(Counter.class, counterName);
-			// No TX needed - get is Strongly consistent by default, and no
-			// other threads increment or decrement this value in this
-			// code-base. However, even if future functionality changes make it
-			// so that this number is slightly out of date (i.e., the number of
-			// CounterShards is actually higher than what this function
-			// returns), then this is ok because this thread will use a
-			// pre-existing counterShard number (i.e., it's not possible to get
-			// a CounterShard number here that would be invalid). Note that this
-			// assumption would be invalid if we ever implement code that
-			// reduces the number of counter shards (e.g., via a composition job
-			// that reduces the shards and combines shard-counts into a single
-			// shard -- if, say, the traffic on this counter were to go way down
-			// and many shards aren't needed).
-			Counter counter = ObjectifyService.ofy().transactionless().load().key(counterKey).now();
-			if (counter != null)
-			{
-				int shardCount = counter.getNumShards();
-				return shardCount;
-			}
-			else
-			{
-				return config.getNumInitialShards();
-			}
+			return QueueFactory.getDefaultQueue();
 		}
-		catch (RuntimeException re)
+		else
 		{
-			return config.getNumInitialShards();
+			return QueueFactory.getQueue(queueName);
 		}
 	}
 
@@ -734,6 +2917,7 @@ public class ShardedCounterService implements CounterService
 			// existing transaction, if any (Without a TX here, a second tx
 			// commit would overwrite the first).
 			counterShard = ObjectifyService.ofy().load().key(counterShardKey).now();
+			this.recordEvent(Event.DATASTORE_RPC, 1);
 		}
 		catch (RuntimeException re)
 		{
@@ -745,14 +2929,36 @@ public class ShardedCounterService implements CounterService
 	}
 
 	/**
-	 * Assembles a CounterKey for Memcache
+	 * Reports the latency of an operation that began at {@code startNanos} to
+	 * the configured {@link CounterMetrics}.
 	 * 
-	 * @param counterName
-	 * @return
+	 * @param operation
+	 * @param startNanos The value of {@link System#nanoTime()} when the
+	 *            operation began.
+	 */
+	private void recordLatency(final Operation operation, final long startNanos)
+	{
+		config.getCounterMetrics().recordLatency(operation, System.nanoTime() - startNanos);
+	}
+
+	/**
+	 * Reports {@code count} occurrences of {@code event} to the configured
+	 * {@link CounterMetrics}.
+	 * 
+	 * @param event
+	 * @param count
+	 */
+	private void recordEvent(final Event event, final long count)
+	{
+		config.getCounterMetrics().recordEvent(event, count);
+	}
+
+	/**
+	 * @return The {@link CounterCache} in which this service caches counts.
 	 */
-	private String assembleCounterKeyforMemcache(String counterName)
+	CounterCache getCounterCache()
 	{
-		return counterName;
+		return this.counterCache;
 	}
 
 	/**
@@ -774,4 +2980,20 @@ public class ShardedCounterService implements CounterService
 		}
 	}
 
+	/**
+	 * Internal unchecked exception thrown from inside a shard transaction when
+	 * the counter, as re-read by that transaction, no longer exists or is being
+	 * deleted. This exception is unchecked because to operate properly inside
+	 * of the Objectify {@link Work} interface.
+	 */
+	private static final class CounterUnavailableException extends RuntimeException
+	{
+		private static final long serialVersionUID = 4170937546293815367L;
+
+		public CounterUnavailableException(String message)
+		{
+			super(message);
+		}
+	}
+
 }
@@ -38,6 +38,69 @@ public class ShardedCounterServiceConfiguration
 	// The number of shards to begin with for this counter.
 	static final int DEFAULT_NUM_COUNTER_SHARDS = 1;
 
+	// The maximum number of CounterShards to load in a single batch-get.
+	static final int DEFAULT_SHARD_LOAD_BATCH_SIZE = 1000;
+
+	// The upper bound for the number of shards that auto-resharding may grow a
+	// counter to.
+	static final int DEFAULT_MAX_NUM_SHARDS = 100;
+
+	// The number of shard transactions that are observed before deciding
+	// whether to reshard a counter.
+	static final int DEFAULT_RESHARD_SAMPLE_SIZE = 50;
+
+	// The average number of transaction retries per shard transaction above
+	// which a counter is considered hot.
+	static final double DEFAULT_RESHARD_RETRY_RATIO_THRESHOLD = 0.25;
+
+	// The minimum amount of time between two reshards of the same counter.
+	static final long DEFAULT_RESHARD_COOLDOWN_MILLIS = 60000L;
+
+	// The amount of time to wait before folding the shards of a compacted
+	// counter.
+	static final long DEFAULT_COMPACTION_DELAY_MILLIS = 60000L;
+
+	// The metadata cache is disabled by default.
+	static final int DEFAULT_COUNTER_METADATA_CACHE_MAX_SIZE = 0;
+
+	// Cached Counter metadata expires after 5 seconds by default.
+	static final long DEFAULT_COUNTER_METADATA_CACHE_EXPIRATION_MILLIS = 5000L;
+
+	// Shards are chosen uniformly at random by default.
+	static final ShardSelector DEFAULT_SHARD_SELECTOR = new RandomShardSelector();
+
+	// Metrics are discarded by default.
+	static final CounterMetrics DEFAULT_COUNTER_METRICS = new NoOpCounterMetrics();
+
+	// The default number of counter shards to delete per batch (the Datastore's
+	// limit for a single batch operation).
+	static final int DEFAULT_DELETE_SHARD_BATCH_SIZE = 500;
+
+	// The default amount of time a single deletion task may spend deleting
+	// counter shards.
+	static final long DEFAULT_DELETE_TASK_TIME_BUDGET_MILLIS = 60000L;
+
+	// Inline deletion is disabled by default.
+	static final int DEFAULT_INLINE_DELETION_MAX_SHARDS = 0;
+
+	// The L1 count cache is disabled by default.
+	static final int DEFAULT_L1_COUNT_CACHE_MAX_SIZE = 0;
+
+	// Counts are served from the L1 count cache for at most 1 second by default.
+	static final long DEFAULT_L1_COUNT_CACHE_EXPIRATION_MILLIS = 1000L;
+
+	// Callers wait up to 1 second for another caller to recompute a count.
+	static final long DEFAULT_COUNT_RECOMPUTE_LEASE_MILLIS = 1000L;
+
+	// Stale-while-revalidate reads are disabled by default.
+	static final long DEFAULT_CACHED_COUNT_FRESHNESS_MILLIS = 0L;
+
+	// A refresh task is expected to run within 1 minute of being enqueued.
+	static final long DEFAULT_COUNT_REFRESH_LEASE_MILLIS = 60000L;
+
+	// Materialized counts are disabled by default.
+	static final long DEFAULT_ROLLUP_INTERVAL_MILLIS = 0L;
+
 	// The number of counter shards to create when a new counter is created. The
 	// default value is 1.
 	private final int numInitialShards;
@@ -50,6 +113,165 @@ public class ShardedCounterServiceConfiguration
 	// queue used to delete CounterShards.
 	private final String relativeUrlPathForDeleteTaskQueue;
 
+	// The maximum number of CounterShards to load in a single batch-get when
+	// aggregating a counter's count. Counters with more shards than this are
+	// loaded in multiple batches, which are fetched concurrently.
+	private final int shardLoadBatchSize;
+
+	// When true, the number of shards of a counter is automatically increased
+	// (up to maxNumShards) whenever the shard transactions of that counter are
+	// observed to be retrying too often due to contention.
+	private final boolean autoReshardingEnabled;
+
+	// The number of shards that auto-resharding will never grow a counter
+	// beyond.
+	private final int maxNumShards;
+
+	// The number of shard transactions (per counter) that are observed before
+	// the retry ratio of a counter is evaluated. Each evaluation starts a new
+	// sample.
+	private final int reshardSampleSize;
+
+	// The average number of retries (due to ConcurrentModificationExceptions)
+	// per shard transaction at or above which a counter's shards are grown.
+	private final double reshardRetryRatioThreshold;
+
+	// The minimum number of milliseconds between two reshards of the same
+	// counter, so that the effect of a reshard is observed before the counter
+	// is grown again.
+	private final long reshardCooldownMillis;
+
+	// The name of the queue that will be used to fold the counts of removed
+	// shards into the remaining shards of a compacted counter. If null, the
+	// default queue is used.
+	private final String compactCounterShardQueueName;
+
+	// The optional value of {@link TaskBuilder#url} when interacting with the
+	// queue used to compact CounterShards. Compaction tasks must be routed to a
+	// different handler than deletion tasks (i.e., via a different queue or
+	// url).
+	private final String relativeUrlPathForCompactTaskQueue;
+
+	// The number of milliseconds to wait after a counter's numShards is lowered
+	// before its removed shards are folded into the remaining shards. This
+	// gives increments that began before the compaction (and which may still
+	// write to a removed shard) time to complete.
+	private final long compactionDelayMillis;
+
+	// The maximum number of Counters whose metadata (e.g., number of shards and
+	// status) is cached in-memory by each ShardedCounterService, so that
+	// incrementing a counter doesn't require loading its Counter from the
+	// Datastore. Zero (the default) disables this cache.
+	private final int counterMetadataCacheMaxSize;
+
+	// The number of milliseconds for which a Counter's metadata may be served
+	// from the metadata cache. Changes to a Counter (e.g., a deletion or a
+	// reshard) only invalidate the cache of the instance that made them, so
+	// other instances observe them once this expires, and may increment a
+	// deleted counter or a removed shard until then. This must not exceed
+	// compactionDelayMillis.
+	private final long counterMetadataCacheExpirationMillis;
+
+	// The strategy for choosing which shard of a counter to increment or
+	// decrement. Defaults to a RandomShardSelector.
+	private final ShardSelector shardSelector;
+
+	// When true, the count of an individual CounterShard may go negative, so
+	// that a decrement writes to a single shard in one transaction, exactly
+	// like an increment. The sum of a counter's shards is never reported as
+	// less than zero. When false (the default), only shards with a positive
+	// count are decremented, which may require trying several shards.
+	private final boolean signedShardsEnabled;
+
+	// When true, the increments that concurrent threads of this instance make
+	// to the same counter are combined into a single shard transaction,
+	// performed by one of the threads on behalf of the others. Every caller
+	// still returns only once its increment has been committed. Defaults to
+	// false.
+	private final boolean incrementCombiningEnabled;
+
+	// The sink for the latency and event metrics emitted by the service.
+	// Defaults to a NoOpCounterMetrics.
+	private final CounterMetrics counterMetrics;
+
+	// The number of counter shards that the deletion task deletes per
+	// asynchronous batch, after which it checkpoints its progress on the
+	// counter.
+	private final int deleteShardBatchSize;
+
+	// The amount of time a single deletion task may spend deleting counter
+	// shards before it enqueues a continuation task to delete the rest, so that
+	// large counters are deleted within the task deadline.
+	private final long deleteTaskTimeBudgetMillis;
+
+	// Counters with at most this many shards are deleted immediately by
+	// ShardedCounterService#delete, in a single batch, rather than by a Task
+	// Queue job. Zero (the default) deletes every counter via the Task Queue.
+	private final int inlineDeletionMaxShards;
+
+	// The maximum number of counts that each ShardedCounterService caches
+	// in-memory (an L1 cache) in front of its CounterCache, so that repeated
+	// reads of a hot counter don't each require a memcache RPC. Zero (the
+	// default) disables this cache.
+	private final int l1CountCacheMaxSize;
+
+	// The maximum number of milliseconds for which a count may be served from
+	// the L1 count cache, which bounds how stale a count may be with respect to
+	// increments made by other instances.
+	private final long l1CountCacheExpirationMillis;
+
+	// When a counter's count isn't cached, the one caller that acquires a lease
+	// in the CounterCache aggregates the counter's shards, while other callers
+	// (on any instance) wait up to this many milliseconds for it to cache the
+	// count. Zero disables the lease, so every instance that misses aggregates
+	// the shards (concurrent misses within one instance are always coalesced).
+	private final long countRecomputeLeaseMillis;
+
+	// When greater than zero, enables stale-while-revalidate reads: counts
+	// aggregated from the shards are cached for this many milliseconds, while
+	// the last known count (and when it was aggregated) is cached indefinitely.
+	// Once a count expires, reads return the last known count right away, and a
+	// refresh task (see CounterService#onTaskQueueCounterRefresh) re-aggregates
+	// the shards in the background. Zero (the default) caches counts
+	// indefinitely, and reads that miss the cache aggregate the shards
+	// themselves.
+	private final long cachedCountFreshnessMillis;
+
+	// Only one refresh task per counter is enqueued at a time: enqueueing one
+	// acquires a lease that the task releases once it has run. This is the
+	// number of milliseconds after which the lease expires anyway (e.g., if
+	// the task is lost), so it should exceed the latency of the refresh queue.
+	private final long countRefreshLeaseMillis;
+
+	// The name of the queue that will be used to refresh the cached counts of
+	// counters whose cached counts have expired. If null, the default queue is
+	// used.
+	private final String refreshCounterQueueName;
+
+	// The optional value of {@link TaskBuilder#url} when interacting with the
+	// queue used to refresh cached counts. Refresh tasks carry
+	// CounterService.TaskType#REFRESH (see CounterService#TASK_TYPE).
+	private final String relativeUrlPathForRefreshTaskQueue;
+
+	// When greater than zero, enables materialized counts: a rollup task (see
+	// CounterService#onTaskQueueCounterRollup) sums a counter's shards into its
+	// materialized count, while increments and decrements since then are
+	// tracked in the CounterCache, so that a counter whose count isn't cached
+	// can be read with a single Counter get (instead of one get per shard). A
+	// rollup is scheduled when a counter is read and its materialized count is
+	// older than this many milliseconds (or its tracked delta was evicted).
+	// Zero (the default) disables materialized counts.
+	private final long rollupIntervalMillis;
+
+	// The name of the queue that will be used to roll up the shards of counters
+	// into their materialized counts. If null, the default queue is used.
+	private final String rollupCounterQueueName;
+
+	// The optional value of {@link TaskBuilder#url} when interacting with the
+	// queue used to roll up counters. Rollup tasks carry
+	// CounterService.TaskType#ROLLUP (see CounterService#TASK_TYPE).
+	private final String relativeUrlPathForRollupTaskQueue;
+
 	/**
 	 * The default constructor for building a ShardedCounterService
 	 * configuration class. Private so that only the builder can build this
@@ -63,6 +285,34 @@ public class ShardedCounterServiceConfiguration
 		this.numInitialShards = builder.numInitialShards;
 		this.deleteCounterShardQueueName = builder.deleteCounterShardQueueName;
 		this.relativeUrlPathForDeleteTaskQueue = builder.relativeUrlPathForDeleteTaskQueue;
+		this.shardLoadBatchSize = builder.shardLoadBatchSize;
+		this.autoReshardingEnabled = builder.autoReshardingEnabled;
+		this.maxNumShards = builder.maxNumShards;
+		this.reshardSampleSize = builder.reshardSampleSize;
+		this.reshardRetryRatioThreshold = builder.reshardRetryRatioThreshold;
+		this.reshardCooldownMillis = builder.reshardCooldownMillis;
+		this.compactCounterShardQueueName = builder.compactCounterShardQueueName;
+		this.relativeUrlPathForCompactTaskQueue = builder.relativeUrlPathForCompactTaskQueue;
+		this.compactionDelayMillis = builder.compactionDelayMillis;
+		this.counterMetadataCacheMaxSize = builder.counterMetadataCacheMaxSize;
+		this.counterMetadataCacheExpirationMillis = builder.counterMetadataCacheExpirationMillis;
+		this.shardSelector = builder.shardSelector;
+		this.signedShardsEnabled = builder.signedShardsEnabled;
+		this.incrementCombiningEnabled = builder.incrementCombiningEnabled;
+		this.counterMetrics = builder.counterMetrics;
+		this.deleteShardBatchSize = builder.deleteShardBatchSize;
+		this.deleteTaskTimeBudgetMillis = builder.deleteTaskTimeBudgetMillis;
+		this.inlineDeletionMaxShards = builder.inlineDeletionMaxShards;
+		this.l1CountCacheMaxSize = builder.l1CountCacheMaxSize;
+		this.l1CountCacheExpirationMillis = builder.l1CountCacheExpirationMillis;
+		this.countRecomputeLeaseMillis = builder.countRecomputeLeaseMillis;
+		this.cachedCountFreshnessMillis = builder.cachedCountFreshnessMillis;
+		this.countRefreshLeaseMillis = builder.countRefreshLeaseMillis;
+		this.refreshCounterQueueName = builder.refreshCounterQueueName;
+		this.relativeUrlPathForRefreshTaskQueue = builder.relativeUrlPathForRefreshTaskQueue;
+		this.rollupIntervalMillis = builder.rollupIntervalMillis;
+		this.rollupCounterQueueName = builder.rollupCounterQueueName;
+		this.relativeUrlPathForRollupTaskQueue = builder.relativeUrlPathForRollupTaskQueue;
 	}
 
 	/**
@@ -96,12 +346,143 @@ public class ShardedCounterServiceConfiguration
 		@Setter
 		private String relativeUrlPathForDeleteTaskQueue;
 
+		@Getter
+		@Setter
+		private int shardLoadBatchSize;
+
+		@Getter
+		@Setter
+		private boolean autoReshardingEnabled;
+
+		@Getter
+		@Setter
+		private int maxNumShards;
+
+		@Getter
+		@Setter
+		private int reshardSampleSize;
+
+		@Getter
+		@Setter
+		private double reshardRetryRatioThreshold;
+
+		@Getter
+		@Setter
+		private long reshardCooldownMillis;
+
+		@Getter
+		@Setter
+		private String compactCounterShardQueueName;
+
+		@Getter
+		@Setter
+		private String relativeUrlPathForCompactTaskQueue;
+
+		@Getter
+		@Setter
+		private long compactionDelayMillis;
+
+		@Getter
+		@Setter
+		private int counterMetadataCacheMaxSize;
+
+		@Getter
+		@Setter
+		private long counterMetadataCacheExpirationMillis;
+
+		@Getter
+		@Setter
+		private ShardSelector shardSelector;
+
+		@Getter
+		@Setter
+		private boolean signedShardsEnabled;
+
+		@Getter
+		@Setter
+		private boolean incrementCombiningEnabled;
+
+		@Getter
+		@Setter
+		private CounterMetrics counterMetrics;
+
+		@Getter
+		@Setter
+		private int deleteShardBatchSize;
+
+		@Getter
+		@Setter
+		private long deleteTaskTimeBudgetMillis;
+
+		@Getter
+		@Setter
+		private int inlineDeletionMaxShards;
+
+		@Getter
+		@Setter
+		private int l1CountCacheMaxSize;
+
+		@Getter
+		@Setter
+		private long l1CountCacheExpirationMillis;
+
+		@Getter
+		@Setter
+		private long countRecomputeLeaseMillis;
+
+		@Getter
+		@Setter
+		private long cachedCountFreshnessMillis;
+
+		@Getter
+		@Setter
+		private long countRefreshLeaseMillis;
+
+		@Getter
+		@Setter
+		private String refreshCounterQueueName;
+
+		@Getter
+		@Setter
+		private String relativeUrlPathForRefreshTaskQueue;
+
+		@Getter
+		@Setter
+		private long rollupIntervalMillis;
+
+		@Getter
+		@Setter
+		private String rollupCounterQueueName;
+
+		@Getter
+		@Setter
+		private String relativeUrlPathForRollupTaskQueue;
+
 		/**
 		 * Default Constructor. Sets up this buildr with 1 shard by default.
 		 */
 		public Builder()
 		{
 			this.numInitialShards = DEFAULT_NUM_COUNTER_SHARDS;
+			this.shardLoadBatchSize = DEFAULT_SHARD_LOAD_BATCH_SIZE;
+			this.maxNumShards = DEFAULT_MAX_NUM_SHARDS;
+			this.reshardSampleSize = DEFAULT_RESHARD_SAMPLE_SIZE;
+			this.reshardRetryRatioThreshold = DEFAULT_RESHARD_RETRY_RATIO_THRESHOLD;
+			this.reshardCooldownMillis = DEFAULT_RESHARD_COOLDOWN_MILLIS;
+			this.compactionDelayMillis = DEFAULT_COMPACTION_DELAY_MILLIS;
+			this.counterMetadataCacheMaxSize = DEFAULT_COUNTER_METADATA_CACHE_MAX_SIZE;
+			this.counterMetadataCacheExpirationMillis = DEFAULT_COUNTER_METADATA_CACHE_EXPIRATION_MILLIS;
+			this.shardSelector = DEFAULT_SHARD_SELECTOR;
+			this.counterMetrics = DEFAULT_COUNTER_METRICS;
+			this.deleteShardBatchSize = DEFAULT_DELETE_SHARD_BATCH_SIZE;
+			this.deleteTaskTimeBudgetMillis = DEFAULT_DELETE_TASK_TIME_BUDGET_MILLIS;
+			this.inlineDeletionMaxShards = DEFAULT_INLINE_DELETION_MAX_SHARDS;
+			this.l1CountCacheMaxSize = DEFAULT_L1_COUNT_CACHE_MAX_SIZE;
+			this.l1CountCacheExpirationMillis = DEFAULT_L1_COUNT_CACHE_EXPIRATION_MILLIS;
+			this.countRecomputeLeaseMillis = DEFAULT_COUNT_RECOMPUTE_LEASE_MILLIS;
+			this.cachedCountFreshnessMillis = DEFAULT_CACHED_COUNT_FRESHNESS_MILLIS;
+			this.countRefreshLeaseMillis = DEFAULT_COUNT_REFRESH_LEASE_MILLIS;
+			this.rollupIntervalMillis = DEFAULT_ROLLUP_INTERVAL_MILLIS;
 		}
 
 		public Builder withNumInitialShards(int numInitialShards)
@@ -124,6 +505,195 @@ public class ShardedCounterServiceConfiguration
 			return this;
 		}
 
+		public Builder withShardLoadBatchSize(int shardLoadBatchSize)
+		{
+			Preconditions.checkArgument(shardLoadBatchSize > 0, "Shard load batch size must be greater than 0!");
+			this.shardLoadBatchSize = shardLoadBatchSize;
+			return this;
+		}
+
+		public Builder withAutoReshardingEnabled(boolean autoReshardingEnabled)
+		{
+			this.autoReshardingEnabled = autoReshardingEnabled;
+			return this;
+		}
+
+		public Builder withMaxNumShards(int maxNumShards)
+		{
+			Preconditions.checkArgument(maxNumShards > 0, "Maximum number of Shards must be greater than 0!");
+			this.maxNumShards = maxNumShards;
+			return this;
+		}
+
+		public Builder withReshardSampleSize(int reshardSampleSize)
+		{
+			Preconditions.checkArgument(reshardSampleSize > 0, "Reshard sample size must be greater than 0!");
+			this.reshardSampleSize = reshardSampleSize;
+			return this;
+		}
+
+		public Builder withReshardRetryRatioThreshold(double reshardRetryRatioThreshold)
+		{
+			Preconditions.checkArgument(reshardRetryRatioThreshold > 0, "Reshard retry-ratio threshold must be greater than 0!");
+			this.reshardRetryRatioThreshold = reshardRetryRatioThreshold;
+			return this;
+		}
+
+		public Builder withReshardCooldownMillis(long reshardCooldownMillis)
+		{
+			Preconditions.checkArgument(reshardCooldownMillis >= 0, "Reshard cooldown must not be negative!");
+			this.reshardCooldownMillis = reshardCooldownMillis;
+			return this;
+		}
+
+		public Builder withCompactCounterShardQueueName(String compactCounterShardQueueName)
+		{
+			this.compactCounterShardQueueName = compactCounterShardQueueName;
+			return this;
+		}
+
+		public Builder withRelativeUrlPathForCompactTaskQueue(String relativeUrlPathForCompactTaskQueue)
+		{
+			this.relativeUrlPathForCompactTaskQueue = relativeUrlPathForCompactTaskQueue;
+			return this;
+		}
+
+		public Builder withCompactionDelayMillis(long compactionDelayMillis)
+		{
+			Preconditions.checkArgument(compactionDelayMillis >= 0, "Compaction delay must not be negative!");
+			this.compactionDelayMillis = compactionDelayMillis;
+			return this;
+		}
+
+		public Builder withCounterMetadataCacheMaxSize(int counterMetadataCacheMaxSize)
+		{
+			Preconditions.checkArgument(counterMetadataCacheMaxSize >= 0,
+				"Counter metadata cache size must not be negative!");
+			this.counterMetadataCacheMaxSize = counterMetadataCacheMaxSize;
+			return this;
+		}
+
+		public Builder withCounterMetadataCacheExpirationMillis(long counterMetadataCacheExpirationMillis)
+		{
+			Preconditions.checkArgument(counterMetadataCacheExpirationMillis >= 0,
+				"Counter metadata cache expiration must not be negative!");
+			this.counterMetadataCacheExpirationMillis = counterMetadataCacheExpirationMillis;
+			return this;
+		}
+
+		public Builder withShardSelector(ShardSelector shardSelector)
+		{
+			Preconditions.checkNotNull(shardSelector);
+			this.shardSelector = shardSelector;
+			return this;
+		}
+
+		public Builder withSignedShardsEnabled(boolean signedShardsEnabled)
+		{
+			this.signedShardsEnabled = signedShardsEnabled;
+			return this;
+		}
+
+		public Builder withIncrementCombiningEnabled(boolean incrementCombiningEnabled)
+		{
+			this.incrementCombiningEnabled = incrementCombiningEnabled;
+			return this;
+		}
+
+		public Builder withCounterMetrics(CounterMetrics counterMetrics)
+		{
+			Preconditions.checkNotNull(counterMetrics);
+			this.counterMetrics = counterMetrics;
+			return this;
+		}
+
+		public Builder withDeleteShardBatchSize(int deleteShardBatchSize)
+		{
+			Preconditions.checkArgument(deleteShardBatchSize > 0, "Delete shard batch size must be greater than 0!");
+			this.deleteShardBatchSize = deleteShardBatchSize;
+			return this;
+		}
+
+		public Builder withDeleteTaskTimeBudgetMillis(long deleteTaskTimeBudgetMillis)
+		{
+			Preconditions.checkArgument(deleteTaskTimeBudgetMillis > 0, "Delete task time budget must be greater than 0!");
+			this.deleteTaskTimeBudgetMillis = deleteTaskTimeBudgetMillis;
+			return this;
+		}
+
+		public Builder withInlineDeletionMaxShards(int inlineDeletionMaxShards)
+		{
+			Preconditions.checkArgument(inlineDeletionMaxShards >= 0, "Inline deletion max shards must not be negative!");
+			this.inlineDeletionMaxShards = inlineDeletionMaxShards;
+			return this;
+		}
+
+		public Builder withL1CountCacheMaxSize(int l1CountCacheMaxSize)
+		{
+			Preconditions.checkArgument(l1CountCacheMaxSize >= 0, "L1 count cache size must not be negative!");
+			this.l1CountCacheMaxSize = l1CountCacheMaxSize;
+			return this;
+		}
+
+		public Builder withL1CountCacheExpirationMillis(long l1CountCacheExpirationMillis)
+		{
+			Preconditions.checkArgument(l1CountCacheExpirationMillis > 0, "L1 count cache expiration must be greater than 0!");
+			this.l1CountCacheExpirationMillis = l1CountCacheExpirationMillis;
+			return this;
+		}
+
+		public Builder withCountRecomputeLeaseMillis(long countRecomputeLeaseMillis)
+		{
+			Preconditions.checkArgument(countRecomputeLeaseMillis >= 0, "Count recompute lease must not be negative!");
+			this.countRecomputeLeaseMillis = countRecomputeLeaseMillis;
+			return this;
+		}
+
+		public Builder withCachedCountFreshnessMillis(long cachedCountFreshnessMillis)
+		{
+			Preconditions.checkArgument(cachedCountFreshnessMillis >= 0, "Cached count freshness must not be negative!");
+			this.cachedCountFreshnessMillis = cachedCountFreshnessMillis;
+			return this;
+		}
+
+		public Builder withCountRefreshLeaseMillis(long countRefreshLeaseMillis)
+		{
+			Preconditions.checkArgument(countRefreshLeaseMillis > 0, "Count refresh lease must be greater than 0!");
+			this.countRefreshLeaseMillis = countRefreshLeaseMillis;
+			return this;
+		}
+
+		public Builder withRefreshCounterQueueName(String refreshCounterQueueName)
+		{
+			this.refreshCounterQueueName = refreshCounterQueueName;
+			return this;
+		}
+
+		public Builder withRelativeUrlPathForRefreshTaskQueue(String relativeUrlPathForRefreshTaskQueue)
+		{
+			this.relativeUrlPathForRefreshTaskQueue = relativeUrlPathForRefreshTaskQueue;
+			return this;
+		}
+
+		public Builder withRollupIntervalMillis(long rollupIntervalMillis)
+		{
+			Preconditions.checkArgument(rollupIntervalMillis >= 0, "Rollup interval must not be negative!");
+			this.rollupIntervalMillis = rollupIntervalMillis;
+			return this;
+		}
+
+		public Builder withRollupCounterQueueName(String rollupCounterQueueName)
+		{
+			this.rollupCounterQueueName = rollupCounterQueueName;
+			return this;
+		}
+
+		public Builder withRelativeUrlPathForRollupTaskQueue(String relativeUrlPathForRollupTaskQueue)
+		{
+			this.relativeUrlPathForRollupTaskQueue = relativeUrlPathForRollupTaskQueue;
+			return this;
+		}
+
 		/**
 		 * Method to build a new {@link ShardedCounterServiceConfiguration}.
 		 * 
@@ -0,0 +1,87 @@
+/**
+ * Copyright (c) 2012 Sappenin Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.sappenin.objectify.shardedcounter.service;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import com.google.common.base.Throwables;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.Uninterruptibles;
+
+/**
+ * Coalesces concurrent computations of the same value (i.e., "single flight"),
+ * so that when several threads need the value for the same key at once, only
+ * the first of them computes it, and the rest wait for and share its
+ * result.<br/>
+ * <br/>
+ * A result is only shared with the callers that arrive while it is being
+ * computed. Once a computation completes, the next caller for its key starts a
+ * new one. If a computation throws, then every caller that shared it receives
+ * the same exception.<br/>
+ * <br/>
+ * This class is thread-safe.
+ * 
+ * @author David Fuelling <sappenin@gmail.com>
+ */
+class SingleFlight<V>
+{
+	// The computations in progress, keyed by the key of the value each
+	// computes.
+	private final ConcurrentMap<String, FutureTask<V>> inFlight = Maps.newConcurrentMap();
+
+	/**
+	 * Computes the value for {@code key} via {@code callable}, unless another
+	 * thread is already computing it, in which case that thread's result is
+	 * returned instead.
+	 * 
+	 * @param key
+	 * @param callable
+	 * @return
+	 */
+	V execute(final String key, final Callable<V> callable)
+	{
+		FutureTask<V> computation = new FutureTask<V>(callable);
+		final FutureTask<V> existingComputation = inFlight.putIfAbsent(key, computation);
+		if (existingComputation == null)
+		{
+			try
+			{
+				computation.run();
+			}
+			finally
+			{
+				inFlight.remove(key, computation);
+			}
+		}
+		else
+		{
+			computation = existingComputation;
+		}
+
+		try
+		{
+			return Uninterruptibles.getUninterruptibly(computation);
+		}
+		catch (ExecutionException e)
+		{
+			throw Throwables.propagate(e.getCause());
+		}
+	}
+
+}
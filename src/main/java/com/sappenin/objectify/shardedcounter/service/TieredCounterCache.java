@@ -0,0 +1,212 @@
+/**
+ * Copyright (c) 2012 Sappenin Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.sappenin.objectify.shardedcounter.service;
+
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Future;
+
+import com.google.common.base.Function;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.Futures;
+
+/**
+ * A {@link CounterCache} that serves counts from a short-lived, in-JVM first
+ * tier (L1) in front of a shared second tier (L2, e.g. memcache), so that
+ * repeated reads of a hot counter by the same instance don't each cost an L2
+ * RPC.<br/>
+ * <br/>
+ * Counts read from L2 are cached in L1 for at most {@code l1ExpirationMillis},
+ * which bounds how stale a count served by this cache may be with respect to
+ * increments made by other instances. Increments made through this cache
+ * update both tiers, so this instance observes its own increments right away.
+ * 
+ * @author David Fuelling <sappenin@gmail.com>
+ */
+public class TieredCounterCache implements CounterCache
+{
+	private final InMemoryCounterCache l1;
+	private final CounterCache l2;
+	private final long l1ExpirationMillis;
+
+	/**
+	 * Required-args Constructor.
+	 * 
+	 * @param l1 The first (in-JVM) tier.
+	 * @param l2 The second (shared) tier.
+	 * @param l1ExpirationMillis The maximum number of milliseconds for which a
+	 *            count is served from {@code l1}.
+	 */
+	public TieredCounterCache(final InMemoryCounterCache l1, final CounterCache l2, final long l1ExpirationMillis)
+	{
+		Preconditions.checkNotNull(l1);
+		Preconditions.checkNotNull(l2);
+		Preconditions.checkArgument(l1ExpirationMillis > 0, "L1 expiration must be greater than 0!");
+
+		this.l1 = l1;
+		this.l2 = l2;
+		this.l1ExpirationMillis = l1ExpirationMillis;
+	}
+
+	@Override
+	public Long get(final String counterName)
+	{
+		Long count = l1.get(counterName);
+		if (count == null)
+		{
+			count = l2.get(counterName);
+			if (count != null)
+			{
+				l1.put(counterName, count, l1ExpirationMillis);
+			}
+		}
+		return count;
+	}
+
+	@Override
+	public Future<Long> getAsync(final String counterName)
+	{
+		final Long count = l1.get(counterName);
+		if (count != null)
+		{
+			return Futures.immediateFuture(count);
+		}
+
+		return new MemoizingTransformedFuture<Long, Long>(l2.getAsync(counterName), new Function<Long, Long>()
+		{
+			@Override
+			public Long apply(Long cachedCount)
+			{
+				if (cachedCount != null)
+				{
+					l1.put(counterName, cachedCount, l1ExpirationMillis);
+				}
+				return cachedCount;
+			}
+		});
+	}
+
+	@Override
+	public Map<String, Long> getAll(final Collection<String> counterNames)
+	{
+		final Map<String, Long> counts = Maps.newHashMap(l1.getAll(counterNames));
+		final Set<String> l1Misses = Sets.newHashSet(counterNames);
+		l1Misses.removeAll(counts.keySet());
+		if (!l1Misses.isEmpty())
+		{
+			final Map<String, Long> l2Counts = l2.getAll(l1Misses);
+			l1.putAll(l2Counts, l1ExpirationMillis);
+			counts.putAll(l2Counts);
+		}
+		return counts;
+	}
+
+	@Override
+	public void put(final String counterName, final long count, final long expirationMillis)
+	{
+		l2.put(counterName, count, expirationMillis);
+		l1.put(counterName, count, this.toL1ExpirationMillis(expirationMillis));
+	}
+
+	@Override
+	public void putAll(final Map<String, Long> counts, final long expirationMillis)
+	{
+		l2.putAll(counts, expirationMillis);
+		l1.putAll(counts, this.toL1ExpirationMillis(expirationMillis));
+	}
+
+	@Override
+	public Long increment(final String counterName, final long delta, final long initialValue)
+	{
+		final Long count = l2.increment(counterName, delta, initialValue);
+		if (count == null)
+		{
+			l1.delete(counterName);
+		}
+		else
+		{
+			// L2's count includes increments made by other instances.
+			l1.put(counterName, count, l1ExpirationMillis);
+		}
+		return count;
+	}
+
+	@Override
+	public void incrementAsync(final String counterName, final long delta)
+	{
+		l2.incrementAsync(counterName, delta);
+		l1.incrementAsync(counterName, delta);
+	}
+
+	@Override
+	public Map<String, Long> incrementAll(final Map<String, Long> deltas)
+	{
+		final Map<String, Long> counts = l2.incrementAll(deltas);
+		l1.deleteAll(Sets.difference(deltas.keySet(), counts.keySet()));
+		l1.putAll(counts, l1ExpirationMillis);
+		return counts;
+	}
+
+	@Override
+	public void delete(final String counterName)
+	{
+		l1.delete(counterName);
+		l2.delete(counterName);
+	}
+
+	@Override
+	public void deleteAll(final Collection<String> counterNames)
+	{
+		l1.deleteAll(counterNames);
+		l2.deleteAll(counterNames);
+	}
+
+	@Override
+	public LastKnownCount getLastKnownCount(final String counterName)
+	{
+		// Only read after a cached count expires, so L1 isn't consulted.
+		return l2.getLastKnownCount(counterName);
+	}
+
+	@Override
+	public void putLastKnownCount(final String counterName, final LastKnownCount lastKnownCount)
+	{
+		l2.putLastKnownCount(counterName, lastKnownCount);
+	}
+
+	@Override
+	public boolean tryAcquireRecomputeLease(final String counterName, final String owner, final long leaseMillis)
+	{
+		// The lease must be shared by every instance.
+		return l2.tryAcquireRecomputeLease(counterName, owner, leaseMillis);
+	}
+
+	@Override
+	public void releaseRecomputeLease(final String counterName, final String owner)
+	{
+		l2.releaseRecomputeLease(counterName, owner);
+	}
+
+	private long toL1ExpirationMillis(final long expirationMillis)
+	{
+		return expirationMillis == NO_EXPIRATION ? l1ExpirationMillis : Math.min(expirationMillis,
+			l1ExpirationMillis);
+	}
+
+}
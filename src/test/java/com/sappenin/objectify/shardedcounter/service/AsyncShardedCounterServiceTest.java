@@ -0,0 +1,211 @@
+/**
+ * Copyright (c) 2012 Sappenin Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.sappenin.objectify.shardedcounter.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.apphosting.api.ApiProxy;
+import com.google.common.base.Optional;
+import com.google.common.collect.Lists;
+import com.googlecode.objectify.ObjectifyService;
+import com.sappenin.objectify.BaseObjectifyTest;
+import com.sappenin.objectify.shardedcounter.data.Counter;
+import com.sappenin.objectify.shardedcounter.data.CounterShard;
+import com.sappenin.objectify.translate.UTCReadableInstantTranslatorFactory;
+
+/**
+ * Test class for {@link AsyncShardedCounterService}.
+ * 
+ * @author David Fuelling <sappenin@gmail.com>
+ */
+public class AsyncShardedCounterServiceTest extends BaseObjectifyTest
+{
+	private static final String TEST_COUNTER1 = "test-counter1";
+	private static final String TEST_COUNTER2 = "test-counter2";
+
+	ShardedCounterService shardedCounterService;
+	AsyncCounterService asyncCounterService;
+	ExecutorService executorService;
+
+	@Before
+	public void setUp() throws Exception
+	{
+		super.setUp();
+
+		ObjectifyService.ofy().clear();
+		// Must be added before registering entities...
+		ObjectifyService.factory().getTranslators().add(new UTCReadableInstantTranslatorFactory());
+
+		ObjectifyService.factory().register(Counter.class);
+		ObjectifyService.factory().register(CounterShard.class);
+
+		// The App Engine test harness only services API calls from threads
+		// that have an API environment, so share this thread's environment
+		// with the executor's threads (as ThreadManager does in production).
+		final ApiProxy.Environment environment = ApiProxy.getCurrentEnvironment();
+		executorService = Executors.newFixedThreadPool(4, new ThreadFactory()
+		{
+			@Override
+			public Thread newThread(final Runnable runnable)
+			{
+				return new Thread(new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						ApiProxy.setEnvironmentForCurrentThread(environment);
+						runnable.run();
+					}
+				});
+			}
+		});
+
+		shardedCounterService = new ShardedCounterService(MemcacheServiceFactory.getMemcacheService(),
+			new ShardedCounterServiceConfiguration.Builder().withNumInitialShards(3).build());
+		asyncCounterService = new AsyncShardedCounterService(shardedCounterService, executorService);
+	}
+
+	@After
+	public void tearDown()
+	{
+		executorService.shutdownNow();
+		super.tearDown();
+	}
+
+	// /////////////////////////
+	// Unit Tests
+	// /////////////////////////
+
+	@Test(expected = NullPointerException.class)
+	public void testConstructor_NullExecutor()
+	{
+		new AsyncShardedCounterService(shardedCounterService, null);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testIncrement_NegativeAmount()
+	{
+		asyncCounterService.increment(TEST_COUNTER1, -1);
+	}
+
+	@Test
+	public void testGetCounter_NonExistent() throws Exception
+	{
+		assertFalse(asyncCounterService.getCounter(TEST_COUNTER1).get().isPresent());
+	}
+
+	@Test
+	public void testGetCounter_CachedAndUncached() throws Exception
+	{
+		shardedCounterService.increment(TEST_COUNTER1, 3);
+
+		// Served from memcache
+		Optional<Counter> optCounter = asyncCounterService.getCounter(TEST_COUNTER1).get();
+		assertTrue(optCounter.isPresent());
+		assertEquals(3, optCounter.get().getApproximateCount());
+
+		// Aggregated from the shards
+		memcache.clearAll();
+		optCounter = asyncCounterService.getCounter(TEST_COUNTER1).get();
+		assertTrue(optCounter.isPresent());
+		assertEquals(3, optCounter.get().getApproximateCount());
+	}
+
+	@Test
+	public void testGetCounter_ResumesInterruptedLegacyMigration() throws Exception
+	{
+		Counter legacyCounter = new Counter(TEST_COUNTER1, 2);
+		legacyCounter.setParent(Counter.legacyParentKey());
+		ObjectifyService.ofy().save().entity(legacyCounter).now();
+		CounterShard legacyCounterShard = new CounterShard(TEST_COUNTER1, 1);
+		legacyCounterShard.setParent(Counter.legacyParentKey());
+		legacyCounterShard.setCount(5);
+		ObjectifyService.ofy().save().entity(legacyCounterShard).now();
+
+		// Simulate a migration that stopped after the new Counter was saved,
+		// and whose (partial) count was cached.
+		Counter counter = new Counter(TEST_COUNTER1, 2);
+		counter.setMigratingFromLegacyParent(true);
+		ObjectifyService.ofy().save().entity(counter).now();
+		shardedCounterService.getCounterCache().put(TEST_COUNTER1, 0L, CounterCache.NO_EXPIRATION);
+
+		Counter migratedCounter = asyncCounterService.getCounter(TEST_COUNTER1).get().get();
+		assertEquals(5, migratedCounter.getApproximateCount());
+		assertFalse(migratedCounter.isMigratingFromLegacyParent());
+		ObjectifyService.ofy().clear();
+		assertNull(ObjectifyService.ofy().load().key(legacyCounterShard.getTypedKey()).now());
+		assertNull(ObjectifyService.ofy().load().key(legacyCounter.getTypedKey()).now());
+	}
+
+	@Test
+	public void testIncrementAndDecrement_ManyCounters() throws Exception
+	{
+		shardedCounterService.create(TEST_COUNTER1);
+		shardedCounterService.create(TEST_COUNTER2);
+
+		List<Future<Counter>> futures = Lists.newArrayList();
+		for (int i = 0; i < 10; i++)
+		{
+			futures.add(asyncCounterService.increment(TEST_COUNTER1, 1));
+			futures.add(asyncCounterService.increment(TEST_COUNTER2, 2));
+		}
+		for (Future<Counter> future : futures)
+		{
+			future.get(30, TimeUnit.SECONDS);
+		}
+
+		asyncCounterService.decrement(TEST_COUNTER1).get(30, TimeUnit.SECONDS);
+
+		memcache.clearAll();
+		Future<Optional<Counter>> counter1 = asyncCounterService.getCounter(TEST_COUNTER1);
+		Future<Optional<Counter>> counter2 = asyncCounterService.getCounter(TEST_COUNTER2);
+		assertEquals(9, counter1.get().get().getApproximateCount());
+		assertEquals(20, counter2.get().get().getApproximateCount());
+	}
+
+	@Test(expected = RuntimeException.class)
+	public void testIncrement_CounterIsBeingDeleted() throws Throwable
+	{
+		shardedCounterService.create(TEST_COUNTER1);
+		shardedCounterService.delete(TEST_COUNTER1);
+
+		try
+		{
+			asyncCounterService.increment(TEST_COUNTER1, 1).get(30, TimeUnit.SECONDS);
+		}
+		catch (ExecutionException e)
+		{
+			throw e.getCause();
+		}
+	}
+
+}
@@ -0,0 +1,336 @@
+/**
+ * Copyright (c) 2012 Sappenin Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.sappenin.objectify.shardedcounter.service;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.apphosting.api.ApiProxy;
+import com.google.common.base.Optional;
+import com.google.common.collect.Maps;
+import com.googlecode.objectify.ObjectifyService;
+import com.sappenin.objectify.BaseObjectifyTest;
+import com.sappenin.objectify.shardedcounter.data.Counter;
+import com.sappenin.objectify.shardedcounter.data.CounterShard;
+import com.sappenin.objectify.translate.UTCReadableInstantTranslatorFactory;
+
+/**
+ * Test class for {@link BufferedCounterService}.
+ * 
+ * @author David Fuelling <sappenin@gmail.com>
+ */
+public class BufferedCounterServiceTest extends BaseObjectifyTest
+{
+	private static final String TEST_COUNTER1 = "test-counter1";
+	private static final String TEST_COUNTER2 = "test-counter2";
+
+	// Long enough that no periodic flush runs during a test.
+	private static final long NEVER = 3600000L;
+
+	ShardedCounterService shardedCounterService;
+	ScheduledExecutorService executorService;
+	BufferedCounterService bufferedCounterService;
+
+	@Before
+	public void setUp() throws Exception
+	{
+		super.setUp();
+
+		ObjectifyService.ofy().clear();
+		// Must be added before registering entities...
+		ObjectifyService.factory().getTranslators().add(new UTCReadableInstantTranslatorFactory());
+
+		ObjectifyService.factory().register(Counter.class);
+		ObjectifyService.factory().register(CounterShard.class);
+
+		// The App Engine test harness only services API calls from threads
+		// that have an API environment, so share this thread's environment
+		// with the executor's threads (as ThreadManager does in production).
+		final ApiProxy.Environment environment = ApiProxy.getCurrentEnvironment();
+		executorService = Executors.newScheduledThreadPool(1, new ThreadFactory()
+		{
+			@Override
+			public Thread newThread(final Runnable runnable)
+			{
+				return new Thread(new Runnable()
+				{
+					@Override
+					public void run()
+					{
+						ApiProxy.setEnvironmentForCurrentThread(environment);
+						runnable.run();
+					}
+				});
+			}
+		});
+
+		shardedCounterService = new ShardedCounterService(MemcacheServiceFactory.getMemcacheService(),
+			new ShardedCounterServiceConfiguration.Builder().withNumInitialShards(3).build());
+		bufferedCounterService = new BufferedCounterService(shardedCounterService, executorService, NEVER, 1000);
+	}
+
+	@After
+	public void tearDown()
+	{
+		executorService.shutdownNow();
+		super.tearDown();
+	}
+
+	// /////////////////////////
+	// Unit Tests
+	// /////////////////////////
+
+	@Test(expected = NullPointerException.class)
+	public void testConstructor_NullExecutor()
+	{
+		new BufferedCounterService(shardedCounterService, null, NEVER, 1000);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testConstructor_ZeroFlushThreshold()
+	{
+		new BufferedCounterService(shardedCounterService, executorService, NEVER, 0);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testIncrementFast_NegativeAmount()
+	{
+		bufferedCounterService.incrementFast(TEST_COUNTER1, -1);
+	}
+
+	@Test
+	public void testIncrement_IsBuffered()
+	{
+		assertEquals(1, bufferedCounterService.increment(TEST_COUNTER1, 1).getApproximateCount());
+		bufferedCounterService.incrementFast(TEST_COUNTER1, 2);
+		assertEquals(3, bufferedCounterService.getUnflushedAmount(TEST_COUNTER1));
+		assertEquals(3, bufferedCounterService.getCounter(TEST_COUNTER1).get().getApproximateCount());
+
+		// Nothing has been written yet.
+		assertEquals(0, shardedCounterService.getCounter(TEST_COUNTER1).get().getApproximateCount());
+
+		bufferedCounterService.flush();
+		assertEquals(0, bufferedCounterService.getUnflushedAmount());
+		assertEquals(3, shardedCounterService.getCounter(TEST_COUNTER1).get().getApproximateCount());
+		assertEquals(3, bufferedCounterService.getCounter(TEST_COUNTER1).get().getApproximateCount());
+	}
+
+	@Test
+	public void testIncrementAll_IsBuffered()
+	{
+		Map<String, Long> amounts = Maps.newLinkedHashMap();
+		amounts.put(TEST_COUNTER1, 1L);
+		amounts.put(TEST_COUNTER2, 2L);
+		Map<String, IncrementResult> results = bufferedCounterService.incrementAll(amounts);
+		assertEquals(IncrementResult.Status.BUFFERED, results.get(TEST_COUNTER1).getStatus());
+		assertEquals(1, results.get(TEST_COUNTER1).getCounter().get().getApproximateCount());
+		assertEquals(2, results.get(TEST_COUNTER2).getCounter().get().getApproximateCount());
+		assertEquals(3, bufferedCounterService.getUnflushedAmount());
+
+		bufferedCounterService.flush();
+		assertEquals(1, shardedCounterService.getCounter(TEST_COUNTER1).get().getApproximateCount());
+		assertEquals(2, shardedCounterService.getCounter(TEST_COUNTER2).get().getApproximateCount());
+	}
+
+	@Test
+	public void testFlushThreshold() throws InterruptedException
+	{
+		bufferedCounterService = new BufferedCounterService(shardedCounterService, executorService, NEVER, 5);
+		for (int i = 0; i < 5; i++)
+		{
+			bufferedCounterService.incrementFast(TEST_COUNTER1, 1);
+		}
+
+		this.awaitCount(TEST_COUNTER1, 5);
+		assertEquals(0, bufferedCounterService.getUnflushedAmount());
+	}
+
+	@Test
+	public void testPeriodicFlush() throws InterruptedException
+	{
+		bufferedCounterService = new BufferedCounterService(shardedCounterService, executorService, 50, 1000);
+		bufferedCounterService.incrementFast(TEST_COUNTER1, 1);
+		bufferedCounterService.incrementFast(TEST_COUNTER2, 2);
+
+		this.awaitCount(TEST_COUNTER1, 1);
+		this.awaitCount(TEST_COUNTER2, 2);
+		assertEquals(0, bufferedCounterService.getUnflushedAmount());
+	}
+
+	@Test
+	public void testDecrement_FlushesFirst()
+	{
+		bufferedCounterService.increment(TEST_COUNTER1, 3);
+		assertEquals(2, bufferedCounterService.decrement(TEST_COUNTER1).getApproximateCount());
+		assertEquals(0, bufferedCounterService.decrement(TEST_COUNTER1, 2).getApproximateCount());
+		assertEquals(0, bufferedCounterService.getUnflushedAmount());
+	}
+
+	@Test
+	public void testDelete_DiscardsBufferedIncrements()
+	{
+		bufferedCounterService.increment(TEST_COUNTER1, 3);
+		bufferedCounterService.delete(TEST_COUNTER1);
+		assertEquals(0, bufferedCounterService.getUnflushedAmount());
+	}
+
+	@Test
+	public void testShutdown()
+	{
+		bufferedCounterService.increment(TEST_COUNTER1, 3);
+		bufferedCounterService.shutdown();
+		assertEquals(0, bufferedCounterService.getUnflushedAmount());
+		assertEquals(3, shardedCounterService.getCounter(TEST_COUNTER1).get().getApproximateCount());
+	}
+
+	@Test
+	public void testFlush_RejectedIncrementsAreNotRebuffered()
+	{
+		bufferedCounterService.increment(TEST_COUNTER1, 3);
+		bufferedCounterService.incrementFast(TEST_COUNTER2, 2);
+		// Increments of a counter that is being deleted are rejected.
+		shardedCounterService.delete(TEST_COUNTER1);
+
+		bufferedCounterService.flush();
+		assertEquals(0, bufferedCounterService.getUnflushedAmount());
+		assertEquals(2, shardedCounterService.getCounter(TEST_COUNTER2).get().getApproximateCount());
+
+		// The rejected increments don't hold up later flushes either.
+		bufferedCounterService.incrementFast(TEST_COUNTER2, 1);
+		bufferedCounterService.shutdown();
+		assertEquals(0, bufferedCounterService.getUnflushedAmount());
+		assertEquals(3, shardedCounterService.getCounter(TEST_COUNTER2).get().getApproximateCount());
+	}
+
+	@Test
+	public void testFlush_FailedBatchFlushesEachCounter()
+	{
+		final String testCounter3 = "test-counter3";
+		// Throws for any batch that includes TEST_COUNTER1 (with an invalid
+		// argument) or TEST_COUNTER2 (with a transient failure).
+		final ShardedCounterService failingCounterService = new ShardedCounterService(
+			MemcacheServiceFactory.getMemcacheService(),
+			new ShardedCounterServiceConfiguration.Builder().withNumInitialShards(3).build())
+		{
+			@Override
+			public Map<String, IncrementResult> incrementAll(final Map<String, Long> amounts)
+			{
+				if (amounts.containsKey(TEST_COUNTER1))
+				{
+					throw new IllegalArgumentException();
+				}
+				else if (amounts.containsKey(TEST_COUNTER2))
+				{
+					throw new RuntimeException();
+				}
+				return super.incrementAll(amounts);
+			}
+		};
+		bufferedCounterService = new BufferedCounterService(failingCounterService, executorService, NEVER, 1000);
+		bufferedCounterService.incrementFast(TEST_COUNTER1, 1);
+		bufferedCounterService.incrementFast(TEST_COUNTER2, 2);
+		bufferedCounterService.incrementFast(testCounter3, 4);
+
+		bufferedCounterService.flush();
+		assertEquals(0, bufferedCounterService.getUnflushedAmount(TEST_COUNTER1));
+		assertEquals(2, bufferedCounterService.getUnflushedAmount(TEST_COUNTER2));
+		assertEquals(0, bufferedCounterService.getUnflushedAmount(testCounter3));
+		assertEquals(4, shardedCounterService.getCounter(testCounter3).get().getApproximateCount());
+	}
+
+	@Test
+	public void testFlush_OnlyUncommittedIncrementsStayBuffered()
+	{
+		final String testCounter3 = "test-counter3";
+		// Reports TEST_COUNTER1 as not committed and TEST_COUNTER2 as unknown,
+		// and commits the rest.
+		final ShardedCounterService partiallyFailingCounterService = new ShardedCounterService(
+			MemcacheServiceFactory.getMemcacheService(),
+			new ShardedCounterServiceConfiguration.Builder().withNumInitialShards(3).build())
+		{
+			@Override
+			public Map<String, IncrementResult> incrementAll(final Map<String, Long> amounts)
+			{
+				final Map<String, IncrementResult> results = Maps.newLinkedHashMap();
+				for (String counterName : amounts.keySet())
+				{
+					if (TEST_COUNTER1.equals(counterName))
+					{
+						results.put(counterName, IncrementResult.notCommitted(new RuntimeException()));
+					}
+					else if (TEST_COUNTER2.equals(counterName))
+					{
+						results.put(counterName, IncrementResult.unknown(new RuntimeException()));
+					}
+					else
+					{
+						results.putAll(super.incrementAll(Collections.singletonMap(counterName,
+							amounts.get(counterName))));
+					}
+				}
+				return results;
+			}
+		};
+		bufferedCounterService = new BufferedCounterService(partiallyFailingCounterService, executorService, NEVER,
+			1000);
+		bufferedCounterService.incrementFast(TEST_COUNTER1, 1);
+		bufferedCounterService.incrementFast(TEST_COUNTER2, 2);
+		bufferedCounterService.incrementFast(testCounter3, 4);
+
+		bufferedCounterService.flush();
+		assertEquals(1, bufferedCounterService.getUnflushedAmount(TEST_COUNTER1));
+		assertEquals(0, bufferedCounterService.getUnflushedAmount(TEST_COUNTER2));
+		assertEquals(0, bufferedCounterService.getUnflushedAmount(testCounter3));
+		assertEquals(4, shardedCounterService.getCounter(testCounter3).get().getApproximateCount());
+	}
+
+	// /////////////////////////
+	// Private Helpers
+	// /////////////////////////
+
+	/**
+	 * Waits (for up to 5 seconds) for the count of the counter named
+	 * {@code counterName} in the underlying service to reach
+	 * {@code expectedCount}.
+	 */
+	private void awaitCount(final String counterName, final long expectedCount) throws InterruptedException
+	{
+		long count = 0;
+		for (int i = 0; i < 50; i++)
+		{
+			ObjectifyService.ofy().clear();
+			Optional<Counter> optCounter = shardedCounterService.getCounter(counterName);
+			count = optCounter.isPresent() ? optCounter.get().getApproximateCount() : 0;
+			if (count == expectedCount)
+			{
+				break;
+			}
+			Thread.sleep(100);
+		}
+		assertEquals(expectedCount, count);
+	}
+
+}
@@ -0,0 +1,105 @@
+/**
+ * Copyright (c) 2012 Sappenin Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.sappenin.objectify.shardedcounter.service;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Test class for {@link CounterContentionTracker}.
+ * 
+ * @author David Fuelling <sappenin@gmail.com>
+ */
+public class CounterContentionTrackerTest
+{
+	private static final String TEST_COUNTER1 = "test-counter1";
+	private static final String TEST_COUNTER2 = "test-counter2";
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testRecordTransaction_NegativeRetries()
+	{
+		new CounterContentionTracker(10, 0.5, 0).recordTransaction(TEST_COUNTER1, -1);
+	}
+
+	@Test
+	public void testRecordTransaction_NoContention()
+	{
+		CounterContentionTracker tracker = new CounterContentionTracker(10, 0.5, 0);
+		for (int i = 0; i < 100; i++)
+		{
+			assertFalse(tracker.recordTransaction(TEST_COUNTER1, 0));
+		}
+	}
+
+	@Test
+	public void testRecordTransaction_HotOnlyAtEndOfSample()
+	{
+		CounterContentionTracker tracker = new CounterContentionTracker(4, 0.5, 0);
+		assertFalse(tracker.recordTransaction(TEST_COUNTER1, 1));
+		assertFalse(tracker.recordTransaction(TEST_COUNTER1, 1));
+		assertFalse(tracker.recordTransaction(TEST_COUNTER1, 0));
+		// 2 retries in 4 transactions
+		assertTrue(tracker.recordTransaction(TEST_COUNTER1, 0));
+
+		// A new sample begins, so the previous retries are forgotten
+		assertFalse(tracker.recordTransaction(TEST_COUNTER1, 0));
+		assertFalse(tracker.recordTransaction(TEST_COUNTER1, 0));
+		assertFalse(tracker.recordTransaction(TEST_COUNTER1, 0));
+		assertFalse(tracker.recordTransaction(TEST_COUNTER1, 1));
+	}
+
+	@Test
+	public void testRecordTransaction_CountersAreTrackedIndependently()
+	{
+		CounterContentionTracker tracker = new CounterContentionTracker(2, 1, 0);
+		assertFalse(tracker.recordTransaction(TEST_COUNTER1, 2));
+		assertFalse(tracker.recordTransaction(TEST_COUNTER2, 0));
+		assertFalse(tracker.recordTransaction(TEST_COUNTER2, 0));
+		assertTrue(tracker.recordTransaction(TEST_COUNTER1, 0));
+	}
+
+	@Test
+	public void testRecordTransaction_Cooldown()
+	{
+		CounterContentionTracker tracker = new CounterContentionTracker(1, 1, 60000L);
+		assertTrue(tracker.recordTransaction(TEST_COUNTER1, 5));
+		// Still hot, but cooling down from the previous reshard
+		assertFalse(tracker.recordTransaction(TEST_COUNTER1, 5));
+
+		tracker.reset(TEST_COUNTER1);
+		assertTrue(tracker.recordTransaction(TEST_COUNTER1, 5));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testConstructor_ZeroMaxTrackedCounters()
+	{
+		new CounterContentionTracker(10, 0.5, 0, 0);
+	}
+
+	@Test
+	public void testRecordTransaction_LeastRecentlyUsedSampleIsForgotten()
+	{
+		CounterContentionTracker tracker = new CounterContentionTracker(2, 1, 0, 1);
+		assertFalse(tracker.recordTransaction(TEST_COUNTER1, 2));
+		// Tracking a second counter evicts the first counter's sample.
+		assertFalse(tracker.recordTransaction(TEST_COUNTER2, 0));
+		assertFalse(tracker.recordTransaction(TEST_COUNTER1, 0));
+		assertTrue(tracker.recordTransaction(TEST_COUNTER1, 2));
+	}
+
+}
@@ -0,0 +1,219 @@
+/**
+ * Copyright (c) 2012 Sappenin Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.sappenin.objectify.shardedcounter.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * Test class for {@link InMemoryCounterCache}.
+ * 
+ * @author David Fuelling <sappenin@gmail.com>
+ */
+public class InMemoryCounterCacheTest
+{
+	private long nowNanos;
+	private InMemoryCounterCache counterCache;
+
+	@Before
+	public void setUp()
+	{
+		this.nowNanos = 0L;
+		this.counterCache = new InMemoryCounterCache(2, new Ticker()
+		{
+			@Override
+			public long read()
+			{
+				return nowNanos;
+			}
+		});
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testConstructor_0MaximumSize()
+	{
+		new InMemoryCounterCache(0);
+	}
+
+	@Test
+	public void testPutAndGet() throws InterruptedException, ExecutionException
+	{
+		assertNull(counterCache.get("a"));
+		assertNull(counterCache.getAsync("a").get());
+
+		counterCache.put("a", 5, CounterCache.NO_EXPIRATION);
+		assertEquals(Long.valueOf(5), counterCache.get("a"));
+		assertEquals(Long.valueOf(5), counterCache.getAsync("a").get());
+
+		counterCache.putAll(ImmutableMap.of("a", 1L, "b", 2L), CounterCache.NO_EXPIRATION);
+		assertEquals(ImmutableMap.of("a", 1L, "b", 2L), counterCache.getAll(ImmutableList.of("a", "b", "c")));
+
+		counterCache.delete("a");
+		assertNull(counterCache.get("a"));
+		counterCache.deleteAll(ImmutableList.of("b"));
+		assertNull(counterCache.get("b"));
+	}
+
+	@Test
+	public void testPut_Expiration()
+	{
+		counterCache.put("a", 5, 1000);
+		nowNanos += TimeUnit.MILLISECONDS.toNanos(999);
+		assertEquals(Long.valueOf(5), counterCache.get("a"));
+		nowNanos += TimeUnit.MILLISECONDS.toNanos(1);
+		assertNull(counterCache.get("a"));
+	}
+
+	@Test
+	public void testPut_EvictsLeastRecentlyUsed()
+	{
+		counterCache.put("a", 1, CounterCache.NO_EXPIRATION);
+		counterCache.put("b", 2, CounterCache.NO_EXPIRATION);
+		counterCache.get("a");
+		counterCache.put("c", 3, CounterCache.NO_EXPIRATION);
+
+		assertEquals(Long.valueOf(1), counterCache.get("a"));
+		assertNull(counterCache.get("b"));
+		assertEquals(Long.valueOf(3), counterCache.get("c"));
+	}
+
+	@Test
+	public void testIncrement()
+	{
+		// Not cached, so seeded with the initial value.
+		assertEquals(Long.valueOf(12), counterCache.increment("a", 2, 10));
+		assertEquals(Long.valueOf(15), counterCache.increment("a", 3, 100));
+
+		// Stops at zero.
+		assertEquals(Long.valueOf(0), counterCache.increment("a", -20, 100));
+		assertEquals(Long.valueOf(0), counterCache.increment("b", -1, 0));
+	}
+
+	@Test
+	public void testIncrement_ExpiredCount()
+	{
+		counterCache.put("a", 5, 1000);
+		nowNanos += TimeUnit.MILLISECONDS.toNanos(1000);
+		assertEquals(Long.valueOf(11), counterCache.increment("a", 1, 10));
+	}
+
+	@Test
+	public void testIncrementAsync()
+	{
+		// Counts that aren't cached stay uncached.
+		counterCache.incrementAsync("a", 1);
+		assertNull(counterCache.get("a"));
+
+		counterCache.put("a", 5, CounterCache.NO_EXPIRATION);
+		counterCache.incrementAsync("a", 1);
+		assertEquals(Long.valueOf(6), counterCache.get("a"));
+	}
+
+	@Test
+	public void testIncrementAll()
+	{
+		counterCache.put("a", 5, CounterCache.NO_EXPIRATION);
+
+		assertEquals(ImmutableMap.of("a", 7L), counterCache.incrementAll(ImmutableMap.of("a", 2L, "b", 3L)));
+		assertNull(counterCache.get("b"));
+	}
+
+	@Test
+	public void testRecomputeLease()
+	{
+		assertTrue(counterCache.tryAcquireRecomputeLease("a", "owner", 1000));
+		assertFalse(counterCache.tryAcquireRecomputeLease("a", "owner", 1000));
+		assertTrue(counterCache.tryAcquireRecomputeLease("b", "owner", 1000));
+
+		// Released...
+		counterCache.releaseRecomputeLease("a", "owner");
+		assertTrue(counterCache.tryAcquireRecomputeLease("a", "owner", 1000));
+
+		// ...or expired.
+		nowNanos += TimeUnit.MILLISECONDS.toNanos(1000);
+		assertTrue(counterCache.tryAcquireRecomputeLease("a", "owner", 1000));
+	}
+
+	@Test
+	public void testRecomputeLease_OnlyOwnerReleases()
+	{
+		assertTrue(counterCache.tryAcquireRecomputeLease("a", "owner1", 1000));
+		counterCache.releaseRecomputeLease("a", "owner2");
+		assertFalse(counterCache.tryAcquireRecomputeLease("a", "owner2", 1000));
+
+		// Once owner1's lease expires and owner2 acquires it, owner1 can no
+		// longer release it.
+		nowNanos += TimeUnit.MILLISECONDS.toNanos(1000);
+		assertTrue(counterCache.tryAcquireRecomputeLease("a", "owner2", 1000));
+		counterCache.releaseRecomputeLease("a", "owner1");
+		assertEquals("owner2", counterCache.getRecomputeLeaseOwner("a"));
+		counterCache.releaseRecomputeLease("a", "owner2");
+		assertNull(counterCache.getRecomputeLeaseOwner("a"));
+	}
+
+	@Test
+	public void testRecomputeLease_ExpiredLeasesArePruned()
+	{
+		for (int i = 0; i < 10; i++)
+		{
+			assertTrue(counterCache.tryAcquireRecomputeLease("counter" + i, "owner", 1000));
+		}
+		assertEquals(10, counterCache.getNumRecomputeLeases());
+
+		nowNanos += TimeUnit.MILLISECONDS.toNanos(1000);
+		assertTrue(counterCache.tryAcquireRecomputeLease("a", "owner", 1000));
+		assertEquals(1, counterCache.getNumRecomputeLeases());
+	}
+
+	@Test
+	public void testLastKnownCount()
+	{
+		assertNull(counterCache.getLastKnownCount("a"));
+
+		LastKnownCount lastKnownCount = new LastKnownCount(5, new DateTime(DateTimeZone.UTC));
+		counterCache.putLastKnownCount("a", lastKnownCount);
+		assertEquals(lastKnownCount, counterCache.getLastKnownCount("a"));
+
+		// Outlives the cached count.
+		counterCache.put("a", 5, 1000);
+		nowNanos += TimeUnit.MILLISECONDS.toNanos(1000);
+		assertNull(counterCache.get("a"));
+		assertEquals(lastKnownCount, counterCache.getLastKnownCount("a"));
+
+		// But not the counter's deletion.
+		counterCache.delete("a");
+		assertNull(counterCache.getLastKnownCount("a"));
+		counterCache.putLastKnownCount("a", lastKnownCount);
+		counterCache.deleteAll(Collections.singleton("a"));
+		assertNull(counterCache.getLastKnownCount("a"));
+	}
+
+}
@@ -0,0 +1,81 @@
+/**
+ * Copyright (c) 2012 Sappenin Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.sappenin.objectify.shardedcounter.service;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import com.sappenin.objectify.shardedcounter.service.CounterMetrics.Event;
+import com.sappenin.objectify.shardedcounter.service.CounterMetrics.Operation;
+
+/**
+ * Test class for {@link InMemoryCounterMetrics}.
+ * 
+ * @author David Fuelling <sappenin@gmail.com>
+ */
+public class InMemoryCounterMetricsTest
+{
+	@Test(expected = IllegalArgumentException.class)
+	public void testGetLatencyPercentileNanos_InvalidPercentile()
+	{
+		new InMemoryCounterMetrics().getLatencyPercentileNanos(Operation.INCREMENT, 0);
+	}
+
+	@Test
+	public void testRecordEvent()
+	{
+		InMemoryCounterMetrics metrics = new InMemoryCounterMetrics();
+		assertEquals(0, metrics.getEventCount(Event.DATASTORE_RPC));
+		metrics.recordEvent(Event.DATASTORE_RPC, 3);
+		metrics.recordEvent(Event.DATASTORE_RPC, 2);
+		metrics.recordEvent(Event.TRANSACTION_RETRY, 1);
+		assertEquals(5, metrics.getEventCount(Event.DATASTORE_RPC));
+		assertEquals(1, metrics.getEventCount(Event.TRANSACTION_RETRY));
+	}
+
+	@Test
+	public void testRecordLatency_NoOperations()
+	{
+		InMemoryCounterMetrics metrics = new InMemoryCounterMetrics();
+		assertEquals(0, metrics.getOperationCount(Operation.INCREMENT));
+		assertEquals(0, metrics.getMeanLatencyNanos(Operation.INCREMENT));
+		assertEquals(0, metrics.getLatencyPercentileNanos(Operation.INCREMENT, 99));
+	}
+
+	@Test
+	public void testRecordLatency()
+	{
+		InMemoryCounterMetrics metrics = new InMemoryCounterMetrics();
+		for (int i = 0; i < 99; i++)
+		{
+			metrics.recordLatency(Operation.INCREMENT, 1000);
+		}
+		metrics.recordLatency(Operation.INCREMENT, 1000000);
+		metrics.recordLatency(Operation.DECREMENT, 5);
+
+		assertEquals(100, metrics.getOperationCount(Operation.INCREMENT));
+		assertEquals((99 * 1000 + 1000000) / 100, metrics.getMeanLatencyNanos(Operation.INCREMENT));
+		// 1000 is in the bucket of latencies below 1024.
+		assertEquals(1023, metrics.getLatencyPercentileNanos(Operation.INCREMENT, 50));
+		assertEquals(1023, metrics.getLatencyPercentileNanos(Operation.INCREMENT, 99));
+		// 1000000 is in the bucket of latencies below 2^20.
+		assertEquals((1L << 20) - 1, metrics.getLatencyPercentileNanos(Operation.INCREMENT, 100));
+		assertEquals(1, metrics.getOperationCount(Operation.DECREMENT));
+		assertEquals(7, metrics.getLatencyPercentileNanos(Operation.DECREMENT, 100));
+	}
+
+}
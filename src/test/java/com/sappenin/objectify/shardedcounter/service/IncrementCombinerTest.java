@@ -0,0 +1,149 @@
+/**
+ * Copyright (c) 2012 Sappenin Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.sappenin.objectify.shardedcounter.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.Test;
+
+import com.google.common.base.Function;
+import com.google.common.collect.Lists;
+
+/**
+ * Test class for {@link IncrementCombiner}.
+ * 
+ * @author David Fuelling <sappenin@gmail.com>
+ */
+public class IncrementCombinerTest
+{
+	private static final String TEST_COUNTER1 = "test-counter1";
+
+	private static final int NUM_THREADS = 8;
+	private static final int NUM_INCREMENTS_PER_THREAD = 25;
+
+	@Test
+	public void testIncrement_SingleThread()
+	{
+		RecordingShardIncrementer shardIncrementer = new RecordingShardIncrementer();
+		IncrementCombiner combiner = new IncrementCombiner();
+		assertEquals(3L, combiner.increment(TEST_COUNTER1, 3L, shardIncrementer));
+		assertEquals(3L, shardIncrementer.total.get());
+		assertEquals(1, shardIncrementer.numTransactions.get());
+	}
+
+	@Test
+	public void testIncrement_ConcurrentIncrementsAreCombined() throws InterruptedException
+	{
+		final RecordingShardIncrementer shardIncrementer = new RecordingShardIncrementer();
+		final IncrementCombiner combiner = new IncrementCombiner();
+		final CountDownLatch start = new CountDownLatch(1);
+
+		List<Thread> threads = Lists.newArrayList();
+		for (int i = 0; i < NUM_THREADS; i++)
+		{
+			Thread thread = new Thread(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					try
+					{
+						start.await();
+					}
+					catch (InterruptedException e)
+					{
+						return;
+					}
+					for (int j = 0; j < NUM_INCREMENTS_PER_THREAD; j++)
+					{
+						combiner.increment(TEST_COUNTER1, 1L, shardIncrementer);
+					}
+				}
+			});
+			thread.start();
+			threads.add(thread);
+		}
+		start.countDown();
+		for (Thread thread : threads)
+		{
+			thread.join();
+		}
+
+		assertEquals(NUM_THREADS * NUM_INCREMENTS_PER_THREAD, shardIncrementer.total.get());
+		assertTrue(shardIncrementer.numTransactions.get() < NUM_THREADS * NUM_INCREMENTS_PER_THREAD);
+	}
+
+	@Test
+	public void testIncrement_FailureIsReportedToCaller()
+	{
+		IncrementCombiner combiner = new IncrementCombiner();
+		try
+		{
+			combiner.increment(TEST_COUNTER1, 1L, new Function<Long, Long>()
+			{
+				@Override
+				public Long apply(Long amount)
+				{
+					throw new IllegalStateException("Datastore unavailable");
+				}
+			});
+			fail("Expected the increment to fail");
+		}
+		catch (IllegalStateException e)
+		{
+			assertEquals("Datastore unavailable", e.getMessage());
+		}
+
+		// Later increments aren't affected by the failure.
+		RecordingShardIncrementer shardIncrementer = new RecordingShardIncrementer();
+		combiner.increment(TEST_COUNTER1, 1L, shardIncrementer);
+		assertEquals(1L, shardIncrementer.total.get());
+	}
+
+	/**
+	 * Records the combined increments, taking long enough per "transaction"
+	 * that concurrent increments queue up behind it.
+	 */
+	private static final class RecordingShardIncrementer implements Function<Long, Long>
+	{
+		private final AtomicLong total = new AtomicLong();
+		private final AtomicInteger numTransactions = new AtomicInteger();
+
+		@Override
+		public Long apply(Long amount)
+		{
+			try
+			{
+				Thread.sleep(2);
+			}
+			catch (InterruptedException e)
+			{
+				Thread.currentThread().interrupt();
+			}
+			numTransactions.incrementAndGet();
+			total.addAndGet(amount);
+			return amount;
+		}
+	}
+
+}
@@ -0,0 +1,151 @@
+/**
+ * Copyright (c) 2012 Sappenin Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.sappenin.objectify.shardedcounter.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.concurrent.ExecutionException;
+
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
+import org.junit.Test;
+
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.sappenin.objectify.BaseObjectifyTest;
+
+/**
+ * Test class for {@link MemcacheCounterCache}.
+ * 
+ * @author David Fuelling <sappenin@gmail.com>
+ */
+public class MemcacheCounterCacheTest extends BaseObjectifyTest
+{
+	private static final String ASYNC_NAMESPACE = "async";
+
+	@Test(expected = NullPointerException.class)
+	public void testConstructor_NullMemcacheService()
+	{
+		new MemcacheCounterCache(null);
+	}
+
+	@Test(expected = NullPointerException.class)
+	public void testConstructor_NullAsyncMemcacheService()
+	{
+		new MemcacheCounterCache(memcache, null);
+	}
+
+	@Test
+	public void testInjectedAsyncMemcacheService() throws InterruptedException, ExecutionException
+	{
+		// The async service is for another namespace, so it's clear which
+		// service each operation uses.
+		final MemcacheService asyncNamespaceMemcache = MemcacheServiceFactory.getMemcacheService(ASYNC_NAMESPACE);
+		final MemcacheCounterCache counterCache = new MemcacheCounterCache(memcache,
+			MemcacheServiceFactory.getAsyncMemcacheService(ASYNC_NAMESPACE));
+		memcache.put("a", Long.valueOf(1));
+		asyncNamespaceMemcache.put("a", Long.valueOf(5));
+
+		assertEquals(Long.valueOf(1), counterCache.get("a"));
+		assertEquals(Long.valueOf(5), counterCache.getAsync("a").get());
+
+		counterCache.incrementAsync("a", 2);
+		for (int i = 0; i < 500 && !Long.valueOf(7).equals(asyncNamespaceMemcache.get("a")); i++)
+		{
+			Thread.sleep(10);
+		}
+		assertEquals(Long.valueOf(7), asyncNamespaceMemcache.get("a"));
+		assertEquals(Long.valueOf(1), memcache.get("a"));
+	}
+
+	@Test
+	public void testDelete_EvictsLastKnownCount()
+	{
+		final MemcacheCounterCache counterCache = new MemcacheCounterCache(memcache);
+		final LastKnownCount lastKnownCount = new LastKnownCount(5, new DateTime(DateTimeZone.UTC));
+
+		counterCache.put("a", 5, CounterCache.NO_EXPIRATION);
+		counterCache.putLastKnownCount("a", lastKnownCount);
+		assertEquals(lastKnownCount, counterCache.getLastKnownCount("a"));
+		counterCache.delete("a");
+		assertNull(counterCache.get("a"));
+		assertNull(counterCache.getLastKnownCount("a"));
+
+		counterCache.put("a", 5, CounterCache.NO_EXPIRATION);
+		counterCache.putLastKnownCount("a", lastKnownCount);
+		counterCache.deleteAll(Collections.singleton("a"));
+		assertNull(counterCache.get("a"));
+		assertNull(counterCache.getLastKnownCount("a"));
+	}
+
+	@Test
+	public void testRecomputeLease_OnlyOwnerReleases()
+	{
+		final MemcacheCounterCache counterCache = new MemcacheCounterCache(memcache);
+		assertTrue(counterCache.tryAcquireRecomputeLease("a", "owner1", 60000));
+		assertFalse(counterCache.tryAcquireRecomputeLease("a", "owner2", 60000));
+		counterCache.releaseRecomputeLease("a", "owner2");
+		assertFalse(counterCache.tryAcquireRecomputeLease("a", "owner2", 60000));
+
+		// A released lease may be taken over, after which its previous owner
+		// can't release it.
+		counterCache.releaseRecomputeLease("a", "owner1");
+		assertTrue(counterCache.tryAcquireRecomputeLease("a", "owner2", 60000));
+		counterCache.releaseRecomputeLease("a", "owner1");
+		assertFalse(counterCache.tryAcquireRecomputeLease("a", "owner3", 60000));
+	}
+
+	@Test
+	public void testInternalKeys_DontCollideWithCounterNames()
+	{
+		final MemcacheCounterCache counterCache = new MemcacheCounterCache(memcache);
+		final LastKnownCount lastKnownCount = new LastKnownCount(5, new DateTime(DateTimeZone.UTC));
+
+		// Counters named after the keys of another counter's last known count
+		// and recompute lease.
+		counterCache.putLastKnownCount("a", lastKnownCount);
+		assertTrue(counterCache.tryAcquireRecomputeLease("a", "owner1", 60000));
+		assertNull(counterCache.get("__lastKnownCount__a"));
+		assertNull(counterCache.get("__recomputeLease__a"));
+
+		counterCache.put("__lastKnownCount__a", 1, CounterCache.NO_EXPIRATION);
+		counterCache.put("__recomputeLease__a", 2, CounterCache.NO_EXPIRATION);
+		assertEquals(lastKnownCount, counterCache.getLastKnownCount("a"));
+		assertFalse(counterCache.tryAcquireRecomputeLease("a", "owner2", 60000));
+
+		counterCache.delete("__lastKnownCount__a");
+		assertEquals(lastKnownCount, counterCache.getLastKnownCount("a"));
+		assertEquals(Long.valueOf(2), counterCache.get("__recomputeLease__a"));
+	}
+
+	@Test
+	public void testInternalKeys_KeptPerNamespace()
+	{
+		final MemcacheCounterCache counterCache = new MemcacheCounterCache(memcache);
+		final MemcacheCounterCache otherNamespaceCounterCache = new MemcacheCounterCache(
+			MemcacheServiceFactory.getMemcacheService(ASYNC_NAMESPACE));
+
+		assertTrue(counterCache.tryAcquireRecomputeLease("a", "owner1", 60000));
+		assertTrue(otherNamespaceCounterCache.tryAcquireRecomputeLease("a", "owner2", 60000));
+		otherNamespaceCounterCache.putLastKnownCount("a", new LastKnownCount(5, new DateTime(DateTimeZone.UTC)));
+		assertNull(counterCache.getLastKnownCount("a"));
+	}
+
+}
@@ -0,0 +1,91 @@
+/**
+ * Copyright (c) 2012 Sappenin Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.sappenin.objectify.shardedcounter.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.google.common.base.Function;
+import com.google.common.util.concurrent.Futures;
+
+/**
+ * Test class for {@link MemoizingTransformedFuture}.
+ * 
+ * @author David Fuelling <sappenin@gmail.com>
+ */
+public class MemoizingTransformedFutureTest
+{
+	@Test
+	public void testGet_AppliesFunctionOnce() throws InterruptedException, ExecutionException, TimeoutException
+	{
+		final AtomicInteger numApplications = new AtomicInteger();
+		final Future<Long> future = new MemoizingTransformedFuture<Long, Long>(Futures.immediateFuture(Long
+			.valueOf(5)), new Function<Long, Long>()
+		{
+			@Override
+			public Long apply(Long input)
+			{
+				return input + numApplications.incrementAndGet();
+			}
+		});
+
+		assertEquals(Long.valueOf(6), future.get());
+		assertEquals(Long.valueOf(6), future.get());
+		assertEquals(Long.valueOf(6), future.get(1, TimeUnit.SECONDS));
+		assertEquals(1, numApplications.get());
+	}
+
+	@Test
+	public void testGet_RethrowsFailureOfFunction() throws InterruptedException, ExecutionException
+	{
+		final RuntimeException failure = new IllegalStateException();
+		final AtomicInteger numApplications = new AtomicInteger();
+		final Future<Long> future = new MemoizingTransformedFuture<Long, Long>(Futures.immediateFuture(Long
+			.valueOf(5)), new Function<Long, Long>()
+		{
+			@Override
+			public Long apply(Long input)
+			{
+				numApplications.incrementAndGet();
+				throw failure;
+			}
+		});
+
+		for (int i = 0; i < 2; i++)
+		{
+			try
+			{
+				future.get();
+				fail();
+			}
+			catch (IllegalStateException e)
+			{
+				assertSame(failure, e);
+			}
+		}
+		assertEquals(1, numApplications.get());
+	}
+
+}
@@ -0,0 +1,131 @@
+/**
+ * Copyright (c) 2012 Sappenin Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.sappenin.objectify.shardedcounter.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Test class for {@link PowerOfTwoChoicesShardSelector}.
+ * 
+ * @author David Fuelling <sappenin@gmail.com>
+ */
+public class PowerOfTwoChoicesShardSelectorTest
+{
+	private static final String TEST_COUNTER1 = "test-counter1";
+	private static final String TEST_COUNTER2 = "test-counter2";
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testConstructor_ZeroHalfLife()
+	{
+		new PowerOfTwoChoicesShardSelector(0);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testConstructor_ZeroMaxTrackedCounters()
+	{
+		new PowerOfTwoChoicesShardSelector(60000L, 0);
+	}
+
+	@Test
+	public void testSelectShard_SingleShard()
+	{
+		PowerOfTwoChoicesShardSelector selector = new PowerOfTwoChoicesShardSelector();
+		selector.recordOutcome(TEST_COUNTER1, 0, true);
+		for (int i = 0; i < 100; i++)
+		{
+			assertEquals(0, selector.selectShard(TEST_COUNTER1, 1));
+		}
+	}
+
+	@Test
+	public void testSelectShard_WithinBounds()
+	{
+		PowerOfTwoChoicesShardSelector selector = new PowerOfTwoChoicesShardSelector();
+		selector.recordOutcome(TEST_COUNTER1, 2, true);
+		for (int i = 0; i < 1000; i++)
+		{
+			int shardNumber = selector.selectShard(TEST_COUNTER1, 5);
+			assertTrue(shardNumber >= 0 && shardNumber < 5);
+		}
+	}
+
+	@Test
+	public void testSelectShard_AvoidsContendedShard()
+	{
+		PowerOfTwoChoicesShardSelector selector = new PowerOfTwoChoicesShardSelector(60000L);
+		selector.recordOutcome(TEST_COUNTER1, 0, true);
+		selector.recordOutcome(TEST_COUNTER1, 0, false);
+
+		// With two shards, both are always sampled, so the cooler one wins.
+		for (int i = 0; i < 100; i++)
+		{
+			assertEquals(1, selector.selectShard(TEST_COUNTER1, 2));
+		}
+	}
+
+	@Test
+	public void testSelectShard_CountersAreTrackedIndependently()
+	{
+		PowerOfTwoChoicesShardSelector selector = new PowerOfTwoChoicesShardSelector(60000L);
+		selector.recordOutcome(TEST_COUNTER1, 0, true);
+
+		boolean selectedShardZero = false;
+		for (int i = 0; i < 100 && !selectedShardZero; i++)
+		{
+			selectedShardZero = selector.selectShard(TEST_COUNTER2, 2) == 0;
+		}
+		assertTrue(selectedShardZero);
+	}
+
+	@Test
+	public void testSelectShard_HeatDecays() throws InterruptedException
+	{
+		PowerOfTwoChoicesShardSelector selector = new PowerOfTwoChoicesShardSelector(1L);
+		selector.recordOutcome(TEST_COUNTER1, 0, true);
+		Thread.sleep(100);
+		selector.recordOutcome(TEST_COUNTER1, 1, true);
+
+		// Shard 0's heat has decayed to nearly nothing.
+		for (int i = 0; i < 100; i++)
+		{
+			assertEquals(0, selector.selectShard(TEST_COUNTER1, 2));
+		}
+	}
+
+	@Test
+	public void testSelectShard_LeastRecentlyUsedHeatIsForgotten()
+	{
+		PowerOfTwoChoicesShardSelector selector = new PowerOfTwoChoicesShardSelector(60000L, 1);
+		selector.recordOutcome(TEST_COUNTER1, 0, true);
+		selector.recordOutcome(TEST_COUNTER2, 0, true);
+
+		// Only TEST_COUNTER2's heat is still tracked.
+		boolean selectedShardZero = false;
+		for (int i = 0; i < 100 && !selectedShardZero; i++)
+		{
+			selectedShardZero = selector.selectShard(TEST_COUNTER1, 2) == 0;
+		}
+		assertTrue(selectedShardZero);
+		for (int i = 0; i < 100; i++)
+		{
+			assertEquals(1, selector.selectShard(TEST_COUNTER2, 2));
+		}
+	}
+
+}
@@ -0,0 +1,359 @@
+/**
+ * Copyright (c) 2012 Sappenin Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.sappenin.objectify.shardedcounter.service;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.apphosting.api.ApiProxy;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Lists;
+import com.googlecode.objectify.ObjectifyService;
+import com.sappenin.objectify.BaseObjectifyTest;
+import com.sappenin.objectify.shardedcounter.data.Counter;
+import com.sappenin.objectify.shardedcounter.data.CounterShard;
+import com.sappenin.objectify.shardedcounter.service.CounterMetrics.Event;
+import com.sappenin.objectify.shardedcounter.service.CounterMetrics.Operation;
+import com.sappenin.objectify.translate.UTCReadableInstantTranslatorFactory;
+
+/**
+ * A load-test harness that drives a configurable mix of concurrent increments,
+ * decrements, and reads of a single counter through a
+ * {@link ShardedCounterService}, and reports the throughput, latency
+ * percentiles, and transaction retries observed, and whether the counter's
+ * final count is correct.<br/>
+ * <br/>
+ * The harness runs against the local App Engine service stubs, so absolute
+ * numbers are not representative of production. It is useful for comparing
+ * configurations (e.g., numbers of shards) with one another. Run it via
+ * {@link #main(String[])}, or call {@link #run(LoadProfile)} from a test that
+ * has set up the local services (see {@link BaseObjectifyTest}).
+ * 
+ * @author David Fuelling <sappenin@gmail.com>
+ */
+public class ShardedCounterServiceLoadHarness
+{
+	private static final String LOAD_TEST_COUNTER = "load-test-counter";
+
+	/**
+	 * Run the harness from the command line.
+	 * 
+	 * @param args Optionally, the number of threads, operations per thread,
+	 *            shards, and the percentage of operations that are increments
+	 *            and decrements (the remainder are reads), in that order.
+	 * @throws Exception
+	 */
+	public static void main(String[] args) throws Exception
+	{
+		LoadProfile profile = new LoadProfile();
+		if (args.length > 0)
+		{
+			profile.withNumThreads(Integer.parseInt(args[0]));
+		}
+		if (args.length > 1)
+		{
+			profile.withNumOperationsPerThread(Integer.parseInt(args[1]));
+		}
+		if (args.length > 2)
+		{
+			profile.withNumShards(Integer.parseInt(args[2]));
+		}
+		if (args.length > 4)
+		{
+			profile.withOperationMix(Integer.parseInt(args[3]), Integer.parseInt(args[4]));
+		}
+
+		BaseObjectifyTest environment = new BaseObjectifyTest();
+		environment.setUp();
+		try
+		{
+			ObjectifyService.factory().getTranslators().add(new UTCReadableInstantTranslatorFactory());
+			ObjectifyService.factory().register(Counter.class);
+			ObjectifyService.factory().register(CounterShard.class);
+
+			System.out.println(new ShardedCounterServiceLoadHarness().run(profile));
+		}
+		finally
+		{
+			environment.tearDown();
+		}
+	}
+
+	/**
+	 * Runs {@code profile} against a newly created counter. The local App
+	 * Engine services must already be set up on the calling thread, and
+	 * {@link Counter} and {@link CounterShard} must be registered.
+	 * 
+	 * @param profile
+	 * @return The results of the run.
+	 * @throws InterruptedException
+	 */
+	public LoadReport run(final LoadProfile profile) throws InterruptedException
+	{
+		final InMemoryCounterMetrics serviceMetrics = new InMemoryCounterMetrics();
+		final ShardedCounterService shardedCounterService = new ShardedCounterService(
+			MemcacheServiceFactory.getMemcacheService(), new ShardedCounterServiceConfiguration.Builder()
+				.withNumInitialShards(profile.numShards).withCounterMetrics(serviceMetrics).build());
+
+		// Start with a count that decrements can never exhaust, so that every
+		// decrement takes effect and the final count can be verified.
+		final long initialCount = (long) profile.numThreads * profile.numOperationsPerThread + 1;
+		shardedCounterService.create(LOAD_TEST_COUNTER);
+		shardedCounterService.increment(LOAD_TEST_COUNTER, initialCount);
+
+		// Latencies are measured here, rather than by the service, so that
+		// operations aren't double-counted (e.g., an increment performs a
+		// read).
+		final InMemoryCounterMetrics harnessMetrics = new InMemoryCounterMetrics();
+		final AtomicLong numIncrements = new AtomicLong();
+		final AtomicLong numDecrements = new AtomicLong();
+		final AtomicLong numFailures = new AtomicLong();
+
+		// The App Engine test harness only services API calls from threads
+		// that have an API environment, so share this thread's environment.
+		final ApiProxy.Environment environment = ApiProxy.getCurrentEnvironment();
+		final CountDownLatch start = new CountDownLatch(1);
+		final List<Thread> threads = Lists.newArrayList();
+		for (int i = 0; i < profile.numThreads; i++)
+		{
+			Thread thread = new Thread(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					ApiProxy.setEnvironmentForCurrentThread(environment);
+					try
+					{
+						start.await();
+						for (int j = 0; j < profile.numOperationsPerThread; j++)
+						{
+							final int roll = ThreadLocalRandom.current().nextInt(100);
+							final long startNanos = System.nanoTime();
+							try
+							{
+								if (roll < profile.incrementPercent)
+								{
+									shardedCounterService.increment(LOAD_TEST_COUNTER, 1);
+									numIncrements.incrementAndGet();
+									harnessMetrics.recordLatency(Operation.INCREMENT, System.nanoTime() - startNanos);
+								}
+								else if (roll < profile.incrementPercent + profile.decrementPercent)
+								{
+									shardedCounterService.decrement(LOAD_TEST_COUNTER);
+									numDecrements.incrementAndGet();
+									harnessMetrics.recordLatency(Operation.DECREMENT, System.nanoTime() - startNanos);
+								}
+								else
+								{
+									shardedCounterService.getCounter(LOAD_TEST_COUNTER);
+									harnessMetrics.recordLatency(Operation.GET_COUNTER, System.nanoTime() - startNanos);
+								}
+							}
+							catch (RuntimeException e)
+							{
+								numFailures.incrementAndGet();
+							}
+						}
+					}
+					catch (InterruptedException e)
+					{
+						Thread.currentThread().interrupt();
+					}
+					finally
+					{
+						ObjectifyService.ofy().clear();
+					}
+				}
+			});
+			thread.start();
+			threads.add(thread);
+		}
+
+		final long startNanos = System.nanoTime();
+		start.countDown();
+		for (Thread thread : threads)
+		{
+			thread.join();
+		}
+		final long elapsedNanos = System.nanoTime() - startNanos;
+
+		// Aggregate the final count from the shards.
+		MemcacheServiceFactory.getMemcacheService().clearAll();
+		ObjectifyService.ofy().clear();
+		final long actualCount = shardedCounterService.getCounter(LOAD_TEST_COUNTER).get().getApproximateCount();
+
+		return new LoadReport(profile, elapsedNanos, numIncrements.get(), numDecrements.get(), numFailures.get(),
+			initialCount + numIncrements.get() - numDecrements.get(), actualCount, harnessMetrics, serviceMetrics);
+	}
+
+	/**
+	 * The shape of the load to generate.
+	 */
+	public static class LoadProfile
+	{
+		private int numThreads = 8;
+		private int numOperationsPerThread = 100;
+		private int numShards = 3;
+		private int incrementPercent = 60;
+		private int decrementPercent = 20;
+
+		public LoadProfile withNumThreads(int numThreads)
+		{
+			Preconditions.checkArgument(numThreads > 0, "Number of threads must be greater than 0!");
+			this.numThreads = numThreads;
+			return this;
+		}
+
+		public LoadProfile withNumOperationsPerThread(int numOperationsPerThread)
+		{
+			Preconditions.checkArgument(numOperationsPerThread > 0,
+				"Number of operations per thread must be greater than 0!");
+			this.numOperationsPerThread = numOperationsPerThread;
+			return this;
+		}
+
+		public LoadProfile withNumShards(int numShards)
+		{
+			Preconditions.checkArgument(numShards > 0, "Number of shards must be greater than 0!");
+			this.numShards = numShards;
+			return this;
+		}
+
+		/**
+		 * @param incrementPercent The percentage of operations that are
+		 *            increments.
+		 * @param decrementPercent The percentage of operations that are
+		 *            decrements. The remaining operations are reads.
+		 */
+		public LoadProfile withOperationMix(int incrementPercent, int decrementPercent)
+		{
+			Preconditions.checkArgument(incrementPercent >= 0 && decrementPercent >= 0
+				&& incrementPercent + decrementPercent <= 100, "Percentages must add up to at most 100!");
+			this.incrementPercent = incrementPercent;
+			this.decrementPercent = decrementPercent;
+			return this;
+		}
+	}
+
+	/**
+	 * The results of a single run of the harness.
+	 */
+	public static class LoadReport
+	{
+		private final LoadProfile profile;
+		private final long elapsedNanos;
+		private final long numIncrements;
+		private final long numDecrements;
+		private final long numFailures;
+		private final long expectedCount;
+		private final long actualCount;
+		private final InMemoryCounterMetrics harnessMetrics;
+		private final InMemoryCounterMetrics serviceMetrics;
+
+		LoadReport(final LoadProfile profile, final long elapsedNanos, final long numIncrements,
+				final long numDecrements, final long numFailures, final long expectedCount, final long actualCount,
+				final InMemoryCounterMetrics harnessMetrics, final InMemoryCounterMetrics serviceMetrics)
+		{
+			this.profile = profile;
+			this.elapsedNanos = elapsedNanos;
+			this.numIncrements = numIncrements;
+			this.numDecrements = numDecrements;
+			this.numFailures = numFailures;
+			this.expectedCount = expectedCount;
+			this.actualCount = actualCount;
+			this.harnessMetrics = harnessMetrics;
+			this.serviceMetrics = serviceMetrics;
+		}
+
+		/**
+		 * @return The number of operations that completed, successfully or not.
+		 */
+		public long getNumOperations()
+		{
+			return (long) profile.numThreads * profile.numOperationsPerThread;
+		}
+
+		/**
+		 * @return The number of operations completed per second.
+		 */
+		public double getThroughput()
+		{
+			return this.getNumOperations() / (elapsedNanos / (double) TimeUnit.SECONDS.toNanos(1));
+		}
+
+		/**
+		 * @return The number of operations that threw an exception.
+		 */
+		public long getNumFailures()
+		{
+			return numFailures;
+		}
+
+		/**
+		 * @return The number of shard transactions that were retried due to
+		 *         contention.
+		 */
+		public long getNumTransactionRetries()
+		{
+			return serviceMetrics.getEventCount(Event.TRANSACTION_RETRY);
+		}
+
+		/**
+		 * @return {@code true} if the counter's final count equals its initial
+		 *         count, plus every increment, less every decrement.
+		 */
+		public boolean isCountCorrect()
+		{
+			return expectedCount == actualCount;
+		}
+
+		@Override
+		public String toString()
+		{
+			StringBuilder report = new StringBuilder();
+			report.append(String.format("%d threads x %d operations against %d shards (%d%% increments, %d%% decrements)%n",
+				profile.numThreads, profile.numOperationsPerThread, profile.numShards, profile.incrementPercent,
+				profile.decrementPercent));
+			report.append(String.format("Throughput: %.1f operations/second (%d failed)%n", this.getThroughput(),
+				numFailures));
+			for (Operation operation : new Operation[] { Operation.INCREMENT, Operation.DECREMENT,
+					Operation.GET_COUNTER })
+			{
+				report.append(String.format("%-11s n=%-6d mean=%.2fms p50<=%.2fms p99<=%.2fms max<=%.2fms%n",
+					operation, harnessMetrics.getOperationCount(operation),
+					toMillis(harnessMetrics.getMeanLatencyNanos(operation)),
+					toMillis(harnessMetrics.getLatencyPercentileNanos(operation, 50)),
+					toMillis(harnessMetrics.getLatencyPercentileNanos(operation, 99)),
+					toMillis(harnessMetrics.getLatencyPercentileNanos(operation, 100))));
+			}
+			report.append(String.format("Transaction retries: %d, Datastore RPCs: %d%n",
+				this.getNumTransactionRetries(), serviceMetrics.getEventCount(Event.DATASTORE_RPC)));
+			report.append(String.format("Final count: %d (expected %d, %d increments, %d decrements)%s", actualCount,
+				expectedCount, numIncrements, numDecrements, this.isCountCorrect() ? "" : " INCORRECT!"));
+			return report.toString();
+		}
+
+		private static double toMillis(long nanos)
+		{
+			return nanos / (double) TimeUnit.MILLISECONDS.toNanos(1);
+		}
+	}
+
+}
@@ -0,0 +1,71 @@
+/**
+ * Copyright (c) 2012 Sappenin Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.sappenin.objectify.shardedcounter.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.googlecode.objectify.ObjectifyService;
+import com.sappenin.objectify.BaseObjectifyTest;
+import com.sappenin.objectify.shardedcounter.data.Counter;
+import com.sappenin.objectify.shardedcounter.data.CounterShard;
+import com.sappenin.objectify.shardedcounter.service.ShardedCounterServiceLoadHarness.LoadProfile;
+import com.sappenin.objectify.shardedcounter.service.ShardedCounterServiceLoadHarness.LoadReport;
+import com.sappenin.objectify.translate.UTCReadableInstantTranslatorFactory;
+
+/**
+ * A smoke test of {@link ShardedCounterServiceLoadHarness}, so that the harness
+ * keeps working as the service changes.
+ * 
+ * @author David Fuelling <sappenin@gmail.com>
+ */
+public class ShardedCounterServiceLoadHarnessTest extends BaseObjectifyTest
+{
+	@Before
+	public void setUp() throws Exception
+	{
+		super.setUp();
+
+		ObjectifyService.ofy().clear();
+		// Must be added before registering entities...
+		ObjectifyService.factory().getTranslators().add(new UTCReadableInstantTranslatorFactory());
+
+		ObjectifyService.factory().register(Counter.class);
+		ObjectifyService.factory().register(CounterShard.class);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testLoadProfile_InvalidOperationMix()
+	{
+		new LoadProfile().withOperationMix(60, 50);
+	}
+
+	@Test
+	public void testRun() throws InterruptedException
+	{
+		LoadReport report = new ShardedCounterServiceLoadHarness().run(new LoadProfile().withNumThreads(4)
+			.withNumOperationsPerThread(20).withNumShards(3).withOperationMix(50, 25));
+
+		assertEquals(80, report.getNumOperations());
+		assertEquals(0, report.getNumFailures());
+		assertTrue(report.getThroughput() > 0);
+		assertTrue(report.toString(), report.isCountCorrect());
+	}
+
+}
@@ -19,12 +19,18 @@ import com.google.appengine.api.memcache.MemcacheServiceFactory;
 import com.google.appengine.api.taskqueue.QueueFactory;
 import com.google.appengine.api.taskqueue.dev.LocalTaskQueue;
 import com.google.appengine.api.taskqueue.dev.QueueStateInfo;
+import com.google.appengine.api.taskqueue.dev.QueueStateInfo.TaskStateInfo;
 import com.google.appengine.api.urlfetch.URLFetchServicePb.URLFetchRequest;
 import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
 import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
 import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
 import com.google.appengine.tools.development.testing.LocalTaskQueueTestConfig;
+import com.google.apphosting.api.ApiProxy;
 import com.google.common.base.Optional;
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.googlecode.objectify.Key;
 import com.googlecode.objectify.ObjectifyService;
 import com.sappenin.objectify.BaseObjectifyTest;
@@ -32,11 +38,21 @@ import com.sappenin.objectify.shardedcounter.data.Counter;
 import com.sappenin.objectify.shardedcounter.data.Counter.CounterStatus;
 import com.sappenin.objectify.shardedcounter.data.CounterShard;
 import com.sappenin.objectify.translate.UTCReadableInstantTranslatorFactory;
+import org.joda.time.DateTime;
+import org.joda.time.DateTimeZone;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Logger;
 
 import static org.junit.Assert.*;
@@ -53,6 +69,7 @@ public class ShardedCounterServiceTest extends BaseObjectifyTest
 	private static final String DELETE_COUNTER_SHARD_QUEUE_NAME = "deleteCounterShardQueue";
 	private static final String TEST_COUNTER1 = "test-counter1";
 	private static final String TEST_COUNTER2 = "test-counter2";
+	private static final String TEST_LEASE_OWNER = "test-lease-owner";
 
 	CounterService shardedCounterService;
 
@@ -62,9 +79,17 @@ public class ShardedCounterServiceTest extends BaseObjectifyTest
 	{
 		private static final long serialVersionUID = -2113612286521272160L;
 
+		/**
+		 * The payloads of the tasks run, for tests that assert on what was
+		 * enqueued even though the task has already left the queue.
+		 */
+		static final Queue<String> taskPayloads = new ConcurrentLinkedQueue<String>();
+
 		@Override
 		protected int executeNonDeferredRequest(URLFetchRequest req)
 		{
+			taskPayloads.add(req.getPayload().toStringUtf8());
+
 			// Do Nothing in this callback. This callback is only here to
 			// simulate a task-queue
 			// run.
@@ -278,326 +303,1879 @@ public class ShardedCounterServiceTest extends BaseObjectifyTest
 		doCounterIncrementAssertions(TEST_COUNTER1, 50);
 	}
 
-	// ///////////////////
-	// ///////////////////
-	// ///////////////////
-
 	@Test(expected = RuntimeException.class)
-	public void testDecrement_CounterIsBeingDeleted() throws InterruptedException
+	public void testIncrementFast_CounterIsBeingDeleted() throws InterruptedException
 	{
 		Counter counter = shardedCounterService.create(TEST_COUNTER1);
 		counter.setCounterStatus(CounterStatus.DELETING);
 		// Store this in the Datastore to trigger the exception below...
 		ObjectifyService.ofy().save().entity(counter).now();
 
-		shardedCounterService.decrement(TEST_COUNTER1);
+		shardedCounterService.incrementFast(TEST_COUNTER1, 1);
 	}
 
 	@Test
-	public void testDecrement_DefaultNumShards() throws InterruptedException
+	public void testIncrementFast() throws InterruptedException
 	{
-		shardedCounterService = new ShardedCounterService(memcache);
-		doCounterDecrementAssertions(TEST_COUNTER1, 50);
+		shardedCounterService = initialShardedCounterService(3);
+
+		// The counter is created if it doesn't exist
+		for (int i = 1; i <= 20; i++)
+		{
+			shardedCounterService.incrementFast(TEST_COUNTER1, 2);
+			// The cached count is adjusted asynchronously, so only the
+			// Datastore count is exact here.
+			this.memcache.clearAll();
+			assertEquals(i * 2, shardedCounterService.getCounter(TEST_COUNTER1).get().getApproximateCount());
+		}
 	}
 
-	@Test
-	public void testDecrement_Specifiy1Shard() throws InterruptedException
+	@Test(expected = IllegalArgumentException.class)
+	public void testIncrementAll_NegativeAmount()
 	{
-		shardedCounterService = initialShardedCounterService(1);
-		doCounterDecrementAssertions(TEST_COUNTER1, 50);
+		Map<String, Long> amounts = Maps.newLinkedHashMap();
+		amounts.put(TEST_COUNTER1, 1L);
+		amounts.put(TEST_COUNTER2, -1L);
+		shardedCounterService.incrementAll(amounts);
 	}
 
 	@Test
-	public void testDecrement_Specifiy3Shard() throws InterruptedException
+	public void testIncrementAll_CounterIsBeingDeleted()
 	{
-		shardedCounterService = initialShardedCounterService(3);
-		doCounterDecrementAssertions(TEST_COUNTER1, 50);
+		Counter counter = shardedCounterService.create(TEST_COUNTER2);
+		counter.setCounterStatus(CounterStatus.DELETING);
+		// Store this in the Datastore to trigger the exception below...
+		ObjectifyService.ofy().save().entity(counter).now();
+
+		// The counter being deleted is rejected, but doesn't stop the others
+		// from being created and incremented.
+		Map<String, Long> amounts = Maps.newLinkedHashMap();
+		amounts.put(TEST_COUNTER1, 1L);
+		amounts.put(TEST_COUNTER2, 1L);
+		amounts.put(TEST_COUNTER1 + "-new", 2L);
+		Map<String, IncrementResult> results = shardedCounterService.incrementAll(amounts);
+		assertEquals(Lists.newArrayList(amounts.keySet()), Lists.newArrayList(results.keySet()));
+		assertEquals(IncrementResult.Status.COMMITTED, results.get(TEST_COUNTER1).getStatus());
+		assertEquals(IncrementResult.Status.REJECTED, results.get(TEST_COUNTER2).getStatus());
+		assertTrue(results.get(TEST_COUNTER2).getFailure().isPresent());
+		assertFalse(results.get(TEST_COUNTER2).getCounter().isPresent());
+		assertEquals(IncrementResult.Status.COMMITTED, results.get(TEST_COUNTER1 + "-new").getStatus());
+		assertEquals(1, shardedCounterService.getCounter(TEST_COUNTER1).get().getApproximateCount());
+		assertEquals(2, shardedCounterService.getCounter(TEST_COUNTER1 + "-new").get().getApproximateCount());
+
+		// A batch of only rejected counters creates nothing.
+		results = shardedCounterService.incrementAll(ImmutableMap.of(TEST_COUNTER2, 1L));
+		assertEquals(IncrementResult.Status.REJECTED, results.get(TEST_COUNTER2).getStatus());
+		assertEquals(CounterStatus.DELETING, shardedCounterService.getCounter(TEST_COUNTER2).get()
+			.getCounterStatus());
 	}
 
 	@Test
-	public void testDecrement_Specifiy10Shards() throws InterruptedException
+	public void testIncrementAll_Empty()
 	{
-		shardedCounterService = initialShardedCounterService(10);
-		doCounterDecrementAssertions(TEST_COUNTER1, 50);
+		assertTrue(shardedCounterService.incrementAll(new HashMap<String, Long>()).isEmpty());
 	}
 
-	// ///////////////////
-	// ///////////////////
-	// ///////////////////
+	@Test
+	public void testIncrementAll() throws InterruptedException
+	{
+		shardedCounterService = initialShardedCounterService(3);
+		shardedCounterService.increment(TEST_COUNTER1, 5);
+
+		Map<String, Long> amounts = Maps.newLinkedHashMap();
+		amounts.put(TEST_COUNTER1, 1L);
+		// Doesn't exist yet, so is created.
+		amounts.put(TEST_COUNTER2, 2L);
+		for (int i = 1; i <= 10; i++)
+		{
+			Map<String, IncrementResult> results = shardedCounterService.incrementAll(amounts);
+			assertEquals(Lists.newArrayList(TEST_COUNTER1, TEST_COUNTER2), Lists.newArrayList(results.keySet()));
+			assertEquals(IncrementResult.Status.COMMITTED, results.get(TEST_COUNTER1).getStatus());
+			assertEquals(5 + i, results.get(TEST_COUNTER1).getCounter().get().getApproximateCount());
+			assertEquals(i * 2, results.get(TEST_COUNTER2).getCounter().get().getApproximateCount());
+		}
+
+		this.memcache.clearAll();
+		assertEquals(15, shardedCounterService.getCounter(TEST_COUNTER1).get().getApproximateCount());
+		assertEquals(20, shardedCounterService.getCounter(TEST_COUNTER2).get().getApproximateCount());
+	}
 
 	@Test
-	public void testIncrementDecrementInterleaving()
+	public void testIncrementAll_ManyCounters()
 	{
-		shardedCounterService.create(TEST_COUNTER1);
-		shardedCounterService.create(TEST_COUNTER2);
+		// More counters than fit in one transaction, most of whose shards
+		// don't exist yet.
+		shardedCounterService = initialShardedCounterService(2);
+		Map<String, Long> amounts = Maps.newLinkedHashMap();
+		for (int i = 0; i < 2 * ShardedCounterService.MAX_ENTITY_GROUPS_PER_TRANSACTION + 1; i++)
+		{
+			amounts.put(TEST_COUNTER1 + "-" + i, Long.valueOf(i + 1));
+		}
 
-		shardedCounterService.increment(TEST_COUNTER1, 1);
-		shardedCounterService.increment(TEST_COUNTER2, 1);
-		shardedCounterService.increment(TEST_COUNTER1, 1);
-		shardedCounterService.increment(TEST_COUNTER2, 1);
-		shardedCounterService.increment(TEST_COUNTER2, 1);
-		shardedCounterService.increment(TEST_COUNTER1, 1);
-		shardedCounterService.increment(TEST_COUNTER2, 1);
+		for (int j = 1; j <= 3; j++)
+		{
+			Map<String, IncrementResult> results = shardedCounterService.incrementAll(amounts);
+			assertEquals(Lists.newArrayList(amounts.keySet()), Lists.newArrayList(results.keySet()));
+			for (Map.Entry<String, Long> entry : amounts.entrySet())
+			{
+				assertEquals(IncrementResult.Status.COMMITTED, results.get(entry.getKey()).getStatus());
+				assertEquals(j * entry.getValue(), results.get(entry.getKey()).getCounter().get()
+					.getApproximateCount());
+			}
+		}
 
-		assertEquals(3, shardedCounterService.getCounter(TEST_COUNTER1).get().getApproximateCount());
-		assertEquals(4, shardedCounterService.getCounter(TEST_COUNTER2).get().getApproximateCount());
+		this.memcache.clearAll();
+		for (Map.Entry<String, Long> entry : amounts.entrySet())
+		{
+			assertEquals(3 * entry.getValue(), shardedCounterService.getCounter(entry.getKey()).get()
+				.getApproximateCount());
+		}
+	}
 
-		shardedCounterService.increment(TEST_COUNTER1, 1);
-		shardedCounterService.increment(TEST_COUNTER2, 1);
-		shardedCounterService.increment(TEST_COUNTER1, 1);
-		shardedCounterService.increment(TEST_COUNTER2, 1);
-		shardedCounterService.increment(TEST_COUNTER2, 1);
-		shardedCounterService.increment(TEST_COUNTER1, 1);
-		shardedCounterService.increment(TEST_COUNTER2, 1);
+	@Test(expected = IllegalArgumentException.class)
+	public void testGetCounters_BlankName()
+	{
+		shardedCounterService.getCounters(Lists.newArrayList(TEST_COUNTER1, " "));
+	}
 
-		assertEquals(6, shardedCounterService.getCounter(TEST_COUNTER1).get().getApproximateCount());
-		assertEquals(8, shardedCounterService.getCounter(TEST_COUNTER2).get().getApproximateCount());
+	@Test
+	public void testGetCounters() throws InterruptedException
+	{
+		ShardedCounterServiceConfiguration config = new ShardedCounterServiceConfiguration.Builder()
+			.withNumInitialShards(10).withShardLoadBatchSize(3).build();
+		shardedCounterService = new ShardedCounterService(memcache, config);
 
-		shardedCounterService.decrement(TEST_COUNTER1);
-		shardedCounterService.decrement(TEST_COUNTER2);
-		shardedCounterService.decrement(TEST_COUNTER1);
-		shardedCounterService.decrement(TEST_COUNTER2);
-		shardedCounterService.decrement(TEST_COUNTER2);
-		shardedCounterService.decrement(TEST_COUNTER1);
-		shardedCounterService.decrement(TEST_COUNTER2);
+		for (int i = 0; i < 10; i++)
+		{
+			shardedCounterService.increment(TEST_COUNTER1, 1);
+			shardedCounterService.increment(TEST_COUNTER2, 2);
+		}
 
-		assertEquals(3, shardedCounterService.getCounter(TEST_COUNTER1).get().getApproximateCount());
-		assertEquals(4, shardedCounterService.getCounter(TEST_COUNTER2).get().getApproximateCount());
+		// One count is cached, the other must be aggregated from its shards.
+		this.memcache.delete(TEST_COUNTER2);
+		Map<String, Counter> counters = shardedCounterService.getCounters(Lists.newArrayList(TEST_COUNTER2,
+			"non-existent-counter", TEST_COUNTER1));
+		assertEquals(Lists.newArrayList(TEST_COUNTER2, TEST_COUNTER1), Lists.newArrayList(counters.keySet()));
+		assertEquals(10, counters.get(TEST_COUNTER1).getApproximateCount());
+		assertEquals(20, counters.get(TEST_COUNTER2).getApproximateCount());
 
-		shardedCounterService.decrement(TEST_COUNTER1);
-		shardedCounterService.decrement(TEST_COUNTER2);
-		shardedCounterService.decrement(TEST_COUNTER1);
-		shardedCounterService.decrement(TEST_COUNTER2);
-		shardedCounterService.decrement(TEST_COUNTER2);
-		shardedCounterService.decrement(TEST_COUNTER1);
-		shardedCounterService.decrement(TEST_COUNTER2);
+		this.memcache.clearAll();
+		counters = shardedCounterService.getCounters(Lists.newArrayList(TEST_COUNTER1, TEST_COUNTER2));
+		assertEquals(10, counters.get(TEST_COUNTER1).getApproximateCount());
+		assertEquals(20, counters.get(TEST_COUNTER2).getApproximateCount());
+	}
 
-		assertEquals(0, shardedCounterService.getCounter(TEST_COUNTER1).get().getApproximateCount());
-		assertEquals(0, shardedCounterService.getCounter(TEST_COUNTER2).get().getApproximateCount());
+	@Test(expected = NullPointerException.class)
+	public void testShardSelector_Null()
+	{
+		new ShardedCounterServiceConfiguration.Builder().withShardSelector(null);
 	}
 
 	@Test
-	public void testDecrementAll() throws InterruptedException
+	public void testShardSelector_PowerOfTwoChoices() throws InterruptedException
 	{
-		// Use 3 shards
-		shardedCounterService = initialShardedCounterService(3);
-		shardedCounterService.create(TEST_COUNTER1);
-		shardedCounterService.increment(TEST_COUNTER1, 10);
-
-		shardedCounterService.create(TEST_COUNTER2);
-		shardedCounterService.increment(TEST_COUNTER2, 10);
+		ShardedCounterServiceConfiguration config = new ShardedCounterServiceConfiguration.Builder()
+			.withNumInitialShards(5).withShardSelector(new PowerOfTwoChoicesShardSelector()).build();
+		shardedCounterService = new ShardedCounterService(memcache, config);
 
-		// Decrement 20
 		for (int i = 0; i < 10; i++)
 		{
-			logger.info("Decrement #" + i + " of 9 for counter 1");
-			shardedCounterService.decrement(TEST_COUNTER1);
-			logger.info("Decrement #" + i + " of 9 for counter 2");
-			shardedCounterService.decrement(TEST_COUNTER2);
+			shardedCounterService.increment(TEST_COUNTER1, 1);
+			shardedCounterService.incrementFast(TEST_COUNTER1, 1);
 		}
+		Map<String, Long> amounts = Maps.newLinkedHashMap();
+		amounts.put(TEST_COUNTER1, 5L);
+		shardedCounterService.incrementAll(amounts);
+		shardedCounterService.decrement(TEST_COUNTER1);
 
-		assertEquals(0, shardedCounterService.getCounter(TEST_COUNTER1).get().getApproximateCount());
-		assertEquals(0, shardedCounterService.getCounter(TEST_COUNTER2).get().getApproximateCount());
+		this.memcache.clearAll();
+		assertEquals(24, shardedCounterService.getCounter(TEST_COUNTER1).get().getApproximateCount());
+	}
+
+	@Test(expected = NullPointerException.class)
+	public void testCounterMetrics_Null()
+	{
+		new ShardedCounterServiceConfiguration.Builder().withCounterMetrics(null);
 	}
 
 	@Test
-	public void testDecrementNegative() throws InterruptedException
+	public void testCounterMetrics() throws InterruptedException
 	{
-		// Use 3 shards
-		shardedCounterService = initialShardedCounterService(3);
+		InMemoryCounterMetrics counterMetrics = new InMemoryCounterMetrics();
+		ShardedCounterServiceConfiguration config = new ShardedCounterServiceConfiguration.Builder()
+			.withNumInitialShards(2).withCounterMetrics(counterMetrics).withShardSelector(new ShardSelector()
+			{
+				@Override
+				public int selectShard(String counterName, int numShards)
+				{
+					return 0;
+				}
+
+				@Override
+				public void recordOutcome(String counterName, int shardNumber, boolean contended)
+				{
+				}
+			}).build();
+		shardedCounterService = new ShardedCounterService(memcache, config);
+
 		shardedCounterService.create(TEST_COUNTER1);
-		shardedCounterService.increment(TEST_COUNTER1, 10);
+		// Only shard 1 has a count, so decrementing the chosen shard (0) fails.
+		CounterShard counterShard = new CounterShard(TEST_COUNTER1, 1);
+		counterShard.setCount(1);
+		ObjectifyService.ofy().save().entity(counterShard).now();
 
-		shardedCounterService.create(TEST_COUNTER2);
-		shardedCounterService.increment(TEST_COUNTER2, 10);
+		this.memcache.clearAll();
+		assertEquals(0, shardedCounterService.decrement(TEST_COUNTER1).getApproximateCount());
+		assertEquals(1, counterMetrics.getOperationCount(CounterMetrics.Operation.DECREMENT));
+		// Shard 0 is tried once at random, and once more while scanning.
+		assertEquals(2, counterMetrics.getEventCount(CounterMetrics.Event.NON_VIABLE_DECREMENT));
+		assertTrue(counterMetrics.getEventCount(CounterMetrics.Event.MEMCACHE_MISS) >= 1);
 
-		// Decrement 20
-		for (int i = 0; i < 20; i++)
+		shardedCounterService.increment(TEST_COUNTER1, 1);
+		shardedCounterService.incrementFast(TEST_COUNTER1, 1);
+		assertEquals(1, counterMetrics.getOperationCount(CounterMetrics.Operation.INCREMENT));
+		assertEquals(1, counterMetrics.getOperationCount(CounterMetrics.Operation.INCREMENT_FAST));
+		assertEquals(1, counterMetrics.getOperationCount(CounterMetrics.Operation.CREATE));
+		// Increments and decrements only load the Counter's metadata.
+		assertEquals(0, counterMetrics.getOperationCount(CounterMetrics.Operation.GET_COUNTER));
+		assertTrue(counterMetrics.getMeanLatencyNanos(CounterMetrics.Operation.INCREMENT) > 0);
+		assertTrue(counterMetrics.getEventCount(CounterMetrics.Event.DATASTORE_RPC) > 0);
+		assertEquals(0, counterMetrics.getEventCount(CounterMetrics.Event.TRANSACTION_RETRY));
+	}
+
+	@Test(expected = NullPointerException.class)
+	public void testShardedCounterServiceConstructor_NullCounterCache()
+	{
+		new ShardedCounterService((CounterCache) null, ShardedCounterServiceConfiguration.defaultConfiguration());
+	}
+
+	@Test
+	public void testInMemoryCounterCache() throws InterruptedException
+	{
+		final InMemoryCounterCache counterCache = new InMemoryCounterCache(100);
+		shardedCounterService = new ShardedCounterService(counterCache, new ShardedCounterServiceConfiguration.Builder()
+			.withNumInitialShards(3).build());
+
+		shardedCounterService.create(TEST_COUNTER1);
+		for (int i = 1; i <= 10; i++)
 		{
-			shardedCounterService.decrement(TEST_COUNTER1);
-			shardedCounterService.decrement(TEST_COUNTER2);
+			shardedCounterService.increment(TEST_COUNTER1, 1);
+			assertEquals(i, shardedCounterService.getCounter(TEST_COUNTER1).get().getApproximateCount());
 		}
+		shardedCounterService.decrement(TEST_COUNTER1);
+		assertEquals(Long.valueOf(9), counterCache.get(TEST_COUNTER1));
 
-		assertEquals(0, shardedCounterService.getCounter(TEST_COUNTER1).get().getApproximateCount());
-		assertEquals(0, shardedCounterService.getCounter(TEST_COUNTER2).get().getApproximateCount());
+		// Nothing was cached in memcache.
+		assertNull(this.memcache.get(TEST_COUNTER1));
+
+		// Evicted counts are aggregated from the shards.
+		counterCache.delete(TEST_COUNTER1);
+		assertEquals(9, shardedCounterService.getCounter(TEST_COUNTER1).get().getApproximateCount());
 	}
 
-	// ///////////////////
-	// ///////////////////
-	// ///////////////////
+	@Test(expected = IllegalArgumentException.class)
+	public void testL1CountCache_NegativeMaxSize()
+	{
+		new ShardedCounterServiceConfiguration.Builder().withL1CountCacheMaxSize(-1);
+	}
 
-	@Test(expected = RuntimeException.class)
-	public void testDeleteCounter_Null()
+	@Test
+	public void testL1CountCache() throws InterruptedException
 	{
-		shardedCounterService.delete(null);
+		shardedCounterService = new ShardedCounterService(memcache, new ShardedCounterServiceConfiguration.Builder()
+			.withL1CountCacheMaxSize(100).withL1CountCacheExpirationMillis(200).build());
+
+		shardedCounterService.increment(TEST_COUNTER1, 1);
+		assertEquals(1, shardedCounterService.getCounter(TEST_COUNTER1).get().getApproximateCount());
+
+		// This instance's own increments are observed right away.
+		shardedCounterService.increment(TEST_COUNTER1, 1);
+		assertEquals(2, shardedCounterService.getCounter(TEST_COUNTER1).get().getApproximateCount());
+
+		// Another instance's increments are observed once the L1 count
+		// expires.
+		new ShardedCounterService(memcache).increment(TEST_COUNTER1, 1);
+		assertEquals(2, shardedCounterService.getCounter(TEST_COUNTER1).get().getApproximateCount());
+		Thread.sleep(250);
+		assertEquals(3, shardedCounterService.getCounter(TEST_COUNTER1).get().getApproximateCount());
 	}
 
-	@Test(expected = RuntimeException.class)
-	public void testDeleteCounter_Empty()
+	@Test(expected = IllegalArgumentException.class)
+	public void testCountRecomputeLease_Negative()
 	{
-		shardedCounterService.delete("");
+		new ShardedCounterServiceConfiguration.Builder().withCountRecomputeLeaseMillis(-1);
 	}
 
-	@Test(expected = RuntimeException.class)
-	public void testDeleteCounter_Blank()
+	@Test
+	public void testCountRecomputeLease_WaitsForLeaseholder() throws InterruptedException
 	{
-		shardedCounterService.delete(" ");
+		final InMemoryCounterCache counterCache = new InMemoryCounterCache(100);
+		shardedCounterService = new ShardedCounterService(counterCache, new ShardedCounterServiceConfiguration.Builder()
+			.withCountRecomputeLeaseMillis(5000).build());
+		shardedCounterService.increment(TEST_COUNTER1, 1);
+		counterCache.delete(TEST_COUNTER1);
+
+		// Another instance holds the lease, and caches the count shortly.
+		assertTrue(counterCache.tryAcquireRecomputeLease(TEST_COUNTER1, TEST_LEASE_OWNER, 5000));
+		Thread leaseholder = new Thread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					Thread.sleep(100);
+				}
+				catch (InterruptedException e)
+				{
+					return;
+				}
+				counterCache.put(TEST_COUNTER1, 42, CounterCache.NO_EXPIRATION);
+			}
+		});
+		leaseholder.start();
+
+		// The leaseholder's count is returned, rather than the shards'.
+		assertEquals(42, shardedCounterService.getCounter(TEST_COUNTER1).get().getApproximateCount());
+		leaseholder.join();
 	}
 
 	@Test
-	public void testDeleteCounter_NoneExists()
+	public void testCountRecomputeLease_LeaseholderReleasesWithoutCaching() throws InterruptedException
 	{
-		shardedCounterService.delete(TEST_COUNTER1);
-		Optional<Counter> optCounter = shardedCounterService.getCounter(TEST_COUNTER1);
-		assertFalse(optCounter.isPresent());
+		final InMemoryCounterCache counterCache = new InMemoryCounterCache(100);
+		shardedCounterService = new ShardedCounterService(counterCache, new ShardedCounterServiceConfiguration.Builder()
+			.withCountRecomputeLeaseMillis(60000).build());
+		shardedCounterService.increment(TEST_COUNTER1, 1);
+		counterCache.delete(TEST_COUNTER1);
 
-		shardedCounterService.delete(TEST_COUNTER2);
-		optCounter = shardedCounterService.getCounter(TEST_COUNTER2);
-		assertFalse(optCounter.isPresent());
+		// Another instance holds the lease, but gives it up without caching a
+		// count (e.g., because it found no Counter).
+		assertTrue(counterCache.tryAcquireRecomputeLease(TEST_COUNTER1, TEST_LEASE_OWNER, 60000));
+		Thread leaseholder = new Thread(new Runnable()
+		{
+			@Override
+			public void run()
+			{
+				try
+				{
+					Thread.sleep(100);
+				}
+				catch (InterruptedException e)
+				{
+					return;
+				}
+				counterCache.releaseRecomputeLease(TEST_COUNTER1, TEST_LEASE_OWNER);
+			}
+		});
+		leaseholder.start();
+
+		// The count is recomputed here, long before the lease would expire.
+		final long startMillis = System.currentTimeMillis();
+		assertEquals(1, shardedCounterService.getCounter(TEST_COUNTER1).get().getApproximateCount());
+		assertTrue(System.currentTimeMillis() - startMillis < 30000);
+		assertEquals(Long.valueOf(1), counterCache.get(TEST_COUNTER1));
+		// ...and the lease this caller took over is released.
+		assertTrue(counterCache.tryAcquireRecomputeLease(TEST_COUNTER1, TEST_LEASE_OWNER, 1000));
+		leaseholder.join();
 	}
 
 	@Test
-	public void testDeleteCounterWith_NonDefaultQueue() throws InterruptedException
+	public void testCountRecomputeLease_LeaseholderTimesOut() throws InterruptedException
 	{
-		ShardedCounterServiceConfiguration config = new ShardedCounterServiceConfiguration.Builder()
-			.withDeleteCounterShardQueueName(DELETE_COUNTER_SHARD_QUEUE_NAME).build();
+		final InMemoryCounterCache counterCache = new InMemoryCounterCache(100);
+		shardedCounterService = new ShardedCounterService(counterCache, new ShardedCounterServiceConfiguration.Builder()
+			.withCountRecomputeLeaseMillis(100).build());
+		shardedCounterService.increment(TEST_COUNTER1, 1);
+		counterCache.delete(TEST_COUNTER1);
 
-		shardedCounterService = new ShardedCounterService(memcache, config);
+		// Another instance holds the lease, but never caches the count.
+		assertTrue(counterCache.tryAcquireRecomputeLease(TEST_COUNTER1, TEST_LEASE_OWNER, 5000));
 
-		shardedCounterService.create(TEST_COUNTER1);
-		shardedCounterService.delete(TEST_COUNTER1);
-		assertPostDeleteCallSuccess(TEST_COUNTER1);
+		assertEquals(1, shardedCounterService.getCounter(TEST_COUNTER1).get().getApproximateCount());
+		assertEquals(Long.valueOf(1), counterCache.get(TEST_COUNTER1));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testCachedCountFreshness_Negative()
+	{
+		new ShardedCounterServiceConfiguration.Builder().withCachedCountFreshnessMillis(-1);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testCountRefreshLease_0()
+	{
+		new ShardedCounterServiceConfiguration.Builder().withCountRefreshLeaseMillis(0);
 	}
 
 	@Test
-	public void testDeleteCounterWith_NonDefaultQueueAndNonDefaultPath() throws InterruptedException
+	public void testStaleWhileRevalidate()
 	{
-		ShardedCounterServiceConfiguration config = new ShardedCounterServiceConfiguration.Builder()
-			.withDeleteCounterShardQueueName(DELETE_COUNTER_SHARD_QUEUE_NAME)
-			.withRelativeUrlPathForDeleteTaskQueue("/coolpath").build();
-		shardedCounterService = new ShardedCounterService(memcache, config);
+		final AtomicLong nowNanos = new AtomicLong();
+		final InMemoryCounterCache counterCache = new InMemoryCounterCache(100, new Ticker()
+		{
+			@Override
+			public long read()
+			{
+				return nowNanos.get();
+			}
+		});
+		shardedCounterService = new ShardedCounterService(counterCache, new ShardedCounterServiceConfiguration.Builder()
+			.withCachedCountFreshnessMillis(100).build());
+		final String refreshLeaseName = "__countRefresh__" + TEST_COUNTER1;
+		shardedCounterService.increment(TEST_COUNTER1, 1);
+		counterCache.delete(TEST_COUNTER1);
+
+		// A miss with no last known count aggregates the shards.
+		assertEquals(1, shardedCounterService.getCounter(TEST_COUNTER1).get().getApproximateCount());
+		assertEquals(1, counterCache.getLastKnownCount(TEST_COUNTER1).getCount());
+
+		// Simulate an increment whose cached count wasn't adjusted, and let
+		// the cached count expire.
+		CounterShard counterShard = new CounterShard(TEST_COUNTER1, 0);
+		counterShard.setCount(5);
+		ObjectifyService.ofy().save().entity(counterShard).now();
+		nowNanos.addAndGet(TimeUnit.MILLISECONDS.toNanos(150));
+
+		// The last known count is served, and a refresh is scheduled (which
+		// holds the refresh lease, but not the recompute lease).
+		assertEquals(1, shardedCounterService.getCounter(TEST_COUNTER1).get().getApproximateCount());
+		assertFalse(counterCache.tryAcquireRecomputeLease(refreshLeaseName, TEST_LEASE_OWNER, 1000));
+		assertTrue(counterCache.tryAcquireRecomputeLease(TEST_COUNTER1, TEST_LEASE_OWNER, 1000));
+		counterCache.releaseRecomputeLease(TEST_COUNTER1, TEST_LEASE_OWNER);
+
+		// The refresh lease outlives the cached count's freshness, so another
+		// stale read doesn't enqueue another refresh.
+		nowNanos.addAndGet(TimeUnit.MILLISECONDS.toNanos(150));
+		assertEquals(1, shardedCounterService.getCounter(TEST_COUNTER1).get().getApproximateCount());
+		assertFalse(counterCache.tryAcquireRecomputeLease(refreshLeaseName, TEST_LEASE_OWNER, 1000));
+
+		this.shardedCounterService.onTaskQueueCounterRefresh(TEST_COUNTER1,
+			counterCache.getRecomputeLeaseOwner(refreshLeaseName));
+		assertEquals(5, shardedCounterService.getCounter(TEST_COUNTER1).get().getApproximateCount());
+		assertEquals(5, counterCache.getLastKnownCount(TEST_COUNTER1).getCount());
+		assertTrue(counterCache.tryAcquireRecomputeLease(refreshLeaseName, TEST_LEASE_OWNER, 1000));
+	}
 
+	@Test
+	public void testRefresh_TaskType() throws InterruptedException
+	{
+		final InMemoryCounterCache counterCache = new InMemoryCounterCache(100);
+		shardedCounterService = new ShardedCounterService(counterCache, new ShardedCounterServiceConfiguration.Builder()
+			.withCachedCountFreshnessMillis(60000).build());
 		shardedCounterService.create(TEST_COUNTER1);
-		shardedCounterService.delete(TEST_COUNTER1);
-		assertPostDeleteCallSuccess(TEST_COUNTER1);
+		DeleteShardedCounterDeferredCallback.taskPayloads.clear();
+
+		// A last known count without a fresh cached count schedules a refresh.
+		counterCache.putLastKnownCount(TEST_COUNTER1, new LastKnownCount(1, new DateTime(DateTimeZone.UTC)));
+		assertEquals(1, shardedCounterService.getCounter(TEST_COUNTER1).get().getApproximateCount());
+
+		assertTaskEnqueued(CounterService.TaskType.REFRESH);
+	}
+
+	/**
+	 * Asserts that a task of {@code taskType} was enqueued on the default
+	 * queue, which is either still queued or has already run.
+	 * 
+	 * @param taskType
+	 * @throws InterruptedException
+	 */
+	private void assertTaskEnqueued(final CounterService.TaskType taskType) throws InterruptedException
+	{
+		final String taskTypeParam = CounterService.TASK_TYPE + "=" + taskType;
+		final long deadlineMillis = System.currentTimeMillis() + 5000;
+		while (true)
+		{
+			final List<String> payloads = Lists.newArrayList(DeleteShardedCounterDeferredCallback.taskPayloads);
+			LocalTaskQueue ltq = LocalTaskQueueTestConfig.getLocalTaskQueue();
+			for (TaskStateInfo task : ltq.getQueueStateInfo().get(QueueFactory.getDefaultQueue().getQueueName())
+				.getTaskInfo())
+			{
+				payloads.add(task.getBody());
+			}
+			for (String payload : payloads)
+			{
+				if (payload.contains(taskTypeParam))
+				{
+					return;
+				}
+			}
+			assertTrue("No " + taskType + " task was enqueued", System.currentTimeMillis() < deadlineMillis);
+			Thread.sleep(50);
+		}
 	}
 
 	@Test
-	public void testDeleteWith1Shard() throws InterruptedException
+	public void testDelete_EvictsLastKnownCount()
 	{
-		Counter counter1 = shardedCounterService.create(TEST_COUNTER1);
-		assertNotNull(counter1);
-		assertNotNull(counter1.getTypedKey());
+		final InMemoryCounterCache counterCache = new InMemoryCounterCache(100);
+		shardedCounterService = new ShardedCounterService(counterCache, new ShardedCounterServiceConfiguration.Builder()
+			.withCachedCountFreshnessMillis(60000).build());
+		shardedCounterService.increment(TEST_COUNTER1, 1);
+		counterCache.delete(TEST_COUNTER1);
+		assertEquals(1, shardedCounterService.getCounter(TEST_COUNTER1).get().getApproximateCount());
+		assertNotNull(counterCache.getLastKnownCount(TEST_COUNTER1));
 
+		// Deletion via the Task Queue.
 		shardedCounterService.delete(TEST_COUNTER1);
-		assertPostDeleteCallSuccess(TEST_COUNTER1);
+		assertNull(counterCache.getLastKnownCount(TEST_COUNTER1));
+	}
 
-		Counter counter2 = shardedCounterService.create(TEST_COUNTER2);
-		assertNotNull(counter2);
-		assertNotNull(counter2.getTypedKey());
+	@Test(expected = IllegalArgumentException.class)
+	public void testRollupInterval_Negative()
+	{
+		new ShardedCounterServiceConfiguration.Builder().withRollupIntervalMillis(-1);
+	}
 
-		shardedCounterService.delete(TEST_COUNTER2);
-		assertPostDeleteCallSuccess(TEST_COUNTER2);
+	@Test
+	public void testMaterializedCount()
+	{
+		final InMemoryCounterCache counterCache = new InMemoryCounterCache(100);
+		shardedCounterService = new ShardedCounterService(counterCache, new ShardedCounterServiceConfiguration.Builder()
+			.withRollupIntervalMillis(60000L).build());
+		final String leaseName = "__rollup__" + TEST_COUNTER1;
+		final String deltaName = ShardedCounterService.materializedDeltaName(TEST_COUNTER1, 1);
+		shardedCounterService.increment(TEST_COUNTER1, 3);
+
+		// A miss before the first rollup aggregates the shards, and schedules
+		// a rollup (which holds the rollup lease).
+		counterCache.delete(TEST_COUNTER1);
+		assertEquals(3, shardedCounterService.getCounter(TEST_COUNTER1).get().getApproximateCount());
+		assertFalse(counterCache.tryAcquireRecomputeLease(leaseName, TEST_LEASE_OWNER, 1000));
+
+		this.shardedCounterService.onTaskQueueCounterRollup(TEST_COUNTER1, counterCache.getRecomputeLeaseOwner(leaseName));
+		Counter dsCounter = ObjectifyService.ofy().load().key(Key.create(Counter.class, TEST_COUNTER1)).now();
+		assertEquals(3, dsCounter.getMaterializedCount());
+		assertNotNull(dsCounter.getMaterializedDateTime());
+		assertEquals(1, dsCounter.getMaterializedGeneration());
+		assertEquals(Long.valueOf(ShardedCounterService.MATERIALIZED_DELTA_BASELINE), counterCache.get(deltaName));
+		assertTrue(counterCache.tryAcquireRecomputeLease(leaseName, TEST_LEASE_OWNER, 1000));
+		counterCache.releaseRecomputeLease(leaseName, TEST_LEASE_OWNER);
+
+		// Later increments are tracked in the delta.
+		shardedCounterService.increment(TEST_COUNTER1, 2);
+		counterCache.delete(TEST_COUNTER1);
+		assertEquals(5, shardedCounterService.getCounter(TEST_COUNTER1).get().getApproximateCount());
+
+		// Change the materialized count behind the service's back, to show that
+		// a miss doesn't aggregate the shards.
+		dsCounter = ObjectifyService.ofy().load().key(Key.create(Counter.class, TEST_COUNTER1)).now();
+		dsCounter.setMaterializedCount(10);
+		ObjectifyService.ofy().save().entity(dsCounter).now();
+		counterCache.delete(TEST_COUNTER1);
+		assertEquals(12, shardedCounterService.getCounter(TEST_COUNTER1).get().getApproximateCount());
+
+		// Without its delta, the materialized count is unusable, so the shards
+		// are aggregated and a rollup is scheduled.
+		counterCache.delete(deltaName);
+		counterCache.delete(TEST_COUNTER1);
+		assertEquals(5, shardedCounterService.getCounter(TEST_COUNTER1).get().getApproximateCount());
+		assertFalse(counterCache.tryAcquireRecomputeLease(leaseName, TEST_LEASE_OWNER, 1000));
+
+		// The next rollup tracks changes under a new generation, and keeps the
+		// previous generation's delta (as read before summing).
+		counterCache.releaseRecomputeLease(leaseName, counterCache.getRecomputeLeaseOwner(leaseName));
+		shardedCounterService.increment(TEST_COUNTER1, 1);
+		counterCache.put(deltaName, ShardedCounterService.MATERIALIZED_DELTA_BASELINE, CounterCache.NO_EXPIRATION);
+		this.shardedCounterService.onTaskQueueCounterRollup(TEST_COUNTER1, null);
+		dsCounter = ObjectifyService.ofy().load().key(Key.create(Counter.class, TEST_COUNTER1)).now();
+		assertEquals(6, dsCounter.getMaterializedCount());
+		assertEquals(2, dsCounter.getMaterializedGeneration());
+		assertEquals(Long.valueOf(ShardedCounterService.MATERIALIZED_DELTA_BASELINE),
+			dsCounter.getPreviousMaterializedDelta());
+		assertEquals(Long.valueOf(ShardedCounterService.MATERIALIZED_DELTA_BASELINE), counterCache.get(deltaName));
+		assertEquals(Long.valueOf(ShardedCounterService.MATERIALIZED_DELTA_BASELINE),
+			counterCache.get(ShardedCounterService.materializedDeltaName(TEST_COUNTER1, 2)));
+
+		// The rollup after that drops it.
+		this.shardedCounterService.onTaskQueueCounterRollup(TEST_COUNTER1, null);
+		assertNull(counterCache.get(deltaName));
+		counterCache.delete(TEST_COUNTER1);
+		assertEquals(6, shardedCounterService.getCounter(TEST_COUNTER1).get().getApproximateCount());
 	}
 
 	@Test
-	public void testDeleteWith3Shards() throws InterruptedException
+	public void testRollup_IncrementWhileSummingIsNotCountedTwice()
 	{
-		// Use 3 shards
-		shardedCounterService = initialShardedCounterService(3);
-		shardedCounterService.create(TEST_COUNTER1);
+		final CounterService[] service = new CounterService[1];
+		final InMemoryCounterCache counterCache = new InMemoryCounterCache(100)
+		{
+			@Override
+			public void put(final String counterName, final long count, final long expirationMillis)
+			{
+				super.put(counterName, count, expirationMillis);
+				if (counterName.equals(ShardedCounterService.materializedDeltaName(TEST_COUNTER1, 1)))
+				{
+					// Increment once the next generation is seeded, but before
+					// the shards are summed.
+					service[0].increment(TEST_COUNTER1, 2);
+				}
+			}
+		};
+		shardedCounterService = new ShardedCounterService(counterCache, new ShardedCounterServiceConfiguration.Builder()
+			.withRollupIntervalMillis(60000L).build());
+		service[0] = shardedCounterService;
+		shardedCounterService.increment(TEST_COUNTER1, 3);
+
+		this.shardedCounterService.onTaskQueueCounterRollup(TEST_COUNTER1, null);
+		assertEquals(5, shardedCounterService.getCounter(TEST_COUNTER1).get().getApproximateCount());
+		Counter dsCounter = ObjectifyService.ofy().load().key(Key.create(Counter.class, TEST_COUNTER1)).now();
+		assertEquals(5, dsCounter.getMaterializedCount());
+
+		// The materialized count alone must agree with the shards.
+		counterCache.delete(TEST_COUNTER1);
+		assertEquals(5, shardedCounterService.getCounter(TEST_COUNTER1).get().getApproximateCount());
+	}
+
+	@Test
+	public void testRollup_IncrementAfterSummingIsNotLost()
+	{
+		final InMemoryCounterCache counterCache = new InMemoryCounterCache(100);
+		// This instance's cached metadata holds the generation it last loaded.
+		final CounterService staleService = new ShardedCounterService(counterCache,
+			new ShardedCounterServiceConfiguration.Builder().withRollupIntervalMillis(60000L)
+				.withCounterMetadataCacheMaxSize(100).withCounterMetadataCacheExpirationMillis(60000L).build());
+		final AtomicBoolean incrementAfterSum = new AtomicBoolean();
+		shardedCounterService = new ShardedCounterService(counterCache, new ShardedCounterServiceConfiguration.Builder()
+			.withRollupIntervalMillis(60000L).build())
+		{
+			@Override
+			long sumCounterShards(final String counterName, final int numShards)
+			{
+				final long sum = super.sumCounterShards(counterName, numShards);
+				if (incrementAfterSum.getAndSet(false))
+				{
+					// Increment once the shards are summed, but before the
+					// next generation is saved.
+					this.increment(TEST_COUNTER1, 4);
+				}
+				return sum;
+			}
+		};
+		shardedCounterService.increment(TEST_COUNTER1, 3);
+		this.shardedCounterService.onTaskQueueCounterRollup(TEST_COUNTER1, null);
+		staleService.increment(TEST_COUNTER1, 2);
+
+		incrementAfterSum.set(true);
+		this.shardedCounterService.onTaskQueueCounterRollup(TEST_COUNTER1, null);
+		Counter dsCounter = ObjectifyService.ofy().load().key(Key.create(Counter.class, TEST_COUNTER1)).now();
+		assertEquals(2, dsCounter.getMaterializedGeneration());
+		assertEquals(5, dsCounter.getMaterializedCount());
+		counterCache.delete(TEST_COUNTER1);
+		assertEquals(9, shardedCounterService.getCounter(TEST_COUNTER1).get().getApproximateCount());
+
+		// An instance whose metadata still holds the previous generation isn't
+		// lost either.
+		staleService.increment(TEST_COUNTER1, 1);
+		counterCache.delete(TEST_COUNTER1);
+		assertEquals(10, shardedCounterService.getCounter(TEST_COUNTER1).get().getApproximateCount());
+
+		// The next rollup includes both in its sum.
+		this.shardedCounterService.onTaskQueueCounterRollup(TEST_COUNTER1, null);
+		dsCounter = ObjectifyService.ofy().load().key(Key.create(Counter.class, TEST_COUNTER1)).now();
+		assertEquals(10, dsCounter.getMaterializedCount());
+		counterCache.delete(TEST_COUNTER1);
+		assertEquals(10, shardedCounterService.getCounter(TEST_COUNTER1).get().getApproximateCount());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testCounterMetadataCache_ExpirationExceedsRollupInterval()
+	{
+		ShardedCounterServiceConfiguration config = new ShardedCounterServiceConfiguration.Builder()
+			.withCounterMetadataCacheMaxSize(100).withCounterMetadataCacheExpirationMillis(10000L)
+			.withRollupIntervalMillis(5000L).build();
+		new ShardedCounterService(memcache, config);
+	}
+
+	@Test
+	public void testRollup_FailureLeavesCountsIntact()
+	{
+		final InMemoryCounterCache counterCache = new InMemoryCounterCache(100)
+		{
+			@Override
+			public void put(final String counterName, final long count, final long expirationMillis)
+			{
+				super.put(counterName, count, expirationMillis);
+				if (counterName.equals(ShardedCounterService.materializedDeltaName(TEST_COUNTER1, 1)))
+				{
+					throw new RuntimeException("Simulated failure after seeding the next generation");
+				}
+			}
+		};
+		shardedCounterService = new ShardedCounterService(counterCache, new ShardedCounterServiceConfiguration.Builder()
+			.withRollupIntervalMillis(60000L).build());
+		shardedCounterService.increment(TEST_COUNTER1, 3);
+
+		// Materialize the count as though by an earlier rollup.
+		Counter dsCounter = ObjectifyService.ofy().load().key(Key.create(Counter.class, TEST_COUNTER1)).now();
+		dsCounter.setMaterializedCount(3);
+		dsCounter.setMaterializedDateTime(new DateTime(DateTimeZone.UTC));
+		ObjectifyService.ofy().save().entity(dsCounter).now();
+		counterCache.put(ShardedCounterService.materializedDeltaName(TEST_COUNTER1, 0),
+			ShardedCounterService.MATERIALIZED_DELTA_BASELINE, CounterCache.NO_EXPIRATION);
+		shardedCounterService.increment(TEST_COUNTER1, 2);
+		counterCache.delete(TEST_COUNTER1);
+		assertEquals(5, shardedCounterService.getCounter(TEST_COUNTER1).get().getApproximateCount());
+
+		// The first increment's read enqueued a rollup, which holds the lease.
+		final String rollupLeaseName = "__rollup__" + TEST_COUNTER1;
+		final String leaseOwner = counterCache.getRecomputeLeaseOwner(rollupLeaseName);
+		assertNotNull(leaseOwner);
+		try
+		{
+			this.shardedCounterService.onTaskQueueCounterRollup(TEST_COUNTER1, leaseOwner);
+			fail();
+		}
+		catch (RuntimeException e)
+		{
+			// Expected
+		}
+
+		// Neither the cached count nor the current generation's delta was
+		// touched, and the rollup lease was released.
+		assertEquals(Long.valueOf(5), counterCache.get(TEST_COUNTER1));
+		counterCache.delete(TEST_COUNTER1);
+		assertEquals(5, shardedCounterService.getCounter(TEST_COUNTER1).get().getApproximateCount());
+		dsCounter = ObjectifyService.ofy().load().key(Key.create(Counter.class, TEST_COUNTER1)).now();
+		assertEquals(0, dsCounter.getMaterializedGeneration());
+		assertTrue(counterCache.tryAcquireRecomputeLease(rollupLeaseName, "another-lease-owner", 1000));
+	}
+
+	@Test
+	public void testRollup_TaskType() throws InterruptedException
+	{
+		final InMemoryCounterCache counterCache = new InMemoryCounterCache(100);
+		shardedCounterService = new ShardedCounterService(counterCache, new ShardedCounterServiceConfiguration.Builder()
+			.withRollupIntervalMillis(60000L).build());
+		shardedCounterService.create(TEST_COUNTER1);
+		DeleteShardedCounterDeferredCallback.taskPayloads.clear();
+
+		// A miss before the first rollup schedules one.
+		assertEquals(0, shardedCounterService.getCounter(TEST_COUNTER1).get().getApproximateCount());
+
+		assertTaskEnqueued(CounterService.TaskType.ROLLUP);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testCounterMetadataCache_ExpirationExceedsCompactionDelay()
+	{
+		ShardedCounterServiceConfiguration config = new ShardedCounterServiceConfiguration.Builder()
+			.withCounterMetadataCacheMaxSize(100).withCounterMetadataCacheExpirationMillis(10000L)
+			.withCompactionDelayMillis(5000L).build();
+		new ShardedCounterService(memcache, config);
+	}
+
+	@Test
+	public void testCounterMetadataCache() throws InterruptedException
+	{
+		final List<Integer> selectedNumShards = Lists.newArrayList();
+		ShardedCounterServiceConfiguration config = new ShardedCounterServiceConfiguration.Builder()
+			.withNumInitialShards(2).withCounterMetadataCacheMaxSize(100)
+			.withCounterMetadataCacheExpirationMillis(60000L).withShardSelector(new ShardSelector()
+			{
+				@Override
+				public int selectShard(String counterName, int numShards)
+				{
+					selectedNumShards.add(numShards);
+					return 0;
+				}
+
+				@Override
+				public void recordOutcome(String counterName, int shardNumber, boolean contended)
+				{
+				}
+			}).build();
+		shardedCounterService = new ShardedCounterService(memcache, config);
+
+		shardedCounterService.increment(TEST_COUNTER1, 1);
+
+		// Change the stored Counter behind the service's back.
+		Counter dsCounter = ObjectifyService.ofy().load().key(Key.create(Counter.class, TEST_COUNTER1)).now();
+		dsCounter.setNumShards(5);
+		ObjectifyService.ofy().save().entity(dsCounter).now();
+
+		// Increments are served the cached metadata...
+		selectedNumShards.clear();
+		shardedCounterService.incrementAll(ImmutableMap.of(TEST_COUNTER1, 1L));
+		shardedCounterService.increment(TEST_COUNTER1, 1);
+		assertEquals(Lists.newArrayList(2, 2), selectedNumShards);
+		this.memcache.clearAll();
+		assertEquals(3, shardedCounterService.getCounter(TEST_COUNTER1).get().getApproximateCount());
+
+		// ...but getCounter returns the stored Counter, and re-caches it.
+		assertEquals(5, shardedCounterService.getCounter(TEST_COUNTER1).get().getNumShards());
+		selectedNumShards.clear();
+		shardedCounterService.incrementAll(ImmutableMap.of(TEST_COUNTER1, 1L));
+		assertEquals(Lists.newArrayList(5), selectedNumShards);
+
+		// Compaction invalidates the cached metadata.
+		shardedCounterService.compact(TEST_COUNTER1, 3);
+		selectedNumShards.clear();
+		shardedCounterService.incrementAll(ImmutableMap.of(TEST_COUNTER1, 1L));
+		assertEquals(Lists.newArrayList(3), selectedNumShards);
+
+		// So does deletion.
+		shardedCounterService.delete(TEST_COUNTER1);
+		assertEquals(IncrementResult.Status.REJECTED,
+			shardedCounterService.incrementAll(ImmutableMap.of(TEST_COUNTER1, 1L)).get(TEST_COUNTER1).getStatus());
+	}
+
+	@Test
+	public void testCounterMetadataCache_IncrementSkipsCounterGet()
+	{
+		// Only the metadata cache differs between the two services, so the
+		// difference in Datastore RPCs is the number of Counter gets.
+		final InMemoryCounterMetrics cachedMetrics = new InMemoryCounterMetrics();
+		final CounterService cachedService = new ShardedCounterService(memcache,
+			new ShardedCounterServiceConfiguration.Builder().withCounterMetadataCacheMaxSize(100)
+				.withCounterMetadataCacheExpirationMillis(60000L).withCounterMetrics(cachedMetrics).build());
+		final InMemoryCounterMetrics uncachedMetrics = new InMemoryCounterMetrics();
+		final CounterService uncachedService = new ShardedCounterService(memcache,
+			new ShardedCounterServiceConfiguration.Builder().withCounterMetrics(uncachedMetrics).build());
+
+		// The first increment of each counter loads (and creates) it, and
+		// caches its count.
+		cachedService.increment(TEST_COUNTER1, 1);
+		uncachedService.increment(TEST_COUNTER2, 1);
+		final long cachedRpcs = cachedMetrics.getEventCount(CounterMetrics.Event.DATASTORE_RPC);
+		final long uncachedRpcs = uncachedMetrics.getEventCount(CounterMetrics.Event.DATASTORE_RPC);
+
+		for (int i = 0; i < 5; i++)
+		{
+			cachedService.increment(TEST_COUNTER1, 1);
+			uncachedService.increment(TEST_COUNTER2, 1);
+		}
+		assertEquals(6, cachedService.getCounter(TEST_COUNTER1).get().getApproximateCount());
+		assertEquals(6, uncachedService.getCounter(TEST_COUNTER2).get().getApproximateCount());
+
+		final long repeatedCachedRpcs = cachedMetrics.getEventCount(CounterMetrics.Event.DATASTORE_RPC) - cachedRpcs;
+		final long repeatedUncachedRpcs = uncachedMetrics.getEventCount(CounterMetrics.Event.DATASTORE_RPC) - uncachedRpcs;
+		assertEquals(5, repeatedUncachedRpcs - repeatedCachedRpcs);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testShardLoadBatchSize_0()
+	{
+		new ShardedCounterServiceConfiguration.Builder().withShardLoadBatchSize(0);
+	}
+
+	@Test
+	public void testGetCounter_MultipleShardLoadBatches() throws InterruptedException
+	{
+		// 10 shards loaded in batches of 3 (i.e., 4 batches)
+		ShardedCounterServiceConfiguration config = new ShardedCounterServiceConfiguration.Builder()
+			.withNumInitialShards(10).withShardLoadBatchSize(3).build();
+		shardedCounterService = new ShardedCounterService(memcache, config);
+
+		doCounterIncrementAssertions(TEST_COUNTER1, 30);
+
+		// Spread a count over every shard (i.e., every batch).
+		shardedCounterService.create(TEST_COUNTER2);
+		for (int i = 0; i < 10; i++)
+		{
+			CounterShard counterShard = new CounterShard(TEST_COUNTER2, i);
+			counterShard.setCount(i + 1);
+			ObjectifyService.ofy().save().entity(counterShard).now();
+		}
+		this.memcache.clearAll();
+		assertEquals(55, shardedCounterService.getCounter(TEST_COUNTER2).get().getApproximateCount());
+	}
+
+	// ///////////////////
+	// ///////////////////
+	// ///////////////////
+
+	@Test(expected = RuntimeException.class)
+	public void testDecrement_CounterIsBeingDeleted() throws InterruptedException
+	{
+		Counter counter = shardedCounterService.create(TEST_COUNTER1);
+		counter.setCounterStatus(CounterStatus.DELETING);
+		// Store this in the Datastore to trigger the exception below...
+		ObjectifyService.ofy().save().entity(counter).now();
+
+		shardedCounterService.decrement(TEST_COUNTER1);
+	}
+
+	@Test
+	public void testDecrement_DefaultNumShards() throws InterruptedException
+	{
+		shardedCounterService = new ShardedCounterService(memcache);
+		doCounterDecrementAssertions(TEST_COUNTER1, 50);
+	}
+
+	@Test
+	public void testDecrement_Specifiy1Shard() throws InterruptedException
+	{
+		shardedCounterService = initialShardedCounterService(1);
+		doCounterDecrementAssertions(TEST_COUNTER1, 50);
+	}
+
+	@Test
+	public void testDecrement_Specifiy3Shard() throws InterruptedException
+	{
+		shardedCounterService = initialShardedCounterService(3);
+		doCounterDecrementAssertions(TEST_COUNTER1, 50);
+	}
+
+	@Test
+	public void testDecrement_Specifiy10Shards() throws InterruptedException
+	{
+		shardedCounterService = initialShardedCounterService(10);
+		doCounterDecrementAssertions(TEST_COUNTER1, 50);
+	}
+
+	// ///////////////////
+	// ///////////////////
+	// ///////////////////
+
+	@Test
+	public void testIncrementDecrementInterleaving()
+	{
+		shardedCounterService.create(TEST_COUNTER1);
+		shardedCounterService.create(TEST_COUNTER2);
+
+		shardedCounterService.increment(TEST_COUNTER1, 1);
+		shardedCounterService.increment(TEST_COUNTER2, 1);
+		shardedCounterService.increment(TEST_COUNTER1, 1);
+		shardedCounterService.increment(TEST_COUNTER2, 1);
+		shardedCounterService.increment(TEST_COUNTER2, 1);
+		shardedCounterService.increment(TEST_COUNTER1, 1);
+		shardedCounterService.increment(TEST_COUNTER2, 1);
+
+		assertEquals(3, shardedCounterService.getCounter(TEST_COUNTER1).get().getApproximateCount());
+		assertEquals(4, shardedCounterService.getCounter(TEST_COUNTER2).get().getApproximateCount());
+
+		shardedCounterService.increment(TEST_COUNTER1, 1);
+		shardedCounterService.increment(TEST_COUNTER2, 1);
+		shardedCounterService.increment(TEST_COUNTER1, 1);
+		shardedCounterService.increment(TEST_COUNTER2, 1);
+		shardedCounterService.increment(TEST_COUNTER2, 1);
+		shardedCounterService.increment(TEST_COUNTER1, 1);
+		shardedCounterService.increment(TEST_COUNTER2, 1);
+
+		assertEquals(6, shardedCounterService.getCounter(TEST_COUNTER1).get().getApproximateCount());
+		assertEquals(8, shardedCounterService.getCounter(TEST_COUNTER2).get().getApproximateCount());
+
+		shardedCounterService.decrement(TEST_COUNTER1);
+		shardedCounterService.decrement(TEST_COUNTER2);
+		shardedCounterService.decrement(TEST_COUNTER1);
+		shardedCounterService.decrement(TEST_COUNTER2);
+		shardedCounterService.decrement(TEST_COUNTER2);
+		shardedCounterService.decrement(TEST_COUNTER1);
+		shardedCounterService.decrement(TEST_COUNTER2);
+
+		assertEquals(3, shardedCounterService.getCounter(TEST_COUNTER1).get().getApproximateCount());
+		assertEquals(4, shardedCounterService.getCounter(TEST_COUNTER2).get().getApproximateCount());
+
+		shardedCounterService.decrement(TEST_COUNTER1);
+		shardedCounterService.decrement(TEST_COUNTER2);
+		shardedCounterService.decrement(TEST_COUNTER1);
+		shardedCounterService.decrement(TEST_COUNTER2);
+		shardedCounterService.decrement(TEST_COUNTER2);
+		shardedCounterService.decrement(TEST_COUNTER1);
+		shardedCounterService.decrement(TEST_COUNTER2);
+
+		assertEquals(0, shardedCounterService.getCounter(TEST_COUNTER1).get().getApproximateCount());
+		assertEquals(0, shardedCounterService.getCounter(TEST_COUNTER2).get().getApproximateCount());
+	}
+
+	@Test
+	public void testDecrementAll() throws InterruptedException
+	{
+		// Use 3 shards
+		shardedCounterService = initialShardedCounterService(3);
+		shardedCounterService.create(TEST_COUNTER1);
+		shardedCounterService.increment(TEST_COUNTER1, 10);
+
+		shardedCounterService.create(TEST_COUNTER2);
+		shardedCounterService.increment(TEST_COUNTER2, 10);
+
+		// Decrement 20
+		for (int i = 0; i < 10; i++)
+		{
+			logger.info("Decrement #" + i + " of 9 for counter 1");
+			shardedCounterService.decrement(TEST_COUNTER1);
+			logger.info("Decrement #" + i + " of 9 for counter 2");
+			shardedCounterService.decrement(TEST_COUNTER2);
+		}
+
+		assertEquals(0, shardedCounterService.getCounter(TEST_COUNTER1).get().getApproximateCount());
+		assertEquals(0, shardedCounterService.getCounter(TEST_COUNTER2).get().getApproximateCount());
+	}
+
+	@Test
+	public void testDecrementNegative() throws InterruptedException
+	{
+		// Use 3 shards
+		shardedCounterService = initialShardedCounterService(3);
+		shardedCounterService.create(TEST_COUNTER1);
+		shardedCounterService.increment(TEST_COUNTER1, 10);
+
+		shardedCounterService.create(TEST_COUNTER2);
+		shardedCounterService.increment(TEST_COUNTER2, 10);
+
+		// Decrement 20
+		for (int i = 0; i < 20; i++)
+		{
+			shardedCounterService.decrement(TEST_COUNTER1);
+			shardedCounterService.decrement(TEST_COUNTER2);
+		}
+
+		assertEquals(0, shardedCounterService.getCounter(TEST_COUNTER1).get().getApproximateCount());
+		assertEquals(0, shardedCounterService.getCounter(TEST_COUNTER2).get().getApproximateCount());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testDecrementAmount_NegativeAmount() throws InterruptedException
+	{
+		shardedCounterService.create(TEST_COUNTER1);
+		shardedCounterService.decrement(TEST_COUNTER1, -1);
+	}
+
+	@Test(expected = RuntimeException.class)
+	public void testDecrementAmount_CounterIsBeingDeleted() throws InterruptedException
+	{
+		// Store this in the Datastore to trigger the exception below...
+		Counter counter = new Counter(TEST_COUNTER1, 1);
+		counter.setCounterStatus(CounterStatus.DELETING);
+		ObjectifyService.ofy().save().entity(counter).now();
+
+		shardedCounterService.decrement(TEST_COUNTER1, 1);
+	}
+
+	@Test
+	public void testDecrementAmount() throws InterruptedException
+	{
+		shardedCounterService = initialShardedCounterService(10);
+		for (int i = 0; i < 30; i++)
+		{
+			shardedCounterService.increment(TEST_COUNTER1, 1);
+		}
+
+		// Spans more shards than a single transaction may touch.
+		assertEquals(5, shardedCounterService.decrement(TEST_COUNTER1, 25).getApproximateCount());
+		this.memcache.clearAll();
+		assertEquals(5, shardedCounterService.getCounter(TEST_COUNTER1).get().getApproximateCount());
+
+		// More than the counter's count
+		assertEquals(0, shardedCounterService.decrement(TEST_COUNTER1, 10).getApproximateCount());
+		this.memcache.clearAll();
+		assertEquals(0, shardedCounterService.getCounter(TEST_COUNTER1).get().getApproximateCount());
+
+		assertEquals(0, shardedCounterService.decrement(TEST_COUNTER1, 1).getApproximateCount());
+	}
+
+	@Test
+	public void testDecrementAmount_SignedShards() throws InterruptedException
+	{
+		ShardedCounterServiceConfiguration config = new ShardedCounterServiceConfiguration.Builder()
+			.withNumInitialShards(10).withSignedShardsEnabled(true).build();
+		shardedCounterService = new ShardedCounterService(memcache, config);
+		shardedCounterService.increment(TEST_COUNTER1, 30);
+
+		assertEquals(5, shardedCounterService.decrement(TEST_COUNTER1, 25).getApproximateCount());
+		this.memcache.clearAll();
+		assertEquals(5, shardedCounterService.getCounter(TEST_COUNTER1).get().getApproximateCount());
+
+		assertEquals(0, shardedCounterService.decrement(TEST_COUNTER1, 10).getApproximateCount());
+		this.memcache.clearAll();
+		assertEquals(0, shardedCounterService.getCounter(TEST_COUNTER1).get().getApproximateCount());
+	}
+
+	@Test
+	public void testIncrement_Combining() throws InterruptedException
+	{
+		ShardedCounterServiceConfiguration config = new ShardedCounterServiceConfiguration.Builder()
+			.withNumInitialShards(3).withIncrementCombiningEnabled(true).build();
+		shardedCounterService = new ShardedCounterService(memcache, config);
+		shardedCounterService.create(TEST_COUNTER1);
+
+		// The App Engine test harness only services API calls from threads
+		// that have an API environment, so share this thread's environment.
+		final ApiProxy.Environment environment = ApiProxy.getCurrentEnvironment();
+		final CountDownLatch start = new CountDownLatch(1);
+		List<Thread> threads = Lists.newArrayList();
+		for (int i = 0; i < 5; i++)
+		{
+			Thread thread = new Thread(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					ApiProxy.setEnvironmentForCurrentThread(environment);
+					try
+					{
+						start.await();
+						for (int j = 0; j < 10; j++)
+						{
+							shardedCounterService.increment(TEST_COUNTER1, 1);
+						}
+					}
+					catch (InterruptedException e)
+					{
+						Thread.currentThread().interrupt();
+					}
+					finally
+					{
+						ObjectifyService.ofy().clear();
+					}
+				}
+			});
+			thread.start();
+			threads.add(thread);
+		}
+		start.countDown();
+		for (Thread thread : threads)
+		{
+			thread.join();
+		}
+
+		this.memcache.clearAll();
+		ObjectifyService.ofy().clear();
+		assertEquals(50, shardedCounterService.getCounter(TEST_COUNTER1).get().getApproximateCount());
+	}
+
+	@Test
+	public void testDecrement_SignedShards() throws InterruptedException
+	{
+		ShardedCounterServiceConfiguration config = new ShardedCounterServiceConfiguration.Builder()
+			.withNumInitialShards(10).withSignedShardsEnabled(true).build();
+		shardedCounterService = new ShardedCounterService(memcache, config);
+		shardedCounterService.increment(TEST_COUNTER1, 10);
+
+		for (int i = 9; i >= 0; i--)
+		{
+			assertEquals(i, shardedCounterService.decrement(TEST_COUNTER1).getApproximateCount());
+			this.memcache.clearAll();
+			assertEquals(i, shardedCounterService.getCounter(TEST_COUNTER1).get().getApproximateCount());
+		}
+
+		// The counter is already at zero, so this is a no-op.
+		assertEquals(0, shardedCounterService.decrement(TEST_COUNTER1).getApproximateCount());
+		this.memcache.clearAll();
+		assertEquals(0, shardedCounterService.getCounter(TEST_COUNTER1).get().getApproximateCount());
+	}
+
+	@Test
+	public void testGetCounter_NegativeShardSumIsClamped() throws InterruptedException
+	{
+		shardedCounterService = initialShardedCounterService(2);
+		shardedCounterService.increment(TEST_COUNTER1, 1);
+
+		CounterShard counterShard = new CounterShard(TEST_COUNTER1, 1);
+		counterShard.setCount(-5);
+		ObjectifyService.ofy().save().entity(counterShard).now();
+		CounterShard otherCounterShard = new CounterShard(TEST_COUNTER1, 0);
+		otherCounterShard.setCount(1);
+		ObjectifyService.ofy().save().entity(otherCounterShard).now();
+
+		this.memcache.clearAll();
+		assertEquals(0, shardedCounterService.getCounter(TEST_COUNTER1).get().getApproximateCount());
+	}
+
+	// ///////////////////
+	// ///////////////////
+	// ///////////////////
+
+	@Test(expected = RuntimeException.class)
+	public void testDeleteCounter_Null()
+	{
+		shardedCounterService.delete(null);
+	}
+
+	@Test(expected = RuntimeException.class)
+	public void testDeleteCounter_Empty()
+	{
+		shardedCounterService.delete("");
+	}
+
+	@Test(expected = RuntimeException.class)
+	public void testDeleteCounter_Blank()
+	{
+		shardedCounterService.delete(" ");
+	}
+
+	@Test
+	public void testDeleteCounter_NoneExists()
+	{
+		shardedCounterService.delete(TEST_COUNTER1);
+		Optional<Counter> optCounter = shardedCounterService.getCounter(TEST_COUNTER1);
+		assertFalse(optCounter.isPresent());
+
+		shardedCounterService.delete(TEST_COUNTER2);
+		optCounter = shardedCounterService.getCounter(TEST_COUNTER2);
+		assertFalse(optCounter.isPresent());
+	}
+
+	@Test
+	public void testDeleteCounterWith_NonDefaultQueue() throws InterruptedException
+	{
+		ShardedCounterServiceConfiguration config = new ShardedCounterServiceConfiguration.Builder()
+			.withDeleteCounterShardQueueName(DELETE_COUNTER_SHARD_QUEUE_NAME).build();
+
+		shardedCounterService = new ShardedCounterService(memcache, config);
+
+		shardedCounterService.create(TEST_COUNTER1);
+		shardedCounterService.delete(TEST_COUNTER1);
+		assertPostDeleteCallSuccess(TEST_COUNTER1);
+	}
+
+	@Test
+	public void testDeleteCounterWith_NonDefaultQueueAndNonDefaultPath() throws InterruptedException
+	{
+		ShardedCounterServiceConfiguration config = new ShardedCounterServiceConfiguration.Builder()
+			.withDeleteCounterShardQueueName(DELETE_COUNTER_SHARD_QUEUE_NAME)
+			.withRelativeUrlPathForDeleteTaskQueue("/coolpath").build();
+		shardedCounterService = new ShardedCounterService(memcache, config);
+
+		shardedCounterService.create(TEST_COUNTER1);
+		shardedCounterService.delete(TEST_COUNTER1);
+		assertPostDeleteCallSuccess(TEST_COUNTER1);
+	}
+
+	@Test
+	public void testDeleteWith1Shard() throws InterruptedException
+	{
+		Counter counter1 = shardedCounterService.create(TEST_COUNTER1);
+		assertNotNull(counter1);
+		assertNotNull(counter1.getTypedKey());
+
+		shardedCounterService.delete(TEST_COUNTER1);
+		assertPostDeleteCallSuccess(TEST_COUNTER1);
+
+		Counter counter2 = shardedCounterService.create(TEST_COUNTER2);
+		assertNotNull(counter2);
+		assertNotNull(counter2.getTypedKey());
+
+		shardedCounterService.delete(TEST_COUNTER2);
+		assertPostDeleteCallSuccess(TEST_COUNTER2);
+	}
+
+	@Test
+	public void testDeleteWith3Shards() throws InterruptedException
+	{
+		// Use 3 shards
+		shardedCounterService = initialShardedCounterService(3);
+		shardedCounterService.create(TEST_COUNTER1);
+		// Fill in multiple shards
+		for (int i = 0; i < 20; i++)
+		{
+			// Ensures that, statistically, 3 shards will be created
+			shardedCounterService.increment(TEST_COUNTER1, 1);
+		}
+
+		// Create test-counter2 so that the get below of CounterShards is
+		// accurately tested with existing shards for other counters.
+		shardedCounterService.create(TEST_COUNTER2);
 		// Fill in multiple shards
 		for (int i = 0; i < 20; i++)
 		{
-			// Ensures that, statistically, 3 shards will be created
-			shardedCounterService.increment(TEST_COUNTER1, 1);
+			// Ensures that, statistically, 3 shards will be created
+			shardedCounterService.increment(TEST_COUNTER2, 1);
+		}
+
+		// ///////////////
+		// Verify Counter Counts
+		// ///////////////
+
+		// Clear Memcache
+		this.memcache.clearAll();
+
+		Optional<Counter> optCounter1 = shardedCounterService.getCounter(TEST_COUNTER1);
+		assertTrue(optCounter1.isPresent());
+		assertEquals(20, optCounter1.get().getApproximateCount());
+
+		Optional<Counter> optCounter2 = shardedCounterService.getCounter(TEST_COUNTER2);
+		assertTrue(optCounter2.isPresent());
+		assertEquals(20, optCounter2.get().getApproximateCount());
+
+		// ///////////////
+		// Assert that 6 CounterShards Exist (3 for each Counter)
+		// ///////////////
+		this.assertAllCounterShardsExists(TEST_COUNTER1, 3);
+		this.assertAllCounterShardsExists(TEST_COUNTER2, 3);
+
+		// ///////////////
+		// Delete Counter 1
+		// ///////////////
+		shardedCounterService.delete(TEST_COUNTER1);
+		assertPostDeleteCallSuccess(TEST_COUNTER1);
+
+		// ///////////////
+		// Assert that Counter2 still has shards around
+		// ///////////////
+		assertAllCounterShardsExists(TEST_COUNTER2, 3);
+	}
+
+	@Test
+	public void testDeleteWith10Shards() throws InterruptedException
+	{
+		// Use 10 shards
+		shardedCounterService = initialShardedCounterService(10);
+		shardedCounterService.create(TEST_COUNTER1);
+		// Fill in multiple shards
+		for (int i = 0; i < 50; i++)
+		{
+			// Ensures that, statistically, 10 shards will be created with ~5
+			// each
+			shardedCounterService.increment(TEST_COUNTER1, 1);
+		}
+
+		// ///////////////
+		// Verify Counter Counts
+		// ///////////////
+
+		Optional<Counter> optCounter1 = shardedCounterService.getCounter(TEST_COUNTER1);
+		assertTrue(optCounter1.isPresent());
+		assertEquals(50, optCounter1.get().getApproximateCount());
+
+		// ///////////////
+		// Assert that 10 CounterShards Exist
+		// ///////////////
+
+		assertAllCounterShardsExists(TEST_COUNTER1, 10);
+
+		// ///////////////
+		// Delete Counter 1
+		// ///////////////
+
+		// See here:
+		// http://stackoverflow.com/questions/6632809/gae-unit-testing-taskqueue-with-testbed
+		// The dev app server is single-threaded, so it can't run tests in the
+		// background properly. Thus, we test that the task was added to the
+		// queue properly. Then, we manually run the shard-deletion code and
+		// assert that it's working properly.
+
+		// This asserts that the task was added to the queue properly...
+		shardedCounterService.delete(TEST_COUNTER1);
+		assertPostDeleteCallSuccess(TEST_COUNTER1);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testDeleteShardBatchSize_0()
+	{
+		new ShardedCounterServiceConfiguration.Builder().withDeleteShardBatchSize(0);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testDeleteTaskTimeBudgetMillis_0()
+	{
+		new ShardedCounterServiceConfiguration.Builder().withDeleteTaskTimeBudgetMillis(0);
+	}
+
+	@Test
+	public void testDeleteWith10Shards_MultipleDeleteBatches() throws InterruptedException
+	{
+		// 10 shards deleted in batches of 3 (i.e., 4 batches)
+		ShardedCounterServiceConfiguration config = new ShardedCounterServiceConfiguration.Builder()
+			.withNumInitialShards(10).withDeleteShardBatchSize(3)
+			.withDeleteCounterShardQueueName(DELETE_COUNTER_SHARD_QUEUE_NAME).build();
+		shardedCounterService = new ShardedCounterService(memcache, config);
+		shardedCounterService.create(TEST_COUNTER1);
+		for (int i = 0; i < 10; i++)
+		{
+			shardedCounterService.increment(TEST_COUNTER1, 1);
+		}
+
+		shardedCounterService.delete(TEST_COUNTER1);
+		assertPostDeleteCallSuccess(TEST_COUNTER1);
+	}
+
+	@Test
+	public void testOnTaskQueueCounterDeletion_CheckpointsAfterBatchesInFlight() throws InterruptedException
+	{
+		// One shard per batch, and too little time to delete every shard.
+		final int numShards = 100;
+		ShardedCounterServiceConfiguration config = new ShardedCounterServiceConfiguration.Builder()
+			.withNumInitialShards(numShards).withDeleteShardBatchSize(1).withDeleteTaskTimeBudgetMillis(1L)
+			.withDeleteCounterShardQueueName(DELETE_COUNTER_SHARD_QUEUE_NAME).build();
+		shardedCounterService = new ShardedCounterService(memcache, config);
+		shardedCounterService.create(TEST_COUNTER1);
+		final List<CounterShard> counterShards = Lists.newArrayList();
+		for (int i = 0; i < numShards; i++)
+		{
+			CounterShard counterShard = new CounterShard(TEST_COUNTER1, i);
+			counterShard.setCount(1);
+			counterShards.add(counterShard);
+		}
+		ObjectifyService.ofy().save().entities(counterShards).now();
+		Counter counter = ObjectifyService.ofy().load().key(Key.create(Counter.class, TEST_COUNTER1)).now();
+		counter.setCounterStatus(CounterStatus.DELETING);
+		ObjectifyService.ofy().save().entity(counter).now();
+
+		this.shardedCounterService.onTaskQueueCounterDeletion(TEST_COUNTER1);
+
+		// Progress is only checkpointed once every batch in flight completes.
+		ObjectifyService.ofy().clear();
+		counter = ObjectifyService.ofy().load().key(Key.create(Counter.class, TEST_COUNTER1)).now();
+		final int numDeletedShards = counter.getNumDeletedShards();
+		assertTrue(numDeletedShards > 0 && numDeletedShards < numShards);
+		assertEquals(0, numDeletedShards % ShardedCounterService.DELETE_SHARD_BATCHES_IN_FLIGHT);
+		for (int i = 0; i < numShards; i++)
+		{
+			CounterShard counterShard = ObjectifyService.ofy().load()
+				.key(Key.create(CounterShard.class, TEST_COUNTER1 + "-" + i)).now();
+			assertEquals(i >= numDeletedShards, counterShard != null);
 		}
+	}
 
-		// Create test-counter2 so that the get below of CounterShards is
-		// accurately tested with existing shards for other counters.
-		shardedCounterService.create(TEST_COUNTER2);
-		// Fill in multiple shards
-		for (int i = 0; i < 20; i++)
+	@Test(expected = IllegalArgumentException.class)
+	public void testInlineDeletionMaxShards_Negative()
+	{
+		new ShardedCounterServiceConfiguration.Builder().withInlineDeletionMaxShards(-1);
+	}
+
+	@Test
+	public void testDelete_Inline() throws InterruptedException
+	{
+		ShardedCounterServiceConfiguration config = new ShardedCounterServiceConfiguration.Builder()
+			.withNumInitialShards(3).withInlineDeletionMaxShards(3)
+			.withDeleteCounterShardQueueName(DELETE_COUNTER_SHARD_QUEUE_NAME).build();
+		shardedCounterService = new ShardedCounterService(memcache, config);
+		for (int i = 0; i < 3; i++)
 		{
-			// Ensures that, statistically, 3 shards will be created
-			shardedCounterService.increment(TEST_COUNTER2, 1);
+			CounterShard counterShard = new CounterShard(TEST_COUNTER1, i);
+			counterShard.setCount(1);
+			ObjectifyService.ofy().save().entity(counterShard).now();
 		}
+		shardedCounterService.create(TEST_COUNTER1);
+		assertEquals(3, shardedCounterService.getCounter(TEST_COUNTER1).get().getApproximateCount());
 
-		// ///////////////
-		// Verify Counter Counts
-		// ///////////////
+		shardedCounterService.delete(TEST_COUNTER1);
 
-		// Clear Memcache
-		this.memcache.clearAll();
+		// No task is needed, and the counter may be re-created right away.
+		this.assertNumTasksInQueue(0);
+		assertFalse(shardedCounterService.getCounter(TEST_COUNTER1).isPresent());
+		assertAllCounterShardsExists(TEST_COUNTER1, 0);
 
-		Optional<Counter> optCounter1 = shardedCounterService.getCounter(TEST_COUNTER1);
-		assertTrue(optCounter1.isPresent());
-		assertEquals(20, optCounter1.get().getApproximateCount());
+		shardedCounterService.increment(TEST_COUNTER1, 1);
+		assertEquals(1, shardedCounterService.getCounter(TEST_COUNTER1).get().getApproximateCount());
+	}
 
-		Optional<Counter> optCounter2 = shardedCounterService.getCounter(TEST_COUNTER2);
-		assertTrue(optCounter2.isPresent());
-		assertEquals(20, optCounter2.get().getApproximateCount());
+	@Test
+	public void testIncrement_AfterInlineDeleteByAnotherInstance()
+	{
+		// This instance's cached metadata still shows the counter as available
+		// after another instance has deleted it.
+		final CounterService staleService = new ShardedCounterService(memcache,
+			new ShardedCounterServiceConfiguration.Builder().withCounterMetadataCacheMaxSize(100)
+				.withCounterMetadataCacheExpirationMillis(60000L).build());
+		shardedCounterService = new ShardedCounterService(memcache, new ShardedCounterServiceConfiguration.Builder()
+			.withInlineDeletionMaxShards(3).build());
+		staleService.increment(TEST_COUNTER1, 1);
+		shardedCounterService.delete(TEST_COUNTER1);
+		assertFalse(shardedCounterService.getCounter(TEST_COUNTER1).isPresent());
 
-		// ///////////////
-		// Assert that 6 CounterShards Exist (3 for each Counter)
-		// ///////////////
-		this.assertAllCounterShardsExists(TEST_COUNTER1, 3);
-		this.assertAllCounterShardsExists(TEST_COUNTER2, 3);
+		// The increment must not re-create a shard that nothing would delete.
+		try
+		{
+			staleService.increment(TEST_COUNTER1, 1);
+			fail("Expected the increment to be rejected");
+		}
+		catch (RuntimeException e)
+		{
+			// Expected.
+		}
+		assertNull(ObjectifyService.ofy().load().key(Key.create(CounterShard.class, TEST_COUNTER1 + "-0")).now());
+
+		// The stale metadata was evicted, so the next increment re-creates the
+		// counter.
+		staleService.increment(TEST_COUNTER1, 2);
+		assertEquals(2, shardedCounterService.getCounter(TEST_COUNTER1).get().getApproximateCount());
+
+		// incrementAll reports the same rejection for its counter.
+		shardedCounterService.delete(TEST_COUNTER1);
+		final IncrementResult result = staleService.incrementAll(ImmutableMap.of(TEST_COUNTER1, 1L)).get(
+			TEST_COUNTER1);
+		assertEquals(IncrementResult.Status.REJECTED, result.getStatus());
+		assertNull(ObjectifyService.ofy().load().key(Key.create(CounterShard.class, TEST_COUNTER1 + "-0")).now());
+	}
+
+	@Test
+	public void testDelete_InlineEvictsCachedState()
+	{
+		final InMemoryCounterCache counterCache = new InMemoryCounterCache(100);
+		shardedCounterService = new ShardedCounterService(counterCache, new ShardedCounterServiceConfiguration.Builder()
+			.withNumInitialShards(3).withInlineDeletionMaxShards(3).withRollupIntervalMillis(60000L).build());
+		final String deltaName = ShardedCounterService.materializedDeltaName(TEST_COUNTER1, 1);
+		shardedCounterService.increment(TEST_COUNTER1, 3);
+		this.shardedCounterService.onTaskQueueCounterRollup(TEST_COUNTER1, null);
+		shardedCounterService.increment(TEST_COUNTER1, 2);
+		assertEquals(5, shardedCounterService.getCounter(TEST_COUNTER1).get().getApproximateCount());
+		assertNotNull(counterCache.get(deltaName));
+
+		shardedCounterService.delete(TEST_COUNTER1);
+		assertNull(counterCache.get(TEST_COUNTER1));
+		assertNull(counterCache.get(deltaName));
+
+		// A re-created counter doesn't inherit anything from the deleted one.
+		shardedCounterService.increment(TEST_COUNTER1, 1);
+		assertEquals(1, shardedCounterService.getCounter(TEST_COUNTER1).get().getApproximateCount());
+	}
+
+	@Test
+	public void testDelete_AboveInlineThreshold() throws InterruptedException
+	{
+		ShardedCounterServiceConfiguration config = new ShardedCounterServiceConfiguration.Builder()
+			.withNumInitialShards(3).withInlineDeletionMaxShards(2)
+			.withDeleteCounterShardQueueName(DELETE_COUNTER_SHARD_QUEUE_NAME).build();
+		shardedCounterService = new ShardedCounterService(memcache, config);
+		shardedCounterService.create(TEST_COUNTER1);
+		shardedCounterService.increment(TEST_COUNTER1, 1);
 
-		// ///////////////
-		// Delete Counter 1
-		// ///////////////
 		shardedCounterService.delete(TEST_COUNTER1);
 		assertPostDeleteCallSuccess(TEST_COUNTER1);
+	}
 
-		// ///////////////
-		// Assert that Counter2 still has shards around
-		// ///////////////
-		assertAllCounterShardsExists(TEST_COUNTER2, 3);
+	@Test
+	public void testOnTaskQueueCounterDeletion_ResumesFromCheckpoint() throws InterruptedException
+	{
+		shardedCounterService = initialShardedCounterService(3);
+		shardedCounterService.create(TEST_COUNTER1);
+		for (int i = 0; i < 3; i++)
+		{
+			CounterShard counterShard = new CounterShard(TEST_COUNTER1, i);
+			counterShard.setCount(1);
+			ObjectifyService.ofy().save().entity(counterShard).now();
+		}
+
+		// Simulate a previous task that deleted the first 2 shards, and then
+		// failed. The shards themselves are left in place, so that the resumed
+		// task can be shown not to start over.
+		Counter counter = ObjectifyService.ofy().load().key(Key.create(Counter.class, TEST_COUNTER1)).now();
+		counter.setCounterStatus(CounterStatus.DELETING);
+		counter.setNumDeletedShards(2);
+		ObjectifyService.ofy().save().entity(counter).now();
+
+		this.shardedCounterService.onTaskQueueCounterDeletion(TEST_COUNTER1);
+
+		ObjectifyService.ofy().clear();
+		assertNull(ObjectifyService.ofy().load().key(Key.create(Counter.class, TEST_COUNTER1)).now());
+		assertAllCounterShardsExists(TEST_COUNTER1, 2);
+	}
+
+	// ///////////////////
+	// ///////////////////
+	// ///////////////////
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testAutoResharding_MaxShardsLessThanInitialShards()
+	{
+		ShardedCounterServiceConfiguration config = new ShardedCounterServiceConfiguration.Builder()
+			.withAutoReshardingEnabled(true).withNumInitialShards(5).withMaxNumShards(4).build();
+		new ShardedCounterService(memcache, config);
 	}
 
 	@Test
-	public void testDeleteWith10Shards() throws InterruptedException
+	public void testAutoResharding_Disabled()
+	{
+		ShardedCounterService service = new ShardedCounterService(memcache,
+			new ShardedCounterServiceConfiguration.Builder().withReshardSampleSize(1).build());
+		service.create(TEST_COUNTER1);
+
+		service.onShardTransactionCompleted(TEST_COUNTER1, 10);
+		assertEquals(1, service.getCounter(TEST_COUNTER1).get().getNumShards());
+	}
+
+	@Test
+	public void testAutoResharding() throws InterruptedException
+	{
+		ShardedCounterServiceConfiguration config = new ShardedCounterServiceConfiguration.Builder()
+			.withAutoReshardingEnabled(true).withNumInitialShards(2).withMaxNumShards(5).withReshardSampleSize(2)
+			.withReshardRetryRatioThreshold(1).withReshardCooldownMillis(0).build();
+		ShardedCounterService service = new ShardedCounterService(memcache, config);
+		service.create(TEST_COUNTER1);
+
+		// Uncontended transactions never reshard
+		service.onShardTransactionCompleted(TEST_COUNTER1, 0);
+		service.onShardTransactionCompleted(TEST_COUNTER1, 0);
+		assertEquals(2, service.getCounter(TEST_COUNTER1).get().getNumShards());
+
+		// 1 retry per transaction doubles the shards...
+		service.onShardTransactionCompleted(TEST_COUNTER1, 1);
+		service.onShardTransactionCompleted(TEST_COUNTER1, 1);
+		assertEquals(4, service.getCounter(TEST_COUNTER1).get().getNumShards());
+
+		// ...up to the maximum
+		service.onShardTransactionCompleted(TEST_COUNTER1, 3);
+		service.onShardTransactionCompleted(TEST_COUNTER1, 3);
+		assertEquals(5, service.getCounter(TEST_COUNTER1).get().getNumShards());
+		service.onShardTransactionCompleted(TEST_COUNTER1, 3);
+		service.onShardTransactionCompleted(TEST_COUNTER1, 3);
+		assertEquals(5, service.getCounter(TEST_COUNTER1).get().getNumShards());
+
+		// The new shards are used
+		for (int i = 0; i < 40; i++)
+		{
+			service.increment(TEST_COUNTER1, 1);
+		}
+		this.memcache.clearAll();
+		assertEquals(40, service.getCounter(TEST_COUNTER1).get().getApproximateCount());
+		assertAllCounterShardsExists(TEST_COUNTER1, 5);
+	}
+
+	// ///////////////////
+	// ///////////////////
+	// ///////////////////
+
+	@Test(expected = RuntimeException.class)
+	public void testCompact_CounterDoesNotExist()
+	{
+		shardedCounterService.compact(TEST_COUNTER1, 1);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testCompact_0Shards()
+	{
+		shardedCounterService.create(TEST_COUNTER1);
+		shardedCounterService.compact(TEST_COUNTER1, 0);
+	}
+
+	@Test(expected = RuntimeException.class)
+	public void testCompact_CounterIsBeingDeleted()
+	{
+		Counter counter = shardedCounterService.create(TEST_COUNTER1);
+		counter.setCounterStatus(CounterStatus.DELETING);
+		ObjectifyService.ofy().save().entity(counter).now();
+
+		shardedCounterService.compact(TEST_COUNTER1, 1);
+	}
+
+	@Test
+	public void testCompact_AlreadyFewerShards()
+	{
+		shardedCounterService = initialShardedCounterService(3);
+		shardedCounterService.create(TEST_COUNTER1);
+		shardedCounterService.compact(TEST_COUNTER1, 5);
+
+		Counter counter = shardedCounterService.getCounter(TEST_COUNTER1).get();
+		assertEquals(3, counter.getNumShards());
+		assertEquals(0, counter.getPreviousNumShards());
+	}
+
+	@Test
+	public void testCompact() throws InterruptedException
 	{
-		// Use 10 shards
 		shardedCounterService = initialShardedCounterService(10);
 		shardedCounterService.create(TEST_COUNTER1);
-		// Fill in multiple shards
 		for (int i = 0; i < 50; i++)
 		{
-			// Ensures that, statistically, 10 shards will be created with ~5
-			// each
 			shardedCounterService.increment(TEST_COUNTER1, 1);
 		}
 
-		// ///////////////
-		// Verify Counter Counts
-		// ///////////////
+		shardedCounterService.compact(TEST_COUNTER1, 3);
 
-		Optional<Counter> optCounter1 = shardedCounterService.getCounter(TEST_COUNTER1);
-		assertTrue(optCounter1.isPresent());
-		assertEquals(50, optCounter1.get().getApproximateCount());
+		// The removed shards are still counted until they've been folded
+		this.memcache.clearAll();
+		Counter counter = shardedCounterService.getCounter(TEST_COUNTER1).get();
+		assertEquals(3, counter.getNumShards());
+		assertEquals(10, counter.getPreviousNumShards());
+		assertEquals(50, counter.getApproximateCount());
 
-		// ///////////////
-		// Assert that 10 CounterShards Exist
-		// ///////////////
+		// Increments and decrements continue while the compaction is pending
+		for (int i = 0; i < 10; i++)
+		{
+			shardedCounterService.increment(TEST_COUNTER1, 2);
+			shardedCounterService.decrement(TEST_COUNTER1);
+		}
+		this.memcache.clearAll();
+		assertEquals(60, shardedCounterService.getCounter(TEST_COUNTER1).get().getApproximateCount());
 
-		assertAllCounterShardsExists(TEST_COUNTER1, 10);
+		// Simulate the task queue
+		shardedCounterService.onTaskQueueCounterCompaction(TEST_COUNTER1);
 
-		// ///////////////
-		// Delete Counter 1
-		// ///////////////
+		this.memcache.clearAll();
+		counter = shardedCounterService.getCounter(TEST_COUNTER1).get();
+		assertEquals(3, counter.getNumShards());
+		assertEquals(0, counter.getPreviousNumShards());
+		assertEquals(60, counter.getApproximateCount());
+		for (int i = 3; i < 10; i++)
+		{
+			Key<CounterShard> shardKey = Key.create(CounterShard.class, TEST_COUNTER1 + "-" + i);
+			assertNull(ObjectifyService.ofy().load().key(shardKey).now());
+		}
 
-		// See here:
-		// http://stackoverflow.com/questions/6632809/gae-unit-testing-taskqueue-with-testbed
-		// The dev app server is single-threaded, so it can't run tests in the
-		// background properly. Thus, we test that the task was added to the
-		// queue properly. Then, we manually run the shard-deletion code and
-		// assert that it's working properly.
+		// Running the task again is harmless
+		shardedCounterService.onTaskQueueCounterCompaction(TEST_COUNTER1);
+		this.memcache.clearAll();
+		assertEquals(60, shardedCounterService.getCounter(TEST_COUNTER1).get().getApproximateCount());
+	}
 
-		// This asserts that the task was added to the queue properly...
-		shardedCounterService.delete(TEST_COUNTER1);
-		assertPostDeleteCallSuccess(TEST_COUNTER1);
+	@Test
+	public void testCompact_TaskType()
+	{
+		shardedCounterService = initialShardedCounterService(3);
+		shardedCounterService.create(TEST_COUNTER1);
+		shardedCounterService.compact(TEST_COUNTER1, 1);
+
+		LocalTaskQueue ltq = LocalTaskQueueTestConfig.getLocalTaskQueue();
+		List<TaskStateInfo> tasks = ltq.getQueueStateInfo().get(QueueFactory.getDefaultQueue().getQueueName())
+			.getTaskInfo();
+		assertEquals(1, tasks.size());
+		assertTrue(tasks.get(0).getBody().contains(CounterService.TASK_TYPE + "=" + CounterService.TaskType.COMPACT));
+	}
+
+	@Test
+	public void testIncrement_DoesNotRecreateCompactedShard()
+	{
+		ShardedCounterServiceConfiguration config = new ShardedCounterServiceConfiguration.Builder()
+			.withNumInitialShards(5).withCounterMetadataCacheMaxSize(100)
+			.withCounterMetadataCacheExpirationMillis(60000L).withShardSelector(new ShardSelector()
+			{
+				@Override
+				public int selectShard(String counterName, int numShards)
+				{
+					return numShards - 1;
+				}
+
+				@Override
+				public void recordOutcome(String counterName, int shardNumber, boolean contended)
+				{
+				}
+			}).build();
+		shardedCounterService = new ShardedCounterService(memcache, config);
+		shardedCounterService.create(TEST_COUNTER1);
+
+		// Compact the Counter behind the service's back, so that its cached
+		// metadata is stale.
+		Counter dsCounter = ObjectifyService.ofy().load().key(Key.create(Counter.class, TEST_COUNTER1)).now();
+		dsCounter.setNumShards(2);
+		ObjectifyService.ofy().save().entity(dsCounter).now();
+
+		shardedCounterService.increment(TEST_COUNTER1, 1);
+		assertNull(ObjectifyService.ofy().load().key(Key.create(CounterShard.class, TEST_COUNTER1 + "-4")).now());
+		assertEquals(1, ObjectifyService.ofy().load().key(Key.create(CounterShard.class, TEST_COUNTER1 + "-1"))
+			.now().getCount());
+	}
+
+	@Test
+	public void testOnTaskQueueCounterDeletion_CounterNotDeleting()
+	{
+		shardedCounterService.increment(TEST_COUNTER1, 1);
+
+		// E.g., a task of another type that was handed to the wrong callback.
+		shardedCounterService.onTaskQueueCounterDeletion(TEST_COUNTER1);
+		this.memcache.clearAll();
+		assertEquals(1, shardedCounterService.getCounter(TEST_COUNTER1).get().getApproximateCount());
+	}
+
+	// ///////////////////
+	// ///////////////////
+	// ///////////////////
+
+	@Test
+	public void testMigrateLegacyCounter() throws InterruptedException
+	{
+		// Store a Counter the way earlier versions of this library did, with
+		// everything underneath a single root parent.
+		Counter legacyCounter = new Counter(TEST_COUNTER1, 3);
+		legacyCounter.setParent(Counter.legacyParentKey());
+		ObjectifyService.ofy().save().entity(legacyCounter).now();
+		for (int i = 0; i < 3; i++)
+		{
+			CounterShard legacyCounterShard = new CounterShard(TEST_COUNTER1, i);
+			legacyCounterShard.setParent(Counter.legacyParentKey());
+			legacyCounterShard.setCount(i + 1);
+			ObjectifyService.ofy().save().entity(legacyCounterShard).now();
+		}
+
+		// The first access migrates the Counter
+		Optional<Counter> optCounter = shardedCounterService.getCounter(TEST_COUNTER1);
+		assertTrue(optCounter.isPresent());
+		assertNull(optCounter.get().getParent());
+		assertEquals(3, optCounter.get().getNumShards());
+		assertEquals(6, optCounter.get().getApproximateCount());
+		this.assertAllCounterShardsExists(TEST_COUNTER1, 3);
+
+		ObjectifyService.ofy().clear();
+		assertNull(ObjectifyService.ofy().load().key(legacyCounter.getTypedKey()).now());
+
+		// Subsequent operations only touch the migrated entities
+		assertFalse(((ShardedCounterService) shardedCounterService).migrateLegacyCounter(TEST_COUNTER1).isPresent());
+		shardedCounterService.increment(TEST_COUNTER1, 1);
+		this.memcache.clearAll();
+		assertEquals(7, shardedCounterService.getCounter(TEST_COUNTER1).get().getApproximateCount());
+	}
+
+	@Test
+	public void testGetCounter_ResumesInterruptedLegacyMigration()
+	{
+		Counter legacyCounter = new Counter(TEST_COUNTER1, 2);
+		legacyCounter.setParent(Counter.legacyParentKey());
+		ObjectifyService.ofy().save().entity(legacyCounter).now();
+		CounterShard legacyCounterShard = new CounterShard(TEST_COUNTER1, 1);
+		legacyCounterShard.setParent(Counter.legacyParentKey());
+		legacyCounterShard.setCount(5);
+		ObjectifyService.ofy().save().entity(legacyCounterShard).now();
+
+		// Simulate a migration that stopped after the new Counter was saved.
+		Counter counter = new Counter(TEST_COUNTER1, 2);
+		counter.setMigratingFromLegacyParent(true);
+		ObjectifyService.ofy().save().entity(counter).now();
+
+		Counter migratedCounter = shardedCounterService.getCounter(TEST_COUNTER1).get();
+		assertEquals(5, migratedCounter.getApproximateCount());
+		assertFalse(migratedCounter.isMigratingFromLegacyParent());
+		assertNull(ObjectifyService.ofy().load().key(legacyCounterShard.getTypedKey()).now());
+		assertNull(ObjectifyService.ofy().load().key(legacyCounter.getTypedKey()).now());
+
+		// A migration that stopped after the legacy Counter was removed only
+		// needs its flag cleared.
+		counter = ObjectifyService.ofy().load().key(counter.<Counter> getTypedKey()).now();
+		counter.setMigratingFromLegacyParent(true);
+		ObjectifyService.ofy().save().entity(counter).now();
+		assertFalse(shardedCounterService.getCounter(TEST_COUNTER1).get().isMigratingFromLegacyParent());
+	}
+
+	@Test
+	public void testGetCounters_MigratesLegacyCounters()
+	{
+		for (String counterName : Lists.newArrayList(TEST_COUNTER1, TEST_COUNTER2))
+		{
+			Counter legacyCounter = new Counter(counterName, 2);
+			legacyCounter.setParent(Counter.legacyParentKey());
+			ObjectifyService.ofy().save().entity(legacyCounter).now();
+			CounterShard legacyCounterShard = new CounterShard(counterName, 1);
+			legacyCounterShard.setParent(Counter.legacyParentKey());
+			legacyCounterShard.setCount(5);
+			ObjectifyService.ofy().save().entity(legacyCounterShard).now();
+		}
+
+		// A Counter whose migration stopped after the legacy Counter was
+		// removed.
+		final String migratingCounterName = TEST_COUNTER1 + "-migrating";
+		Counter migratingCounter = new Counter(migratingCounterName, 1);
+		migratingCounter.setMigratingFromLegacyParent(true);
+		ObjectifyService.ofy().save().entity(migratingCounter).now();
+
+		Map<String, Counter> counters = shardedCounterService.getCounters(Lists.newArrayList(TEST_COUNTER1,
+			TEST_COUNTER2, migratingCounterName, TEST_COUNTER1 + "-missing"));
+		assertEquals(Lists.newArrayList(TEST_COUNTER1, TEST_COUNTER2, migratingCounterName),
+			Lists.newArrayList(counters.keySet()));
+		assertEquals(5, counters.get(TEST_COUNTER1).getApproximateCount());
+		assertEquals(5, counters.get(TEST_COUNTER2).getApproximateCount());
+		for (Counter counter : counters.values())
+		{
+			assertFalse(counter.isMigratingFromLegacyParent());
+		}
+		assertFalse(ObjectifyService.ofy().load().key(migratingCounter.<Counter> getTypedKey()).now()
+			.isMigratingFromLegacyParent());
+	}
+
+	@Test
+	public void testCreateCounter_MigratesLegacyCounter()
+	{
+		Counter legacyCounter = new Counter(TEST_COUNTER1, 2);
+		legacyCounter.setParent(Counter.legacyParentKey());
+		ObjectifyService.ofy().save().entity(legacyCounter).now();
+		CounterShard legacyCounterShard = new CounterShard(TEST_COUNTER1, 1);
+		legacyCounterShard.setParent(Counter.legacyParentKey());
+		legacyCounterShard.setCount(5);
+		ObjectifyService.ofy().save().entity(legacyCounterShard).now();
+
+		Counter counter = shardedCounterService.create(TEST_COUNTER1);
+		assertEquals(2, counter.getNumShards());
+		assertEquals(5, shardedCounterService.getCounter(TEST_COUNTER1).get().getApproximateCount());
 	}
 
 	// Tests counters with up to 15 shards and excerises each shard
@@ -778,6 +2356,22 @@ public class ShardedCounterServiceTest extends BaseObjectifyTest
 		assertEquals(numExpectedTasksInQueue, qsi.getTaskInfo().size());
 	}
 
+	/**
+	 * Waits up to 5 seconds for the number of tasks in the queue to reach
+	 * {@code numExpectedTasksInQueue}, and then asserts that it has.
+	 */
+	private void waitForNumTasksInQueue(int numExpectedTasksInQueue) throws InterruptedException
+	{
+		LocalTaskQueue ltq = LocalTaskQueueTestConfig.getLocalTaskQueue();
+		String queueName = QueueFactory.getQueue(DELETE_COUNTER_SHARD_QUEUE_NAME).getQueueName();
+		for (int i = 0; i < 500
+			&& ltq.getQueueStateInfo().get(queueName).getTaskInfo().size() != numExpectedTasksInQueue; i++)
+		{
+			Thread.sleep(10);
+		}
+		this.assertNumTasksInQueue(numExpectedTasksInQueue);
+	}
+
 	/**
 	 * After calling {@link ShardedCounterService#delete(String)}, the following
 	 * code asserts that a task was properly added to a task queue, and then
@@ -803,8 +2397,9 @@ public class ShardedCounterServiceTest extends BaseObjectifyTest
 			this.waitForCountdownLatchThenReset();
 		}
 		// By this point, the task should be processed in the queue and should
-		// not exist...
-		this.assertNumTasksInQueue(0);
+		// not exist (though the latch is released as the task starts, so it
+		// may take a moment to be removed from the queue)...
+		this.waitForNumTasksInQueue(0);
 
 		this.shardedCounterService.onTaskQueueCounterDeletion(counterName);
 		this.assertAllCounterShardsExists(counterName, 0);
@@ -819,7 +2414,6 @@ public class ShardedCounterServiceTest extends BaseObjectifyTest
 	 */
 	private void assertAllCounterShardsExists(String counterName, int numCounterShardsToGet)
 	{
-        Key<Counter> parent = Key.create(Counter.class, 1);
 		for (int i = 0; i < numCounterShardsToGet; i++)
 		{
 			// The following command does a query, which is only eventually
@@ -829,7 +2423,7 @@ public class ShardedCounterServiceTest extends BaseObjectifyTest
 			// List<CounterShard> allCounterShards =
 			// ObjectifyService.ofy().load().type(CounterShard.class).list();
 
-			Key<CounterShard> shardKey = Key.create(parent, CounterShard.class, counterName + "-" + i);
+			Key<CounterShard> shardKey = Key.create(CounterShard.class, counterName + "-" + i);
 			CounterShard counterShard = ObjectifyService.ofy().load().key(shardKey).now();
 			assertNotNull(counterShard);
 		}
@@ -837,7 +2431,7 @@ public class ShardedCounterServiceTest extends BaseObjectifyTest
 		if (numCounterShardsToGet == 0)
 		{
 			// Assert that no counterShards exists
-			Key<CounterShard> shardKey = Key.create(parent, CounterShard.class, counterName + "-" + numCounterShardsToGet);
+			Key<CounterShard> shardKey = Key.create(CounterShard.class, counterName + "-" + numCounterShardsToGet);
 			CounterShard counterShard = ObjectifyService.ofy().load().key(shardKey).now();
 			assertTrue(counterShard == null);
 		}
@@ -845,7 +2439,7 @@ public class ShardedCounterServiceTest extends BaseObjectifyTest
 		{
 			// Assert that no more shards exist for this counterShard starting
 			// at {@code numCounterShardsToGet}
-			Key<CounterShard> shardKey = Key.create(parent, CounterShard.class, counterName + "-" + numCounterShardsToGet);
+			Key<CounterShard> shardKey = Key.create(CounterShard.class, counterName + "-" + numCounterShardsToGet);
 			CounterShard counterShard = ObjectifyService.ofy().load().key(shardKey).now();
 			assertTrue(counterShard == null);
 		}
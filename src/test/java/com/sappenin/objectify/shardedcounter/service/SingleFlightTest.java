@@ -0,0 +1,129 @@
+/**
+ * Copyright (c) 2012 Sappenin Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.sappenin.objectify.shardedcounter.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+import com.google.common.collect.Lists;
+
+/**
+ * Test class for {@link SingleFlight}.
+ * 
+ * @author David Fuelling <sappenin@gmail.com>
+ */
+public class SingleFlightTest
+{
+	private static final String TEST_COUNTER1 = "test-counter1";
+
+	private static final int NUM_THREADS = 8;
+
+	@Test
+	public void testExecute_SequentialCallsAreNotShared()
+	{
+		final AtomicInteger numComputations = new AtomicInteger();
+		final SingleFlight<Long> singleFlight = new SingleFlight<Long>();
+		final Callable<Long> callable = new Callable<Long>()
+		{
+			@Override
+			public Long call()
+			{
+				return Long.valueOf(numComputations.incrementAndGet());
+			}
+		};
+
+		assertEquals(Long.valueOf(1), singleFlight.execute(TEST_COUNTER1, callable));
+		assertEquals(Long.valueOf(2), singleFlight.execute(TEST_COUNTER1, callable));
+	}
+
+	@Test
+	public void testExecute_ConcurrentCallsAreShared() throws InterruptedException
+	{
+		final AtomicInteger numComputations = new AtomicInteger();
+		final SingleFlight<Long> singleFlight = new SingleFlight<Long>();
+		final CountDownLatch arrived = new CountDownLatch(NUM_THREADS);
+		final Callable<Long> callable = new Callable<Long>()
+		{
+			@Override
+			public Long call() throws InterruptedException
+			{
+				numComputations.incrementAndGet();
+				// Hold the computation open until every caller has arrived.
+				arrived.await();
+				Thread.sleep(100);
+				return Long.valueOf(42);
+			}
+		};
+
+		final List<Long> results = Lists.newCopyOnWriteArrayList();
+		List<Thread> threads = Lists.newArrayList();
+		for (int i = 0; i < NUM_THREADS; i++)
+		{
+			Thread thread = new Thread(new Runnable()
+			{
+				@Override
+				public void run()
+				{
+					arrived.countDown();
+					results.add(singleFlight.execute(TEST_COUNTER1, callable));
+				}
+			});
+			thread.start();
+			threads.add(thread);
+		}
+		for (Thread thread : threads)
+		{
+			thread.join();
+		}
+
+		assertEquals(1, numComputations.get());
+		assertEquals(NUM_THREADS, results.size());
+		for (Long result : results)
+		{
+			assertEquals(Long.valueOf(42), result);
+		}
+	}
+
+	@Test
+	public void testExecute_FailureIsReportedToCaller()
+	{
+		SingleFlight<Long> singleFlight = new SingleFlight<Long>();
+		try
+		{
+			singleFlight.execute(TEST_COUNTER1, new Callable<Long>()
+			{
+				@Override
+				public Long call()
+				{
+					throw new IllegalStateException("Datastore unavailable");
+				}
+			});
+			fail("Expected the computation to fail");
+		}
+		catch (IllegalStateException e)
+		{
+			assertEquals("Datastore unavailable", e.getMessage());
+		}
+	}
+
+}
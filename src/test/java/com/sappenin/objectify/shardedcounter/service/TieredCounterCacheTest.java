@@ -0,0 +1,140 @@
+/**
+ * Copyright (c) 2012 Sappenin Inc.
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ * 
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.sappenin.objectify.shardedcounter.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.common.base.Ticker;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+/**
+ * Test class for {@link TieredCounterCache}.
+ * 
+ * @author David Fuelling <sappenin@gmail.com>
+ */
+public class TieredCounterCacheTest
+{
+	private long nowNanos;
+	private InMemoryCounterCache l1;
+	private InMemoryCounterCache l2;
+	private TieredCounterCache counterCache;
+
+	@Before
+	public void setUp()
+	{
+		this.nowNanos = 0L;
+		final Ticker ticker = new Ticker()
+		{
+			@Override
+			public long read()
+			{
+				return nowNanos;
+			}
+		};
+		this.l1 = new InMemoryCounterCache(10, ticker);
+		this.l2 = new InMemoryCounterCache(10, ticker);
+		this.counterCache = new TieredCounterCache(l1, l2, 1000);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testConstructor_0Expiration()
+	{
+		new TieredCounterCache(l1, l2, 0);
+	}
+
+	@Test
+	public void testGet_ServedFromL1UntilExpired() throws InterruptedException, ExecutionException
+	{
+		l2.put("a", 5, CounterCache.NO_EXPIRATION);
+		assertEquals(Long.valueOf(5), counterCache.get("a"));
+		assertEquals(Long.valueOf(5), l1.get("a"));
+
+		// Another instance increments the count in L2.
+		l2.increment("a", 1, 0);
+		nowNanos += TimeUnit.MILLISECONDS.toNanos(999);
+		assertEquals(Long.valueOf(5), counterCache.get("a"));
+		assertEquals(Long.valueOf(5), counterCache.getAsync("a").get());
+
+		nowNanos += TimeUnit.MILLISECONDS.toNanos(1);
+		assertEquals(Long.valueOf(6), counterCache.getAsync("a").get());
+		assertEquals(Long.valueOf(6), l1.get("a"));
+	}
+
+	@Test
+	public void testGetAll()
+	{
+		l1.put("a", 1, CounterCache.NO_EXPIRATION);
+		l2.put("a", 100, CounterCache.NO_EXPIRATION);
+		l2.put("b", 2, CounterCache.NO_EXPIRATION);
+
+		assertEquals(ImmutableMap.of("a", 1L, "b", 2L), counterCache.getAll(ImmutableList.of("a", "b", "c")));
+		assertEquals(Long.valueOf(2), l1.get("b"));
+	}
+
+	@Test
+	public void testPut_L1ExpiresFirst()
+	{
+		counterCache.put("a", 5, 5000);
+		nowNanos += TimeUnit.MILLISECONDS.toNanos(1000);
+		assertNull(l1.get("a"));
+		assertEquals(Long.valueOf(5), l2.get("a"));
+	}
+
+	@Test
+	public void testIncrement()
+	{
+		l1.put("a", 1, CounterCache.NO_EXPIRATION);
+		l2.put("a", 10, CounterCache.NO_EXPIRATION);
+
+		// Both tiers reflect L2's count, including other instances' increments.
+		assertEquals(Long.valueOf(11), counterCache.increment("a", 1, 0));
+		assertEquals(Long.valueOf(11), l1.get("a"));
+
+		counterCache.incrementAsync("a", 2);
+		assertEquals(Long.valueOf(13), l1.get("a"));
+		assertEquals(Long.valueOf(13), l2.get("a"));
+	}
+
+	@Test
+	public void testIncrementAll()
+	{
+		l1.put("b", 1, CounterCache.NO_EXPIRATION);
+		l2.put("a", 10, CounterCache.NO_EXPIRATION);
+
+		assertEquals(ImmutableMap.of("a", 12L), counterCache.incrementAll(ImmutableMap.of("a", 2L, "b", 3L)));
+		assertEquals(Long.valueOf(12), l1.get("a"));
+		// Not cached in L2, so L1's count is no longer trustworthy.
+		assertNull(l1.get("b"));
+	}
+
+	@Test
+	public void testDelete()
+	{
+		counterCache.put("a", 5, CounterCache.NO_EXPIRATION);
+		counterCache.delete("a");
+		assertNull(l1.get("a"));
+		assertNull(l2.get("a"));
+	}
+
+}